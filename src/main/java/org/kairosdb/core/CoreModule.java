@@ -22,7 +22,9 @@ import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 import org.kairosdb.core.aggregator.*;
 import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryAdmissionController;
 import org.kairosdb.core.datastore.QueryQueuingManager;
+import org.kairosdb.core.datastore.QueryResultCache;
 import org.kairosdb.core.groupby.*;
 import org.kairosdb.core.http.rest.json.GsonParser;
 import org.kairosdb.core.jobs.CacheFileCleaner;
@@ -47,6 +49,8 @@ public class CoreModule extends AbstractModule
 	{
 		bind(QueryQueuingManager.class).in(Singleton.class);
 		bind(KairosDatastore.class).in(Singleton.class);
+		bind(QueryResultCache.class).in(Singleton.class);
+		bind(QueryAdmissionController.class).in(Singleton.class);
 		bind(AggregatorFactory.class).to(GuiceAggregatorFactory.class).in(Singleton.class);
 		bind(GroupByFactory.class).to(GuiceGroupByFactory.class).in(Singleton.class);
 		bind(GsonParser.class).in(Singleton.class);
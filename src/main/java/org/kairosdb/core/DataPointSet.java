@@ -38,6 +38,17 @@ public class DataPointSet
 		this.m_dataPoints = new ArrayList<DataPoint>(dataPoints);
 	}
 
+	/**
+	 Keeps tags instead of copying it so the sets of one series can share the
+	 same map.  The map must not be changed once it is given to a set.
+	 */
+	public DataPointSet(String name, SortedMap<String, String> tags)
+	{
+		m_name = name;
+		m_tags = tags;
+		m_dataPoints = new ArrayList<DataPoint>();
+	}
+
 	public void addTag(String name, String value)
 	{
 		m_tags.put(name, value);
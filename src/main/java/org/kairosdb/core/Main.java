@@ -26,6 +26,7 @@ import org.json.JSONObject;
 import org.kairosdb.core.datastore.DataPointRow;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.datastore.QueryMetric;
+import org.kairosdb.core.exception.DatastoreBusyException;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.exception.KariosDBException;
 import org.slf4j.LoggerFactory;
@@ -322,7 +323,27 @@ public class Main
 
 			dps.addDataPoint(dp);
 
-			ds.putDataPoints(dps);
+			//Imported data cannot be shed so wait for the datastore to catch up
+			while (true)
+			{
+				try
+				{
+					ds.putDataPoints(dps);
+					break;
+				}
+				catch (DatastoreBusyException e)
+				{
+					try
+					{
+						Thread.sleep(100);
+					}
+					catch (InterruptedException ie)
+					{
+						Thread.currentThread().interrupt();
+						throw new DatastoreException(ie);
+					}
+				}
+			}
 		}
 	}
 
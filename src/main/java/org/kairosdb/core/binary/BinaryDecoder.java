@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Decodes frames of BinaryProtocol into data point sets.  There is one decoder
+ per stream as it holds the series defined so far.  Sets of the same series
+ share the series name and tag map.
+ */
+public class BinaryDecoder
+{
+	public static final int MAX_SERIES = 1024 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final int m_maxFrameSize;
+	private final List<String> m_names = new ArrayList<String>();
+	private final List<SortedMap<String, String>> m_tags = new ArrayList<SortedMap<String, String>>();
+	private byte[] m_frame = new byte[0];
+
+	public BinaryDecoder(int maxFrameSize)
+	{
+		checkArgument(maxFrameSize > 0, "Max frame size must be greater than zero");
+		m_maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 Reads and decodes the next frame of in.
+	 @return null at the end of the stream
+	 */
+	public List<DataPointSet> readFrame(DataInputStream in) throws IOException
+	{
+		int first = in.read();
+		if (first == -1)
+			return (null);
+
+		int size;
+		try
+		{
+			size = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+			if (size < 0 || size > m_maxFrameSize)
+				throw new BinaryFormatException("Frame size of " + (size & 0xFFFFFFFFL) +
+						" is over the limit of " + m_maxFrameSize);
+
+			if (m_frame.length < size)
+				m_frame = new byte[Math.max(size, m_frame.length * 2)];
+
+			in.readFully(m_frame, 0, size);
+		}
+		catch (EOFException e)
+		{
+			throw new BinaryFormatException("Stream ends in the middle of a frame");
+		}
+
+		return (decodeFrame(ByteBuffer.wrap(m_frame, 0, size)));
+	}
+
+	/**
+	 Decodes one frame, without its length, from the position of frame to its
+	 limit.
+	 */
+	public List<DataPointSet> decodeFrame(ByteBuffer frame) throws BinaryFormatException
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		try
+		{
+			byte version = frame.get();
+			if (version != BinaryProtocol.VERSION)
+				throw new BinaryFormatException("Unsupported binary protocol version " + version);
+
+			int lastSeries = -1;
+			DataPointSet lastSet = null;
+			while (frame.hasRemaining())
+			{
+				byte type = frame.get();
+				switch (type)
+				{
+					case BinaryProtocol.DEFINE_SERIES:
+						defineSeries(frame);
+						break;
+
+					case BinaryProtocol.LONG_POINTS:
+					case BinaryProtocol.DOUBLE_POINTS:
+						int series = readVarInt(frame);
+						if (series >= m_names.size())
+							throw new BinaryFormatException("Series " + series + " is not defined");
+
+						//The encoder writes a series as runs of one type, these go in one set
+						if (series != lastSeries)
+						{
+							lastSeries = series;
+							lastSet = new DataPointSet(m_names.get(series), m_tags.get(series));
+							ret.add(lastSet);
+						}
+
+						readPoints(frame, lastSet, type == BinaryProtocol.DOUBLE_POINTS);
+						break;
+
+					default:
+						throw new BinaryFormatException("Unknown record type " + type);
+				}
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new BinaryFormatException("Frame ends in the middle of a record");
+		}
+
+		return (ret);
+	}
+
+	private void defineSeries(ByteBuffer frame) throws BinaryFormatException
+	{
+		if (m_names.size() == MAX_SERIES)
+			throw new BinaryFormatException("Stream defines more than " + MAX_SERIES + " series");
+
+		String name = readString(frame);
+		if (name.length() == 0)
+			throw new BinaryFormatException("Series name cannot be empty");
+
+		int tagCount = readVarInt(frame);
+		if (tagCount < 1)
+			throw new BinaryFormatException("Series " + name + " must have at least one tag");
+
+		SortedMap<String, String> tags = new TreeMap<String, String>();
+		for (int I = 0; I < tagCount; I++)
+			tags.put(readString(frame), readString(frame));
+
+		m_names.add(name);
+		m_tags.add(tags);
+	}
+
+	private static void readPoints(ByteBuffer frame, DataPointSet dps, boolean isDouble)
+			throws BinaryFormatException
+	{
+		int count = readVarInt(frame);
+		long timestamp = 0;
+
+		for (int I = 0; I < count; I++)
+		{
+			timestamp += readZigZag(frame);
+			if (timestamp < 1)
+				throw new BinaryFormatException("Timestamp must be greater than 0");
+
+			if (isDouble)
+				dps.addDataPoint(new DataPoint(timestamp, frame.getDouble()));
+			else
+				dps.addDataPoint(new DataPoint(timestamp, readZigZag(frame)));
+		}
+	}
+
+	private static String readString(ByteBuffer frame) throws BinaryFormatException
+	{
+		int length = readVarInt(frame);
+		if (length > frame.remaining())
+			throw new BinaryFormatException("Frame ends in the middle of a record");
+
+		String ret;
+		if (frame.hasArray())
+		{
+			ret = new String(frame.array(), frame.arrayOffset() + frame.position(), length, UTF_8);
+			frame.position(frame.position() + length);
+		}
+		else
+		{
+			byte[] bytes = new byte[length];
+			frame.get(bytes);
+			ret = new String(bytes, UTF_8);
+		}
+
+		return (ret);
+	}
+
+	private static int readVarInt(ByteBuffer frame) throws BinaryFormatException
+	{
+		long value = readVarLong(frame);
+		if (value > Integer.MAX_VALUE || value < 0)
+			throw new BinaryFormatException("Count of " + value + " is out of range");
+
+		return ((int) value);
+	}
+
+	private static long readZigZag(ByteBuffer frame) throws BinaryFormatException
+	{
+		long value = readVarLong(frame);
+		return ((value >>> 1) ^ -(value & 1));
+	}
+
+	private static long readVarLong(ByteBuffer frame) throws BinaryFormatException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = frame.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return (value);
+		}
+
+		throw new BinaryFormatException("Varint is longer than 10 bytes");
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ Client side encoder for BinaryProtocol.  Data points are held until about
+ frameSize bytes are pending or flush is called, then written as one frame
+ with the points of each series together.  Not thread safe.
+
+ Only uses the JDK so it can be copied into clients along with
+ BinaryProtocol.
+ */
+public class BinaryEncoder
+{
+	public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
+
+	/**
+	 Most a point can add to a frame, two 10 byte varints.
+	 */
+	private static final int MAX_POINT_SIZE = 20;
+
+	private final OutputStream m_out;
+	private final int m_frameSize;
+	private final Map<Series, Integer> m_seriesIds = new HashMap<Series, Integer>();
+	private final List<Series> m_newSeries = new ArrayList<Series>();
+	private final Map<Integer, SeriesPoints> m_points = new LinkedHashMap<Integer, SeriesPoints>();
+	private int m_pendingSize;
+	private byte[] m_buffer = new byte[1024];
+	private int m_length;
+
+	public BinaryEncoder(OutputStream out)
+	{
+		this(out, DEFAULT_FRAME_SIZE);
+	}
+
+	public BinaryEncoder(OutputStream out, int frameSize)
+	{
+		if (out == null)
+			throw new NullPointerException("out");
+		if (frameSize < 1 || frameSize > BinaryProtocol.MAX_FRAME_SIZE / 2)
+			throw new IllegalArgumentException("Frame size is out of range: " + frameSize);
+
+		m_out = out;
+		m_frameSize = frameSize;
+	}
+
+	/**
+	 Returns the number of the series, defining it if it is new.  Passing the
+	 number to addDataPoint saves looking up the series for every point.
+	 */
+	public int getSeries(String name, Map<String, String> tags)
+	{
+		if (name == null || name.length() == 0)
+			throw new IllegalArgumentException("Metric name cannot be empty");
+		if (tags == null || tags.isEmpty())
+			throw new IllegalArgumentException("Metric " + name + " must have at least one tag");
+
+		Series series = new Series(name, new TreeMap<String, String>(tags));
+		Integer id = m_seriesIds.get(series);
+		if (id == null)
+		{
+			id = m_seriesIds.size();
+			m_seriesIds.put(series, id);
+			m_newSeries.add(series);
+			m_pendingSize += series.getSize();
+		}
+
+		return (id);
+	}
+
+	public void addDataPoint(String name, Map<String, String> tags, long timestamp, long value) throws IOException
+	{
+		addDataPoint(getSeries(name, tags), timestamp, value);
+	}
+
+	public void addDataPoint(String name, Map<String, String> tags, long timestamp, double value) throws IOException
+	{
+		addDataPoint(getSeries(name, tags), timestamp, value);
+	}
+
+	public void addDataPoint(int series, long timestamp, long value) throws IOException
+	{
+		getPoints(series).add(timestamp, value, false);
+		pointAdded();
+	}
+
+	public void addDataPoint(int series, long timestamp, double value) throws IOException
+	{
+		getPoints(series).add(timestamp, Double.doubleToRawLongBits(value), true);
+		pointAdded();
+	}
+
+	private SeriesPoints getPoints(int series)
+	{
+		if (series < 0 || series >= m_seriesIds.size())
+			throw new IllegalArgumentException("Series " + series + " is not defined");
+
+		SeriesPoints points = m_points.get(series);
+		if (points == null)
+		{
+			points = new SeriesPoints();
+			m_points.put(series, points);
+		}
+
+		return (points);
+	}
+
+	private void pointAdded() throws IOException
+	{
+		m_pendingSize += MAX_POINT_SIZE;
+		if (m_pendingSize >= m_frameSize)
+			writeFrame();
+	}
+
+	/**
+	 Writes the pending points as a frame and flushes the stream.
+	 */
+	public void flush() throws IOException
+	{
+		writeFrame();
+		m_out.flush();
+	}
+
+	public void close() throws IOException
+	{
+		flush();
+		m_out.close();
+	}
+
+	private void writeFrame() throws IOException
+	{
+		if (m_newSeries.isEmpty() && m_points.isEmpty())
+			return;
+
+		m_length = BinaryProtocol.LENGTH_SIZE;
+		writeByte(BinaryProtocol.VERSION);
+
+		for (Series series : m_newSeries)
+		{
+			writeByte(BinaryProtocol.DEFINE_SERIES);
+			writeString(series.m_name);
+			writeVarLong(series.m_tags.size());
+			for (Map.Entry<String, String> tag : series.m_tags.entrySet())
+			{
+				writeString(tag.getKey());
+				writeString(tag.getValue());
+			}
+		}
+
+		for (Map.Entry<Integer, SeriesPoints> entry : m_points.entrySet())
+			writePoints(entry.getKey(), entry.getValue());
+
+		int size = m_length - BinaryProtocol.LENGTH_SIZE;
+		m_buffer[0] = (byte) (size >>> 24);
+		m_buffer[1] = (byte) (size >>> 16);
+		m_buffer[2] = (byte) (size >>> 8);
+		m_buffer[3] = (byte) size;
+		m_out.write(m_buffer, 0, m_length);
+
+		m_newSeries.clear();
+		m_points.clear();
+		m_pendingSize = 0;
+	}
+
+	/**
+	 Writes a record for each run of points of the same type.
+	 */
+	private void writePoints(int series, SeriesPoints points)
+	{
+		int start = 0;
+		while (start < points.m_size)
+		{
+			boolean isDouble = points.m_isDouble[start];
+			int end = start + 1;
+			while (end < points.m_size && points.m_isDouble[end] == isDouble)
+				end++;
+
+			writeByte(isDouble ? BinaryProtocol.DOUBLE_POINTS : BinaryProtocol.LONG_POINTS);
+			writeVarLong(series);
+			writeVarLong(end - start);
+
+			long lastTimestamp = 0;
+			for (int I = start; I < end; I++)
+			{
+				writeZigZag(points.m_timestamps[I] - lastTimestamp);
+				lastTimestamp = points.m_timestamps[I];
+
+				if (isDouble)
+					writeLong(points.m_values[I]);
+				else
+					writeZigZag(points.m_values[I]);
+			}
+
+			start = end;
+		}
+	}
+
+	private void ensureCapacity(int size)
+	{
+		if (m_length + size > m_buffer.length)
+			m_buffer = Arrays.copyOf(m_buffer, Math.max(m_length + size, m_buffer.length * 2));
+	}
+
+	private void writeByte(byte b)
+	{
+		ensureCapacity(1);
+		m_buffer[m_length++] = b;
+	}
+
+	private void writeLong(long value)
+	{
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			m_buffer[m_length++] = (byte) (value >>> shift);
+	}
+
+	private void writeZigZag(long value)
+	{
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	private void writeVarLong(long value)
+	{
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0)
+		{
+			m_buffer[m_length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		m_buffer[m_length++] = (byte) value;
+	}
+
+	private void writeString(String value)
+	{
+		byte[] bytes;
+		try
+		{
+			bytes = value.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		writeVarLong(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, m_buffer, m_length, bytes.length);
+		m_length += bytes.length;
+	}
+
+	//===========================================================================
+	private static class Series
+	{
+		private final String m_name;
+		private final SortedMap<String, String> m_tags;
+
+		private Series(String name, SortedMap<String, String> tags)
+		{
+			m_name = name;
+			m_tags = tags;
+		}
+
+		/**
+		 Most the series definition can take in a frame, a char is up to 3
+		 bytes of UTF-8 and a length up to 5.
+		 */
+		private int getSize()
+		{
+			int size = m_name.length() * 3 + 10;
+			for (Map.Entry<String, String> tag : m_tags.entrySet())
+				size += (tag.getKey().length() + tag.getValue().length()) * 3 + 10;
+
+			return (size);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return (true);
+			if (!(o instanceof Series))
+				return (false);
+
+			Series series = (Series) o;
+			return (m_name.equals(series.m_name) && m_tags.equals(series.m_tags));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (31 * m_name.hashCode() + m_tags.hashCode());
+		}
+	}
+
+	//===========================================================================
+	private static class SeriesPoints
+	{
+		private long[] m_timestamps = new long[16];
+		private long[] m_values = new long[16];
+		private boolean[] m_isDouble = new boolean[16];
+		private int m_size;
+
+		private void add(long timestamp, long value, boolean isDouble)
+		{
+			if (m_size == m_timestamps.length)
+			{
+				m_timestamps = Arrays.copyOf(m_timestamps, m_size * 2);
+				m_values = Arrays.copyOf(m_values, m_size * 2);
+				m_isDouble = Arrays.copyOf(m_isDouble, m_size * 2);
+			}
+
+			m_timestamps[m_size] = timestamp;
+			m_values[m_size] = value;
+			m_isDouble[m_size] = isDouble;
+			m_size++;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import java.io.IOException;
+
+/**
+ Thrown when binary ingest data does not follow BinaryProtocol.  The rest of
+ the stream cannot be read as the series numbers may be wrong.
+ */
+public class BinaryFormatException extends IOException
+{
+	public BinaryFormatException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+/**
+ The binary ingest format.  A stream is a series of frames, each a 4 byte big
+ endian length followed by that many bytes:
+
+ <pre>
+ frame  = VERSION record*
+ record = DEFINE_SERIES name:string tag_count:varint (key:string value:string)*
+        | LONG_POINTS series:varint count:varint (timestamp_delta:zigzag value:zigzag)*
+        | DOUBLE_POINTS series:varint count:varint (timestamp_delta:zigzag value:double)*
+ string = length:varint UTF-8 bytes
+ </pre>
+
+ Series are numbered from 0 in the order they are defined and keep their
+ number for the rest of the stream, a TCP connection or an HTTP request body.
+ The first timestamp of a record is a delta from 0, each one after is a delta
+ from the timestamp before it.  A varint holds 7 bits per byte, low bits
+ first, zigzag is a varint of the zigzag encoded signed value and a double
+ is 8 bytes big endian.
+
+ The server only writes back over TCP to report a series it dropped because
+ the datastore stayed busy, as a UTF-8 line of BUSY_REPLY, the metric name
+ and the reason.
+
+ This class and BinaryEncoder only use the JDK so clients can copy them.
+ */
+public final class BinaryProtocol
+{
+	public static final String CONTENT_TYPE = "application/x-kairosdb-binary";
+
+	public static final byte VERSION = 1;
+
+	public static final byte DEFINE_SERIES = 1;
+	public static final byte LONG_POINTS = 2;
+	public static final byte DOUBLE_POINTS = 3;
+
+	/**
+	 Starts the line the server writes for a series it dropped.
+	 */
+	public static final String BUSY_REPLY = "busy: ";
+
+	/**
+	 Size of the length at the start of each frame.
+	 */
+	public static final int LENGTH_SIZE = 4;
+
+	/**
+	 Largest frame the server reads over HTTP.
+	 */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private BinaryProtocol()
+	{
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.util.CharsetUtil;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreBusyException;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KariosDBException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.util.IngestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Accepts BinaryProtocol streams over TCP.  Frames are read on the I/O threads
+ and decoded and written to the datastore on the handler threads, in order
+ for each connection.  A connection that sends a bad frame is closed.
+
+ While the datastore is busy the handler retries the series it is on, the
+ frames behind it queue up and reading from the connection stops.  A series
+ that is still refused after busy_timeout is dropped with a busy reply and
+ the rest of the frame is written.
+ */
+public class BinaryServer implements ChannelPipelineFactory, KairosDBService, KairosMetricReporter
+{
+	public static final Logger logger = LoggerFactory.getLogger(BinaryServer.class);
+
+	public static final String PORT_PROPERTY = "kairosdb.binaryserver.port";
+	public static final String MAX_FRAME_SIZE_PROPERTY = "kairosdb.binaryserver.max_frame_size";
+	public static final String HANDLER_THREADS_PROPERTY = "kairosdb.binaryserver.handler_threads";
+	public static final String SHUTDOWN_TIMEOUT_PROPERTY = "kairosdb.binaryserver.shutdown_timeout";
+	public static final String BUSY_TIMEOUT_PROPERTY = "kairosdb.binaryserver.busy_timeout";
+	public static final String DATA_POINTS_METRIC_NAME = "kairosdb.protocol.binary_data_points";
+	public static final String CONNECTIONS_METRIC_NAME = "kairosdb.protocol.binary_connections";
+
+	private static final long MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+	private static final long BUSY_RETRY_DELAY = 50;
+
+	private final int m_port;
+	private final KairosDatastore m_datastore;
+	private final String m_hostname;
+	private int m_maxFrameSize = 1024 * 1024;
+	private int m_handlerThreads = 8;
+	private long m_shutdownTimeout = 10000;
+	private long m_busyTimeout = 5000;
+
+	private final ChannelGroup m_channels = new DefaultChannelGroup("binary");
+	private final AtomicLong m_dataPoints = new AtomicLong();
+	private ServerBootstrap m_bootstrap;
+	private Channel m_serverChannel;
+	private IngestExecutor m_executor;
+	private ExecutionHandler m_executionHandler;
+
+	@Inject
+	public BinaryServer(@Named(PORT_PROPERTY) int port, KairosDatastore datastore,
+			@Named("HOSTNAME") String hostname)
+	{
+		m_port = port;
+		m_datastore = checkNotNull(datastore);
+		m_hostname = checkNotNullOrEmpty(hostname);
+	}
+
+	/**
+	 Largest frame a client can send, larger frames close the connection.
+	 */
+	@Inject(optional = true)
+	public void setMaxFrameSize(@Named(MAX_FRAME_SIZE_PROPERTY) int maxFrameSize)
+	{
+		m_maxFrameSize = maxFrameSize;
+	}
+
+	@Inject(optional = true)
+	public void setHandlerThreads(@Named(HANDLER_THREADS_PROPERTY) int handlerThreads)
+	{
+		m_handlerThreads = handlerThreads;
+	}
+
+	@Inject(optional = true)
+	public void setShutdownTimeout(@Named(SHUTDOWN_TIMEOUT_PROPERTY) long shutdownTimeout)
+	{
+		m_shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 Milliseconds a series is retried while the datastore is busy before it
+	 is dropped.
+	 */
+	@Inject(optional = true)
+	public void setBusyTimeout(@Named(BUSY_TIMEOUT_PROPERTY) long busyTimeout)
+	{
+		m_busyTimeout = busyTimeout;
+	}
+
+	@Override
+	public ChannelPipeline getPipeline() throws Exception
+	{
+		ChannelPipeline pipeline = Channels.pipeline();
+
+		pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(
+				m_maxFrameSize + BinaryProtocol.LENGTH_SIZE, 0, BinaryProtocol.LENGTH_SIZE,
+				0, BinaryProtocol.LENGTH_SIZE));
+		pipeline.addLast("executor", m_executionHandler);
+		pipeline.addLast("handler", new BinaryHandler());
+
+		return (pipeline);
+	}
+
+	@Override
+	public void start() throws KariosDBException
+	{
+		m_executor = new IngestExecutor("binary-handler-%d", m_handlerThreads,
+				m_maxFrameSize * 2L, MAX_QUEUED_BYTES);
+		m_executionHandler = new ExecutionHandler(m_executor);
+
+		m_bootstrap = new ServerBootstrap(
+				new NioServerSocketChannelFactory(
+						Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+								.setNameFormat("binary-boss-%d").build()),
+						1,
+						Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+								.setNameFormat("binary-worker-%d").build()),
+						Runtime.getRuntime().availableProcessors()));
+
+		m_bootstrap.setPipelineFactory(this);
+		m_bootstrap.setOption("child.tcpNoDelay", true);
+		m_bootstrap.setOption("child.keepAlive", true);
+		m_bootstrap.setOption("reuseAddress", true);
+
+		m_serverChannel = m_bootstrap.bind(new InetSocketAddress(m_port));
+	}
+
+	/**
+	 Stops accepting connections, closes the open ones and waits for the frames
+	 already read to be written.
+	 */
+	@Override
+	public void stop()
+	{
+		if (m_bootstrap == null)
+			return;
+
+		m_serverChannel.close().awaitUninterruptibly();
+		m_channels.close().awaitUninterruptibly();
+
+		try
+		{
+			if (!m_executor.awaitDrained(m_shutdownTimeout))
+				logger.warn("Binary server stopped with " + m_executor.getQueueSize() + " frames not written");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		m_executionHandler.releaseExternalResources();
+		m_bootstrap.releaseExternalResources();
+		m_bootstrap = null;
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		ret.add(newDataPointSet(DATA_POINTS_METRIC_NAME, now, m_dataPoints.getAndSet(0)));
+		ret.add(newDataPointSet(CONNECTIONS_METRIC_NAME, now, m_channels.size()));
+
+		return (ret);
+	}
+
+	private DataPointSet newDataPointSet(String metricName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
+	//===========================================================================
+	/**
+	 One per connection as the decoder holds the series the client defined.
+	 */
+	private class BinaryHandler extends SimpleChannelUpstreamHandler
+	{
+		private final BinaryDecoder m_decoder = new BinaryDecoder(m_maxFrameSize);
+
+		@Override
+		public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+		{
+			m_channels.add(e.getChannel());
+			super.channelOpen(ctx, e);
+		}
+
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+		{
+			ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+
+			for (DataPointSet dps : m_decoder.decodeFrame(frame.toByteBuffer()))
+			{
+				if (put(e.getChannel(), dps))
+					m_dataPoints.addAndGet(dps.getDataPoints().size());
+			}
+		}
+
+		/**
+		 Holds this connection while the datastore is busy so its frames queue
+		 up and reading stops.
+		 @return false if the series was dropped
+		 */
+		private boolean put(Channel channel, DataPointSet dps) throws DatastoreException, InterruptedException
+		{
+			long end = System.currentTimeMillis() + m_busyTimeout;
+			while (true)
+			{
+				try
+				{
+					m_datastore.putDataPoints(dps);
+					return (true);
+				}
+				catch (DatastoreBusyException e)
+				{
+					if (System.currentTimeMillis() >= end || !channel.isConnected())
+					{
+						if (channel.isConnected())
+							channel.write(ChannelBuffers.copiedBuffer(BinaryProtocol.BUSY_REPLY + dps.getName() +
+									": " + e.getMessage() + "\n", CharsetUtil.UTF_8));
+						return (false);
+					}
+
+					Thread.sleep(BUSY_RETRY_DELAY);
+				}
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception
+		{
+			logger.warn("Closing binary connection from " + e.getChannel().getRemoteAddress() +
+					": " + e.getCause().getMessage());
+			e.getChannel().close();
+		}
+	}
+}
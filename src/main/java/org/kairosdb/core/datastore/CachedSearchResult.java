@@ -22,10 +22,27 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Data points of a query written to a temp file so they can be read back one
+ row at a time or reused by a later query with the same cache key.
+
+ In memory mapped mode the data file is mapped once when the rows are
+ requested and each row iterates over a slice of the mapping instead of
+ reading through its own buffer.
+
+ Results that do not need to be kept for a later query can be held in
+ memory taken from a ResultMemoryBudget.  They are written out to the data
+ file once they go over the per query limit or the budget runs out.  The
+ buffers are on the heap, direct buffers are only freed when they are
+ garbage collected so the direct memory in use would go over the budget.
+ */
 public class CachedSearchResult
 {
 	public static final Logger logger = LoggerFactory.getLogger(CachedSearchResult.class);
@@ -37,6 +54,8 @@ public class CachedSearchResult
 	public static final byte LONG_FLAG = 0x1;
 	public static final byte DOUBLE_FLAG = 0x2;
 
+	private static final int INDEX_MAGIC = 0x4B434931; //KCI1
+
 	private String m_metricName;
 	private List<FilePositionMarker> m_dataPointSets;
 	private ByteBuffer m_writeBuffer;
@@ -45,6 +64,14 @@ public class CachedSearchResult
 	private File m_indexFile;
 	private AtomicInteger m_closeCounter = new AtomicInteger();
 	private boolean m_readFromCache = false;
+	private final boolean m_memoryMapped;
+	private MappedByteBuffer m_mappedData;
+	private final ResultMemoryBudget m_memoryBudget;
+	private boolean m_inMemory;
+	private long m_reservedMemory = 0L;
+	private volatile boolean m_rowsRequested = false;
+	private volatile QueryDeadline m_deadline = new QueryDeadline(0);
+	private volatile boolean m_aborted = false;
 
 	private static File getIndexFile(String baseFileName)
 	{
@@ -60,12 +87,17 @@ public class CachedSearchResult
 		return (new File(dataFileName));
 	}
 
-	private CachedSearchResult(String metricName, File dataFile, File indexFile)
+	private CachedSearchResult(String metricName, File dataFile, File indexFile,
+			boolean memoryMapped, ResultMemoryBudget memoryBudget)
 			throws FileNotFoundException
 	{
 		m_metricName = metricName;
-		m_writeBuffer = ByteBuffer.allocate(DATA_POINT_SIZE * WRITE_BUFFER_SIZE);
-		m_writeBuffer.clear();
+		m_memoryMapped = memoryMapped;
+		m_memoryBudget = memoryBudget;
+		m_inMemory = (memoryBudget != null);
+		//The memory buffer is allocated with the first data point set
+		if (!m_inMemory)
+			m_writeBuffer = ByteBuffer.allocate(DATA_POINT_SIZE * WRITE_BUFFER_SIZE);
 		m_indexFile = indexFile;
 		m_dataPointSets = new ArrayList<FilePositionMarker>();
 		m_dataFile = dataFile;
@@ -82,41 +114,57 @@ public class CachedSearchResult
 
 
 	/**
-	 Reads the index file into memory
+	 Reads the index file into memory.  Returns false if the file is not in
+	 the current index format.
 	 */
-	private void loadIndex() throws IOException, ClassNotFoundException
+	private boolean loadIndex() throws IOException
 	{
-		ObjectInputStream in = new ObjectInputStream(new FileInputStream(m_indexFile));
-		int size = in.readInt();
-		for (int I = 0; I < size; I++)
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile)));
+		try
 		{
-			//open the cache file only if there will be data point groups returned
-			if (m_dataFileChannel == null)
-				openCacheFile();
+			if (m_indexFile.length() < 8 || in.readInt() != INDEX_MAGIC)
+				return (false);
 
-			FilePositionMarker marker = new FilePositionMarker();
-			marker.readExternal(in);
-			m_dataPointSets.add(marker);
+			int size = in.readInt();
+			for (int I = 0; I < size; I++)
+			{
+				//open the cache file only if there will be data point groups returned
+				if (m_dataFileChannel == null)
+					openCacheFile();
+
+				FilePositionMarker marker = new FilePositionMarker();
+				marker.read(in);
+				m_dataPointSets.add(marker);
+			}
+		}
+		finally
+		{
+			in.close();
 		}
 
 		m_readFromCache = true;
-		in.close();
+		return (true);
 	}
 
 	private void saveIndex() throws IOException
 	{
-		if (m_readFromCache)
-			return; //No need to save if we read it from the file
+		if (m_readFromCache || m_memoryBudget != null)
+			return; //No need to save if we read it from the file or it is not reused
 
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(m_indexFile));
-		out.writeInt(m_dataPointSets.size());
-		for (FilePositionMarker marker : m_dataPointSets)
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_indexFile)));
+		try
 		{
-			marker.writeExternal(out);
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(m_dataPointSets.size());
+			for (FilePositionMarker marker : m_dataPointSets)
+			{
+				marker.write(out);
+			}
+		}
+		finally
+		{
+			out.close();
 		}
-
-		out.flush();
-		out.close();
 	}
 
 	private void clearDataFile() throws IOException
@@ -128,17 +176,43 @@ public class CachedSearchResult
 	public static CachedSearchResult createCachedSearchResult(String metricName,
 	                                                          String baseFileName)
 			throws IOException
+	{
+		return (createCachedSearchResult(metricName, baseFileName, false));
+	}
+
+	/**
+	 @param memoryMapped true to serve the rows from a memory mapping of the data file
+	 */
+	public static CachedSearchResult createCachedSearchResult(String metricName,
+	                                                          String baseFileName, boolean memoryMapped)
+			throws IOException
 	{
 		File dataFile = getDataFile(baseFileName);
 		File indexFile = getIndexFile(baseFileName);
 
-		CachedSearchResult ret = new CachedSearchResult(metricName, dataFile, indexFile);
+		CachedSearchResult ret = new CachedSearchResult(metricName, dataFile, indexFile, memoryMapped, null);
 
 		ret.clearDataFile();
 
 		return (ret);
 	}
 
+	/**
+	 Creates a result that is not saved for later queries.  Data points are
+	 held in memory from the budget until it runs out, then they spill to the
+	 data file which is deleted when the rows are closed.
+	 */
+	public static CachedSearchResult createInMemorySearchResult(String metricName,
+			String baseFileName, ResultMemoryBudget memoryBudget, boolean memoryMapped)
+			throws IOException
+	{
+		checkNotNull(memoryBudget);
+		File dataFile = getDataFile(baseFileName);
+		File indexFile = getIndexFile(baseFileName);
+
+		return (new CachedSearchResult(metricName, dataFile, indexFile, memoryMapped, memoryBudget));
+	}
+
 	/**
 
 	 @param baseFileName base name of file
@@ -147,6 +221,12 @@ public class CachedSearchResult
 	 */
 	public static CachedSearchResult openCachedSearchResult(String metricName,
 			String baseFileName, int cacheTime) throws IOException
+	{
+		return (openCachedSearchResult(metricName, baseFileName, cacheTime, false));
+	}
+
+	public static CachedSearchResult openCachedSearchResult(String metricName,
+			String baseFileName, int cacheTime, boolean memoryMapped) throws IOException
 	{
 		CachedSearchResult ret = null;
 		File dataFile = getDataFile(baseFileName);
@@ -156,14 +236,10 @@ public class CachedSearchResult
 		if (dataFile.exists() && indexFile.exists() && ((now - dataFile.lastModified()) < ((long)cacheTime * 1000)))
 		{
 
-			ret = new CachedSearchResult(metricName, dataFile, indexFile);
-			try
+			ret = new CachedSearchResult(metricName, dataFile, indexFile, memoryMapped, null);
+			if (!ret.loadIndex())
 			{
-				ret.loadIndex();
-			}
-			catch (ClassNotFoundException e)
-			{
-				logger.error("Unable to load cache file", e);
+				logger.debug("Ignoring cache index in an old format " + indexFile);
 				ret = null;
 			}
 		}
@@ -176,12 +252,23 @@ public class CachedSearchResult
 	 */
 	public void endDataPoints() throws IOException
 	{
-		if (m_dataFileChannel == null)
-			return;
+		long curPosition;
+		if (m_inMemory)
+		{
+			if (m_writeBuffer == null)
+				return;
 
-		flushWriteBuffer();
+			curPosition = m_writeBuffer.position();
+		}
+		else
+		{
+			if (m_dataFileChannel == null)
+				return;
+
+			flushWriteBuffer();
+			curPosition = m_dataFileChannel.position();
+		}
 
-		long curPosition = m_dataFileChannel.position();
 		if (m_dataPointSets.size() != 0)
 			m_dataPointSets.get(m_dataPointSets.size() -1).setEndPosition(curPosition);
 	}
@@ -193,10 +280,17 @@ public class CachedSearchResult
 	{
 		try
 		{
+			freeMemory();
+			m_mappedData = null;
 			if (m_dataFileChannel != null)
 				m_dataFileChannel.close();
 
-			saveIndex();
+			//A spilled in memory result is not reused
+			if (m_memoryBudget != null && m_dataFileChannel != null)
+				m_dataFile.delete();
+
+			if (!m_aborted)
+				saveIndex();
 		}
 		catch (IOException e)
 		{
@@ -204,6 +298,66 @@ public class CachedSearchResult
 		}
 	}
 
+	/**
+	 Returns the memory held by this result to the budget.  Called when the
+	 rows are closed or when the query fails before rows are returned.
+	 */
+	synchronized void freeMemory()
+	{
+		if (m_reservedMemory != 0L)
+		{
+			m_memoryBudget.release(m_reservedMemory);
+			m_reservedMemory = 0L;
+		}
+
+		if (m_inMemory)
+			m_writeBuffer = null;
+	}
+
+	/**
+	 Frees the memory and file handle of a result whose query failed or ran
+	 out of time.  The partly written files are deleted so they are not read
+	 as a cached result, and writes still in progress fail.
+	 */
+	synchronized void abort()
+	{
+		m_aborted = true;
+		freeMemory();
+		m_mappedData = null;
+
+		try
+		{
+			if (m_dataFileChannel != null)
+				m_dataFileChannel.close();
+		}
+		catch (IOException e)
+		{
+			logger.error("Failure closing cache file", e);
+		}
+
+		if (!m_readFromCache && m_dataFileChannel != null)
+		{
+			m_dataFile.delete();
+			m_indexFile.delete();
+		}
+	}
+
+	public void setDeadline(QueryDeadline deadline)
+	{
+		m_deadline = checkNotNull(deadline);
+	}
+
+	public QueryDeadline getDeadline()
+	{
+		return (m_deadline);
+	}
+
+	private void checkWritable() throws IOException
+	{
+		if (m_aborted)
+			throw new IOException("Query result for " + m_metricName + " was aborted");
+	}
+
 	protected void decrementClose()
 	{
 		if (m_closeCounter.decrementAndGet() == 0)
@@ -218,15 +372,94 @@ public class CachedSearchResult
 	 */
 	public void startDataPointSet(Map<String, String> tags) throws IOException
 	{
-		if (m_dataFileChannel == null)
+		checkWritable();
+		m_deadline.check();
+
+		if (m_inMemory && m_writeBuffer == null)
+			allocateMemory();
+
+		if (!m_inMemory && m_dataFileChannel == null)
 			openCacheFile();
 
 		endDataPoints();
 
-		long curPosition = m_dataFileChannel.position();
+		long curPosition = m_inMemory ? m_writeBuffer.position() : m_dataFileChannel.position();
 		m_dataPointSets.add(new FilePositionMarker(curPosition, tags));
 	}
 
+	private synchronized void allocateMemory() throws IOException
+	{
+		int size = (int) Math.min(DATA_POINT_SIZE * WRITE_BUFFER_SIZE, m_memoryBudget.getQueryLimit());
+		size -= size % DATA_POINT_SIZE;
+
+		if (size != 0 && m_memoryBudget.reserve(size))
+		{
+			m_reservedMemory = size;
+			m_writeBuffer = ByteBuffer.allocate(size);
+		}
+		else
+		{
+			m_inMemory = false;
+			m_writeBuffer = ByteBuffer.allocate(DATA_POINT_SIZE * WRITE_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 Doubles the memory buffer.  Capacities stay a multiple of the data point
+	 size so a full buffer always ends on a whole data point.
+	 @return false if the query limit or the budget does not allow it
+	 */
+	private synchronized boolean growMemory()
+	{
+		int capacity = m_writeBuffer.capacity();
+		long newCapacity = Math.min((long) capacity * 2, m_memoryBudget.getQueryLimit());
+		newCapacity -= newCapacity % DATA_POINT_SIZE;
+
+		if (newCapacity <= capacity || !m_memoryBudget.reserve(newCapacity - capacity))
+			return (false);
+
+		m_reservedMemory = newCapacity;
+		ByteBuffer newBuffer = ByteBuffer.allocate((int) newCapacity);
+		m_writeBuffer.flip();
+		newBuffer.put(m_writeBuffer);
+		m_writeBuffer = newBuffer;
+
+		return (true);
+	}
+
+	/**
+	 Writes what is held in memory to the data file and continues on disk.
+	 Positions in memory are the same as positions in the file.
+	 */
+	private void spillToDisk() throws IOException
+	{
+		logger.debug("Query result for " + m_metricName + " spilling to disk");
+		openCacheFile();
+		m_dataFileChannel.truncate(0);
+
+		m_writeBuffer.flip();
+		while (m_writeBuffer.hasRemaining())
+			m_dataFileChannel.write(m_writeBuffer);
+
+		freeMemory();
+		m_inMemory = false;
+		m_writeBuffer = ByteBuffer.allocate(DATA_POINT_SIZE * WRITE_BUFFER_SIZE);
+	}
+
+	private void makeRoom() throws IOException
+	{
+		checkWritable();
+		if (m_writeBuffer.hasRemaining())
+			return;
+
+		m_deadline.check();
+
+		if (!m_inMemory)
+			flushWriteBuffer();
+		else if (!growMemory())
+			spillToDisk();
+	}
+
 	private void flushWriteBuffer() throws IOException
 	{
 		if (m_writeBuffer.position() != 0)
@@ -242,10 +475,7 @@ public class CachedSearchResult
 
 	public void addDataPoint(long timestamp, long value) throws IOException
 	{
-		if (!m_writeBuffer.hasRemaining())
-		{
-			flushWriteBuffer();
-		}
+		makeRoom();
 		m_writeBuffer.putLong(timestamp);
 		m_writeBuffer.put(LONG_FLAG);
 		m_writeBuffer.putLong(value);
@@ -253,10 +483,7 @@ public class CachedSearchResult
 
 	public void addDataPoint(long timestamp, double value) throws IOException
 	{
-		if (!m_writeBuffer.hasRemaining())
-		{
-			flushWriteBuffer();
-		}
+		makeRoom();
 		m_writeBuffer.putLong(timestamp);
 		m_writeBuffer.put(DOUBLE_FLAG);
 		m_writeBuffer.putDouble(value);
@@ -264,6 +491,9 @@ public class CachedSearchResult
 
 	public List<DataPointRow> getRows()
 	{
+		if (m_memoryMapped && !m_inMemory)
+			mapDataFile();
+
 		List<DataPointRow> ret = new ArrayList<DataPointRow>();
 		for (FilePositionMarker dpSet : m_dataPointSets)
 		{
@@ -271,11 +501,85 @@ public class CachedSearchResult
 			m_closeCounter.incrementAndGet();
 		}
 
+		m_rowsRequested = true;
 		return (ret);
 	}
 
+	/**
+	 Copies the data points to the heap so they can outlive this result.  Call
+	 after the rows have been returned by the datastore and before they are
+	 closed.
+
+	 @param query The query the datastore ran, it gives the time range of the entry
+	 @return null if the datastore did not return its rows from this result or
+	 they take more than maxBytes
+	 */
+	public QueryResultCache.Entry snapshot(DatastoreMetricQuery query, long createTime, long maxBytes)
+			throws IOException
+	{
+		if (!m_rowsRequested)
+			return (null);
+
+		long size = 0L;
+		for (FilePositionMarker dpSet : m_dataPointSets)
+			size += dpSet.m_endPosition - dpSet.m_startPosition;
+
+		if (size > maxBytes)
+			return (null);
+
+		QueryResultCache.Entry entry = new QueryResultCache.Entry(m_metricName, createTime,
+				query.getStartTime(), query.getEndTime());
+		for (FilePositionMarker dpSet : m_dataPointSets)
+		{
+			ByteBuffer data = ByteBuffer.allocate((int) (dpSet.m_endPosition - dpSet.m_startPosition));
+			if (m_inMemory)
+				data.put(dpSet.slice(m_writeBuffer));
+			else if (m_mappedData != null)
+				data.put(dpSet.slice(m_mappedData));
+			else
+			{
+				while (data.hasRemaining())
+				{
+					if (m_dataFileChannel.read(data, dpSet.m_startPosition + data.position()) == -1)
+						throw new IOException("Prematurely reached the end of the file");
+				}
+			}
+
+			data.flip();
+			entry.addRow(dpSet.getTags(), data);
+		}
+
+		return (entry);
+	}
+
+	/**
+	 Maps the data file once.  If the file cannot be mapped the rows are read
+	 through the file channel instead.
+	 */
+	private void mapDataFile()
+	{
+		if (m_mappedData != null || m_dataFileChannel == null)
+			return;
+
+		try
+		{
+			long size = m_dataFileChannel.size();
+			if (size > Integer.MAX_VALUE)
+			{
+				logger.warn("Cache file " + m_dataFile + " is too large to map, reading it through the file channel");
+				return;
+			}
+
+			m_mappedData = m_dataFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch (IOException e)
+		{
+			logger.error("Unable to map cache file " + m_dataFile, e);
+		}
+	}
+
 	//===========================================================================
-	private class FilePositionMarker implements Iterable<DataPoint>, Externalizable
+	private class FilePositionMarker implements Iterable<DataPoint>
 	{
 		private long m_startPosition;
 		private long m_endPosition;
@@ -308,32 +612,44 @@ public class CachedSearchResult
 		@Override
 		public CachedDataPointRow iterator()
 		{
+			if (m_inMemory)
+				return (new CachedDataPointRow(m_tags, slice(m_writeBuffer)));
+
+			if (m_mappedData != null)
+				return (new CachedDataPointRow(m_tags, slice(m_mappedData)));
+
 			return (new CachedDataPointRow(m_tags, m_startPosition, m_endPosition));
 		}
 
-		@Override
-		public void writeExternal(ObjectOutput out) throws IOException
+		private ByteBuffer slice(ByteBuffer source)
+		{
+			ByteBuffer slice = source.duplicate();
+			slice.limit((int) m_endPosition);
+			slice.position((int) m_startPosition);
+			return (slice.slice());
+		}
+
+		public void write(DataOutput out) throws IOException
 		{
 			out.writeLong(m_startPosition);
 			out.writeLong(m_endPosition);
 			out.writeInt(m_tags.size());
-			for (String s : m_tags.keySet())
+			for (Map.Entry<String, String> tag : m_tags.entrySet())
 			{
-				out.writeObject(s);
-				out.writeObject(m_tags.get(s));
+				out.writeUTF(tag.getKey());
+				out.writeUTF(tag.getValue());
 			}
 		}
 
-		@Override
-		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+		public void read(DataInput in) throws IOException
 		{
 			m_startPosition = in.readLong();
 			m_endPosition = in.readLong();
 			int tagCount = in.readInt();
 			for (int I = 0; I < tagCount; I++)
 			{
-				String key = (String)in.readObject();
-				String value = (String)in.readObject();
+				String key = in.readUTF();
+				String value = in.readUTF();
 				m_tags.put(key, value);
 			}
 		}
@@ -358,6 +674,18 @@ public class CachedSearchResult
 			m_tags = tags;
 		}
 
+		/**
+		 Row over a slice of the mapped data file, there is nothing left to
+		 read from the channel once the slice is used up.
+		 */
+		public CachedDataPointRow(Map<String, String> tags, ByteBuffer data)
+		{
+			m_currentPosition = 0L;
+			m_endPostition = 0L;
+			m_readBuffer = data;
+			m_tags = tags;
+		}
+
 		private void readMorePoints() throws IOException
 		{
 			m_readBuffer.clear();
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.groupby.GroupByResult;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ Checks the query deadline as data points are read.  It sits under the
+ aggregators so every aggregator iterator stops once the query runs out of
+ time.
+ */
+public class DeadlineDataPointGroup implements DataPointGroup
+{
+	private static final int CHECK_INTERVAL = 1024;
+
+	private final DataPointGroup m_innerDataPointGroup;
+	private final QueryDeadline m_deadline;
+	private int m_count = 0;
+
+	public DeadlineDataPointGroup(DataPointGroup innerDataPointGroup, QueryDeadline deadline)
+	{
+		m_innerDataPointGroup = innerDataPointGroup;
+		m_deadline = deadline;
+	}
+
+	@Override
+	public String getName()
+	{
+		return (m_innerDataPointGroup.getName());
+	}
+
+	@Override
+	public Set<String> getTagNames()
+	{
+		return (m_innerDataPointGroup.getTagNames());
+	}
+
+	@Override
+	public Set<String> getTagValues(String tag)
+	{
+		return (m_innerDataPointGroup.getTagValues(tag));
+	}
+
+	@Override
+	public List<GroupByResult> getGroupByResult()
+	{
+		return (m_innerDataPointGroup.getGroupByResult());
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return (m_innerDataPointGroup.hasNext());
+	}
+
+	@Override
+	public DataPoint next()
+	{
+		if (++m_count == CHECK_INTERVAL)
+		{
+			m_count = 0;
+			m_deadline.check();
+		}
+
+		return (m_innerDataPointGroup.next());
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close()
+	{
+		m_innerDataPointGroup.close();
+	}
+}
@@ -25,6 +25,8 @@ import org.kairosdb.core.DataPointListener;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.aggregator.Aggregator;
 import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.exception.QueryRejectedException;
 import org.kairosdb.core.groupby.GroupBy;
 import org.kairosdb.core.groupby.Grouper;
 import org.kairosdb.core.groupby.TagGroupBy;
@@ -48,8 +50,14 @@ public class KairosDatastore
 {
 	public static final Logger logger = LoggerFactory.getLogger(KairosDatastore.class);
 	public static final String QUERY_CACHE_DIR = "kairosdb.query_cache.cache_dir";
+	public static final String QUERY_CACHE_MEMORY_MAPPED = "kairosdb.query_cache.memory_mapped";
+	public static final String QUERY_MEMORY_BUDGET = "kairosdb.query_cache.memory_budget";
+	public static final String QUERY_MEMORY_LIMIT = "kairosdb.query_cache.query_memory_limit";
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+	public static final long DEFAULT_QUERY_MEMORY_LIMIT = 1024L * 1024;
 	public static final String QUERY_METRIC_TIME = "kairosdb.datastore.query_time";
 	public static final String QUERIES_WAITING_METRIC_NAME = "kairosdb.datastore.queries_waiting";
+	public static final String QUERY_CANCELLED_METRIC_NAME = "kairosdb.datastore.query_cancelled";
 
 	private final Datastore m_datastore;
 	private final QueryQueuingManager m_queuingManager;
@@ -58,6 +66,10 @@ public class KairosDatastore
 
 	private String m_baseCacheDir;
 	private volatile String m_cacheDir;
+	private boolean m_memoryMappedCache = false;
+	private QueryResultCache m_resultCache;
+	private QueryAdmissionController m_admissionController;
+	private volatile ResultMemoryBudget m_memoryBudget = new ResultMemoryBudget(DEFAULT_MEMORY_BUDGET, DEFAULT_QUERY_MEMORY_LIMIT);
 
 	@SuppressWarnings("ResultOfMethodCallIgnored")
 	@Inject
@@ -86,6 +98,63 @@ public class KairosDatastore
 			m_baseCacheDir = cacheTempDir;
 	}
 
+	@Inject(optional = true)
+	public void setMemoryMappedCache(@Named(QUERY_CACHE_MEMORY_MAPPED) boolean memoryMapped)
+	{
+		m_memoryMappedCache = memoryMapped;
+	}
+
+	/**
+	 Total bytes of query results held in memory across all queries, set to
+	 0 to always write results to the cache directory.
+	 */
+	@Inject(optional = true)
+	public void setMemoryBudget(@Named(QUERY_MEMORY_BUDGET) long memoryBudget)
+	{
+		m_memoryBudget = new ResultMemoryBudget(memoryBudget, m_memoryBudget.getQueryLimit());
+	}
+
+	@Inject(optional = true)
+	public void setQueryMemoryLimit(@Named(QUERY_MEMORY_LIMIT) long queryMemoryLimit)
+	{
+		m_memoryBudget = new ResultMemoryBudget(m_memoryBudget.getGlobalLimit(), queryMemoryLimit);
+	}
+
+	@Inject(optional = true)
+	public void setResultCache(QueryResultCache resultCache)
+	{
+		m_resultCache = resultCache;
+	}
+
+	@Inject(optional = true)
+	public void setAdmissionController(QueryAdmissionController admissionController)
+	{
+		m_admissionController = admissionController;
+	}
+
+	public ResultMemoryBudget getMemoryBudget()
+	{
+		return (m_memoryBudget);
+	}
+
+	/**
+	 Results that are not cached for later queries are held in memory when
+	 the budget allows it.
+	 */
+	private CachedSearchResult createSearchResult(QueryMetric metric, String tempFile) throws IOException
+	{
+		CachedSearchResult ret;
+		if (metric.getCacheTime() <= 0 && m_memoryBudget.isEnabled())
+			ret = CachedSearchResult.createInMemorySearchResult(metric.getName(), tempFile,
+					m_memoryBudget, m_memoryMappedCache);
+		else
+			ret = CachedSearchResult.createCachedSearchResult(metric.getName(), tempFile,
+					m_memoryMappedCache);
+
+		ret.setDeadline(metric.getDeadline());
+		return (ret);
+	}
+
 	public String getCacheDir()
 	{
 		return (m_cacheDir);
@@ -161,6 +230,31 @@ public class KairosDatastore
 		}
 	}
 
+	/**
+	 Writes KairosDB's own metrics.  They are not shed when the datastore is
+	 backed up and a failed write is logged, so recording a metric never fails
+	 the work it measures.
+	 */
+	public void putInternalDataPoints(DataPointSet dps)
+	{
+		try
+		{
+			if (m_datastore instanceof SheddingDatastore)
+				((SheddingDatastore) m_datastore).putInternalDataPoints(dps);
+			else
+				m_datastore.putDataPoints(dps);
+
+			for (DataPointListener dataPointListener : m_dataPointListeners)
+			{
+				dataPointListener.dataPoints(dps);
+			}
+		}
+		catch (DatastoreException e)
+		{
+			logger.error("Unable to write " + dps.getName(), e);
+		}
+	}
+
 	public Iterable<String> getMetricNames() throws DatastoreException
 	{
 		return (m_datastore.getMetricNames());
@@ -198,12 +292,12 @@ public class KairosDatastore
 			if (metric.getCacheTime() > 0)
 			{
 				cachedResults = CachedSearchResult.openCachedSearchResult(metric.getName(),
-						tempFile, metric.getCacheTime());
+						tempFile, metric.getCacheTime(), m_memoryMappedCache);
 			}
 
 			if (cachedResults == null)
 			{
-				cachedResults = CachedSearchResult.createCachedSearchResult(metric.getName(), tempFile);
+				cachedResults = createSearchResult(metric, tempFile);
 			}
 		}
 		catch (Exception e)
@@ -211,7 +305,15 @@ public class KairosDatastore
 			throw new DatastoreException(e);
 		}
 
-		return (m_datastore.queryDatabase(metric, cachedResults));
+		try
+		{
+			return (m_datastore.queryDatabase(metric, cachedResults));
+		}
+		catch (DatastoreException e)
+		{
+			cachedResults.freeMemory();
+			throw e;
+		}
 	}
 
 
@@ -221,41 +323,110 @@ public class KairosDatastore
 
 		long queryStartTime = System.currentTimeMillis();
 
-		QueryResults results;
+		QueryResults results = null;
 		CachedSearchResult cachedResults = null;
 
 		List<DataPointRow> returnedRows = null;
+		String resultCacheKey = null; //Set while other queries wait on this one in the result cache
+		QueryResultCache.Entry resultCacheEntry = null;
 		try
 		{
 			String cacheFilename = calculateFilenameHash(metric);
-			results = new QueryResults(m_queuingManager, cacheFilename);
-			m_queuingManager.waitForTimeToRun(cacheFilename);
 
-			String tempFile = m_cacheDir + cacheFilename;
+			if (m_resultCache != null && m_resultCache.isEnabled() && metric.getCacheString() != null)
+			{
+				returnedRows = m_resultCache.get(metric.getCacheString(), metric.getCacheTime(),
+						metric.getDeadline());
+				if (returnedRows == null)
+					resultCacheKey = metric.getCacheString();
+			}
 
-			if (metric.getCacheTime() > 0)
+			if (returnedRows != null)
 			{
-				cachedResults = CachedSearchResult.openCachedSearchResult(metric.getName(),
-						tempFile, metric.getCacheTime());
-				if (cachedResults != null)
+				//Served from memory so it does not take a query thread
+				logger.debug("Result cache HIT!");
+				results = new QueryResults();
+			}
+			else
+			{
+				m_queuingManager.waitForTimeToRun(cacheFilename, metric.getDeadline());
+				results = new QueryResults(m_queuingManager, cacheFilename);
+
+				//The query may have run out of time waiting for its turn
+				metric.getDeadline().check();
+
+				String tempFile = m_cacheDir + cacheFilename;
+
+				QueryResultCache.Entry extendedEntry = null;
+				if (resultCacheKey != null)
 				{
-					returnedRows = cachedResults.getRows();
-					logger.debug("Cache HIT!");
+					QueryResultCache.Entry previous = m_resultCache.getEntry(resultCacheKey);
+					if (previous != null)
+						extendedEntry = extendEntry(metric, previous, tempFile + ".tail", queryStartTime);
 				}
-			}
 
-			if (cachedResults == null)
-			{
-				logger.debug("Cache MISS!");
-				cachedResults = CachedSearchResult.createCachedSearchResult(metric.getName(),
-						tempFile);
-				returnedRows = m_datastore.queryDatabase(metric, cachedResults);
+				if (extendedEntry != null)
+				{
+					logger.debug("Result cache extended");
+					m_resultCache.countIncremental();
+					returnedRows = extendedEntry.getRows();
+					if (extendedEntry.getSize() <= m_resultCache.getMaxEntrySize())
+						resultCacheEntry = extendedEntry;
+				}
+				else
+				{
+					if (metric.getCacheTime() > 0)
+					{
+						cachedResults = CachedSearchResult.openCachedSearchResult(metric.getName(),
+								tempFile, metric.getCacheTime(), m_memoryMappedCache);
+						if (cachedResults != null)
+						{
+							returnedRows = cachedResults.getRows();
+							logger.debug("Cache HIT!");
+						}
+					}
+
+					if (cachedResults == null)
+					{
+						logger.debug("Cache MISS!");
+
+						//Only queries that read the whole range from the datastore are
+						//estimated, the estimate reads the row keys of the range
+						admitQuery(metric, results);
+						cachedResults = createSearchResult(metric, tempFile);
+						returnedRows = m_datastore.queryDatabase(metric, cachedResults);
+
+						if (resultCacheKey != null && m_resultCache.isWanted(resultCacheKey, metric.getCacheTime()))
+							resultCacheEntry = cachedResults.snapshot(metric, queryStartTime,
+									m_resultCache.getMaxEntrySize());
+					}
+				}
 			}
 		}
+		catch (QueryRejectedException e)
+		{
+			results.close(); //Gives back the query thread
+			throw e;
+		}
 		catch (Exception e)
 		{
+			if (cachedResults != null)
+				cachedResults.abort();
+			if (results != null)
+				results.close(); //Gives back the query thread and lane
+
+			if (e instanceof QueryCancelledException)
+			{
+				reportCancelledQuery(metric);
+				throw (QueryCancelledException) e;
+			}
 			throw new DatastoreException(e);
 		}
+		finally
+		{
+			if (resultCacheKey != null)
+				m_resultCache.complete(resultCacheKey, resultCacheEntry);
+		}
 
 		// It is more efficient to group by tags using the cached results because we have pointers to each tag.
 		List<DataPointGroup> queryResults = groupByTags(wrapRows(returnedRows), getTagGroupBy(metric.getGroupBys()));
@@ -264,18 +435,30 @@ public class KairosDatastore
 		Grouper grouper = new Grouper();
 		try
 		{
-			queryResults = grouper.group(removeTagGroupBy(metric.getGroupBys()), queryResults);
+			queryResults = grouper.group(removeTagGroupBy(metric.getGroupBys()), queryResults,
+					metric.getDeadline());
 		}
 		catch (IOException e)
 		{
+			results.close();
 			throw new DatastoreException(e);
 		}
+		catch (QueryCancelledException e)
+		{
+			results.close();
+			reportCancelledQuery(metric);
+			throw e;
+		}
 
 		List<DataPointGroup> aggregatedResults = new ArrayList<DataPointGroup>();
 		for (DataPointGroup queryResult : queryResults)
 		{
 			DataPointGroup aggregatedGroup = queryResult;
 
+			//The aggregators read through this so they stop when the query runs out of time
+			if (metric.getDeadline().hasTimeout())
+				aggregatedGroup = new DeadlineDataPointGroup(aggregatedGroup, metric.getDeadline());
+
 			List<Aggregator> aggregators = metric.getAggregators();
 
 			//This will pipe the aggregators together.
@@ -293,20 +476,107 @@ public class KairosDatastore
 		dps.addTag("host", m_hostname);
 		dps.addTag("metric_name", metric.getName());
 		dps.addDataPoint(new DataPoint(queryStartTime, System.currentTimeMillis() - queryStartTime));
-		putDataPoints(dps);
+		putInternalDataPoints(dps);
 
 		DataPointSet waitingSet = new DataPointSet(QUERIES_WAITING_METRIC_NAME);
 		waitingSet.addTag("host", m_hostname);
 		waitingSet.addDataPoint(new DataPoint(queryStartTime, m_queuingManager.getQueryWaitingCount()));
-		putDataPoints(waitingSet);
+		putInternalDataPoints(waitingSet);
 
 		return results;
 	}
 
+	/**
+	 Records a query that ran out of time.  Called by the datastore for the
+	 stages it runs and by callers that read the results past the deadline.
+	 */
+	public void reportCancelledQuery(QueryMetric metric)
+	{
+		logger.warn("Query for " + metric.getName() + " cancelled after " +
+				metric.getDeadline().getTimeout() + " ms");
+
+		DataPointSet dps = new DataPointSet(QUERY_CANCELLED_METRIC_NAME);
+		dps.addTag("host", m_hostname);
+		dps.addTag("metric_name", metric.getName());
+		dps.addDataPoint(new DataPoint(System.currentTimeMillis(), 1));
+		putInternalDataPoints(dps);
+	}
+
+	/**
+	 Estimates the cost of the query and waits for a lane to run it in.  Does
+	 nothing when admission control is off or the datastore cannot estimate
+	 costs.  Called while holding a query thread so the number of estimates
+	 running at once is bounded by the queuing manager.  The query thread is
+	 given back while waiting for a full lane.
+	 */
+	private void admitQuery(QueryMetric metric, QueryResults results)
+			throws DatastoreException, InterruptedException
+	{
+		if (m_admissionController == null || !m_admissionController.isEnabled() ||
+				!(m_datastore instanceof QueryCostEstimator))
+			return;
+
+		long cost = ((QueryCostEstimator) m_datastore).estimateQueryCost(metric);
+		logger.debug("Query for " + metric.getName() + " costs " + cost + " series hours");
+
+		QueryAdmissionController.QueryLane lane = m_admissionController.chooseLane(cost);
+		if (lane != null)
+			results.waitForLane(lane, metric.getDeadline());
+	}
+
+	/**
+	 Reuses the part of a cached entry that the query still covers and fetches
+	 the rest from the datastore.  Returns null if the entry cannot be used.
+	 */
+	private QueryResultCache.Entry extendEntry(QueryMetric metric, QueryResultCache.Entry previous,
+			String tempFile, long queryStartTime) throws DatastoreException, IOException
+	{
+		long startTime = metric.getStartTime();
+		long endTime = metric.getEndTime();
+		if (previous.getStartTime() > startTime || previous.getEndTime() < startTime)
+			return (null);
+
+		long splitTime = Math.max(startTime, previous.getEndTime() - m_resultCache.getIncrementalOverlap());
+
+		QueryResultCache.Entry tail = null;
+		if (splitTime <= endTime)
+		{
+			QueryMetric tailQuery = new QueryMetric(splitTime, endTime, 0, metric.getName());
+			tailQuery.setTags(metric.getTags());
+			tailQuery.setDeadline(metric.getDeadline());
+
+			CachedSearchResult tailResults = createSearchResult(tailQuery, tempFile);
+			try
+			{
+				List<DataPointRow> rows = m_datastore.queryDatabase(tailQuery, tailResults);
+				tail = tailResults.snapshot(tailQuery, queryStartTime, Long.MAX_VALUE);
+				for (DataPointRow row : rows)
+					row.close();
+			}
+			catch (QueryCancelledException e)
+			{
+				tailResults.abort();
+				throw e;
+			}
+			finally
+			{
+				tailResults.freeMemory();
+			}
+
+			if (tail == null)
+				return (null);
+		}
+
+		return (previous.extend(tail, queryStartTime, startTime, splitTime, endTime));
+	}
+
 	public void delete(QueryMetric metric) throws DatastoreException
 	{
 		checkNotNull(metric);
 
+		if (m_resultCache != null)
+			m_resultCache.invalidate(metric.getName());
+
 		try
 		{
 			String cacheFilename = UUID.randomUUID().toString();
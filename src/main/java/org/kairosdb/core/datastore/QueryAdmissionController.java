@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.exception.QueryRejectedException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Sends queries to lanes by their estimated cost so cheap dashboard queries
+ do not wait behind expensive ones.  Each lane has its own number of
+ queries that can run at once, on top of the concurrentQueryThreads limit.
+
+ Lanes are written as a comma separated list of name:max_cost:concurrency
+ in order of increasing max_cost, a max_cost of -1 takes any cost.  A query
+ goes to the first lane its cost fits in, or waits in the last lane if it
+ fits in none.  Queries that cost more than max_cost are rejected.
+ */
+public class QueryAdmissionController implements KairosMetricReporter
+{
+	public static final String LANES_PROPERTY = "kairosdb.query_admission.lanes";
+	public static final String MAX_COST_PROPERTY = "kairosdb.query_admission.max_cost";
+	public static final String ADMITTED_METRIC_NAME = "kairosdb.datastore.query_lane_admitted";
+	public static final String RUNNING_METRIC_NAME = "kairosdb.datastore.query_lane_running";
+	public static final String WAITING_METRIC_NAME = "kairosdb.datastore.query_lane_waiting";
+	public static final String REJECTED_METRIC_NAME = "kairosdb.datastore.query_rejected";
+
+	private final List<QueryLane> m_lanes = new ArrayList<QueryLane>();
+	private final long m_maxCost;
+	private final String m_hostname;
+	private final AtomicInteger m_rejected = new AtomicInteger();
+
+	@Inject
+	public QueryAdmissionController(@Named(LANES_PROPERTY) String lanes,
+			@Named(MAX_COST_PROPERTY) long maxCost, @Named("HOSTNAME") String hostname)
+	{
+		m_maxCost = maxCost;
+		m_hostname = checkNotNullOrEmpty(hostname);
+
+		for (String lane : lanes.split(","))
+		{
+			lane = lane.trim();
+			if (lane.length() == 0)
+				continue;
+
+			String[] parts = lane.split(":");
+			checkArgument(parts.length == 3, "Query lane must be name:max_cost:concurrency: " + lane);
+
+			int concurrency = Integer.parseInt(parts[2].trim());
+			checkArgument(concurrency > 0, "Query lane concurrency must be greater than zero: " + lane);
+
+			m_lanes.add(new QueryLane(parts[0].trim(), Long.parseLong(parts[1].trim()), concurrency));
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return (!m_lanes.isEmpty() || m_maxCost >= 0);
+	}
+
+	/**
+	 Waits until the query can run in the lane for its cost.  The returned
+	 lane must be released when the query is done.
+
+	 @return The lane the query runs in, null if no lanes are set
+	 @throws QueryRejectedException if the cost is over max_cost
+	 */
+	public QueryLane admit(long cost) throws QueryRejectedException, InterruptedException
+	{
+		return (admit(cost, new QueryDeadline(0)));
+	}
+
+	/**
+	 Same as admit(cost) but gives up waiting for the lane when the deadline
+	 passes.
+	 @throws QueryCancelledException if the deadline passes while waiting
+	 */
+	public QueryLane admit(long cost, QueryDeadline deadline) throws QueryRejectedException, InterruptedException
+	{
+		QueryLane lane = chooseLane(cost);
+		if (lane != null)
+			lane.acquire(deadline);
+
+		return (lane);
+	}
+
+	/**
+	 Returns the lane for the cost without waiting for it, null if no lanes
+	 are set.  The caller acquires the lane.
+	 @throws QueryRejectedException if the cost is over max_cost
+	 */
+	public QueryLane chooseLane(long cost) throws QueryRejectedException
+	{
+		if (m_maxCost >= 0 && cost > m_maxCost)
+		{
+			m_rejected.incrementAndGet();
+			throw new QueryRejectedException("Query cost of " + cost +
+					" series hours is over the limit of " + m_maxCost);
+		}
+
+		if (m_lanes.isEmpty())
+			return (null);
+
+		QueryLane lane = m_lanes.get(m_lanes.size() - 1);
+		for (QueryLane candidate : m_lanes)
+		{
+			if (candidate.getMaxCost() < 0 || cost <= candidate.getMaxCost())
+			{
+				lane = candidate;
+				break;
+			}
+		}
+
+		return (lane);
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		for (QueryLane lane : m_lanes)
+		{
+			ret.add(newLaneDataPointSet(ADMITTED_METRIC_NAME, lane, now, lane.getAndClearAdmitted()));
+			ret.add(newLaneDataPointSet(RUNNING_METRIC_NAME, lane, now, lane.getRunning()));
+			ret.add(newLaneDataPointSet(WAITING_METRIC_NAME, lane, now, lane.getWaiting()));
+		}
+
+		DataPointSet rejectedSet = new DataPointSet(REJECTED_METRIC_NAME);
+		rejectedSet.addTag("host", m_hostname);
+		rejectedSet.addDataPoint(new DataPoint(now, m_rejected.getAndSet(0)));
+		ret.add(rejectedSet);
+
+		return (ret);
+	}
+
+	private DataPointSet newLaneDataPointSet(String metricName, QueryLane lane, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addTag("lane", lane.getName());
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
+	//===========================================================================
+	public static class QueryLane
+	{
+		private final String m_name;
+		private final long m_maxCost;
+		private final Semaphore m_semaphore;
+		private final AtomicInteger m_admitted = new AtomicInteger();
+		private final AtomicInteger m_running = new AtomicInteger();
+
+		public QueryLane(String name, long maxCost, int concurrency)
+		{
+			m_name = checkNotNullOrEmpty(name);
+			m_maxCost = maxCost;
+			m_semaphore = new Semaphore(concurrency, true);
+		}
+
+		public String getName()
+		{
+			return (m_name);
+		}
+
+		public long getMaxCost()
+		{
+			return (m_maxCost);
+		}
+
+		/**
+		 @throws QueryCancelledException if the deadline passes while waiting
+		 */
+		public void acquire(QueryDeadline deadline) throws InterruptedException
+		{
+			if (!m_semaphore.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS))
+				throw new QueryCancelledException("Query did not get into lane " + m_name +
+						" within " + deadline.getTimeout() + " ms");
+
+			m_admitted.incrementAndGet();
+			m_running.incrementAndGet();
+		}
+
+		/**
+		 Takes a slot in the lane if one is free and no query is waiting for it.
+		 */
+		public boolean tryAcquire() throws InterruptedException
+		{
+			//The untimed tryAcquire barges past the queries waiting in acquire
+			if (!m_semaphore.tryAcquire(0, TimeUnit.MILLISECONDS))
+				return (false);
+
+			m_admitted.incrementAndGet();
+			m_running.incrementAndGet();
+			return (true);
+		}
+
+		public void release()
+		{
+			m_running.decrementAndGet();
+			m_semaphore.release();
+		}
+
+		private int getAndClearAdmitted()
+		{
+			return (m_admitted.getAndSet(0));
+		}
+
+		public int getRunning()
+		{
+			return (m_running.get());
+		}
+
+		public int getWaiting()
+		{
+			return (m_semaphore.getQueueLength());
+		}
+	}
+}
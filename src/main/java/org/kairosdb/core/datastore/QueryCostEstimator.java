@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.exception.DatastoreException;
+
+/**
+ Implemented by datastores that can tell how expensive a query is before
+ running it.  Used by QueryAdmissionController to pick a lane.
+ */
+public interface QueryCostEstimator
+{
+	/**
+	 Returns the cost of the query in series hours, the hours of the query
+	 range each series read covers added up over the series.
+	 */
+	public long estimateQueryCost(DatastoreMetricQuery query) throws DatastoreException;
+}
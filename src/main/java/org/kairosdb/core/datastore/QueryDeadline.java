@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.exception.QueryCancelledException;
+
+/**
+ Time by which a query must finish.  Each stage of the query calls check()
+ as it goes so work stops soon after the deadline passes and the stage can
+ free what it holds.  A timeout of zero or less never expires.
+ */
+public class QueryDeadline
+{
+	private final long m_timeout;
+	private final long m_deadline;
+
+	public QueryDeadline(long timeout)
+	{
+		m_timeout = timeout;
+		if (timeout > 0)
+			m_deadline = System.currentTimeMillis() + timeout;
+		else
+			m_deadline = Long.MAX_VALUE;
+	}
+
+	public boolean hasTimeout()
+	{
+		return (m_timeout > 0);
+	}
+
+	public long getTimeout()
+	{
+		return (m_timeout);
+	}
+
+	public boolean isExpired()
+	{
+		return (m_timeout > 0 && System.currentTimeMillis() >= m_deadline);
+	}
+
+	/**
+	 Milliseconds left before the deadline, Long.MAX_VALUE if there is no
+	 timeout.
+	 */
+	public long getRemaining()
+	{
+		if (m_timeout <= 0)
+			return (Long.MAX_VALUE);
+
+		return (Math.max(0L, m_deadline - System.currentTimeMillis()));
+	}
+
+	/**
+	 @throws QueryCancelledException if the deadline has passed
+	 */
+	public void check()
+	{
+		if (isExpired())
+			throw new QueryCancelledException("Query did not finish within " + m_timeout + " ms");
+	}
+}
@@ -38,6 +38,7 @@ public class QueryMetric implements DatastoreMetricQuery
 	private List<GroupBy> groupBys = new ArrayList<GroupBy>();
 	private List<Aggregator> aggregators;
 	private String cacheString;
+	private QueryDeadline deadline = new QueryDeadline(0);
 
 	public QueryMetric(long start_time, int cacheTime, String name)
 	{
@@ -149,4 +150,14 @@ public class QueryMetric implements DatastoreMetricQuery
 	{
 		return (cacheString);
 	}
+
+	public void setDeadline(QueryDeadline deadline)
+	{
+		this.deadline = checkNotNull(deadline);
+	}
+
+	public QueryDeadline getDeadline()
+	{
+		return (deadline);
+	}
 }
\ No newline at end of file
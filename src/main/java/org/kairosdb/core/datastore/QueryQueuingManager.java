@@ -19,33 +19,52 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.QueryCancelledException;
 import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.util.Reservoir;
+import org.kairosdb.util.UniformReservoir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
 
+/**
+ Limits the number of queries running at once and keeps queries with the
+ same hash from running at the same time.
+
+ A query whose hash is already running waits in a queue for that hash
+ without holding a permit.  When the running query is done the hash is
+ handed to the next waiter in arrival order, which then waits its turn for
+ a permit.  Permits are handed out in arrival order too.
+ */
 public class QueryQueuingManager implements KairosMetricReporter
 {
 	public static final Logger logger = LoggerFactory.getLogger(QueryQueuingManager.class);
 	public static final String CONCURRENT_QUERY_THREAD = "kairosdb.datastore.concurrentQueryThreads";
 	public static final String QUERY_COLLISIONS_METRIC_NAME = "kairosdb.datastore.query_collisions";
+	public static final String QUERY_WAIT_TIME_METRIC_NAME = "kairosdb.datastore.query_wait_time";
+	public static final String QUERY_QUEUE_DEPTH_METRIC_NAME = "kairosdb.datastore.query_queue_depth";
 
-	private final Map<String, Thread> runningQueries = new HashMap<String, Thread>();
+	private static final int[] PERCENTILES = {50, 90, 99, 100};
+
+	//Queries waiting for each running hash
+	private final Map<String, LinkedList<CountDownLatch>> runningQueries = new HashMap<String, LinkedList<CountDownLatch>>();
 	private final ReentrantLock lock = new ReentrantLock();
 	private final Semaphore semaphore;
 	private final String hostname;
 
 	private AtomicInteger collisions = new AtomicInteger();
+	private AtomicInteger parkedQueries = new AtomicInteger();
+	private volatile Reservoir waitTimes = new UniformReservoir();
+	private volatile Reservoir queueDepths = new UniformReservoir();
 
 	@Inject
 	public QueryQueuingManager(@Named(CONCURRENT_QUERY_THREAD) int concurrentQueryThreads, @Named("HOSTNAME") String hostname)
@@ -57,72 +76,199 @@ public class QueryQueuingManager implements KairosMetricReporter
 
 	public void waitForTimeToRun(String queryHash) throws InterruptedException
 	{
-		boolean firstTime = true;
-		while(!acquireSemaphore(queryHash))
+		waitForTimeToRun(queryHash, new QueryDeadline(0));
+	}
+
+	/**
+	 Waits for the hash and then a permit, giving up when the deadline passes.
+	 @throws QueryCancelledException if the deadline passes while waiting
+	 */
+	public void waitForTimeToRun(String queryHash, QueryDeadline deadline) throws InterruptedException
+	{
+		long startTime = System.nanoTime();
+		queueDepths.update(getQueryWaitingCount());
+
+		CountDownLatch turn = null;
+		lock.lock();
+		try
 		{
-			if (firstTime)
+			LinkedList<CountDownLatch> waiters = runningQueries.get(queryHash);
+			if (waiters == null)
+				runningQueries.put(queryHash, new LinkedList<CountDownLatch>());
+			else
 			{
+				turn = new CountDownLatch(1);
+				waiters.add(turn);
+				parkedQueries.incrementAndGet();
 				collisions.incrementAndGet();
-				firstTime = false;
 			}
-			Thread.sleep(100);
 		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if (turn != null)
+			waitForTurn(queryHash, turn, deadline);
+
+		boolean acquired = false;
+		try
+		{
+			acquired = semaphore.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS);
+		}
+		finally
+		{
+			if (!acquired)
+				releaseHash(queryHash);
+		}
+
+		if (!acquired)
+			throw new QueryCancelledException("Query did not get a query thread within " + deadline.getTimeout() + " ms");
+
+		waitTimes.update((System.nanoTime() - startTime) / 1000000.0);
 	}
 
-	public void done(String queryHash)
+	private void waitForTurn(String queryHash, CountDownLatch turn, QueryDeadline deadline)
+			throws InterruptedException
 	{
-		lock.lock();
+		boolean handed = false;
 		try
 		{
-			runningQueries.remove(queryHash);
+			handed = turn.await(deadline.getRemaining(), TimeUnit.MILLISECONDS);
 		}
 		finally
 		{
-			lock.unlock();
+			if (!handed)
+			{
+				boolean removed;
+				lock.lock();
+				try
+				{
+					removed = runningQueries.get(queryHash).remove(turn);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				if (removed)
+					parkedQueries.decrementAndGet();
+				else
+					releaseHash(queryHash); //The hash was handed to us while giving up
+			}
 		}
+
+		if (!handed)
+			throw new QueryCancelledException("Query did not get its turn within " + deadline.getTimeout() + " ms");
+	}
+
+	public void done(String queryHash)
+	{
+		releaseHash(queryHash);
+		semaphore.release();
+	}
+
+	/**
+	 Gives back the query thread of a running query that is about to wait on
+	 something else.  The query keeps its hash so queries with the same hash
+	 still wait for it.  Call resume to take a query thread again, or
+	 donePaused if the query ends before it does.
+	 */
+	public void pause()
+	{
 		semaphore.release();
 	}
 
-	private boolean acquireSemaphore(String queryHash) throws InterruptedException
+	/**
+	 Takes a query thread again after pause.
+	 @throws QueryCancelledException if the deadline passes while waiting, the
+	 query is still paused
+	 */
+	public void resume(QueryDeadline deadline) throws InterruptedException
 	{
-		semaphore.acquire();
+		if (!semaphore.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS))
+			throw new QueryCancelledException("Query did not get a query thread back within " +
+					deadline.getTimeout() + " ms");
+	}
+
+	/**
+	 Same as done for a query that is paused and holds no query thread.
+	 */
+	public void donePaused(String queryHash)
+	{
+		releaseHash(queryHash);
+	}
 
-		boolean hashConflict = false;
+	/**
+	 Hands the hash to the next query waiting for it or marks it not running.
+	 */
+	private void releaseHash(String queryHash)
+	{
 		lock.lock();
 		try
 		{
-			hashConflict = runningQueries.containsKey(queryHash);
-			if (!hashConflict)
+			LinkedList<CountDownLatch> waiters = runningQueries.get(queryHash);
+			CountDownLatch next = (waiters == null ? null : waiters.poll());
+			if (next == null)
+				runningQueries.remove(queryHash);
+			else
 			{
-				runningQueries.put(queryHash, Thread.currentThread());
+				parkedQueries.decrementAndGet();
+				next.countDown();
 			}
 		}
 		finally
 		{
 			lock.unlock();
 		}
-
-		if (hashConflict)
-		{
-			semaphore.release();
-			return false;
-		}
-		else
-			return true;
 	}
 
 	public int getQueryWaitingCount()
 	{
-		return semaphore.getQueueLength();
+		return (semaphore.getQueueLength() + parkedQueries.get());
 	}
 
 	@Override
 	public List<DataPointSet> getMetrics(long now)
 	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
 		DataPointSet collisionSet = new DataPointSet(QUERY_COLLISIONS_METRIC_NAME);
 		collisionSet.addTag("host", hostname);
 		collisionSet.addDataPoint(new DataPoint(System.currentTimeMillis(), collisions.getAndSet(0)));
+		ret.add(collisionSet);
+
+		Reservoir oldWaitTimes = waitTimes;
+		waitTimes = new UniformReservoir();
+		addPercentiles(ret, QUERY_WAIT_TIME_METRIC_NAME, now, oldWaitTimes);
+
+		Reservoir oldQueueDepths = queueDepths;
+		queueDepths = new UniformReservoir();
+		addPercentiles(ret, QUERY_QUEUE_DEPTH_METRIC_NAME, now, oldQueueDepths);
 
-		return Collections.singletonList(collisionSet);
+		return (ret);
+	}
+
+	/**
+	 Reports the percentiles of the values sampled since the last report, the
+	 100th percentile is the max.
+	 */
+	private void addPercentiles(List<DataPointSet> ret, String metricName, long now, Reservoir reservoir)
+	{
+		double[] values = reservoir.getValues();
+		if (values.length == 0)
+			return;
+
+		Arrays.sort(values);
+		for (int percentile : PERCENTILES)
+		{
+			int index = (int) Math.ceil(percentile / 100.0 * values.length) - 1;
+
+			DataPointSet dps = new DataPointSet(metricName);
+			dps.addTag("host", hostname);
+			dps.addTag("percentile", String.valueOf(percentile));
+			dps.addDataPoint(new DataPoint(now, values[Math.max(index, 0)]));
+			ret.add(dps);
+		}
 	}
-}
\ No newline at end of file
+}
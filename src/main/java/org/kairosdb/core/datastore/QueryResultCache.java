@@ -0,0 +1,546 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ In process cache of raw query results keyed by the query cache string.
+
+ Entries are evicted least recently used first once their total size goes
+ over the limit.  Queries only use an entry younger than their cache_time,
+ the same rule the cache files follow.  Identical queries that arrive while
+ one is running wait for it and share its result instead of running again.
+
+ With an incremental overlap set, a query whose entry is stale can reuse the
+ part of it that is still in range and fetch only the tail.  The overlap is
+ fetched again in case late data arrived since the entry was made.
+ */
+public class QueryResultCache implements KairosMetricReporter
+{
+	public static final String CACHE_SIZE_PROPERTY = "kairosdb.query_cache.result_cache_size";
+	public static final String HITS_METRIC_NAME = "kairosdb.datastore.query_cache_hits";
+	public static final String MISSES_METRIC_NAME = "kairosdb.datastore.query_cache_misses";
+	public static final String COALESCED_METRIC_NAME = "kairosdb.datastore.query_cache_coalesced";
+	public static final String EVICTIONS_METRIC_NAME = "kairosdb.datastore.query_cache_evictions";
+	public static final String SIZE_METRIC_NAME = "kairosdb.datastore.query_cache_bytes";
+	public static final String INCREMENTAL_METRIC_NAME = "kairosdb.datastore.query_cache_incremental";
+	public static final String INCREMENTAL_OVERLAP_PROPERTY = "kairosdb.query_cache.incremental_overlap";
+
+	private final long m_maxSize;
+	private final String m_hostname;
+	private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, Flight> m_inFlight = new HashMap<String, Flight>();
+	private long m_size = 0L;
+	private long m_incrementalOverlap = -1L;
+
+	private final AtomicInteger m_incremental = new AtomicInteger();
+	private final AtomicInteger m_hits = new AtomicInteger();
+	private final AtomicInteger m_misses = new AtomicInteger();
+	private final AtomicInteger m_coalesced = new AtomicInteger();
+	private final AtomicInteger m_evictions = new AtomicInteger();
+
+	@Inject
+	public QueryResultCache(@Named(CACHE_SIZE_PROPERTY) long maxSize, @Named("HOSTNAME") String hostname)
+	{
+		m_maxSize = maxSize;
+		m_hostname = checkNotNullOrEmpty(hostname);
+	}
+
+	/**
+	 Milliseconds before the end of a cached entry that are fetched again when
+	 the entry is extended, a negative value turns incremental queries off.
+	 */
+	@Inject(optional = true)
+	public void setIncrementalOverlap(@Named(INCREMENTAL_OVERLAP_PROPERTY) long incrementalOverlap)
+	{
+		m_incrementalOverlap = incrementalOverlap;
+	}
+
+	public long getIncrementalOverlap()
+	{
+		return (m_incrementalOverlap);
+	}
+
+	public boolean isEnabled()
+	{
+		return (m_maxSize > 0);
+	}
+
+	/**
+	 Returns the entry for the key whatever its age, for extending it with
+	 the tail of a newer query.
+	 */
+	public synchronized Entry getEntry(String key)
+	{
+		if (m_incrementalOverlap < 0)
+			return (null);
+
+		return (m_entries.get(key));
+	}
+
+	public void countIncremental()
+	{
+		m_incremental.incrementAndGet();
+	}
+
+	/**
+	 Drops the entries of a metric, called when its data points are deleted.
+	 */
+	public synchronized void invalidate(String metricName)
+	{
+		Iterator<Entry> it = m_entries.values().iterator();
+		while (it.hasNext())
+		{
+			Entry entry = it.next();
+			if (entry.getMetricName().equals(metricName))
+			{
+				m_size -= entry.getSize();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 Entries larger than this are not kept so one query cannot flush the cache.
+	 */
+	public long getMaxEntrySize()
+	{
+		return (m_maxSize / 4);
+	}
+
+	/**
+	 Returns the rows of a cached entry that is fresh enough or of an identical
+	 query that was already running.  Returns null when the caller should run
+	 the query, the caller must then call complete() for the key.
+
+	 @param cacheTime Seconds an entry can be reused for, 0 only shares
+	 results of queries that are in flight
+	 */
+	public List<DataPointRow> get(String key, int cacheTime) throws InterruptedException
+	{
+		return (get(key, cacheTime, new QueryDeadline(0)));
+	}
+
+	/**
+	 Same as get(key, cacheTime) but gives up waiting for a running query when
+	 the deadline passes.
+	 @throws QueryCancelledException if the deadline passes while waiting
+	 */
+	public List<DataPointRow> get(String key, int cacheTime, QueryDeadline deadline) throws InterruptedException
+	{
+		boolean waited = false;
+		while (true)
+		{
+			Flight flight;
+			synchronized (this)
+			{
+				Entry entry = m_entries.get(key);
+				if (entry != null && cacheTime > 0 &&
+						(System.currentTimeMillis() - entry.getCreateTime()) < ((long) cacheTime * 1000))
+				{
+					m_hits.incrementAndGet();
+					return (entry.getRows());
+				}
+
+				flight = m_inFlight.get(key);
+				if (flight == null)
+				{
+					m_inFlight.put(key, new Flight());
+					if (!waited)
+						m_misses.incrementAndGet();
+					return (null);
+				}
+				flight.m_waiters++;
+			}
+
+			if (!flight.await(deadline.getRemaining()))
+			{
+				synchronized (this)
+				{
+					flight.m_waiters--;
+				}
+				throw new QueryCancelledException("Query did not get the result of the same running query within " +
+						deadline.getTimeout() + " ms");
+			}
+			waited = true;
+			if (flight.getEntry() != null)
+			{
+				m_coalesced.incrementAndGet();
+				return (flight.getEntry().getRows());
+			}
+
+			//The running query failed or was too large to share, try again
+		}
+	}
+
+	/**
+	 Returns true if the result of the query running for the key can be used,
+	 either by a later query or by one waiting for it.  Copying a result that
+	 is not used only evicts entries that are.
+
+	 @param cacheTime Seconds the running query lets its result be reused for
+	 */
+	public synchronized boolean isWanted(String key, int cacheTime)
+	{
+		if (cacheTime > 0 || m_incrementalOverlap >= 0)
+			return (true);
+
+		Flight flight = m_inFlight.get(key);
+		return (flight != null && flight.m_waiters > 0);
+	}
+
+	/**
+	 Ends the flight started by get() returning null.
+
+	 @param entry The result to cache and hand to waiting queries, null if the
+	 query failed or the result is too large
+	 */
+	public void complete(String key, Entry entry)
+	{
+		Flight flight;
+		synchronized (this)
+		{
+			flight = m_inFlight.remove(key);
+
+			if (entry != null)
+			{
+				Entry old = m_entries.put(key, entry);
+				if (old != null)
+					m_size -= old.getSize();
+				m_size += entry.getSize();
+
+				Iterator<Entry> it = m_entries.values().iterator();
+				while (m_size > m_maxSize && it.hasNext())
+				{
+					m_size -= it.next().getSize();
+					it.remove();
+					m_evictions.incrementAndGet();
+				}
+			}
+		}
+
+		if (flight != null)
+			flight.finish(entry);
+	}
+
+	public synchronized long getSize()
+	{
+		return (m_size);
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		ret.add(newDataPointSet(HITS_METRIC_NAME, now, m_hits.getAndSet(0)));
+		ret.add(newDataPointSet(MISSES_METRIC_NAME, now, m_misses.getAndSet(0)));
+		ret.add(newDataPointSet(COALESCED_METRIC_NAME, now, m_coalesced.getAndSet(0)));
+		ret.add(newDataPointSet(EVICTIONS_METRIC_NAME, now, m_evictions.getAndSet(0)));
+		ret.add(newDataPointSet(INCREMENTAL_METRIC_NAME, now, m_incremental.getAndSet(0)));
+		ret.add(newDataPointSet(SIZE_METRIC_NAME, now, getSize()));
+
+		return (ret);
+	}
+
+	private DataPointSet newDataPointSet(String metricName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
+	//===========================================================================
+	private static class Flight
+	{
+		private final CountDownLatch m_done = new CountDownLatch(1);
+		private volatile Entry m_entry;
+		private int m_waiters = 0; //Guarded by the cache
+
+		/**
+		 @return false if the flight did not finish within timeout milliseconds
+		 */
+		public boolean await(long timeout) throws InterruptedException
+		{
+			return (m_done.await(timeout, TimeUnit.MILLISECONDS));
+		}
+
+		public void finish(Entry entry)
+		{
+			m_entry = entry;
+			m_done.countDown();
+		}
+
+		public Entry getEntry()
+		{
+			return (m_entry);
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Data points of a query result held on the heap.  Each row is a buffer of
+	 records in the CachedSearchResult data file format sorted by timestamp.
+	 The entry holds every data point of the metric from start to end time.
+	 */
+	public static class Entry
+	{
+		private static final int RECORD_SIZE = CachedSearchResult.DATA_POINT_SIZE;
+
+		private final String m_metricName;
+		private final long m_createTime;
+		private final long m_startTime;
+		private final long m_endTime;
+		private final List<Map<String, String>> m_tags = new ArrayList<Map<String, String>>();
+		private final List<ByteBuffer> m_data = new ArrayList<ByteBuffer>();
+		private long m_size = 0L;
+
+		public Entry(String metricName, long createTime, long startTime, long endTime)
+		{
+			m_metricName = metricName;
+			m_createTime = createTime;
+			m_startTime = startTime;
+			m_endTime = endTime;
+		}
+
+		public String getMetricName()
+		{
+			return (m_metricName);
+		}
+
+		public long getStartTime()
+		{
+			return (m_startTime);
+		}
+
+		public long getEndTime()
+		{
+			return (m_endTime);
+		}
+
+		public void addRow(Map<String, String> tags, ByteBuffer data)
+		{
+			m_tags.add(tags);
+			m_data.add(data);
+			m_size += data.remaining();
+		}
+
+		public long getCreateTime()
+		{
+			return (m_createTime);
+		}
+
+		public long getSize()
+		{
+			return (m_size);
+		}
+
+		public List<DataPointRow> getRows()
+		{
+			List<DataPointRow> ret = new ArrayList<DataPointRow>();
+			for (int I = 0; I < m_data.size(); I++)
+				ret.add(new EntryRow(m_metricName, m_tags.get(I), m_data.get(I).duplicate()));
+
+			return (ret);
+		}
+
+		/**
+		 Builds the entry for startTime to endTime from the points of this
+		 entry before splitTime and the points of tail, which must cover
+		 splitTime to endTime.  Rows with the same tags are merged into one.
+
+		 @param tail Fetched points, null if there was nothing to fetch
+		 */
+		public Entry extend(Entry tail, long createTime, long startTime, long splitTime, long endTime)
+		{
+			long cachedEnd = Math.min(splitTime, endTime + 1);
+			Map<Map<String, String>, List<ByteBuffer>> series = new LinkedHashMap<Map<String, String>, List<ByteBuffer>>();
+
+			for (int I = 0; I < m_data.size(); I++)
+			{
+				ByteBuffer data = m_data.get(I);
+				int from = lowerBound(data, startTime);
+				int to = lowerBound(data, cachedEnd);
+				if (from < to)
+					addSeries(series, m_tags.get(I), slice(data, from, to));
+			}
+
+			if (tail != null)
+			{
+				for (int I = 0; I < tail.m_data.size(); I++)
+				{
+					if (tail.m_data.get(I).hasRemaining())
+						addSeries(series, tail.m_tags.get(I), tail.m_data.get(I).duplicate());
+				}
+			}
+
+			Entry ret = new Entry(m_metricName, createTime, startTime, endTime);
+			for (Map.Entry<Map<String, String>, List<ByteBuffer>> seriesEntry : series.entrySet())
+				ret.addRow(seriesEntry.getKey(), mergeSorted(seriesEntry.getValue()));
+
+			return (ret);
+		}
+
+		private static void addSeries(Map<Map<String, String>, List<ByteBuffer>> series,
+				Map<String, String> tags, ByteBuffer data)
+		{
+			List<ByteBuffer> buffers = series.get(tags);
+			if (buffers == null)
+			{
+				buffers = new ArrayList<ByteBuffer>();
+				series.put(tags, buffers);
+			}
+
+			buffers.add(data);
+		}
+
+		/**
+		 Index of the first record at or after timestamp.
+		 */
+		private static int lowerBound(ByteBuffer data, long timestamp)
+		{
+			int low = 0;
+			int high = data.remaining() / RECORD_SIZE;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (data.getLong(data.position() + mid * RECORD_SIZE) < timestamp)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			return (low);
+		}
+
+		private static ByteBuffer slice(ByteBuffer data, int from, int to)
+		{
+			ByteBuffer ret = data.duplicate();
+			ret.limit(data.position() + to * RECORD_SIZE);
+			ret.position(data.position() + from * RECORD_SIZE);
+			return (ret);
+		}
+
+		/**
+		 Merges buffers of sorted records into one new sorted buffer.
+		 */
+		private static ByteBuffer mergeSorted(List<ByteBuffer> buffers)
+		{
+			int size = 0;
+			for (ByteBuffer buffer : buffers)
+				size += buffer.remaining();
+
+			ByteBuffer ret = ByteBuffer.allocate(size);
+			byte[] record = new byte[RECORD_SIZE];
+			while (true)
+			{
+				ByteBuffer next = null;
+				for (ByteBuffer buffer : buffers)
+				{
+					if (buffer.hasRemaining() && (next == null ||
+							buffer.getLong(buffer.position()) < next.getLong(next.position())))
+						next = buffer;
+				}
+
+				if (next == null)
+					break;
+
+				next.get(record);
+				ret.put(record);
+			}
+
+			ret.flip();
+			return (ret);
+		}
+	}
+
+	//===========================================================================
+	private static class EntryRow implements DataPointRow
+	{
+		private final String m_metricName;
+		private final Map<String, String> m_tags;
+		private final ByteBuffer m_data;
+
+		public EntryRow(String metricName, Map<String, String> tags, ByteBuffer data)
+		{
+			m_metricName = metricName;
+			m_tags = tags;
+			m_data = data;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return (m_data.hasRemaining());
+		}
+
+		@Override
+		public DataPoint next()
+		{
+			long timestamp = m_data.getLong();
+			byte flag = m_data.get();
+			if (flag == CachedSearchResult.LONG_FLAG)
+				return (new DataPoint(timestamp, m_data.getLong()));
+			else
+				return (new DataPoint(timestamp, m_data.getDouble()));
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getName()
+		{
+			return (m_metricName);
+		}
+
+		@Override
+		public Set<String> getTagNames()
+		{
+			return (m_tags.keySet());
+		}
+
+		@Override
+		public String getTagValue(String tag)
+		{
+			return (m_tags.get(tag));
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -24,6 +24,8 @@ public class QueryResults
 {
 	private final QueryQueuingManager m_queuingManager;
 	private final String m_queryHash;
+	private QueryAdmissionController.QueryLane m_lane;
+	private boolean m_paused; //Waiting on something else without a query thread
 
 	private List<DataPointGroup> m_dataPoints;
 
@@ -33,6 +35,49 @@ public class QueryResults
 		m_queryHash = checkNotNull(queryHash);
 	}
 
+	/**
+	 Results that did not take a query thread from the queuing manager.
+	 */
+	public QueryResults()
+	{
+		m_queuingManager = null;
+		m_queryHash = null;
+		m_lane = null;
+	}
+
+	/**
+	 Takes a slot in the admission lane, held until the results are closed.
+	 If the lane is full the query thread is given back while waiting so a
+	 full lane of expensive queries does not hold up queries in other lanes.
+	 @throws org.kairosdb.core.exception.QueryCancelledException if the
+	 deadline passes while waiting
+	 */
+	public void waitForLane(QueryAdmissionController.QueryLane lane, QueryDeadline deadline)
+			throws InterruptedException
+	{
+		if (m_queuingManager == null)
+		{
+			lane.acquire(deadline);
+			m_lane = lane;
+			return;
+		}
+
+		if (lane.tryAcquire())
+		{
+			m_lane = lane;
+			return;
+		}
+
+		m_queuingManager.pause();
+		m_paused = true;
+
+		lane.acquire(deadline);
+		m_lane = lane;
+
+		m_queuingManager.resume(deadline);
+		m_paused = false;
+	}
+
 	public void addDataPoints(List<DataPointGroup> dataPoints)
 	{
 		m_dataPoints = dataPoints;
@@ -47,14 +92,23 @@ public class QueryResults
 	{
 		try
 		{
-			for (DataPointGroup dataPoint : m_dataPoints)
+			//Null when the query failed before it had results
+			if (m_dataPoints != null)
 			{
-				dataPoint.close();
+				for (DataPointGroup dataPoint : m_dataPoints)
+				{
+					dataPoint.close();
+				}
 			}
 		}
 		finally
 		{
-			m_queuingManager.done(m_queryHash);
+			if (m_queuingManager != null && m_paused)
+				m_queuingManager.donePaused(m_queryHash);
+			else if (m_queuingManager != null)
+				m_queuingManager.done(m_queryHash);
+			if (m_lane != null)
+				m_lane.release();
 		}
 	}
 }
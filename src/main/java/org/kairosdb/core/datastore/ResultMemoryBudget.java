@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Bounds the memory used to hold query results that are not written to disk.
+ A single query may hold up to the query limit as long as the total across
+ all queries stays under the global limit.  Results that go over either
+ limit spill to disk.
+ */
+public class ResultMemoryBudget
+{
+	private final long m_globalLimit;
+	private final long m_queryLimit;
+	private final AtomicLong m_used = new AtomicLong();
+
+	public ResultMemoryBudget(long globalLimit, long queryLimit)
+	{
+		m_globalLimit = globalLimit;
+		m_queryLimit = Math.min(queryLimit, Integer.MAX_VALUE);
+	}
+
+	public long getGlobalLimit()
+	{
+		return (m_globalLimit);
+	}
+
+	public long getQueryLimit()
+	{
+		return (m_queryLimit);
+	}
+
+	public boolean isEnabled()
+	{
+		return (m_globalLimit > 0 && m_queryLimit > 0);
+	}
+
+	/**
+	 Takes bytes from the global budget.
+	 @return false if that would go over the global limit
+	 */
+	public boolean reserve(long bytes)
+	{
+		while (true)
+		{
+			long used = m_used.get();
+			if (used + bytes > m_globalLimit)
+				return (false);
+
+			if (m_used.compareAndSet(used, used + bytes))
+				return (true);
+		}
+	}
+
+	public void release(long bytes)
+	{
+		m_used.addAndGet(-bytes);
+	}
+
+	public long getUsed()
+	{
+		return (m_used.get());
+	}
+}
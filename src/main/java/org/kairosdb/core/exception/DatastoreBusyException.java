@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.exception;
+
+/**
+ * Thrown when the datastore is too far behind to accept more data.  The data
+ * was not stored and the client should send it again later.
+ */
+public class DatastoreBusyException extends DatastoreException
+{
+	private final int m_retryAfter;
+
+	/**
+	 * @param retryAfter number of seconds the client should wait before retrying
+	 */
+	public DatastoreBusyException(String message, int retryAfter)
+	{
+		super(message);
+		m_retryAfter = retryAfter;
+	}
+
+	public int getRetryAfter()
+	{
+		return (m_retryAfter);
+	}
+}
@@ -137,6 +137,25 @@ public class Group
 		return (new CachedDataPointGroup(file, dataFileChannel, name, tags, groupByResults));
 	}
 
+	/**
+	 * Closes and deletes the group file.  Only needed if getDataPointGroup()
+	 * was never called, otherwise the returned group owns the file.
+	 */
+	public void close()
+	{
+		try
+		{
+			dataFileChannel.close();
+		}
+		catch (IOException e)
+		{
+			logger.error("Failed to close group file: " + file.getAbsolutePath());
+		}
+
+		if (!file.delete())
+			logger.error("Could not delete group file: " + file.getAbsolutePath());
+	}
+
 	/**
 	 * Adds all tags from the data point group.
 	 * @param dataPointGroup data point group
@@ -17,9 +17,11 @@ package org.kairosdb.core.groupby;
 
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.QueryDeadline;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +31,7 @@ import java.util.Map;
  */
 public class Grouper
 {
+	private static final int DEADLINE_CHECK_INTERVAL = 1024;
 
 	/**
 	 * Groups data points by group bys.
@@ -38,48 +41,98 @@ public class Grouper
 	 * @return list of data point groups
 	 */
 	public List<DataPointGroup> group(List<GroupBy> groupBys, List<DataPointGroup> dataPointGroupList) throws IOException
+	{
+		return (group(groupBys, dataPointGroupList, new QueryDeadline(0)));
+	}
+
+	/**
+	 * Groups data points by group bys.  Each group is closed once it has been
+	 * read.  If grouping fails or the deadline passes every group, read or not,
+	 * is closed and the group files are deleted.
+	 *
+	 * @param groupBys list of group bys
+	 * @param dataPointGroupList list of data point groups to group
+	 * @param deadline checked as data points are grouped
+	 * @return list of data point groups
+	 */
+	public List<DataPointGroup> group(List<GroupBy> groupBys, List<DataPointGroup> dataPointGroupList,
+			QueryDeadline deadline) throws IOException
 	{
 		if (groupBys.size() < 1)
 			return dataPointGroupList;
 
 		List<DataPointGroup> dataPointGroups = new ArrayList<DataPointGroup>();
-		for (DataPointGroup dataPointGroup : dataPointGroupList)
+		Map<List<Integer>, Group> groupIdsToGroup = new LinkedHashMap<List<Integer>, Group>();
+		int closedCount = 0;
+		boolean success = false;
+		try
 		{
-			Map<List<Integer>, Group> groupIdsToGroup = new LinkedHashMap<List<Integer>, Group>();
-			Map<String, String> tags = getTags(dataPointGroup);
-
-			while (dataPointGroup.hasNext())
+			for (DataPointGroup dataPointGroup : dataPointGroupList)
 			{
-				DataPoint dataPoint = dataPointGroup.next();
+				groupDataPoints(groupBys, dataPointGroup, groupIdsToGroup, deadline);
 
-				List<Integer> groupIds = new ArrayList<Integer>();
-				List<GroupByResult> results = new ArrayList<GroupByResult>();
-				for (GroupBy groupBy : groupBys)
+				Iterator<Group> groups = groupIdsToGroup.values().iterator();
+				while (groups.hasNext())
 				{
-					int groupId = groupBy.getGroupId(dataPoint, tags);
-					groupIds.add(groupId);
-					results.add(groupBy.getGroupByResult(groupId));
+					Group group = groups.next();
+					if (!dataPointGroup.getGroupByResult().isEmpty())
+					{
+						group.addGroupByResults(dataPointGroup.getGroupByResult());
+					}
+					dataPointGroups.add(group.getDataPointGroup());
+					groups.remove();
 				}
 
-				// add to group
-				Group group = getGroup(groupIdsToGroup, dataPointGroup, groupIds, results);
-				group.addDataPoint(dataPoint);
+				closedCount++;
+				dataPointGroup.close();
 			}
 
-			for (Group group : groupIdsToGroup.values())
+			success = true;
+		}
+		finally
+		{
+			if (!success)
 			{
-				if (!dataPointGroup.getGroupByResult().isEmpty())
-				{
-					group.addGroupByResults(dataPointGroup.getGroupByResult());
-				}
-				dataPointGroups.add(group.getDataPointGroup());
+				for (Group group : groupIdsToGroup.values())
+					group.close();
+				for (DataPointGroup dataPointGroup : dataPointGroups)
+					dataPointGroup.close();
+				for (DataPointGroup dataPointGroup : dataPointGroupList.subList(closedCount, dataPointGroupList.size()))
+					dataPointGroup.close();
 			}
 		}
 
-
 		return dataPointGroups;
 	}
 
+	private void groupDataPoints(List<GroupBy> groupBys, DataPointGroup dataPointGroup,
+			Map<List<Integer>, Group> groupIdsToGroup, QueryDeadline deadline) throws IOException
+	{
+		Map<String, String> tags = getTags(dataPointGroup);
+		int count = 0;
+
+		while (dataPointGroup.hasNext())
+		{
+			if (++count % DEADLINE_CHECK_INTERVAL == 0)
+				deadline.check();
+
+			DataPoint dataPoint = dataPointGroup.next();
+
+			List<Integer> groupIds = new ArrayList<Integer>();
+			List<GroupByResult> results = new ArrayList<GroupByResult>();
+			for (GroupBy groupBy : groupBys)
+			{
+				int groupId = groupBy.getGroupId(dataPoint, tags);
+				groupIds.add(groupId);
+				results.add(groupBy.getGroupByResult(groupId));
+			}
+
+			// add to group
+			Group group = getGroup(groupIdsToGroup, dataPointGroup, groupIds, results);
+			group.addDataPoint(dataPoint);
+		}
+	}
+
 	private Group getGroup(Map<List<Integer>, Group> groupIdsToGroup, DataPointGroup dataPointGroup, List<Integer> groupIds, List<GroupByResult> results) throws IOException
 	{
 		Group group = groupIdsToGroup.get(groupIds);
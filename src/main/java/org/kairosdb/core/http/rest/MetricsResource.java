@@ -18,9 +18,16 @@ package org.kairosdb.core.http.rest;
 
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.MalformedJsonException;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.binary.BinaryDecoder;
+import org.kairosdb.core.binary.BinaryFormatException;
+import org.kairosdb.core.binary.BinaryProtocol;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.datastore.QueryResults;
+import org.kairosdb.core.exception.DatastoreBusyException;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.exception.QueryRejectedException;
 import org.kairosdb.core.formatter.DataFormatter;
 import org.kairosdb.core.formatter.FormatterException;
 import org.kairosdb.core.formatter.JsonFormatter;
@@ -134,6 +141,44 @@ public class MetricsResource
 		return (add(gzipInputStream));
 	}
 
+	@POST
+	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
+	@Consumes(BinaryProtocol.CONTENT_TYPE)
+	@Path("/datapoints")
+	public Response addBinary(InputStream binary)
+	{
+		try
+		{
+			BinaryDecoder decoder = new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(binary));
+
+			List<DataPointSet> frame;
+			while ((frame = decoder.readFrame(in)) != null)
+			{
+				for (DataPointSet dps : frame)
+					datastore.putDataPoints(dps);
+			}
+
+			return Response.status(Response.Status.NO_CONTENT).build();
+		}
+		catch (BinaryFormatException e)
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
+			return builder.addError(e.getMessage()).build();
+		}
+		catch (DatastoreBusyException e)
+		{
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+					.header("Retry-After", e.getRetryAfter())
+					.entity(new ErrorResponse(e.getMessage())).build();
+		}
+		catch (Exception e)
+		{
+			log.error("Failed to add metric.", e);
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage())).build();
+		}
+	}
+
 	@POST
 	@Produces(MediaType.APPLICATION_JSON + "; charset=UTF-8")
 	@Path("/datapoints")
@@ -156,6 +201,12 @@ public class MetricsResource
 			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
 			return builder.addError(e.getMessage()).build();
 		}
+		catch (DatastoreBusyException e)
+		{
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+					.header("Retry-After", e.getRetryAfter())
+					.entity(new ErrorResponse(e.getMessage())).build();
+		}
 		catch (Exception e)
 		{
 			log.error("Failed to add metric.", e);
@@ -172,10 +223,12 @@ public class MetricsResource
 		// todo verify that end time is not before start time.
 		checkNotNull(json);
 
+		//Small responses stay in memory, large ones spill to a temp file
+		SpillingOutputStream response = new SpillingOutputStream(datastore.getMemoryBudget());
+		boolean streaming = false;
 		try
 		{
-			File respFile = File.createTempFile("kairos", ".json");
-			BufferedWriter writer = new BufferedWriter(new FileWriter(respFile));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(response, "UTF-8"));
 
 			JsonResponse jsonResponse = new JsonResponse(writer);
 
@@ -192,6 +245,12 @@ public class MetricsResource
 				{
 					jsonResponse.formatQuery(qr);
 				}
+				catch (QueryCancelledException e)
+				{
+					//Ran out of time while the aggregators were reading
+					datastore.reportCancelledQuery(query);
+					throw e;
+				}
 				finally
 				{
 					if (qr != null)
@@ -206,7 +265,8 @@ public class MetricsResource
 			writer.close();
 
 			ResponseBuilder responseBuilder = Response.status(Response.Status.OK).entity(
-					new FileStreamingOutput(respFile));
+					new BufferedStreamingOutput(response));
+			streaming = true;
 
 			setHeaders(responseBuilder);
 			return responseBuilder.build();
@@ -226,11 +286,26 @@ public class MetricsResource
 			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
 			return builder.addErrors(e.getErrorMessages()).build();
 		}
+		catch (QueryRejectedException e)
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.BAD_REQUEST);
+			return builder.addError(e.getMessage()).build();
+		}
+		catch (QueryCancelledException e)
+		{
+			JsonResponseBuilder builder = new JsonResponseBuilder(Response.Status.SERVICE_UNAVAILABLE);
+			return builder.addError(e.getMessage()).build();
+		}
 		catch (Exception e)
 		{
 			log.error("Query failed.", e);
 			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new ErrorResponse(e.getMessage())).build();
 		}
+		finally
+		{
+			if (!streaming)
+				response.release();
+		}
 	}
 
 	@POST
@@ -388,31 +463,27 @@ public class MetricsResource
 		}
 	}
 
-	public class FileStreamingOutput implements StreamingOutput
+	public class BufferedStreamingOutput implements StreamingOutput
 	{
-		private File m_responseFile;
+		private SpillingOutputStream m_response;
 
-		public FileStreamingOutput(File responseFile)
+		public BufferedStreamingOutput(SpillingOutputStream response)
 		{
-			m_responseFile = responseFile;
+			m_response = response;
 		}
 
 		@Override
 		public void write(OutputStream output) throws IOException, WebApplicationException
 		{
-			InputStream reader = new FileInputStream(m_responseFile);
-
-			byte[] buffer = new byte[1024];
-			int size;
-
-			while ((size = reader.read(buffer)) != -1)
+			try
 			{
-				output.write(buffer, 0, size);
+				m_response.writeTo(output);
+				output.flush();
+			}
+			finally
+			{
+				m_response.release();
 			}
-
-			reader.close();
-			output.flush();
-			m_responseFile.delete();
 		}
 	}
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.http.rest;
+
+import org.kairosdb.core.datastore.ResultMemoryBudget;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Holds a response in memory taken from a ResultMemoryBudget and moves it to
+ a temp file once it goes over the per query limit or the budget runs out.
+ Call release() when done to give back the memory and delete the file.
+ */
+public class SpillingOutputStream extends OutputStream
+{
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	private final ResultMemoryBudget m_memoryBudget;
+	private byte[] m_buffer = new byte[0];
+	private int m_count = 0;
+	private long m_reserved = 0L;
+	private File m_file;
+	private OutputStream m_fileStream;
+
+	public SpillingOutputStream(ResultMemoryBudget memoryBudget)
+	{
+		m_memoryBudget = checkNotNull(memoryBudget);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (m_fileStream == null && ensureCapacity(m_count + 1))
+			m_buffer[m_count++] = (byte) b;
+		else
+			m_fileStream.write(b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (m_fileStream == null && ensureCapacity((long) m_count + length))
+		{
+			System.arraycopy(bytes, offset, m_buffer, m_count, length);
+			m_count += length;
+		}
+		else
+			m_fileStream.write(bytes, offset, length);
+	}
+
+	/**
+	 Grows the buffer to hold size bytes or spills to disk.
+	 @return false if the data now goes to the file
+	 */
+	private boolean ensureCapacity(long size) throws IOException
+	{
+		if (size <= m_buffer.length)
+			return (true);
+
+		long newSize = Math.max(INITIAL_SIZE, (long) m_buffer.length * 2);
+		newSize = Math.max(newSize, size);
+
+		if (newSize > m_memoryBudget.getQueryLimit() || !m_memoryBudget.reserve(newSize - m_buffer.length))
+		{
+			spillToDisk();
+			return (false);
+		}
+
+		m_reserved = newSize;
+		m_buffer = Arrays.copyOf(m_buffer, (int) newSize);
+		return (true);
+	}
+
+	private void spillToDisk() throws IOException
+	{
+		m_file = File.createTempFile("kairos", ".json");
+		m_fileStream = new BufferedOutputStream(new FileOutputStream(m_file));
+		m_fileStream.write(m_buffer, 0, m_count);
+
+		freeMemory();
+	}
+
+	private void freeMemory()
+	{
+		m_memoryBudget.release(m_reserved);
+		m_reserved = 0L;
+		m_buffer = new byte[0];
+		m_count = 0;
+	}
+
+	public boolean isInMemory()
+	{
+		return (m_fileStream == null);
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		if (m_fileStream != null)
+			m_fileStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (m_fileStream != null)
+			m_fileStream.close();
+	}
+
+	/**
+	 Copies everything written to output.  Must be called after close.
+	 */
+	public void writeTo(OutputStream output) throws IOException
+	{
+		if (m_file == null)
+		{
+			output.write(m_buffer, 0, m_count);
+			return;
+		}
+
+		InputStream reader = new FileInputStream(m_file);
+		try
+		{
+			byte[] buffer = new byte[1024];
+			int size;
+
+			while ((size = reader.read(buffer)) != -1)
+			{
+				output.write(buffer, 0, size);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	@SuppressWarnings("ResultOfMethodCallIgnored")
+	public void release()
+	{
+		freeMemory();
+		if (m_file != null)
+		{
+			try
+			{
+				close();
+			}
+			catch (IOException ignored)
+			{
+			}
+
+			m_file.delete();
+		}
+	}
+}
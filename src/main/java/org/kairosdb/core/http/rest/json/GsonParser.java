@@ -26,11 +26,13 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import org.apache.bval.constraints.NotEmpty;
 import org.apache.bval.jsr303.ApacheValidationProvider;
 import org.kairosdb.core.aggregator.Aggregator;
 import org.kairosdb.core.aggregator.AggregatorFactory;
 import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.datastore.QueryDeadline;
 import org.kairosdb.core.datastore.QueryMetric;
 import org.kairosdb.core.datastore.TimeUnit;
 import org.kairosdb.core.groupby.GroupBy;
@@ -59,6 +61,8 @@ import static com.google.common.base.Preconditions.checkState;
 
 public class GsonParser
 {
+	public static final String QUERY_TIMEOUT_PROPERTY = "kairosdb.query.timeout";
+
 	private static final Logger logger = LoggerFactory.getLogger(GsonParser.class);
 
 	private static final Validator VALIDATOR = Validation.byProvider(ApacheValidationProvider.class).configure().buildValidatorFactory().getValidator();
@@ -68,6 +72,7 @@ public class GsonParser
 	private Map<Class, Map<String, PropertyDescriptor>> m_descriptorMap;
 	private final Object m_descriptorMapLock = new Object();
 	private Gson m_gson;
+	private long m_queryTimeout = 0L;
 
 	@Inject
 	public GsonParser(AggregatorFactory aggregatorFactory, GroupByFactory groupByFactory)
@@ -85,6 +90,15 @@ public class GsonParser
 		m_gson = builder.create();
 	}
 
+	/**
+	 Timeout in milliseconds for queries that do not set one.
+	 */
+	@Inject(optional = true)
+	public void setQueryTimeout(@Named(QUERY_TIMEOUT_PROPERTY) long queryTimeout)
+	{
+		m_queryTimeout = queryTimeout;
+	}
+
 	private PropertyDescriptor getPropertyDescriptor(Class objClass, String property) throws IntrospectionException
 	{
 		synchronized (m_descriptorMapLock)
@@ -145,6 +159,9 @@ public class GsonParser
 
 		validateObject(query);
 
+		//All metrics of the request share one deadline
+		QueryDeadline deadline = new QueryDeadline(query.getTimeout() > 0 ? query.getTimeout() : m_queryTimeout);
+
 		JsonArray metricsArray = obj.getAsJsonArray("metrics");
 		for (int I = 0; I < metricsArray.size(); I++)
 		{
@@ -157,6 +174,7 @@ public class GsonParser
 			StringBuilder sb = new StringBuilder();
 			sb.append(query.getCacheString()).append(metric.getCacheString());
 			queryMetric.setCacheString(sb.toString());
+			queryMetric.setDeadline(deadline);
 
 			JsonObject jsMetric = metricsArray.get(I).getAsJsonObject();
 
@@ -325,10 +343,14 @@ public class GsonParser
 
 			sb.append(name).append(":");
 
-			for (Map.Entry<String, String> tagEntry : tags.entries())
+			//Sorted so the same tags in any order give the same cache string
+			for (String tagName : new TreeSet<String>(tags.keySet()))
 			{
-				sb.append(tagEntry.getKey()).append("=");
-				sb.append(tagEntry.getValue()).append(":");
+				for (String tagValue : new TreeSet<String>(tags.get(tagName)))
+				{
+					sb.append(tagName).append("=");
+					sb.append(tagValue).append(":");
+				}
 			}
 
 			return (sb.toString());
@@ -357,6 +379,8 @@ public class GsonParser
 		private String m_endAbsolute;
 		@SerializedName("cache_time")
 		private int m_cacheTime;
+		@SerializedName("timeout")
+		private long m_timeout;
 
 		@Valid
 		@SerializedName("start_relative")
@@ -382,6 +406,11 @@ public class GsonParser
 			return m_cacheTime;
 		}
 
+		public long getTimeout()
+		{
+			return m_timeout;
+		}
+
 		public RelativeTime getStartRelative()
 		{
 			return m_startRelative;
@@ -417,6 +446,7 @@ public class GsonParser
 					"startAbsolute='" + m_startAbsolute + '\'' +
 					", endAbsolute='" + m_endAbsolute + '\'' +
 					", cacheTime=" + m_cacheTime +
+					", timeout=" + m_timeout +
 					", startRelative=" + m_startRelative +
 					", endRelative=" + m_endRelative +
 					'}';
@@ -29,26 +29,45 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Originally used Jackson to parse, but this approach failed for a very large JSON because
  * everything was in memory and we would run out of memory. This parser adds metrics as it walks
  * through the stream.
+ *
+ * Once the name and tags of a metric have been read its data points are written to the
+ * datastore every chunkSize points, so a metric with a long datapoints array is not held
+ * in memory.  Data points that come before the name or tags are held until the end of
+ * the metric.  Metrics with the same tags share one tag map.
  */
 public class JsonMetricParser
 {
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
 	private KairosDatastore datastore;
 	private InputStream inputStream;
+	private int chunkSize;
+	private final List<String> tagPairs = new ArrayList<String>();
+	private SortedMap<String, String> lastTags;
 
 	public JsonMetricParser(KairosDatastore datastore, InputStream stream)
 	{
+		this(datastore, stream, DEFAULT_CHUNK_SIZE);
+	}
+
+	public JsonMetricParser(KairosDatastore datastore, InputStream stream, int chunkSize)
+	{
+		checkArgument(chunkSize > 0, "Chunk size must be greater than zero");
 		this.datastore = checkNotNull(datastore);
 		this.inputStream = checkNotNull(stream);
+		this.chunkSize = chunkSize;
 	}
 
 	public void parse() throws IOException, ValidationException, DatastoreException
@@ -86,7 +105,8 @@ public class JsonMetricParser
 		String name = null;
 		long timestamp = 0;
 		String value = null;
-		Map<String, String> tags = new HashMap<String, String>();
+		SortedMap<String, String> tags = null;
+		MetricChunk chunk = null;
 		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
 		while (reader.hasNext())
 		{
@@ -107,7 +127,10 @@ public class JsonMetricParser
 			}
 			else if (token.equals("datapoints"))
 			{
-				dataPoints = parseDataPoints(reader);
+				if (chunk == null && name != null && !name.isEmpty() && tags != null && !tags.isEmpty())
+					chunk = new MetricChunk(name, tags);
+
+				parseDataPoints(reader, chunk, dataPoints);
 			}
 			else if (token.equals("tags"))
 			{
@@ -120,39 +143,78 @@ public class JsonMetricParser
 			throw new ValidationException("metric[" + count + "].value cannot be null or empty.");
 		if (value != null && timestamp < 1)
 			throw new ValidationException("metric[" + count + "].timestamp must be greater than 0.");
-		if (tags.size() < 1)
+		if (tags == null || tags.size() < 1)
 			throw new ValidationException("metric[" + count + "].tags cannot be null or empty.");
 
 
 		if (timestamp > 0 && value != null)
-		{
-			if (value.contains("."))
-				dataPoints.add(new DataPoint(timestamp, Double.parseDouble(value)));
-			else
-				dataPoints.add(new DataPoint(timestamp, Long.parseLong(value)));
-		}
+			dataPoints.add(newDataPoint(timestamp, value));
 
 		JsonValidator.validateNotNullOrEmpty("metric[" + count + "].name", name);
 
-		datastore.putDataPoints(new DataPointSet(name, tags, dataPoints));
+		if (chunk == null)
+			chunk = new MetricChunk(name, tags);
+
+		for (DataPoint dataPoint : dataPoints)
+			chunk.add(dataPoint);
+
+		chunk.close();
 	}
 
-	private Map<String, String> parseTags(JsonReader reader) throws IOException
+	/**
+	 Returns the tags of the last metric if they are the same so metrics of one
+	 series do not each build a map.
+	 */
+	private SortedMap<String, String> parseTags(JsonReader reader) throws IOException
 	{
-		Map<String, String> tags = new HashMap<String, String>();
+		tagPairs.clear();
 		reader.beginObject();
 		while(reader.hasNext())
 		{
-			String tagName = reader.nextName();
-			tags.put(tagName, reader.nextString());
+			tagPairs.add(reader.nextName());
+			tagPairs.add(reader.nextString());
 		}
 		reader.endObject();
-		return tags;
+
+		if (!sameTags(lastTags, tagPairs))
+		{
+			SortedMap<String, String> tags = new TreeMap<String, String>();
+			for (int I = 0; I < tagPairs.size(); I += 2)
+				tags.put(tagPairs.get(I), tagPairs.get(I + 1));
+
+			lastTags = tags;
+		}
+
+		return (lastTags);
 	}
 
-	private List<DataPoint> parseDataPoints(JsonReader reader) throws IOException, ValidationException
+	private static boolean sameTags(Map<String, String> tags, List<String> pairs)
+	{
+		if (tags == null || tags.size() * 2 != pairs.size())
+			return (false);
+
+		for (int I = 0; I < pairs.size(); I += 2)
+		{
+			if (!pairs.get(I + 1).equals(tags.get(pairs.get(I))))
+				return (false);
+
+			//A repeated name would leave one of the tags unmatched
+			for (int J = 0; J < I; J += 2)
+			{
+				if (pairs.get(J).equals(pairs.get(I)))
+					return (false);
+			}
+		}
+
+		return (true);
+	}
+
+	/**
+	 Data points go to chunk when there is one and to pending until there is.
+	 */
+	private void parseDataPoints(JsonReader reader, MetricChunk chunk, List<DataPoint> pending)
+			throws IOException, ValidationException, DatastoreException
 	{
-		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
 		reader.beginArray();
 		while(reader.hasNext())
 		{
@@ -163,14 +225,64 @@ public class JsonMetricParser
 			String value = reader.nextString();
 			JsonValidator.validateNotNullOrEmpty("value", value);
 
-			if (value.contains("."))
-				dataPoints.add(new DataPoint(timestamp, Double.parseDouble(value)));
+			DataPoint dataPoint = newDataPoint(timestamp, value);
+			if (chunk != null)
+				chunk.add(dataPoint);
 			else
-				dataPoints.add(new DataPoint(timestamp, Long.parseLong(value)));
+				pending.add(dataPoint);
 			reader.endArray();
 		}
 		reader.endArray();
+	}
+
+	private static DataPoint newDataPoint(long timestamp, String value)
+	{
+		if (value.indexOf('.') == -1)
+			return (new DataPoint(timestamp, Long.parseLong(value)));
+		else
+			return (new DataPoint(timestamp, Double.parseDouble(value)));
+	}
+
+	//===========================================================================
+	/**
+	 Writes the data points of a metric to the datastore every chunkSize points.
+	 */
+	private class MetricChunk
+	{
+		private final String name;
+		private final SortedMap<String, String> tags;
+		private DataPointSet dataPoints;
+		private int size;
+		private boolean written;
 
-		return dataPoints;
+		private MetricChunk(String name, SortedMap<String, String> tags)
+		{
+			this.name = name;
+			this.tags = tags;
+			dataPoints = new DataPointSet(name, tags);
+		}
+
+		private void add(DataPoint dataPoint) throws DatastoreException
+		{
+			dataPoints.addDataPoint(dataPoint);
+			size++;
+
+			if (size == chunkSize)
+			{
+				datastore.putDataPoints(dataPoints);
+				written = true;
+				dataPoints = new DataPointSet(name, tags);
+				size = 0;
+			}
+		}
+
+		/**
+		 Writes what is left, a metric without data points is still written once.
+		 */
+		private void close() throws DatastoreException
+		{
+			if (size > 0 || !written)
+				datastore.putDataPoints(dataPoints);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -86,28 +86,38 @@ public class MetricReporterService implements KairosDBJob
 	{
 		logger.debug("Reporting metrics");
 		long timestamp = System.currentTimeMillis();
-		try
+
+		//Metrics are written through the internal path so they are not shed
+		//when the datastore is backed up, that is when they matter most
+		for (KairosMetricReporter reporter : m_reporters)
 		{
-			for (KairosMetricReporter reporter : m_reporters)
+			try
 			{
 				List<DataPointSet> dpList = reporter.getMetrics(timestamp);
 				for (DataPointSet dataPointSet : dpList)
 				{
-					m_datastore.putDataPoints(dataPointSet);
+					m_datastore.putInternalDataPoints(dataPointSet);
 				}
 			}
+			catch (Throwable e)
+			{
+				// prevent the thread from dying and let the other reporters run
+				logger.error("Reporter service error", e);
+			}
+		}
 
-
+		try
+		{
 			Runtime runtime = Runtime.getRuntime();
 			Map<String, String> tags = new HashMap<String, String>();
 			tags.put("host", m_hostname);
-			m_datastore.putDataPoints(new DataPointSet("kairosdb.jvm.free_memory",
+			m_datastore.putInternalDataPoints(new DataPointSet("kairosdb.jvm.free_memory",
 					tags, Collections.singletonList(new DataPoint(timestamp, runtime.freeMemory()))));
-			m_datastore.putDataPoints(new DataPointSet("kairosdb.jvm.total_memory",
+			m_datastore.putInternalDataPoints(new DataPointSet("kairosdb.jvm.total_memory",
 					tags, Collections.singletonList(new DataPoint(timestamp, runtime.totalMemory()))));
-			m_datastore.putDataPoints(new DataPointSet("kairosdb.jvm.max_memory",
+			m_datastore.putInternalDataPoints(new DataPointSet("kairosdb.jvm.max_memory",
 					tags, Collections.singletonList(new DataPoint(timestamp, runtime.maxMemory()))));
-			m_datastore.putDataPoints(new DataPointSet("kairosdb.jvm.thread_count",
+			m_datastore.putInternalDataPoints(new DataPointSet("kairosdb.jvm.thread_count",
 					tags, Collections.singletonList(new DataPoint(timestamp, getThreadCount()))));
 		}
 		catch (Throwable e)
@@ -116,4 +126,4 @@ public class MetricReporterService implements KairosDBJob
 			logger.error("Reporter service error", e);
 		}
 	}
-}
\ No newline at end of file
+}
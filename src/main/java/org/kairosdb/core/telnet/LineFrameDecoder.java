@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+
+/**
+ Splits the stream into lines without copying them.  Each line is a slice of
+ the receive buffer, so the handlers after this one must be done with it
+ before they return.  PutDecoder and WordSplitter turn it into values right
+ away.
+
+ After the lines of each read END_OF_READ is sent on so PutBatcher knows when
+ to write its batch.
+ */
+public class LineFrameDecoder extends DelimiterBasedFrameDecoder
+{
+	public static final Object END_OF_READ = new Object();
+
+	public LineFrameDecoder(int maxFrameLength)
+	{
+		super(maxFrameLength, Delimiters.lineDelimiter());
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+	{
+		super.messageReceived(ctx, e);
+		Channels.fireMessageReceived(ctx, END_OF_READ);
+	}
+
+	@Override
+	protected ChannelBuffer extractFrame(ChannelBuffer buffer, int index, int length)
+	{
+		return (buffer.slice(index, length));
+	}
+}
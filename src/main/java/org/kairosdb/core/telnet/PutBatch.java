@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ Collects puts into one DataPointSet per series, a series being the metric
+ name and tags.  Series are kept in the order they first showed up and points
+ in the order they were added.
+ */
+public class PutBatch
+{
+	private final Map<SeriesKey, DataPointSet> m_series = new LinkedHashMap<SeriesKey, DataPointSet>();
+	private int m_size = 0;
+
+	public void add(DataPointSet dps)
+	{
+		SeriesKey key = new SeriesKey(dps.getName(), dps.getTags());
+		DataPointSet series = m_series.get(key);
+		if (series == null)
+		{
+			m_series.put(key, dps);
+		}
+		else
+		{
+			for (DataPoint dataPoint : dps.getDataPoints())
+				series.addDataPoint(dataPoint);
+		}
+
+		m_size += dps.getDataPoints().size();
+	}
+
+	/**
+	 Number of data points in the batch.
+	 */
+	public int size()
+	{
+		return (m_size);
+	}
+
+	public boolean isEmpty()
+	{
+		return (m_size == 0);
+	}
+
+	/**
+	 Returns the series and empties the batch.
+	 */
+	public List<DataPointSet> drain()
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>(m_series.values());
+		m_series.clear();
+		m_size = 0;
+
+		return (ret);
+	}
+
+	//===========================================================================
+	private static class SeriesKey
+	{
+		private final String m_name;
+		private final Map<String, String> m_tags;
+		private final int m_hashCode;
+
+		public SeriesKey(String name, Map<String, String> tags)
+		{
+			m_name = name;
+			m_tags = tags;
+			m_hashCode = 31 * name.hashCode() + tags.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return (true);
+			if (!(o instanceof SeriesKey))
+				return (false);
+
+			SeriesKey other = (SeriesKey) o;
+			return (m_hashCode == other.m_hashCode && m_name.equals(other.m_name) &&
+					m_tags.equals(other.m_tags));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (m_hashCode);
+		}
+	}
+}
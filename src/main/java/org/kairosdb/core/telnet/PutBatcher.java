@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.DatastoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Holds the decoded puts of a channel and writes them as one batch at the end
+ of each read, or sooner if the batch reaches its size limit.  There is one
+ per channel.  Other commands write out the batch before they are passed on
+ so they still run in order with the puts.
+ */
+public class PutBatcher extends SimpleChannelUpstreamHandler
+{
+	public static final Logger logger = LoggerFactory.getLogger(PutBatcher.class);
+
+	private final PutCommand m_putCommand;
+	private final int m_maxBatchSize;
+	private final PutBatch m_batch = new PutBatch();
+
+	/**
+	 @param maxBatchSize Most data points held before they are written
+	 */
+	public PutBatcher(PutCommand putCommand, int maxBatchSize)
+	{
+		checkArgument(maxBatchSize > 0, "Batch size must be greater than zero");
+		m_putCommand = checkNotNull(putCommand);
+		m_maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+	{
+		Object message = e.getMessage();
+		if (message instanceof DataPointSet)
+		{
+			m_batch.add((DataPointSet) message);
+			if (m_batch.size() >= m_maxBatchSize)
+				flush(e.getChannel());
+		}
+		else if (message == LineFrameDecoder.END_OF_READ)
+		{
+			flush(e.getChannel());
+		}
+		else
+		{
+			flush(e.getChannel());
+			ctx.sendUpstream(e);
+		}
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+	{
+		flush(e.getChannel());
+		ctx.sendUpstream(e);
+	}
+
+	private void flush(Channel channel)
+	{
+		if (m_batch.isEmpty())
+			return;
+
+		int size = m_batch.size();
+		try
+		{
+			m_putCommand.putBatch(channel, m_batch.drain(), size);
+		}
+		catch (DatastoreException e)
+		{
+			logger.error("Failed to store telnet puts", e);
+		}
+	}
+}
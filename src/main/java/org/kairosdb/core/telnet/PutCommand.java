@@ -22,11 +22,12 @@ import org.jboss.netty.channel.Channel;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreBusyException;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.kairosdb.util.Util;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -34,8 +35,13 @@ import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
 
 public class PutCommand implements TelnetCommand, KairosMetricReporter
 {
+	public static final String BATCH_COUNT_METRIC_NAME = "kairosdb.protocol.telnet_batch_count";
+	public static final String MAX_BATCH_SIZE_METRIC_NAME = "kairosdb.protocol.telnet_max_batch_size";
+
 	private KairosDatastore m_datastore;
 	private AtomicInteger m_counter = new AtomicInteger();
+	private AtomicInteger m_batchCount = new AtomicInteger();
+	private AtomicInteger m_maxBatchSize = new AtomicInteger();
 	private String m_hostName;
 
 	@Inject
@@ -46,18 +52,24 @@ public class PutCommand implements TelnetCommand, KairosMetricReporter
 		m_datastore = datastore;
 	}
 
+	/**
+	 Backwards compatible hack for the next 30 years.  This allows clients to
+	 send seconds to us.
+	 */
+	public static long toMilliseconds(long timestamp)
+	{
+		if (timestamp < 3000000000L)
+			timestamp *= 1000;
+
+		return (timestamp);
+	}
+
 	@Override
 	public void execute(Channel chan, String[] command) throws DatastoreException
 	{
-		m_counter.incrementAndGet();
-
 		DataPointSet dps = new DataPointSet(command[1]);
 
-		long timestamp = Util.parseLong(command[2]);
-		//Backwards compatible hack for the next 30 years
-		//This allows clients to send seconds to us
-		if (timestamp < 3000000000L)
-			timestamp *= 1000;
+		long timestamp = toMilliseconds(Util.parseLong(command[2]));
 
 		DataPoint dp;
 		if (command[3].contains("."))
@@ -73,7 +85,41 @@ public class PutCommand implements TelnetCommand, KairosMetricReporter
 			dps.addTag(tag[0], tag[1]);
 		}
 
-		m_datastore.putDataPoints(dps);
+		put(chan, dps);
+	}
+
+	/**
+	 Stores a put that PutDecoder already decoded.
+	 */
+	public void put(Channel chan, DataPointSet dps) throws DatastoreException
+	{
+		m_counter.addAndGet(dps.getDataPoints().size());
+
+		try
+		{
+			m_datastore.putDataPoints(dps);
+		}
+		catch (DatastoreBusyException e)
+		{
+			if (chan.isConnected())
+				chan.write("put: " + e.getMessage() + "\n");
+		}
+	}
+
+	/**
+	 Stores the series PutBatcher collected from a channel.
+
+	 @param size Number of data points in the batch
+	 */
+	public void putBatch(Channel chan, List<DataPointSet> batch, int size) throws DatastoreException
+	{
+		m_batchCount.incrementAndGet();
+		int max = m_maxBatchSize.get();
+		while (size > max && !m_maxBatchSize.compareAndSet(max, size))
+			max = m_maxBatchSize.get();
+
+		for (DataPointSet dps : batch)
+			put(chan, dps);
 	}
 
 	@Override
@@ -85,11 +131,24 @@ public class PutCommand implements TelnetCommand, KairosMetricReporter
 	@Override
 	public List<DataPointSet> getMetrics(long now)
 	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
 		DataPointSet dps = new DataPointSet(REPORTING_METRIC_NAME);
 		dps.addTag("host", m_hostName);
 		dps.addTag("method", "put");
 		dps.addDataPoint(new DataPoint(now, m_counter.getAndSet(0)));
+		ret.add(dps);
+
+		DataPointSet batchCountSet = new DataPointSet(BATCH_COUNT_METRIC_NAME);
+		batchCountSet.addTag("host", m_hostName);
+		batchCountSet.addDataPoint(new DataPoint(now, m_batchCount.getAndSet(0)));
+		ret.add(batchCountSet);
+
+		DataPointSet maxBatchSet = new DataPointSet(MAX_BATCH_SIZE_METRIC_NAME);
+		maxBatchSet.addTag("host", m_hostName);
+		maxBatchSet.addDataPoint(new DataPoint(now, m_maxBatchSize.getAndSet(0)));
+		ret.add(maxBatchSet);
 
-		return (Collections.singletonList(dps));
+		return (ret);
 	}
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Decodes put lines straight from the line buffer into a DataPointSet without
+ splitting the line into Strings first.  Metric names and tags come from a
+ shared StringDictionary.
+
+ Lines that are not puts, or puts in a form this decoder does not take (extra
+ spaces, tags without a value, ...), are passed on unchanged so WordSplitter
+ and PutCommand handle them as before.
+ */
+public class PutDecoder extends OneToOneDecoder
+{
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	//Powers of ten that are exact as doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static
+	{
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+	}
+
+	//Up to 15 digits always fit in the 53 bit mantissa of a double
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	private final StringDictionary m_dictionary;
+
+	public PutDecoder(StringDictionary dictionary)
+	{
+		m_dictionary = checkNotNull(dictionary);
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception
+	{
+		if (!(msg instanceof ChannelBuffer))
+			return (msg);
+
+		ChannelBuffer buffer = (ChannelBuffer) msg;
+		DataPointSet dps = decodePut(buffer);
+
+		return (dps != null ? dps : buffer);
+	}
+
+	/**
+	 @return The data point of the put line or null if the line is not a put
+	 in the usual form
+	 */
+	public DataPointSet decodePut(ChannelBuffer buffer)
+	{
+		int pos = buffer.readerIndex();
+		int end = buffer.writerIndex();
+
+		if (end - pos < 4 || buffer.getByte(pos) != 'p' || buffer.getByte(pos + 1) != 'u' ||
+				buffer.getByte(pos + 2) != 't' || buffer.getByte(pos + 3) != ' ')
+			return (null);
+		pos += 4;
+
+		int nameEnd = tokenEnd(buffer, pos, end);
+		if (nameEnd == pos || nameEnd == end)
+			return (null);
+
+		int timestampStart = nameEnd + 1;
+		int timestampEnd = tokenEnd(buffer, timestampStart, end);
+		if (timestampEnd == end)
+			return (null);
+
+		int valueStart = timestampEnd + 1;
+		int valueEnd = tokenEnd(buffer, valueStart, end);
+
+		DataPoint dataPoint;
+		try
+		{
+			long timestamp = PutCommand.toMilliseconds(parseLong(buffer, timestampStart, timestampEnd));
+
+			if (buffer.indexOf(valueStart, valueEnd, (byte) '.') != -1)
+				dataPoint = new DataPoint(timestamp, parseDouble(buffer, valueStart, valueEnd));
+			else
+				dataPoint = new DataPoint(timestamp, parseLong(buffer, valueStart, valueEnd));
+		}
+		catch (NumberFormatException e)
+		{
+			return (null);
+		}
+
+		DataPointSet dps = new DataPointSet(m_dictionary.get(buffer, pos, nameEnd - pos));
+		dps.addDataPoint(dataPoint);
+
+		pos = valueEnd;
+		while (pos < end)
+		{
+			pos++; //Skip the space
+
+			int tagEnd = tokenEnd(buffer, pos, end);
+			int equals = buffer.indexOf(pos, tagEnd, (byte) '=');
+			if (equals <= pos || equals == tagEnd - 1 || buffer.indexOf(equals + 1, tagEnd, (byte) '=') != -1)
+				return (null);
+
+			dps.addTag(m_dictionary.get(buffer, pos, equals - pos),
+					m_dictionary.get(buffer, equals + 1, tagEnd - equals - 1));
+			pos = tagEnd;
+		}
+
+		return (dps);
+	}
+
+	private static int tokenEnd(ChannelBuffer buffer, int start, int end)
+	{
+		int space = buffer.indexOf(start, end, (byte) ' ');
+		return (space == -1 ? end : space);
+	}
+
+	/**
+	 Same rules as Util.parseLong.
+	 */
+	private static long parseLong(ChannelBuffer buffer, int start, int end)
+	{
+		if (start == end)
+			throw new NumberFormatException("Missing digits");
+
+		boolean negative = (buffer.getByte(start) == '-');
+		int pos = negative ? start + 1 : start;
+		if (pos == end)
+			throw new NumberFormatException("Missing digits");
+
+		//Built up as a negative number so Long.MIN_VALUE fits
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplyLimit = limit / 10;
+		long num = 0;
+		for (; pos < end; pos++)
+		{
+			int digit = buffer.getByte(pos) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("Malformed number");
+			if (num < multiplyLimit)
+				throw new NumberFormatException("Over/underflow");
+			num *= 10;
+			if (num < limit + digit)
+				throw new NumberFormatException("Over/underflow");
+			num -= digit;
+		}
+
+		return (negative ? num : -num);
+	}
+
+	/**
+	 Plain decimals of up to 15 digits are divided by an exact power of ten,
+	 which rounds the same as Double.parseDouble.  Anything else goes to
+	 Double.parseDouble.
+	 */
+	private static double parseDouble(ChannelBuffer buffer, int start, int end)
+	{
+		boolean negative = (start < end && buffer.getByte(start) == '-');
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+
+		for (int pos = negative ? start + 1 : start; pos < end; pos++)
+		{
+			byte b = buffer.getByte(pos);
+			if (b == '.' && fractionDigits == -1)
+				fractionDigits = 0;
+			else if (b >= '0' && b <= '9' && digits < MAX_EXACT_DIGITS)
+			{
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (fractionDigits != -1)
+					fractionDigits++;
+			}
+			else
+				return (Double.parseDouble(buffer.toString(start, end - start, CHARSET)));
+		}
+
+		if (digits == 0 || fractionDigits == -1 || fractionDigits >= POWERS_OF_TEN.length)
+			return (Double.parseDouble(buffer.toString(start, end - start, CHARSET)));
+
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return (negative ? -value : value);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.charset.Charset;
+
+/**
+ Turns ISO-8859-1 bytes into Strings and hands back the same String the next
+ time the same bytes show up.  Metric names and tags repeat on nearly every
+ line so most lookups allocate nothing.
+
+ The table has a fixed number of slots and a new string replaces whatever is
+ in its slot, so memory stays bounded however many distinct strings arrive.
+ It can be shared between threads, a slot only ever holds a whole String.
+ */
+public class StringDictionary
+{
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private final String[] m_table;
+	private final int m_mask;
+	private final int m_maxLength;
+
+	/**
+	 @param size Number of strings held, rounded up to a power of two
+	 @param maxLength Longer strings are created each time and not held
+	 */
+	public StringDictionary(int size, int maxLength)
+	{
+		int tableSize = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		m_table = new String[tableSize];
+		m_mask = tableSize - 1;
+		m_maxLength = maxLength;
+	}
+
+	public String get(ChannelBuffer buffer, int index, int length)
+	{
+		if (length > m_maxLength)
+			return (buffer.toString(index, length, CHARSET));
+
+		//Same as String.hashCode() for ISO-8859-1 text
+		int hash = 0;
+		for (int i = index; i < index + length; i++)
+			hash = 31 * hash + (buffer.getByte(i) & 0xff);
+
+		int slot = (hash ^ (hash >>> 16)) & m_mask;
+		String entry = m_table[slot];
+		if (entry != null && entry.hashCode() == hash && matches(entry, buffer, index, length))
+			return (entry);
+
+		entry = buffer.toString(index, length, CHARSET);
+		m_table[slot] = entry;
+		return (entry);
+	}
+
+	private static boolean matches(String entry, ChannelBuffer buffer, int index, int length)
+	{
+		if (entry.length() != length)
+			return (false);
+
+		for (int i = 0; i < length; i++)
+		{
+			if (entry.charAt(i) != (char) (buffer.getByte(index + i) & 0xff))
+				return (false);
+		}
+
+		return (true);
+	}
+}
@@ -16,49 +16,170 @@
 
 package org.kairosdb.core.telnet;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
-import org.jboss.netty.handler.codec.frame.Delimiters;
 import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.KairosDBService;
 import org.kairosdb.core.exception.KariosDBException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.util.IngestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
 
 public class TelnetServer extends SimpleChannelUpstreamHandler implements ChannelPipelineFactory,
-		KairosDBService
+		KairosDBService, KairosMetricReporter
 {
+	public static final Logger logger = LoggerFactory.getLogger(TelnetServer.class);
+
+	public static final String MAX_BATCH_SIZE_PROPERTY = "kairosdb.telnetserver.max_batch_size";
+	public static final String MAX_LINE_LENGTH_PROPERTY = "kairosdb.telnetserver.max_line_length";
+	public static final String BOSS_THREADS_PROPERTY = "kairosdb.telnetserver.boss_threads";
+	public static final String WORKER_THREADS_PROPERTY = "kairosdb.telnetserver.worker_threads";
+	public static final String HANDLER_THREADS_PROPERTY = "kairosdb.telnetserver.handler_threads";
+	public static final String MAX_CHANNEL_QUEUED_BYTES_PROPERTY = "kairosdb.telnetserver.max_channel_queued_bytes";
+	public static final String MAX_QUEUED_BYTES_PROPERTY = "kairosdb.telnetserver.max_queued_bytes";
+	public static final String SHUTDOWN_TIMEOUT_PROPERTY = "kairosdb.telnetserver.shutdown_timeout";
+	public static final String CONNECTIONS_METRIC_NAME = "kairosdb.protocol.telnet_connections";
+	public static final String CONNECTIONS_ACCEPTED_METRIC_NAME = "kairosdb.protocol.telnet_connections_accepted";
+	public static final String QUEUE_SIZE_METRIC_NAME = "kairosdb.protocol.telnet_queue_size";
+	private static final int STRING_DICTIONARY_SIZE = 16 * 1024;
+	private static final int STRING_DICTIONARY_MAX_LENGTH = 256;
+
 	private int m_port;
 	private CommandProvider m_commands;
 	private UnknownCommand m_unknownCommand;
+	private PutCommand m_putCommand;
+	private String m_hostname;
+	private int m_maxBatchSize = 1000;
+	private int m_maxLineLength = 1024;
+	private int m_bossThreads = 1;
+	private int m_workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+	private int m_handlerThreads = 16;
+	private long m_maxChannelQueuedBytes = 1024 * 1024;
+	private long m_maxQueuedBytes = 64 * 1024 * 1024;
+	private long m_shutdownTimeout = 10000;
+	private final StringDictionary m_dictionary = new StringDictionary(STRING_DICTIONARY_SIZE,
+			STRING_DICTIONARY_MAX_LENGTH);
+
+	private final ChannelGroup m_channels = new DefaultChannelGroup("telnet");
+	private final ConnectionTracker m_connectionTracker = new ConnectionTracker();
+	private final AtomicInteger m_accepted = new AtomicInteger();
+	private ServerBootstrap m_bootstrap;
+	private Channel m_serverChannel;
+	private IngestExecutor m_executor;
+	private ExecutionHandler m_executionHandler;
 
 	@Inject
 	public TelnetServer(@Named("kairosdb.telnetserver.port")int port,
-			CommandProvider commandProvider)
+			CommandProvider commandProvider, PutCommand putCommand,
+			@Named("HOSTNAME") String hostname)
 	{
 		m_commands = commandProvider;
 		m_port = port;
+		m_putCommand = putCommand;
+		m_hostname = checkNotNullOrEmpty(hostname);
+	}
+
+
+	/**
+	 Most puts a channel holds before writing them to the datastore.  Puts are
+	 also written at the end of every read.
+	 */
+	@Inject(optional = true)
+	public void setMaxBatchSize(@Named(MAX_BATCH_SIZE_PROPERTY) int maxBatchSize)
+	{
+		m_maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 Longest line that is read, longer lines close the connection.
+	 */
+	@Inject(optional = true)
+	public void setMaxLineLength(@Named(MAX_LINE_LENGTH_PROPERTY) int maxLineLength)
+	{
+		m_maxLineLength = maxLineLength;
+	}
+
+	@Inject(optional = true)
+	public void setBossThreads(@Named(BOSS_THREADS_PROPERTY) int bossThreads)
+	{
+		m_bossThreads = bossThreads;
 	}
 
+	/**
+	 Threads that read and decode from the sockets, 0 uses twice the number
+	 of processors.
+	 */
+	@Inject(optional = true)
+	public void setWorkerThreads(@Named(WORKER_THREADS_PROPERTY) int workerThreads)
+	{
+		if (workerThreads > 0)
+			m_workerThreads = workerThreads;
+	}
+
+	/**
+	 Threads that write the decoded lines to the datastore.
+	 */
+	@Inject(optional = true)
+	public void setHandlerThreads(@Named(HANDLER_THREADS_PROPERTY) int handlerThreads)
+	{
+		m_handlerThreads = handlerThreads;
+	}
+
+	@Inject(optional = true)
+	public void setMaxChannelQueuedBytes(@Named(MAX_CHANNEL_QUEUED_BYTES_PROPERTY) long maxChannelQueuedBytes)
+	{
+		m_maxChannelQueuedBytes = maxChannelQueuedBytes;
+	}
+
+	@Inject(optional = true)
+	public void setMaxQueuedBytes(@Named(MAX_QUEUED_BYTES_PROPERTY) long maxQueuedBytes)
+	{
+		m_maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 Milliseconds stop waits for the lines already read to be written.
+	 */
+	@Inject(optional = true)
+	public void setShutdownTimeout(@Named(SHUTDOWN_TIMEOUT_PROPERTY) long shutdownTimeout)
+	{
+		m_shutdownTimeout = shutdownTimeout;
+	}
 
 	@Override
 	public ChannelPipeline getPipeline() throws Exception
 	{
 		ChannelPipeline pipeline = Channels.pipeline();
 
+		pipeline.addLast("connections", m_connectionTracker);
+
 		// Add the text line codec combination first,
-		DelimiterBasedFrameDecoder frameDecoder = new DelimiterBasedFrameDecoder(
-				1024, Delimiters.lineDelimiter());
-		pipeline.addLast("framer", frameDecoder);
+		pipeline.addLast("framer", new LineFrameDecoder(m_maxLineLength));
+		pipeline.addLast("putDecoder", new PutDecoder(m_dictionary));
 		pipeline.addLast("decoder", new WordSplitter());
+		// Lines are decoded on the I/O threads and written on the handler threads
+		pipeline.addLast("executor", m_executionHandler);
+		pipeline.addLast("batcher", new PutBatcher(m_putCommand, m_maxBatchSize));
 		pipeline.addLast("encoder", new StringEncoder());
 
 		// and then business logic.
@@ -73,7 +194,11 @@ public class TelnetServer extends SimpleChannelUpstreamHandler implements Channe
 		try
 		{
 			final Object message = msgevent.getMessage();
-			if (message instanceof String[])
+			if (message instanceof DataPointSet)
+			{
+				m_putCommand.put(msgevent.getChannel(), (DataPointSet) message);
+			}
+			else if (message instanceof String[])
 			{
 				String[] command = (String[])message;
 				TelnetCommand telnetCommand = m_commands.getCommand(command[0]);
@@ -107,25 +232,92 @@ public class TelnetServer extends SimpleChannelUpstreamHandler implements Channe
 	@Override
 	public void start() throws KariosDBException
 	{
+		m_executor = new IngestExecutor("telnet-handler-%d", m_handlerThreads, m_maxChannelQueuedBytes, m_maxQueuedBytes);
+		m_executionHandler = new ExecutionHandler(m_executor);
+
 		// Configure the server.
-		ServerBootstrap bootstrap = new ServerBootstrap(
+		m_bootstrap = new ServerBootstrap(
 				new NioServerSocketChannelFactory(
-						Executors.newCachedThreadPool(),
-						Executors.newCachedThreadPool()));
+						Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+								.setNameFormat("telnet-boss-%d").build()),
+						m_bossThreads,
+						Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+								.setNameFormat("telnet-worker-%d").build()),
+						m_workerThreads));
 
 		// Configure the pipeline factory.
-		bootstrap.setPipelineFactory(this);
-		bootstrap.setOption("child.tcpNoDelay", true);
-		bootstrap.setOption("child.keepAlive", true);
-		bootstrap.setOption("reuseAddress", true);
+		m_bootstrap.setPipelineFactory(this);
+		m_bootstrap.setOption("child.tcpNoDelay", true);
+		m_bootstrap.setOption("child.keepAlive", true);
+		m_bootstrap.setOption("reuseAddress", true);
 
 		// Bind and start to accept incoming connections.
-		bootstrap.bind(new InetSocketAddress(m_port));
+		m_serverChannel = m_bootstrap.bind(new InetSocketAddress(m_port));
 	}
 
+	/**
+	 Stops accepting connections, closes the open ones and waits for the lines
+	 already read from them to be written before releasing the threads.
+	 */
 	@Override
 	public void stop()
 	{
+		if (m_bootstrap == null)
+			return;
+
+		m_serverChannel.close().awaitUninterruptibly();
+		m_channels.close().awaitUninterruptibly();
+
+		try
+		{
+			if (!m_executor.awaitDrained(m_shutdownTimeout))
+				logger.warn("Telnet server stopped with " + m_executor.getQueueSize() + " events not written");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		m_executionHandler.releaseExternalResources();
+		m_bootstrap.releaseExternalResources();
+		m_bootstrap = null;
+	}
 
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		ret.add(newDataPointSet(CONNECTIONS_METRIC_NAME, now, m_channels.size()));
+		ret.add(newDataPointSet(CONNECTIONS_ACCEPTED_METRIC_NAME, now, m_accepted.getAndSet(0)));
+		ret.add(newDataPointSet(QUEUE_SIZE_METRIC_NAME, now,
+				m_executor == null ? 0 : m_executor.getQueueSize()));
+
+		return (ret);
+	}
+
+	private DataPointSet newDataPointSet(String metricName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
+	//===========================================================================
+	/**
+	 Keeps the open connections so they can be counted and closed on stop.
+	 */
+	@ChannelHandler.Sharable
+	private class ConnectionTracker extends SimpleChannelUpstreamHandler
+	{
+		@Override
+		public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+		{
+			m_channels.add(e.getChannel());
+			m_accepted.incrementAndGet();
+			super.channelOpen(ctx, e);
+		}
 	}
 }
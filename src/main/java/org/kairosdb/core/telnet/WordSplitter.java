@@ -39,6 +39,10 @@ public class WordSplitter extends OneToOneDecoder
 			final Channel channel,
 			final Object msg) throws Exception
 	{
+		//Puts already decoded by PutDecoder pass through
+		if (!(msg instanceof ChannelBuffer))
+			return (msg);
+
 		return splitString(((ChannelBuffer) msg).toString(CHARSET), ' ');
 	}
 
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Additive increase, multiplicative decrease limit.  The limit grows by a fixed
+ step while Cassandra keeps up and is cut by a factor when it does not, so it
+ settles just under what Cassandra can take.
+ */
+public class AimdLimit
+{
+	private final int m_min;
+	private final int m_max;
+	private final int m_increase;
+	private final double m_decreaseFactor;
+	private volatile int m_limit;
+
+	public AimdLimit(int min, int max, int increase, double decreaseFactor)
+	{
+		checkArgument(min > 0 && min <= max, "Limit minimum must be between 1 and the maximum");
+		checkArgument(decreaseFactor > 0.0 && decreaseFactor < 1.0, "Decrease factor must be between 0 and 1");
+
+		m_min = min;
+		m_max = max;
+		m_increase = increase;
+		m_decreaseFactor = decreaseFactor;
+		m_limit = max;
+	}
+
+	public int get()
+	{
+		return (m_limit);
+	}
+
+	public int getMax()
+	{
+		return (m_max);
+	}
+
+	public synchronized int increase()
+	{
+		m_limit = Math.min(m_max, m_limit + m_increase);
+		return (m_limit);
+	}
+
+	public synchronized int decrease()
+	{
+		m_limit = Math.max(m_min, (int) (m_limit * m_decreaseFactor));
+		return (m_limit);
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.IntegerSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.ColumnSliceIterator;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
+import org.kairosdb.core.DataPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.*;
+
+/**
+ Stores closed time windows of data point rows as compressed blocks.  Each
+ row of the data points column family has a row with the same key in the
+ blocks column family, the column name is the offset of the window from the
+ row time and the value is a DataPointBlock.
+
+ Points are always written as single columns.  A background compaction moves
+ the columns of windows that are older than the compaction delay into
+ blocks, a window is compacted once so points that arrive for it later stay
+ as columns.  Readers merge both layouts, a column replaces a block point of
+ the same type and timestamp as it is the later write.
+ */
+public class BlockStore
+{
+	public static final Logger logger = LoggerFactory.getLogger(BlockStore.class);
+
+	public static final String WIDTH_COLUMN = "width";
+	public static final String COMPACTED_TIME_COLUMN = "compacted_time";
+
+	private final Keyspace m_keyspace;
+	private final String m_cfName;
+	private final long m_width;
+	private final long m_compactionDelay;
+	private final int m_readSize;
+	private final RowWidthRules m_rowWidths;
+	private volatile long m_compactedTime;
+
+	/**
+	 @param width Width of a block in milliseconds
+	 @param compactionDelay How long after a window ends it is compacted
+	 @param compactedTime Time up to which windows have been compacted
+	 */
+	public BlockStore(Keyspace keyspace, String cfName, long width, long compactionDelay,
+			long compactedTime, int readSize, RowWidthRules rowWidths)
+	{
+		m_keyspace = keyspace;
+		m_cfName = cfName;
+		m_width = width;
+		m_compactionDelay = compactionDelay;
+		m_compactedTime = compactedTime;
+		m_readSize = readSize;
+		m_rowWidths = rowWidths;
+	}
+
+	public long getWidth()
+	{
+		return (m_width);
+	}
+
+	public long getCompactedTime()
+	{
+		return (m_compactedTime);
+	}
+
+	private int getWindowOffset(long rowTime, long timestamp)
+	{
+		long offset = timestamp - rowTime;
+		return ((int) (offset - (offset % m_width)));
+	}
+
+	/**
+	 Compacts everything up to the last block boundary that is more than the
+	 compaction delay old.  Progress is saved after each ROW_WIDTH of time so
+	 an interrupted compaction picks up where it stopped.
+	 */
+	public synchronized void compact(Iterable<String> metricNames, long now)
+	{
+		long closedTime = now - m_compactionDelay;
+		long to = closedTime - (closedTime % m_width);
+		long pointCount = 0;
+		long blockCount = 0;
+
+		while (m_compactedTime < to)
+		{
+			long from = m_compactedTime;
+			long chunkEnd = Math.min(to, from + ROW_WIDTH);
+
+			for (String metricName : metricNames)
+			{
+				for (DataPointsRowKey rowKey : getRowKeys(metricName, from, chunkEnd))
+				{
+					long[] counts = compactRow(rowKey, Math.max(from, rowKey.getTimestamp()),
+							Math.min(chunkEnd, rowKey.getTimestamp() + rowKey.getRowWidth()), now);
+					pointCount += counts[0];
+					blockCount += counts[1];
+				}
+			}
+
+			saveCompactedTime(chunkEnd);
+		}
+
+		if (blockCount != 0)
+			logger.info("Compacted " + pointCount + " data points into " + blockCount + " blocks");
+	}
+
+	/**
+	 Returns the row keys of the metric with points between from and to,
+	 not including to.
+	 */
+	private List<DataPointsRowKey> getRowKeys(String metricName, long from, long to)
+	{
+		SliceQuery<String, DataPointsRowKey, String> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(),
+						DATA_POINTS_ROW_KEY_SERIALIZER, StringSerializer.get());
+		sliceQuery.setColumnFamily(CF_ROW_KEY_INDEX)
+				.setKey(metricName);
+
+		ColumnSliceIterator<String, DataPointsRowKey, String> iterator =
+				new ColumnSliceIterator<String, DataPointsRowKey, String>(sliceQuery,
+						new DataPointsRowKey(metricName, Math.max(0L, from - m_rowWidths.getMaxRowWidth() + 1)),
+						new DataPointsRowKey(metricName, to), false, m_readSize);
+
+		List<DataPointsRowKey> rowKeys = new ArrayList<DataPointsRowKey>();
+		while (iterator.hasNext())
+		{
+			DataPointsRowKey rowKey = iterator.next().getName();
+			if (rowKey.overlaps(from, to - 1))
+				rowKeys.add(rowKey);
+		}
+
+		return (rowKeys);
+	}
+
+	/**
+	 Moves the columns of the row between from and to into blocks.  Each block
+	 is written in the same batch as the deletes of its columns.  A window
+	 can be compacted in two parts if it straddles the end of a compaction,
+	 the second part is merged into the block written by the first.
+	 @return the number of points and blocks written
+	 */
+	private long[] compactRow(DataPointsRowKey rowKey, long from, long to, long now)
+	{
+		long rowTime = rowKey.getTimestamp();
+
+		SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+		sliceQuery.setColumnFamily(CF_DATA_POINTS)
+				.setKey(rowKey);
+
+		ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer> iterator =
+				new ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer>(sliceQuery,
+						getColumnName(rowTime, from, true), getColumnName(rowTime, to - 1, false),
+						false, m_readSize);
+
+		long[] counts = new long[2];
+		int windowOffset = -1;
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		List<HColumn<Integer, ByteBuffer>> columns = new ArrayList<HColumn<Integer, ByteBuffer>>();
+
+		while (iterator.hasNext())
+		{
+			HColumn<Integer, ByteBuffer> column = iterator.next();
+			long timestamp = getColumnTimestamp(rowTime, column.getName());
+			int offset = getWindowOffset(rowTime, timestamp);
+
+			if (offset != windowOffset && !dataPoints.isEmpty())
+			{
+				writeBlock(rowKey, windowOffset, dataPoints, columns, now);
+				counts[0] += dataPoints.size();
+				counts[1]++;
+				dataPoints.clear();
+				columns.clear();
+			}
+
+			windowOffset = offset;
+			columns.add(column);
+			if (isLongValue(column.getName()))
+				dataPoints.add(new DataPoint(timestamp, ValueSerializer.getLongFromByteBuffer(column.getValue())));
+			else
+				dataPoints.add(new DataPoint(timestamp, ValueSerializer.getDoubleFromByteBuffer(column.getValue())));
+		}
+
+		if (!dataPoints.isEmpty())
+		{
+			writeBlock(rowKey, windowOffset, dataPoints, columns, now);
+			counts[0] += dataPoints.size();
+			counts[1]++;
+		}
+
+		return (counts);
+	}
+
+	/**
+	 The columns are deleted with the timestamps they were read with so a
+	 point written again while the window is being compacted is kept.
+	 */
+	private void writeBlock(DataPointsRowKey rowKey, int windowOffset, List<DataPoint> dataPoints,
+			List<HColumn<Integer, ByteBuffer>> columns, long now)
+	{
+		HColumn<Integer, ByteBuffer> existing = HFactory.createColumnQuery(m_keyspace,
+				DATA_POINTS_ROW_KEY_SERIALIZER, IntegerSerializer.get(), ByteBufferSerializer.get())
+				.setColumnFamily(m_cfName).setKey(rowKey).setName(windowOffset).execute().get();
+
+		if (existing != null)
+			dataPoints = merge(DataPointBlock.decode(existing.getValue()), dataPoints);
+
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
+
+		mutator.addInsertion(rowKey, m_cfName, HFactory.createColumn(windowOffset,
+				DataPointBlock.encode(dataPoints), now, IntegerSerializer.get(), ByteBufferSerializer.get()));
+
+		for (HColumn<Integer, ByteBuffer> column : columns)
+			mutator.addDeletion(rowKey, CF_DATA_POINTS, column.getName(), IntegerSerializer.get(), column.getClock());
+
+		mutator.execute();
+	}
+
+	/**
+	 Merges two sorted lists of points, a point in added replaces a point of
+	 the same type and timestamp in existing.
+	 */
+	/*package*/ static List<DataPoint> merge(List<DataPoint> existing, List<DataPoint> added)
+	{
+		List<DataPoint> ret = new ArrayList<DataPoint>(existing.size() + added.size());
+		int I = 0;
+		int J = 0;
+		while (I < existing.size() || J < added.size())
+		{
+			if (J == added.size())
+				ret.add(existing.get(I++));
+			else if (I == existing.size())
+				ret.add(added.get(J++));
+			else
+			{
+				DataPoint old = existing.get(I);
+				DataPoint dataPoint = added.get(J);
+				if (old.getTimestamp() < dataPoint.getTimestamp())
+					ret.add(existing.get(I++));
+				else if (old.getTimestamp() > dataPoint.getTimestamp())
+					ret.add(added.get(J++));
+				else
+				{
+					if (old.isInteger() == dataPoint.isInteger())
+						I++;
+					ret.add(added.get(J++));
+				}
+			}
+		}
+
+		return (ret);
+	}
+
+	/**
+	 Returns the points of a block that have no column in the row.  A point
+	 written again after its window was compacted stays a column and the
+	 block keeps the old value.
+	 @param columnNames Sorted names of the columns read for the row
+	 */
+	/*package*/ static List<DataPoint> removeColumns(List<DataPoint> dataPoints, long rowTime, int[] columnNames)
+	{
+		if (columnNames.length == 0)
+			return (dataPoints);
+
+		List<DataPoint> ret = new ArrayList<DataPoint>(dataPoints.size());
+		for (DataPoint dataPoint : dataPoints)
+		{
+			int columnName = getColumnName(rowTime, dataPoint.getTimestamp(), dataPoint.isInteger());
+			if (Arrays.binarySearch(columnNames, columnName) < 0)
+				ret.add(dataPoint);
+		}
+
+		return (ret);
+	}
+
+	private void saveCompactedTime(long compactedTime)
+	{
+		HFactory.createMutator(m_keyspace, StringSerializer.get()).insert(ROW_KEY_BLOCK_STORAGE,
+				CF_STRING_INDEX, HFactory.createStringColumn(COMPACTED_TIME_COLUMN, String.valueOf(compactedTime)));
+
+		m_compactedTime = compactedTime;
+	}
+
+	/**
+	 Reads the points of the blocks for the rows that fall between startTime
+	 and endTime.  All the row keys must be for the same row time and width.
+	 @return the points of each block keyed by row
+	 */
+	public ListMultimap<DataPointsRowKey, List<DataPoint>> readBlocks(List<DataPointsRowKey> rowKeys, long startTime, long endTime)
+	{
+		long rowTime = rowKeys.get(0).getTimestamp();
+		long rowWidth = rowKeys.get(0).getRowWidth();
+		int startOffset = getWindowOffset(rowTime, Math.max(startTime, rowTime));
+		int endOffset = (int) Math.min(rowWidth - 1, endTime - rowTime);
+
+		MultigetSliceQuery<DataPointsRowKey, Integer, ByteBuffer> msliceQuery =
+				HFactory.createMultigetSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+
+		msliceQuery.setColumnFamily(m_cfName);
+		msliceQuery.setKeys(rowKeys);
+		msliceQuery.setRange(startOffset, endOffset, false, (int) (rowWidth / m_width) + 1);
+
+		ListMultimap<DataPointsRowKey, List<DataPoint>> ret = ArrayListMultimap.create();
+		for (Row<DataPointsRowKey, Integer, ByteBuffer> row : msliceQuery.execute().get())
+		{
+			for (HColumn<Integer, ByteBuffer> column : row.getColumnSlice().getColumns())
+			{
+				List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+				for (DataPoint dataPoint : DataPointBlock.decode(column.getValue()))
+				{
+					if (dataPoint.getTimestamp() >= startTime && dataPoint.getTimestamp() <= endTime)
+						dataPoints.add(dataPoint);
+				}
+
+				if (!dataPoints.isEmpty())
+					ret.put(row.getKey(), dataPoints);
+			}
+		}
+
+		return (ret);
+	}
+
+	public void deleteRow(DataPointsRowKey rowKey, long now)
+	{
+		HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER).addDeletion(rowKey, m_cfName, now).execute();
+	}
+
+	/**
+	 Removes the points between startTime and endTime from the blocks of the
+	 row.  Blocks that end up empty are deleted.
+	 */
+	public void deletePoints(DataPointsRowKey rowKey, long startTime, long endTime, long now)
+	{
+		long rowTime = rowKey.getTimestamp();
+		long rowWidth = rowKey.getRowWidth();
+		int startOffset = getWindowOffset(rowTime, Math.max(startTime, rowTime));
+		int endOffset = (int) Math.min(rowWidth - 1, endTime - rowTime);
+
+		SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+		sliceQuery.setColumnFamily(m_cfName)
+				.setKey(rowKey)
+				.setRange(startOffset, endOffset, false, (int) (rowWidth / m_width) + 1);
+
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
+		for (HColumn<Integer, ByteBuffer> column : sliceQuery.execute().get().getColumns())
+		{
+			List<DataPoint> remaining = new ArrayList<DataPoint>();
+			for (DataPoint dataPoint : DataPointBlock.decode(column.getValue()))
+			{
+				if (dataPoint.getTimestamp() < startTime || dataPoint.getTimestamp() > endTime)
+					remaining.add(dataPoint);
+			}
+
+			if (remaining.isEmpty())
+				mutator.addDeletion(rowKey, m_cfName, column.getName(), IntegerSerializer.get(), now);
+			else
+			{
+				mutator.addInsertion(rowKey, m_cfName, HFactory.createColumn(column.getName(),
+						DataPointBlock.encode(remaining), now, IntegerSerializer.get(), ByteBufferSerializer.get()));
+			}
+		}
+
+		mutator.execute();
+	}
+}
@@ -17,7 +17,8 @@ package org.kairosdb.datastore.cassandra;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.SetMultimap;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
@@ -28,11 +29,14 @@ import me.prettyprint.cassandra.service.ColumnSliceIterator;
 import me.prettyprint.cassandra.service.ThriftKsDef;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.CountQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
 import org.kairosdb.core.DataPoint;
@@ -41,24 +45,43 @@ import org.kairosdb.core.datastore.CachedSearchResult;
 import org.kairosdb.core.datastore.DataPointRow;
 import org.kairosdb.core.datastore.Datastore;
 import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.QueryCostEstimator;
+import org.kairosdb.core.datastore.QueryDeadline;
+import org.kairosdb.core.datastore.SheddingDatastore;
+import org.kairosdb.core.exception.DatastoreBusyException;
 import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class CassandraDatastore implements Datastore
+public class CassandraDatastore implements Datastore, SheddingDatastore, QueryCostEstimator, KairosMetricReporter
 {
 	public static final Logger logger = LoggerFactory.getLogger(CassandraDatastore.class);
 
 	public static final int ROW_KEY_CACHE_SIZE = 1024;
 	public static final int STRING_CACHE_SIZE = 1024;
+	public static final String ROW_KEY_CACHE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.row_key_cache_size";
+	public static final String STRING_CACHE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.string_cache_size";
+	public static final String TAG_INDEX_PROPERTY = "kairosdb.datastore.cassandra.tag_index";
+	public static final String TAG_INDEX_SCAN_THRESHOLD_PROPERTY = "kairosdb.datastore.cassandra.tag_index_scan_threshold";
+	public static final String BLOCK_STORAGE_PROPERTY = "kairosdb.datastore.cassandra.block_storage";
+	public static final String BLOCK_WIDTH_PROPERTY = "kairosdb.datastore.cassandra.block_width";
+	public static final String BLOCK_COMPACTION_DELAY_PROPERTY = "kairosdb.datastore.cassandra.block_compaction_delay";
+	public static final String ROW_KEY_WARMUP_PROPERTY = "kairosdb.datastore.cassandra.row_key_warmup";
+	public static final String ROW_KEY_WARMUP_FPP_PROPERTY = "kairosdb.datastore.cassandra.row_key_warmup_false_positive_probability";
+	public static final String LENGTH_PREFIXED_ROW_KEYS_PROPERTY = "kairosdb.datastore.cassandra.length_prefixed_row_keys";
+	public static final String VARINT_DOUBLES_PROPERTY = "kairosdb.datastore.cassandra.varint_doubles";
 
 	public static final int LONG_FLAG = 0x0;
 	public static final int FLOAT_FLAG = 0x1;
@@ -68,30 +91,81 @@ public class CassandraDatastore implements Datastore
 	public static final String HOST_LIST_PROPERTY = "kairosdb.datastore.cassandra.host_list";
 	public static final String REPLICATION_FACTOR_PROPERTY = "kairosdb.datastore.cassandra.replication_factor";
 	public static final long ROW_WIDTH = 1814400000L; //3 Weeks wide
+	public static final String ROW_WIDTH_RULES_PROPERTY = "kairosdb.datastore.cassandra.row_width_rules";
 	public static final String WRITE_DELAY_PROPERTY = "kairosdb.datastore.cassandra.write_delay";
 	public static final String WRITE_BUFFER_SIZE = "kairosdb.datastore.cassandra.write_buffer_max_size";
+	public static final String WRITE_FLUSH_THREADS_PROPERTY = "kairosdb.datastore.cassandra.write_flush_threads";
+	public static final String WRITE_FLUSH_SIZE_PROPERTY = "kairosdb.datastore.cassandra.write_flush_size";
+	public static final String WRITE_BATCH_SIZE_PROPERTY = "kairosdb.datastore.cassandra.write_batch_size";
+	public static final String WRITE_BATCH_TARGET_LATENCY_PROPERTY = "kairosdb.datastore.cassandra.write_batch_target_latency";
 	public static final String SINGLE_ROW_READ_SIZE_PROPERTY = "kairosdb.datastore.cassandra.single_row_read_size";
 	public static final String MULTI_ROW_READ_SIZE_PROPERTY = "kairosdb.datastore.cassandra.multi_row_read_size";
 	public static final String MULTI_ROW_SIZE_PROPERTY = "kairosdb.datastore.cassandra.multi_row_size";
+	public static final String QUERY_THREADS_PROPERTY = "kairosdb.datastore.cassandra.query_threads";
+	public static final String QUERY_QUEUE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.query_queue_size";
+	public static final String QUERY_SLICE_THREADS_PROPERTY = "kairosdb.datastore.cassandra.query_slice_threads";
+	public static final String QUERY_MAX_IN_FLIGHT_SLICES_PROPERTY = "kairosdb.datastore.cassandra.query_max_in_flight_slices";
+	public static final String COMMIT_LOG_DIRECTORY_PROPERTY = "kairosdb.datastore.cassandra.commit_log_directory";
+	public static final String COMMIT_LOG_SEGMENT_SIZE_PROPERTY = "kairosdb.datastore.cassandra.commit_log_segment_size";
+
+	public static final int DEFAULT_QUERY_THREADS = 10;
+	public static final int DEFAULT_QUERY_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_QUERY_SLICE_THREADS = 20;
+	public static final int DEFAULT_QUERY_MAX_IN_FLIGHT_SLICES = 8;
+
+	public static final String QUERY_FAN_OUT_METRIC_NAME = "kairosdb.datastore.cassandra.query_fan_out";
+	public static final String QUERY_WAIT_TIME_METRIC_NAME = "kairosdb.datastore.cassandra.query_wait_time";
+	public static final String WRITE_SIZE_METRIC_NAME = "kairosdb.datastore.write_size";
+	public static final String WRITE_BATCH_SIZE_METRIC_NAME = "kairosdb.datastore.write_batch_size";
+	public static final String WRITE_BATCH_LATENCY_METRIC_NAME = "kairosdb.datastore.write_batch_latency";
+	public static final String WRITE_BATCH_THROUGHPUT_METRIC_NAME = "kairosdb.datastore.write_batch_throughput";
+	public static final String SHED_DATA_POINTS_METRIC_NAME = "kairosdb.datastore.shed_data_points";
+	public static final String ROW_KEY_WARMUP_TIME_METRIC_NAME = "kairosdb.datastore.cassandra.row_key_warmup_time";
+	public static final String ROW_KEY_WARMUP_KEYS_METRIC_NAME = "kairosdb.datastore.cassandra.row_key_warmup_keys";
+	public static final String ROW_KEY_FILTER_VERIFIED_METRIC_NAME = "kairosdb.datastore.cassandra.row_key_filter_verified";
+	public static final String ROW_KEY_FILTER_FALSE_POSITIVES_METRIC_NAME = "kairosdb.datastore.cassandra.row_key_filter_false_positives";
 
 	public static final String KEYSPACE = "kairosdb";
 	public static final String CF_DATA_POINTS = "data_points";
 	public static final String CF_ROW_KEY_INDEX = "row_key_index";
 	public static final String CF_STRING_INDEX = "string_index";
+	public static final String CF_TAG_INDEX = "tag_index";
+	public static final String CF_DATA_POINT_BLOCKS = "data_point_blocks";
 
 	public static final String ROW_KEY_METRIC_NAMES = "metric_names";
 	public static final String ROW_KEY_TAG_NAMES = "tag_names";
 	public static final String ROW_KEY_TAG_VALUES = "tag_values";
+	public static final String ROW_KEY_TAG_INDEX_START = "tag_index_start";
+	public static final String ROW_KEY_BLOCK_STORAGE = "block_storage";
 
 
 	private Cluster m_cluster;
 	private Keyspace m_keyspace;
+	private String m_hostname;
+	private ExecutorService m_queryExecutor;
+	private ExecutorService m_sliceExecutor;
+	private int m_maxInFlightSlices = DEFAULT_QUERY_MAX_IN_FLIGHT_SLICES;
+	private CommitLog m_commitLog;
+	private RowKeyFilter m_rowKeyFilter;
+	private int m_retryAfter;
+	private AtomicLong m_shedDataPoints = new AtomicLong();
+	private RowWidthRules m_rowWidths;
 	private int m_singleRowReadSize;
 	private int m_multiRowSize;
 	private int m_multiRowReadSize;
 	private WriteBuffer<DataPointsRowKey, Integer, ByteBuffer> m_dataPointWriteBuffer;
 	private WriteBuffer<String, DataPointsRowKey, String> m_rowKeyWriteBuffer;
 	private WriteBuffer<String, String, String> m_stringIndexWriteBuffer;
+	private WriteBuffer<ByteBuffer, DataPointsRowKey, String> m_tagIndexWriteBuffer;
+	private TagIndex m_tagIndex;
+	private BlockStore m_blockStore;
+	private boolean m_blockCompaction = false;
+	private boolean m_lengthPrefixedRowKeys = false;
+	private boolean m_varintDoubles = false;
+
+	//Row keys found while estimating a query, reused when the query runs
+	private final Map<DatastoreMetricQuery, ListMultimap<Long, DataPointsRowKey>> m_estimatedKeys =
+			new MapMaker().weakKeys().makeMap();
 
 	private DataCache<DataPointsRowKey> m_rowKeyCache = new DataCache<DataPointsRowKey>(ROW_KEY_CACHE_SIZE);
 	private DataCache<String> m_metricNameCache = new DataCache<String>(STRING_CACHE_SIZE);
@@ -108,13 +182,24 @@ public class CassandraDatastore implements Datastore
 	                          @Named(MULTI_ROW_READ_SIZE_PROPERTY) int multiRowReadSize,
 	                          @Named(WRITE_DELAY_PROPERTY) int writeDelay,
 	                          @Named(WRITE_BUFFER_SIZE) int maxWriteSize,
+	                          @Named(WRITE_FLUSH_THREADS_PROPERTY) int flushThreads,
+	                          @Named(WRITE_FLUSH_SIZE_PROPERTY) int flushSize,
+	                          @Named(WRITE_BATCH_SIZE_PROPERTY) int batchSize,
+	                          @Named(WRITE_BATCH_TARGET_LATENCY_PROPERTY) int targetLatency,
+	                          @Named(ROW_WIDTH_RULES_PROPERTY) String rowWidthRules,
 	                          final @Named("HOSTNAME") String hostname) throws DatastoreException
 	{
 		try
 		{
+			m_rowWidths = new RowWidthRules(rowWidthRules);
 			m_singleRowReadSize = singleRowReadSize;
 			m_multiRowSize = multiRowSize;
 			m_multiRowReadSize = multiRowReadSize;
+			m_hostname = hostname;
+			//Clients are told to come back once the buffers have had a chance to flush
+			m_retryAfter = Math.max(1, (writeDelay + 999) / 1000);
+			m_queryExecutor = createQueryExecutor("cassandra-query-%d", DEFAULT_QUERY_THREADS, DEFAULT_QUERY_QUEUE_SIZE);
+			m_sliceExecutor = createQueryExecutor("cassandra-slice-%d", DEFAULT_QUERY_SLICE_THREADS, DEFAULT_QUERY_QUEUE_SIZE);
 
 			CassandraHostConfigurator hostConfig = new CassandraHostConfigurator(cassandraHostList);
 			//TODO: fine tune the hostConfig
@@ -129,62 +214,286 @@ public class CassandraDatastore implements Datastore
 
 			m_keyspace = HFactory.createKeyspace(KEYSPACE, m_cluster);
 
-			ReentrantLock mutatorLock = new ReentrantLock();
-			Condition lockCondition = mutatorLock.newCondition();
-
 			m_dataPointWriteBuffer = new WriteBuffer<DataPointsRowKey, Integer, ByteBuffer>(
 					m_keyspace, CF_DATA_POINTS, writeDelay, maxWriteSize,
 					DATA_POINTS_ROW_KEY_SERIALIZER,
 					IntegerSerializer.get(),
 					ByteBufferSerializer.get(),
-					new WriteBufferStats()
-					{
-						@Override
-						public void saveWriteSize(int pendingWrites)
-						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_DATA_POINTS);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
-						}
-					}, mutatorLock, lockCondition);
+					new BufferStats(CF_DATA_POINTS),
+					flushThreads, flushSize, batchSize, targetLatency);
 
 			m_rowKeyWriteBuffer = new WriteBuffer<String, DataPointsRowKey, String>(
 					m_keyspace, CF_ROW_KEY_INDEX, writeDelay, maxWriteSize,
 					StringSerializer.get(),
 					DATA_POINTS_ROW_KEY_SERIALIZER,
 					StringSerializer.get(),
-					new WriteBufferStats()
-					{
-						@Override
-						public void saveWriteSize(int pendingWrites)
-						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_ROW_KEY_INDEX);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
-						}
-					}, mutatorLock, lockCondition);
+					new BufferStats(CF_ROW_KEY_INDEX),
+					flushThreads, flushSize, batchSize, targetLatency);
 
 			m_stringIndexWriteBuffer = new WriteBuffer<String, String, String>(
 					m_keyspace, CF_STRING_INDEX, writeDelay, maxWriteSize,
 					StringSerializer.get(),
 					StringSerializer.get(),
 					StringSerializer.get(),
-					new WriteBufferStats()
+					new BufferStats(CF_STRING_INDEX),
+					flushThreads, flushSize, batchSize, targetLatency);
+
+			m_tagIndexWriteBuffer = new WriteBuffer<ByteBuffer, DataPointsRowKey, String>(
+					m_keyspace, CF_TAG_INDEX, writeDelay, maxWriteSize,
+					ByteBufferSerializer.get(),
+					DATA_POINTS_ROW_KEY_SERIALIZER,
+					StringSerializer.get(),
+					new BufferStats(CF_TAG_INDEX),
+					flushThreads, flushSize, batchSize, targetLatency);
+		}
+		catch (HectorException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Sets the size of the thread pool used to run the row key chunks of a query
+	 in parallel.  When the queue is full the querying thread runs the chunk
+	 itself so the number of outstanding chunks stays bounded.
+	 */
+	@Inject(optional = true)
+	public void setQueryThreads(@Named(QUERY_THREADS_PROPERTY) int queryThreads,
+	                            @Named(QUERY_QUEUE_SIZE_PROPERTY) int queryQueueSize)
+	{
+		ExecutorService oldExecutor = m_queryExecutor;
+		m_queryExecutor = createQueryExecutor("cassandra-query-%d", queryThreads, queryQueueSize);
+		oldExecutor.shutdown();
+	}
+
+	/**
+	 Sets the thread pool used to page wide rows after the initial multi get
+	 and the number of slices a single query may have in flight at once.
+	 */
+	@Inject(optional = true)
+	public void setSliceThreads(@Named(QUERY_SLICE_THREADS_PROPERTY) int sliceThreads,
+	                            @Named(QUERY_MAX_IN_FLIGHT_SLICES_PROPERTY) int maxInFlightSlices)
+	{
+		checkArgument(maxInFlightSlices > 0, "Max in flight slices must be greater than zero");
+
+		ExecutorService oldExecutor = m_sliceExecutor;
+		m_sliceExecutor = createQueryExecutor("cassandra-slice-%d", sliceThreads, DEFAULT_QUERY_QUEUE_SIZE);
+		m_maxInFlightSlices = maxInFlightSlices;
+		oldExecutor.shutdown();
+	}
+
+	private static ExecutorService createQueryExecutor(String nameFormat, int threads, int queueSize)
+	{
+		checkArgument(threads > 0, "Query threads must be greater than zero");
+		checkArgument(queueSize > 0, "Query queue size must be greater than zero");
+
+		return (new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+				new ThreadPoolExecutor.CallerRunsPolicy()));
+	}
+
+	/**
+	 Sets the number of entries kept in the caches used to skip rewriting the
+	 row key and string indexes.  The row key cache should be large enough to
+	 hold every active series.
+	 */
+	@Inject(optional = true)
+	public void setCacheSizes(@Named(ROW_KEY_CACHE_SIZE_PROPERTY) int rowKeyCacheSize,
+	                          @Named(STRING_CACHE_SIZE_PROPERTY) int stringCacheSize)
+	{
+		m_rowKeyCache = new DataCache<DataPointsRowKey>(rowKeyCacheSize);
+		m_metricNameCache = new DataCache<String>(stringCacheSize);
+		m_tagNameCache = new DataCache<String>(stringCacheSize);
+		m_tagValueCache = new DataCache<String>(stringCacheSize);
+	}
+
+	/**
+	 Writes the tags of new row keys length prefixed.  Versions that only
+	 know the "name=value:" format read those keys without tags, so this is
+	 only turned on once every node reads both formats.
+	 */
+	@Inject(optional = true)
+	public void setLengthPrefixedRowKeys(@Named(LENGTH_PREFIXED_ROW_KEYS_PROPERTY) boolean enabled)
+	{
+		m_lengthPrefixedRowKeys = enabled;
+	}
+
+	/**
+	 Writes whole double values as a varint.  Versions that do not know the
+	 varint form cannot read those values, so this is only turned on once
+	 every node reads it.
+	 */
+	@Inject(optional = true)
+	public void setVarintDoubles(@Named(VARINT_DOUBLES_PROPERTY) boolean enabled)
+	{
+		m_varintDoubles = enabled;
+	}
+
+	/**
+	 Turns on the tag index.  The first time it is turned on it only covers
+	 the row times after the current one, the current row time already has
+	 keys that were not added to it.  The start is shared by all nodes so
+	 every node that writes must turn the index on before it is reached.
+	 */
+	@Inject(optional = true)
+	public void setTagIndex(@Named(TAG_INDEX_PROPERTY) boolean enabled,
+	                        @Named(TAG_INDEX_SCAN_THRESHOLD_PROPERTY) int scanThreshold) throws DatastoreException
+	{
+		if (!enabled)
+			return;
+
+		checkArgument(scanThreshold > 0, "Tag index scan threshold must be greater than zero");
+
+		try
+		{
+			addColumnFamilyIfMissing(CF_TAG_INDEX);
+
+			//The start time is kept as the only column of its string index row
+			SliceQuery<String, String, String> sliceQuery =
+					HFactory.createSliceQuery(m_keyspace, StringSerializer.get(), StringSerializer.get(),
+							StringSerializer.get());
+			sliceQuery.setColumnFamily(CF_STRING_INDEX)
+					.setKey(ROW_KEY_TAG_INDEX_START)
+					.setRange("", "", false, 1);
+
+			List<HColumn<String, String>> columns = sliceQuery.execute().get().getColumns();
+
+			long startTime;
+			if (columns.isEmpty())
+			{
+				startTime = calculateRowTime(System.currentTimeMillis()) + ROW_WIDTH;
+				HFactory.createMutator(m_keyspace, StringSerializer.get()).insert(ROW_KEY_TAG_INDEX_START,
+						CF_STRING_INDEX, HFactory.createStringColumn(String.valueOf(startTime), ""));
+			}
+			else
+				startTime = Long.parseLong(columns.get(0).getName());
+
+			m_tagIndex = new TagIndex(m_keyspace, CF_TAG_INDEX, m_tagIndexWriteBuffer,
+					startTime, scanThreshold, m_singleRowReadSize);
+		}
+		catch (HectorException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Turns on compaction of closed time windows into compressed blocks.  The
+	 block width is saved the first time and kept after that, existing
+	 blocks are still read after compaction is turned off.
+	 */
+	@Inject(optional = true)
+	public void setBlockStorage(@Named(BLOCK_STORAGE_PROPERTY) boolean enabled,
+	                            @Named(BLOCK_WIDTH_PROPERTY) long width,
+	                            @Named(BLOCK_COMPACTION_DELAY_PROPERTY) long compactionDelay) throws DatastoreException
+	{
+		checkArgument(width > 0 && width <= ROW_WIDTH, "Block width must be greater than zero and at most the row width");
+		checkArgument(compactionDelay >= 0, "Block compaction delay must not be negative");
+
+		try
+		{
+			SliceQuery<String, String, String> sliceQuery =
+					HFactory.createSliceQuery(m_keyspace, StringSerializer.get(), StringSerializer.get(),
+							StringSerializer.get());
+			sliceQuery.setColumnFamily(CF_STRING_INDEX)
+					.setKey(ROW_KEY_BLOCK_STORAGE)
+					.setColumnNames(BlockStore.WIDTH_COLUMN, BlockStore.COMPACTED_TIME_COLUMN);
+
+			ColumnSlice<String, String> settings = sliceQuery.execute().get();
+			HColumn<String, String> widthColumn = settings.getColumnByName(BlockStore.WIDTH_COLUMN);
+			HColumn<String, String> compactedColumn = settings.getColumnByName(BlockStore.COMPACTED_TIME_COLUMN);
+
+			if (widthColumn == null || compactedColumn == null)
+			{
+				if (!enabled)
+					return;
+
+				addColumnFamilyIfMissing(CF_DATA_POINT_BLOCKS);
+
+				//Rows written before compaction was turned on are left as they are
+				long compactedTime = calculateRowTime(System.currentTimeMillis());
+				Mutator<String> mutator = HFactory.createMutator(m_keyspace, StringSerializer.get());
+				mutator.addInsertion(ROW_KEY_BLOCK_STORAGE, CF_STRING_INDEX,
+						HFactory.createStringColumn(BlockStore.WIDTH_COLUMN, String.valueOf(width)));
+				mutator.addInsertion(ROW_KEY_BLOCK_STORAGE, CF_STRING_INDEX,
+						HFactory.createStringColumn(BlockStore.COMPACTED_TIME_COLUMN, String.valueOf(compactedTime)));
+				mutator.execute();
+
+				m_blockStore = new BlockStore(m_keyspace, CF_DATA_POINT_BLOCKS, width, compactionDelay,
+						compactedTime, m_singleRowReadSize, m_rowWidths);
+			}
+			else
+			{
+				long savedWidth = Long.parseLong(widthColumn.getValue());
+				if (savedWidth != width)
+					logger.warn("Block width is " + savedWidth + ", ignoring configured width of " + width);
+
+				m_blockStore = new BlockStore(m_keyspace, CF_DATA_POINT_BLOCKS, savedWidth, compactionDelay,
+						Long.parseLong(compactedColumn.getValue()), m_singleRowReadSize, m_rowWidths);
+			}
+
+			m_blockCompaction = enabled;
+		}
+		catch (HectorException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	private void addColumnFamilyIfMissing(String cfName)
+	{
+		KeyspaceDefinition keyspaceDef = m_cluster.describeKeyspace(KEYSPACE);
+		for (ColumnFamilyDefinition cfDef : keyspaceDef.getCfDefs())
+		{
+			if (cfDef.getName().equals(cfName))
+				return;
+		}
+
+		m_cluster.addColumnFamily(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, cfName, ComparatorType.BYTESTYPE), true);
+	}
+
+	/**
+	 Loads the row keys already in the index for the current rows into a
+	 bloom filter so they are not all written again after a restart.
+	 */
+	@Inject(optional = true)
+	public void setRowKeyWarmup(@Named(ROW_KEY_WARMUP_PROPERTY) boolean warmup,
+	                            @Named(ROW_KEY_WARMUP_FPP_PROPERTY) double falsePositiveProbability) throws DatastoreException
+	{
+		if (!warmup)
+			return;
+
+		checkArgument(falsePositiveProbability > 0.0 && falsePositiveProbability < 1.0,
+				"False positive probability must be between 0 and 1");
+
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			m_rowKeyFilter = RowKeyFilter.load(m_keyspace, new RowKeyFilter.RowKeyWriter()
+				{
+					@Override
+					public void writeRowKey(DataPointsRowKey rowKey, long now)
 					{
-						@Override
-						public void saveWriteSize(int pendingWrites)
-						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_STRING_INDEX);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
-						}
-					}, mutatorLock, lockCondition);
+						indexRowKey(rowKey, now, null);
+					}
+				}, getMetricNames(),
+					m_rowWidths, startTime, falsePositiveProbability, m_singleRowReadSize);
+
+			long warmupTime = System.currentTimeMillis() - startTime;
+			logger.info("Loaded " + m_rowKeyFilter.getKeyCount() + " row keys in " + warmupTime +
+					"ms, expected false positive probability " + m_rowKeyFilter.getExpectedFalsePositiveProbability());
+
+			DataPointSet timeSet = new DataPointSet(ROW_KEY_WARMUP_TIME_METRIC_NAME);
+			timeSet.addTag("host", m_hostname);
+			timeSet.addDataPoint(new DataPoint(startTime, warmupTime));
+			putInternalDataPoints(timeSet);
+
+			DataPointSet keySet = new DataPointSet(ROW_KEY_WARMUP_KEYS_METRIC_NAME);
+			keySet.addTag("host", m_hostname);
+			keySet.addDataPoint(new DataPoint(startTime, m_rowKeyFilter.getKeyCount()));
+			putInternalDataPoints(keySet);
 		}
 		catch (HectorException e)
 		{
@@ -192,11 +501,86 @@ public class CassandraDatastore implements Datastore
 		}
 	}
 
-	private void putInternalDataPoints(DataPointSet dps)
+	/**
+	 Turns on the commit log.  An empty directory leaves the commit log off.
+	 What a previous run left in the log is replayed by replayCommitLog.
+	 */
+	@Inject(optional = true)
+	public void setCommitLog(@Named(COMMIT_LOG_DIRECTORY_PROPERTY) String directory,
+	                         @Named(COMMIT_LOG_SEGMENT_SIZE_PROPERTY) int segmentSize) throws DatastoreException
+	{
+		if (directory.trim().length() == 0)
+			return;
+
+		checkArgument(segmentSize > 0, "Commit log segment size must be greater than zero");
+
+		try
+		{
+			m_commitLog = new CommitLog(new File(directory), segmentSize);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Writes what a previous run left in the commit log.  Called once the
+	 datastore is fully injected so the data goes through the configured
+	 caches, tag index and block store.  If the data cannot be written the
+	 segments are kept for the next start.
+	 */
+	public void replayCommitLog() throws DatastoreException
 	{
+		if (m_commitLog == null)
+			return;
+
 		try
 		{
-			putDataPoints(dps);
+			m_commitLog.replay(new CommitLog.ReplayHandler()
+			{
+				@Override
+				public void replay(DataPointSet dps, CommitLog.Segment segment)
+						throws DatastoreException, InterruptedException
+				{
+					//Replayed data cannot be shed so wait for the buffers to drain
+					while (isWriteBufferFull())
+						Thread.sleep(100);
+
+					writeDataPoints(dps, segment);
+				}
+
+				@Override
+				public void replayDelete(DatastoreMetricQuery query, CommitLog.Segment segment)
+						throws DatastoreException, InterruptedException
+				{
+					//The delete reads the rows so the points replayed before it must be written
+					flushWriteBuffers();
+					replayDeleteDataPoints(query, segment);
+				}
+			});
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DatastoreException(e);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Internal metrics skip the full buffer check, they are few and are most
+	 useful when the buffers are backed up.
+	 */
+	@Override
+	public void putInternalDataPoints(DataPointSet dps)
+	{
+		try
+		{
+			writeDataPoints(dps);
 		}
 		catch (DatastoreException e)
 		{
@@ -217,6 +601,12 @@ public class CassandraDatastore implements Datastore
 		cfDef.add(HFactory.createColumnFamilyDefinition(
 				KEYSPACE, CF_STRING_INDEX, ComparatorType.UTF8TYPE));
 
+		cfDef.add(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, CF_TAG_INDEX, ComparatorType.BYTESTYPE));
+
+		cfDef.add(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, CF_DATA_POINT_BLOCKS, ComparatorType.BYTESTYPE));
+
 		KeyspaceDefinition newKeyspace = HFactory.createKeyspaceDefinition(
 				KEYSPACE, ThriftKsDef.DEF_STRATEGY_CLASS,
 				replicationFactor, cfDef);
@@ -224,27 +614,145 @@ public class CassandraDatastore implements Datastore
 		m_cluster.addKeyspace(newKeyspace, true);
 	}
 
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		DataPointSet dps = new DataPointSet(SHED_DATA_POINTS_METRIC_NAME);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new DataPoint(now, m_shedDataPoints.getAndSet(0)));
+		ret.add(dps);
+
+		if (m_rowKeyFilter != null)
+		{
+			dps = new DataPointSet(ROW_KEY_FILTER_VERIFIED_METRIC_NAME);
+			dps.addTag("host", m_hostname);
+			dps.addDataPoint(new DataPoint(now, m_rowKeyFilter.getAndResetVerifiedCount()));
+			ret.add(dps);
+
+			dps = new DataPointSet(ROW_KEY_FILTER_FALSE_POSITIVES_METRIC_NAME);
+			dps.addTag("host", m_hostname);
+			dps.addDataPoint(new DataPoint(now, m_rowKeyFilter.getAndResetFalsePositiveCount()));
+			ret.add(dps);
+		}
+
+		return (ret);
+	}
+
 	public void increaseMaxBufferSizes()
 	{
 		m_dataPointWriteBuffer.increaseMaxBufferSize();
 		m_rowKeyWriteBuffer.increaseMaxBufferSize();
 		m_stringIndexWriteBuffer.increaseMaxBufferSize();
+		m_tagIndexWriteBuffer.increaseMaxBufferSize();
+	}
+
+	/**
+	 Called by BlockCompactionJob to move closed time windows into blocks.
+	 */
+	public void compactBlocks()
+	{
+		if (m_blockCompaction)
+			m_blockStore.compact(getMetricNames(), System.currentTimeMillis());
 	}
 
 	@Override
 	public void close() throws InterruptedException
 	{
+		m_queryExecutor.shutdown();
+		m_sliceExecutor.shutdown();
+
+		//Writes keys that fail verification so it goes before the buffers
+		if (m_rowKeyFilter != null)
+			m_rowKeyFilter.close();
+
 		m_dataPointWriteBuffer.close();
 		m_rowKeyWriteBuffer.close();
 		m_stringIndexWriteBuffer.close();
+		m_tagIndexWriteBuffer.close();
+
+		if (m_commitLog != null)
+			m_commitLog.close();
 	}
 
 
 	@Override
 	public void putDataPoints(DataPointSet dps) throws DatastoreException
 	{
+		if (isWriteBufferFull())
+		{
+			m_shedDataPoints.addAndGet(dps.getDataPoints().size());
+			throw new DatastoreBusyException("Write buffers are full, retry in " + m_retryAfter + " seconds",
+					m_retryAfter);
+		}
+
+		writeDataPoints(dps);
+	}
+
+	private void flushWriteBuffers() throws InterruptedException
+	{
+		m_dataPointWriteBuffer.flush();
+		m_rowKeyWriteBuffer.flush();
+		m_stringIndexWriteBuffer.flush();
+		m_tagIndexWriteBuffer.flush();
+	}
+
+	private boolean isWriteBufferFull()
+	{
+		return (m_dataPointWriteBuffer.isFull() || m_rowKeyWriteBuffer.isFull() ||
+				m_stringIndexWriteBuffer.isFull() || m_tagIndexWriteBuffer.isFull());
+	}
+
+	private void indexRowKey(DataPointsRowKey rowKey, long now, CommitLog.Segment segment)
+	{
+		m_rowKeyWriteBuffer.addData(rowKey.getMetricName(), rowKey, "", now, segment);
+
+		if (m_tagIndex != null)
+			m_tagIndex.addRowKey(rowKey, now, segment);
+	}
+
+	private static void checkTimestamps(DataPointSet dps) throws DatastoreException
+	{
+		for (DataPoint dp : dps.getDataPoints())
+		{
+			if (dp.getTimestamp() < 0)
+				throw new DatastoreException("Timestamp must be greater than or equal to zero.");
+		}
+	}
+
+	private void writeDataPoints(DataPointSet dps) throws DatastoreException
+	{
+		//Check up front so bad data never makes it into the log
+		checkTimestamps(dps);
+
+		CommitLog.Segment segment = null;
 		try
 		{
+			if (m_commitLog != null)
+				segment = m_commitLog.append(dps);
+
+			writeDataPoints(dps, segment);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+		finally
+		{
+			if (segment != null)
+				segment.release();
+		}
+	}
+
+	/**
+	 @param segment Commit log segment that holds the data point set, may be null.
+	 */
+	private void writeDataPoints(DataPointSet dps, CommitLog.Segment segment) throws DatastoreException
+	{
+		try
+		{
+			long rowWidth = m_rowWidths.getRowWidth(dps.getName());
 			long rowTime = -1L;
 			DataPointsRowKey rowKey = null;
 			//time the data is written.
@@ -252,24 +760,24 @@ public class CassandraDatastore implements Datastore
 
 			for (DataPoint dp : dps.getDataPoints())
 			{
-				if (dp.getTimestamp() < 0)
-					throw new DatastoreException("Timestamp must be greater than or equal to zero.");
-				long newRowTime = calculateRowTime(dp.getTimestamp());
+				long newRowTime = calculateRowTime(dp.getTimestamp(), rowWidth);
 				if (newRowTime != rowTime)
 				{
 					rowTime = newRowTime;
-					rowKey = new DataPointsRowKey(dps.getName(), rowTime, dps.getTags());
+					rowKey = new DataPointsRowKey(dps.getName(), rowTime, rowWidth, dps.getTags());
+					rowKey.setLengthPrefixedTags(m_lengthPrefixedRowKeys);
 
 					long now = System.currentTimeMillis();
 					//Write out the row key if it is not cached
-					if (!m_rowKeyCache.isCached(rowKey))
-						m_rowKeyWriteBuffer.addData(dps.getName(), rowKey, "", now);
+					if (!m_rowKeyCache.isCached(rowKey) &&
+							(m_rowKeyFilter == null || !m_rowKeyFilter.isIndexed(rowKey)))
+						indexRowKey(rowKey, now, segment);
 
 					//Write metric name if not in cache
 					if (!m_metricNameCache.isCached(dps.getName()))
 					{
 						m_stringIndexWriteBuffer.addData(ROW_KEY_METRIC_NAMES,
-								dps.getName(), "", now);
+								dps.getName(), "", now, segment);
 					}
 
 					//Check tag names and values to write them out
@@ -279,14 +787,14 @@ public class CassandraDatastore implements Datastore
 						if (!m_tagNameCache.isCached(tagName))
 						{
 							m_stringIndexWriteBuffer.addData(ROW_KEY_TAG_NAMES,
-									tagName, "", now);
+									tagName, "", now, segment);
 						}
 
 						String value = tags.get(tagName);
 						if (!m_tagValueCache.isCached(value))
 						{
 							m_stringIndexWriteBuffer.addData(ROW_KEY_TAG_VALUES,
-									value, "", now);
+									value, "", now, segment);
 						}
 					}
 				}
@@ -295,19 +803,15 @@ public class CassandraDatastore implements Datastore
 				if (dp.isInteger())
 				{
 					m_dataPointWriteBuffer.addData(rowKey, columnTime,
-							ValueSerializer.toByteBuffer(dp.getLongValue()), writeTime);
+							ValueSerializer.toByteBuffer(dp.getLongValue()), writeTime, segment);
 				}
 				else
 				{
 					m_dataPointWriteBuffer.addData(rowKey, columnTime,
-							ValueSerializer.toByteBuffer((float) dp.getDoubleValue()), writeTime);
+							ValueSerializer.toByteBuffer(dp.getDoubleValue(), m_varintDoubles), writeTime, segment);
 				}
 			}
 		}
-		catch (DatastoreException e)
-		{
-			throw e;
-		}
 		catch (Exception e)
 		{
 			throw new DatastoreException(e);
@@ -379,56 +883,236 @@ public class CassandraDatastore implements Datastore
 
 	@Override
 	public List<DataPointRow> queryDatabase(DatastoreMetricQuery query, CachedSearchResult cachedSearchResult)
+			throws DatastoreException
 	{
-		return queryWithRowKeys(query, cachedSearchResult, getKeysForQuery(query));
+		ListMultimap<Long, DataPointsRowKey> rowKeys = m_estimatedKeys.remove(query);
+		if (rowKeys == null)
+			rowKeys = getKeysForQuery(query);
+
+		return queryWithRowKeys(query, cachedSearchResult, rowKeys);
+	}
+
+	/**
+	 The cost is the part of the query range each matching row covers added
+	 up and rounded up to hours.  The row keys are kept for queryDatabase so
+	 they are only read once.
+	 */
+	@Override
+	public long estimateQueryCost(DatastoreMetricQuery query) throws DatastoreException
+	{
+		ListMultimap<Long, DataPointsRowKey> rowKeys = getKeysForQuery(query);
+		m_estimatedKeys.put(query, rowKeys);
+
+		long queryEnd = query.getEndTime();
+		if (queryEnd < Long.MAX_VALUE)
+			queryEnd++;
+
+		long covered = 0L;
+		for (DataPointsRowKey rowKey : rowKeys.values())
+		{
+			long rowEnd = rowKey.getTimestamp() + rowKey.getRowWidth();
+			long start = Math.max(rowKey.getTimestamp(), query.getStartTime());
+			long end = Math.min(rowEnd, queryEnd);
+			if (end > start)
+				covered += end - start;
+		}
+
+		return ((covered + 3599999L) / 3600000L);
+	}
+
+	/**
+	 Splits the keys of a tier so no list has two rows of the same series.
+	 A series written before and after the tag format changed has a row in
+	 each format and both rows decode to the same tags, the multi get returns
+	 rows by their decoded key so the two rows are read separately.
+	 */
+	private static List<List<DataPointsRowKey>> splitSameSeries(List<DataPointsRowKey> rowKeys)
+	{
+		List<List<DataPointsRowKey>> ret = new ArrayList<List<DataPointsRowKey>>();
+		List<DataPointsRowKey> remaining = rowKeys;
+
+		while (!remaining.isEmpty())
+		{
+			Set<SortedMap<String, String>> series = new HashSet<SortedMap<String, String>>();
+			List<DataPointsRowKey> unique = new ArrayList<DataPointsRowKey>();
+			List<DataPointsRowKey> repeated = new ArrayList<DataPointsRowKey>();
+
+			for (DataPointsRowKey rowKey : remaining)
+			{
+				if (series.add(rowKey.getTags()))
+					unique.add(rowKey);
+				else
+					repeated.add(rowKey);
+			}
+
+			ret.add(unique);
+			remaining = repeated;
+		}
+
+		return (ret);
 	}
 
 	private List<DataPointRow> queryWithRowKeys(DatastoreMetricQuery query,
 	                                            CachedSearchResult cachedSearchResult,
-	                                            ListMultimap<Long, DataPointsRowKey> rowKeys)
+	                                            ListMultimap<Long, DataPointsRowKey> rowKeys) throws DatastoreException
 	{
 		List<QueryRunner> runners = new ArrayList<QueryRunner>();
+		Semaphore sliceLimit = new Semaphore(m_maxInFlightSlices);
 
 		for (Long ts : rowKeys.keySet())
 		{
-			List<DataPointsRowKey> tierKeys = rowKeys.get(ts);
+			//Rows of a tier differ in width if the width of the metric was changed
+			ListMultimap<Long, DataPointsRowKey> widthKeys = ArrayListMultimap.create();
+			for (DataPointsRowKey rowKey : rowKeys.get(ts))
+				widthKeys.put(rowKey.getRowWidth(), rowKey);
 
-			for (int keyChunk = 0; keyChunk < tierKeys.size(); keyChunk += m_multiRowSize)
+			for (Long rowWidth : widthKeys.keySet())
 			{
-				int chunkEnd = (keyChunk + m_multiRowSize > tierKeys.size() ? tierKeys.size() : keyChunk + m_multiRowSize);
+				for (List<DataPointsRowKey> tierKeys : splitSameSeries(widthKeys.get(rowWidth)))
+				{
+					for (int keyChunk = 0; keyChunk < tierKeys.size(); keyChunk += m_multiRowSize)
+					{
+						int chunkEnd = (keyChunk + m_multiRowSize > tierKeys.size() ? tierKeys.size() : keyChunk + m_multiRowSize);
 
-				QueryRunner qRunner = new QueryRunner(m_keyspace, CF_DATA_POINTS, tierKeys.subList(keyChunk, chunkEnd),
-						query.getStartTime(), query.getEndTime(), cachedSearchResult, m_singleRowReadSize,
-						m_multiRowReadSize);
+						QueryRunner qRunner = new QueryRunner(m_keyspace, CF_DATA_POINTS, tierKeys.subList(keyChunk, chunkEnd),
+								query.getStartTime(), query.getEndTime(), cachedSearchResult, m_singleRowReadSize,
+								m_multiRowReadSize, m_sliceExecutor, sliceLimit, m_blockStore);
 
-				runners.add(qRunner);
+						runners.add(qRunner);
+					}
+				}
 			}
 		}
 
+		long submitTime = System.currentTimeMillis();
+		AtomicLong maxWaitTime = new AtomicLong();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
 		try
 		{
-			//TODO: Run this with multiple threads
 			for (QueryRunner runner : runners)
 			{
-				runner.runQuery();
+				futures.add(m_queryExecutor.submit(new QueryRunnerTask(runner, submitTime, maxWaitTime)));
+			}
+
+			QueryDeadline deadline = cachedSearchResult.getDeadline();
+			for (Future<Void> future : futures)
+			{
+				future.get(deadline.getRemaining(), TimeUnit.MILLISECONDS);
 			}
 
 			cachedSearchResult.endDataPoints();
 		}
+		catch (TimeoutException e)
+		{
+			//The runners still going are interrupted below
+			throw new QueryCancelledException("Query for " + query.getName() +
+					" did not finish within " + cachedSearchResult.getDeadline().getTimeout() + " ms");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof QueryCancelledException)
+				throw (QueryCancelledException) e.getCause();
+			throw new DatastoreException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DatastoreException(e);
+		}
 		catch (IOException e)
 		{
-			e.printStackTrace();
+			throw new DatastoreException(e);
+		}
+		finally
+		{
+			for (Future<Void> future : futures)
+			{
+				future.cancel(true);
+			}
 		}
 
+		if (!runners.isEmpty())
+			reportQueryStats(query.getName(), runners.size(), maxWaitTime.get());
+
 		return cachedSearchResult.getRows();
 	}
 
+	private void reportQueryStats(String metricName, int fanOut, long waitTime)
+	{
+		long now = System.currentTimeMillis();
+
+		DataPointSet fanOutSet = new DataPointSet(QUERY_FAN_OUT_METRIC_NAME);
+		fanOutSet.addTag("host", m_hostname);
+		fanOutSet.addTag("metric_name", metricName);
+		fanOutSet.addDataPoint(new DataPoint(now, fanOut));
+		putInternalDataPoints(fanOutSet);
+
+		DataPointSet waitSet = new DataPointSet(QUERY_WAIT_TIME_METRIC_NAME);
+		waitSet.addTag("host", m_hostname);
+		waitSet.addTag("metric_name", metricName);
+		waitSet.addDataPoint(new DataPoint(now, waitTime));
+		putInternalDataPoints(waitSet);
+	}
+
 	@Override
 	public void deleteDataPoints(DatastoreMetricQuery deleteQuery, CachedSearchResult cachedSearchResult) throws DatastoreException
 	{
 		checkNotNull(deleteQuery);
 		checkNotNull(cachedSearchResult);
 
+		//Deletes are logged so a replay does not bring back deleted points
+		CommitLog.Segment segment = null;
+		try
+		{
+			if (m_commitLog != null)
+				segment = m_commitLog.appendDelete(deleteQuery);
+
+			deleteDataPoints(deleteQuery, cachedSearchResult, segment);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+		finally
+		{
+			if (segment != null)
+				segment.release();
+		}
+	}
+
+	private void replayDeleteDataPoints(DatastoreMetricQuery deleteQuery, CommitLog.Segment segment)
+			throws DatastoreException
+	{
+		File searchFile = null;
+		try
+		{
+			searchFile = File.createTempFile("commit_log_delete", "");
+			CachedSearchResult cachedSearchResult = CachedSearchResult.createCachedSearchResult(
+					deleteQuery.getName(), searchFile.getPath());
+			deleteDataPoints(deleteQuery, cachedSearchResult, segment);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+		finally
+		{
+			if (searchFile != null)
+			{
+				new File(searchFile.getPath() + ".data").delete();
+				new File(searchFile.getPath() + ".index").delete();
+				searchFile.delete();
+			}
+		}
+	}
+
+	/**
+	 @param segment Commit log segment that holds the delete, may be null.
+	 */
+	private void deleteDataPoints(DatastoreMetricQuery deleteQuery, CachedSearchResult cachedSearchResult,
+			CommitLog.Segment segment) throws DatastoreException
+	{
 		long now = System.currentTimeMillis();
 
 		// Get number of columns in the row key
@@ -445,16 +1129,36 @@ public class CassandraDatastore implements Datastore
 		{
 			DataPointsRowKey rowKey = rowKeyIterator.next();
 			long rowKeyTimestamp = rowKey.getTimestamp();
-			if (deleteQuery.getStartTime() <= rowKeyTimestamp && (deleteQuery.getEndTime() >= rowKeyTimestamp + ROW_WIDTH - 1))
+			if (deleteQuery.getStartTime() <= rowKeyTimestamp && (deleteQuery.getEndTime() >= rowKeyTimestamp + rowKey.getRowWidth() - 1))
 			{
-				m_dataPointWriteBuffer.deleteRow(rowKey, now);  // delete the whole row
-				m_rowKeyWriteBuffer.deleteColumn(rowKey.getMetricName(), rowKey, now); // Delete the index
-				m_rowKeyCache.clear();
+				m_dataPointWriteBuffer.deleteRow(rowKey, now, segment);  // delete the whole row
+				m_rowKeyWriteBuffer.deleteColumn(rowKey.getMetricName(), rowKey, now, segment); // Delete the index
+				if (m_tagIndex != null)
+					m_tagIndex.deleteRowKey(rowKey, now, segment);
+				if (m_blockStore != null)
+					m_blockStore.deleteRow(rowKey, now);
+				m_rowKeyCache.remove(rowKey);
 				rowKeyIterator.remove();
 				rowKeyColumnCount--;
 			}
 		}
 
+		/*
+		The same series may be stored under an old and a new format key or in
+		rows of different widths, so a point is deleted from every row of the
+		series that holds its timestamp.
+		 */
+		ListMultimap<SortedMap<String, String>, DataPointsRowKey> storedKeys = ArrayListMultimap.create();
+		for (DataPointsRowKey rowKey : rowKeys.values())
+			storedKeys.put(rowKey.getTags(), rowKey);
+
+		//Points in blocks are not columns so the blocks are rewritten without them
+		if (m_blockStore != null)
+		{
+			for (DataPointsRowKey rowKey : rowKeys.values())
+				m_blockStore.deletePoints(rowKey, deleteQuery.getStartTime(), deleteQuery.getEndTime(), now);
+		}
+
 		List<DataPointRow> dataPointRows = queryWithRowKeys(deleteQuery, cachedSearchResult, rowKeys);
 		for (DataPointRow row : dataPointRows)
 		{
@@ -463,20 +1167,25 @@ public class CassandraDatastore implements Datastore
 			{
 				// Delete remaining partial rows
 				DataPoint column = row.next();
-				long rowTime = calculateRowTime(column.getTimestamp());
-				DataPointsRowKey rowKey = new DataPointsRowKey(row.getName(), rowTime, tags);
-				int columnName = getColumnName(rowTime, column.getTimestamp(), column.isInteger());
-				m_dataPointWriteBuffer.deleteColumn(rowKey, columnName, now);
+				long timestamp = column.getTimestamp();
+
+				for (DataPointsRowKey storedKey : storedKeys.get(tags))
+				{
+					if (storedKey.overlaps(timestamp, timestamp))
+					{
+						m_dataPointWriteBuffer.deleteColumn(storedKey,
+								getColumnName(storedKey.getTimestamp(), timestamp, column.isInteger()), now, segment);
+					}
+				}
 			}
 		}
 
 		// If index is gone, delete metric name from Strings column family
 		if (rowKeyColumnCount < 1)
 		{
-			m_rowKeyWriteBuffer.deleteRow(deleteQuery.getName(), now);
-			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_METRIC_NAMES, deleteQuery.getName(), now);
-			m_rowKeyCache.clear();
-			m_metricNameCache.clear();
+			m_rowKeyWriteBuffer.deleteRow(deleteQuery.getName(), now, segment);
+			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_METRIC_NAMES, deleteQuery.getName(), now, segment);
+			m_metricNameCache.remove(deleteQuery.getName());
 		}
 	}
 
@@ -501,55 +1210,93 @@ public class CassandraDatastore implements Datastore
 	{
 		ListMultimap<Long, DataPointsRowKey> retMap = ArrayListMultimap.create();
 
-		SliceQuery<String, DataPointsRowKey, String> sliceQuery =
+		//Rows that start up to the widest row width before the query can overlap it
+		long startRowTime = Math.max(0L, query.getStartTime() - m_rowWidths.getMaxRowWidth() + 1);
+		long endRowTime = query.getEndTime();
+		DataPointsRowKeySerializer.TagFilter tagFilter = new DataPointsRowKeySerializer.TagFilter(query.getTags());
+
+		//Use the tag index for the row times it covers if the filter is selective enough
+		long indexStartRowTime = (m_tagIndex == null) ? Long.MAX_VALUE : Math.max(startRowTime, m_tagIndex.getStartTime());
+		List<DataPointsRowKey> indexedKeys = null;
+		if (!tagFilter.isEmpty() && indexStartRowTime <= endRowTime)
+		{
+			indexedKeys = m_tagIndex.getKeys(query.getName(), indexStartRowTime, endRowTime,
+					query.getTags(), tagFilter);
+		}
+
+		if (indexedKeys != null)
+		{
+			for (DataPointsRowKey rowKey : indexedKeys)
+			{
+				if (rowKey.overlaps(query.getStartTime(), query.getEndTime()))
+					retMap.put(rowKey.getTimestamp(), rowKey);
+			}
+
+			if (startRowTime < indexStartRowTime)
+				scanRowKeys(query, startRowTime, indexStartRowTime - 1, tagFilter, retMap);
+		}
+		else
+			scanRowKeys(query, startRowTime, endRowTime, tagFilter, retMap);
+
+		if (logger.isDebugEnabled())
+			logger.debug("Querying the database using " + retMap.size() + " keys");
+
+		return (retMap);
+	}
+
+	/**
+	 Reads the row keys of the metric between the row times from the row key
+	 index and adds the ones that match the filter and overlap the query to
+	 retMap.
+	 */
+	private void scanRowKeys(DatastoreMetricQuery query, long startRowTime, long endRowTime,
+			DataPointsRowKeySerializer.TagFilter tagFilter, ListMultimap<Long, DataPointsRowKey> retMap)
+	{
+		String metricName = query.getName();
+
+		//Keys are read as bytes so the tag filter can skip keys without decoding them
+		SliceQuery<String, ByteBuffer, String> sliceQuery =
 				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(),
-						DATA_POINTS_ROW_KEY_SERIALIZER, StringSerializer.get());
+						ByteBufferSerializer.get(), StringSerializer.get());
 
-		DataPointsRowKey startKey = new DataPointsRowKey(query.getName(),
-				calculateRowTime(query.getStartTime()));
+		ByteBuffer startKey = DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(
+				new DataPointsRowKey(metricName, startRowTime));
 
 		/*
 		Adding 1 to the end time ensures we get all the keys that have end time and
 		have tags in the key.
 		 */
-		DataPointsRowKey endKey = new DataPointsRowKey(query.getName(),
-				calculateRowTime(query.getEndTime()) + 1);
+		ByteBuffer endKey = DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(
+				new DataPointsRowKey(metricName, endRowTime + 1));
 
 
 		sliceQuery.setColumnFamily(CF_ROW_KEY_INDEX)
-				.setKey(query.getName());
+				.setKey(metricName);
 
-		ColumnSliceIterator<String, DataPointsRowKey, String> iterator =
-				new ColumnSliceIterator<String, DataPointsRowKey, String>(sliceQuery,
+		ColumnSliceIterator<String, ByteBuffer, String> iterator =
+				new ColumnSliceIterator<String, ByteBuffer, String>(sliceQuery,
 						startKey, endKey, false, m_singleRowReadSize);
 
-		SetMultimap<String, String> filterTags = query.getTags();
-		outer:
 		while (iterator.hasNext())
 		{
-			DataPointsRowKey rowKey = iterator.next().getName();
-
-			Map<String, String> keyTags = rowKey.getTags();
-			for (String tag : filterTags.keySet())
-			{
-				String value = keyTags.get(tag);
-				if (value == null || !filterTags.get(tag).contains(value))
-					continue outer; //Don't want this key
-			}
+			ByteBuffer serializedKey = iterator.next().getName();
+			if (!DATA_POINTS_ROW_KEY_SERIALIZER.matches(serializedKey, tagFilter))
+				continue; //Don't want this key
 
-			retMap.put(rowKey.getTimestamp(), rowKey);
-			//ret.add(rowKey);
+			DataPointsRowKey rowKey = DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(serializedKey);
+			if (rowKey.overlaps(query.getStartTime(), query.getEndTime()))
+				retMap.put(rowKey.getTimestamp(), rowKey);
 		}
-
-		if (logger.isDebugEnabled())
-			logger.debug("Querying the database using " + retMap.size() + " keys");
-
-		return (retMap);
 	}
 
 	public static long calculateRowTime(long timestamp)
 	{
-		return (timestamp - (timestamp % ROW_WIDTH));
+		return (calculateRowTime(timestamp, ROW_WIDTH));
+	}
+
+	public static long calculateRowTime(long timestamp, long rowWidth)
+	{
+		return (timestamp - (timestamp % rowWidth));
 	}
 
 
@@ -574,4 +1321,85 @@ public class CassandraDatastore implements Datastore
 	{
 		return ((columnName & 0x1) == LONG_FLAG);
 	}
+
+	//===========================================================================
+	/**
+	 Runs a single QueryRunner on the query executor and records how long it
+	 sat in the queue before a thread picked it up.
+	 */
+	private static class QueryRunnerTask implements Callable<Void>
+	{
+		private final QueryRunner m_runner;
+		private final long m_submitTime;
+		private final AtomicLong m_maxWaitTime;
+
+		public QueryRunnerTask(QueryRunner runner, long submitTime, AtomicLong maxWaitTime)
+		{
+			m_runner = runner;
+			m_submitTime = submitTime;
+			m_maxWaitTime = maxWaitTime;
+		}
+
+		@Override
+		public Void call() throws Exception
+		{
+			long waitTime = System.currentTimeMillis() - m_submitTime;
+			long currentMax = m_maxWaitTime.get();
+			while (waitTime > currentMax && !m_maxWaitTime.compareAndSet(currentMax, waitTime))
+				currentMax = m_maxWaitTime.get();
+
+			m_runner.runQuery();
+			return (null);
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Writes the stats of a write buffer as internal metrics tagged with the
+	 buffer name.
+	 */
+	private class BufferStats implements WriteBufferStats
+	{
+		private final String m_bufferName;
+
+		public BufferStats(String bufferName)
+		{
+			m_bufferName = bufferName;
+		}
+
+		private DataPointSet newDataPointSet(String metricName)
+		{
+			DataPointSet dps = new DataPointSet(metricName);
+			dps.addTag("host", m_hostname);
+			dps.addTag("buffer", m_bufferName);
+			return (dps);
+		}
+
+		@Override
+		public void saveWriteSize(int pendingWrites)
+		{
+			DataPointSet dps = newDataPointSet(WRITE_SIZE_METRIC_NAME);
+			dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
+			putInternalDataPoints(dps);
+		}
+
+		@Override
+		public void saveBatchStats(int batchSize, long latency)
+		{
+			long now = System.currentTimeMillis();
+
+			DataPointSet dps = newDataPointSet(WRITE_BATCH_SIZE_METRIC_NAME);
+			dps.addDataPoint(new DataPoint(now, batchSize));
+			putInternalDataPoints(dps);
+
+			dps = newDataPointSet(WRITE_BATCH_LATENCY_METRIC_NAME);
+			dps.addDataPoint(new DataPoint(now, latency));
+			putInternalDataPoints(dps);
+
+			//Writes per second, latency is floored at 1ms to avoid dividing by zero
+			dps = newDataPointSet(WRITE_BATCH_THROUGHPUT_METRIC_NAME);
+			dps.addDataPoint(new DataPoint(now, batchSize * 1000L / Math.max(latency, 1L)));
+			putInternalDataPoints(dps);
+		}
+	}
 }
@@ -57,6 +57,8 @@ public class CassandraModule extends AbstractModule
 		bind(Datastore.class).to(CassandraDatastore.class).in(Scopes.SINGLETON);
 		bind(CassandraDatastore.class).in(Scopes.SINGLETON);
 		bind(IncreaseMaxBufferSizesJob.class).in(Scopes.SINGLETON);
+		bind(BlockCompactionJob.class).in(Scopes.SINGLETON);
+		bind(CommitLogReplayService.class).in(Scopes.SINGLETON);
 
 		bind(new TypeLiteral<Map<String, String>>(){}).annotatedWith(Names.named(CASSANDRA_AUTH_MAP))
 				.toInstance(m_authMap);
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.QueryMetric;
+import org.kairosdb.core.exception.DatastoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ Append only log of the data point sets and deletes sent to the datastore.
+ Each one is written to a memory mapped segment file before it goes into the
+ write buffers and the segment is deleted once every write that came from it
+ has been acknowledged by Cassandra.  Segments are deleted in the order they
+ were written so a put is never replayed without the deletes that came after
+ it.  Segments left behind by a crash are replayed on startup.
+
+ Records are written as [length][crc32][payload].  Callers that append at the
+ same time share a single fsync of the segment (group commit).
+ */
+public class CommitLog
+{
+	public static final Logger logger = LoggerFactory.getLogger(CommitLog.class);
+
+	private static final String SEGMENT_PREFIX = "commit-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final byte PUT_RECORD = 0x1;
+	private static final byte DELETE_RECORD = 0x2;
+
+	private static final byte LONG_VALUE = 0x1;
+	private static final byte DOUBLE_VALUE = 0x2;
+
+	private final File m_directory;
+	private final int m_segmentSize;
+	private final List<Segment> m_replaySegments = new ArrayList<Segment>();
+	private final LinkedList<Segment> m_segments = new LinkedList<Segment>();
+	private long m_nextSegmentId;
+	private Segment m_activeSegment;
+
+	/**
+	 The segment passed with each record is the one it was read from.  Writes
+	 that retain it keep the segment from being deleted until they have been
+	 acknowledged.
+	 */
+	public interface ReplayHandler
+	{
+		public void replay(DataPointSet dps, Segment segment) throws DatastoreException, InterruptedException;
+
+		public void replayDelete(DatastoreMetricQuery query, Segment segment) throws DatastoreException, InterruptedException;
+	}
+
+	public CommitLog(File directory, int segmentSize) throws IOException
+	{
+		m_directory = directory;
+		m_segmentSize = segmentSize;
+
+		if (!m_directory.exists() && !m_directory.mkdirs())
+			throw new IOException("Unable to create commit log directory " + m_directory.getAbsolutePath());
+
+		m_nextSegmentId = 0;
+		for (File segmentFile : listSegments())
+		{
+			m_nextSegmentId = Math.max(m_nextSegmentId, getSegmentId(segmentFile) + 1);
+			Segment segment = new Segment(this, segmentFile);
+			m_replaySegments.add(segment);
+			m_segments.add(segment);
+		}
+
+		m_activeSegment = newSegment(m_segmentSize);
+	}
+
+	private List<File> listSegments()
+	{
+		File[] files = m_directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+			}
+		});
+
+		List<File> segments = new ArrayList<File>();
+		if (files != null)
+			segments.addAll(Arrays.asList(files));
+
+		Collections.sort(segments, new Comparator<File>()
+		{
+			@Override
+			public int compare(File f1, File f2)
+			{
+				long id1 = getSegmentId(f1);
+				long id2 = getSegmentId(f2);
+				return (id1 < id2 ? -1 : (id1 == id2 ? 0 : 1));
+			}
+		});
+
+		return (segments);
+	}
+
+	private static long getSegmentId(File segmentFile)
+	{
+		String name = segmentFile.getName();
+		return (Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length())));
+	}
+
+	/**
+	 Must be called while holding the log lock.
+	 */
+	private Segment newSegment(int size) throws IOException
+	{
+		File segmentFile = new File(m_directory, SEGMENT_PREFIX + (m_nextSegmentId++) + SEGMENT_SUFFIX);
+		Segment segment = new Segment(this, segmentFile, size);
+		synchronized (m_segments)
+		{
+			m_segments.add(segment);
+		}
+
+		return (segment);
+	}
+
+	/**
+	 Deletes the released segments that have no unreleased segment before them.
+	 */
+	private void deleteReleasedSegments()
+	{
+		synchronized (m_segments)
+		{
+			while (!m_segments.isEmpty() && m_segments.getFirst().isReleased())
+			{
+				File segmentFile = m_segments.removeFirst().m_file;
+				if (!segmentFile.delete())
+					logger.error("Unable to delete commit log " + segmentFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 Replays the segments that were left in the directory when the log was
+	 opened in the order they were written.  Each segment is deleted once the
+	 writes the handler retained it for have been acknowledged.  If the
+	 handler fails the segment it was replaying and the ones after it are kept
+	 so they are replayed again on the next start.
+	 */
+	public void replay(ReplayHandler handler) throws IOException, DatastoreException, InterruptedException
+	{
+		Iterator<Segment> segments = m_replaySegments.iterator();
+		while (segments.hasNext())
+		{
+			Segment segment = segments.next();
+			File segmentFile = segment.m_file;
+			int count = 0;
+			RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+			MappedByteBuffer buffer = null;
+			try
+			{
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				CRC32 crc = new CRC32();
+
+				while (buffer.remaining() >= RECORD_HEADER_SIZE)
+				{
+					int length = buffer.getInt();
+					int checksum = buffer.getInt();
+
+					//A zero length is the unwritten end of the segment
+					if (length <= 0 || length > buffer.remaining())
+						break;
+
+					byte[] payload = new byte[length];
+					buffer.get(payload);
+
+					crc.reset();
+					crc.update(payload);
+					if ((int) crc.getValue() != checksum)
+					{
+						logger.warn("Corrupt record in commit log " + segmentFile.getName() + ", skipping the rest of the segment");
+						break;
+					}
+
+					if (payload[0] == PUT_RECORD)
+						handler.replay(decode(payload), segment);
+					else if (payload[0] == DELETE_RECORD)
+						handler.replayDelete(decodeDelete(payload), segment);
+					else
+						throw new IOException("Unknown commit log record type " + payload[0]);
+					count++;
+				}
+			}
+			finally
+			{
+				file.close();
+				if (buffer != null)
+					unmap(buffer);
+			}
+
+			logger.info("Replayed " + count + " records from commit log " + segmentFile.getName());
+			segments.remove();
+			segment.release();
+		}
+	}
+
+	/**
+	 Appends the data point set to the log and returns once it is synced to
+	 disk.  The returned segment is retained for the caller who must release
+	 it once the data has been handed to the write buffers.
+	 */
+	public Segment append(DataPointSet dps) throws IOException
+	{
+		return (appendRecord(encode(dps)));
+	}
+
+	/**
+	 Appends a delete to the log, it is retained for the caller like the
+	 segment returned by append.
+	 */
+	public Segment appendDelete(DatastoreMetricQuery query) throws IOException
+	{
+		return (appendRecord(encodeDelete(query)));
+	}
+
+	private Segment appendRecord(byte[] payload) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		Segment segment;
+		int endPosition;
+		synchronized (this)
+		{
+			if (m_activeSegment.remaining() < payload.length + RECORD_HEADER_SIZE)
+			{
+				Segment full = m_activeSegment;
+				m_activeSegment = newSegment(Math.max(m_segmentSize, payload.length + RECORD_HEADER_SIZE));
+				full.release();
+			}
+
+			segment = m_activeSegment;
+			segment.retain();
+			endPosition = segment.write(payload, (int) crc.getValue());
+		}
+
+		segment.sync(endPosition);
+
+		return (segment);
+	}
+
+	/**
+	 Closes the active segment.  It is deleted once the last write it holds
+	 has been acknowledged.
+	 */
+	public synchronized void close()
+	{
+		if (m_activeSegment != null)
+		{
+			m_activeSegment.release();
+			m_activeSegment = null;
+		}
+	}
+
+	/**
+	 Releases the mapping of a segment right away instead of when the buffer is
+	 garbage collected.  Until then the file keeps its disk space after it is
+	 deleted and on some platforms cannot be deleted at all.  The buffer must
+	 not be used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer)
+	{
+		try
+		{
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+			{
+				Method cleanMethod = cleaner.getClass().getMethod("clean");
+				cleanMethod.setAccessible(true);
+				cleanMethod.invoke(cleaner);
+			}
+		}
+		catch (Exception e)
+		{
+			//Not available on this JVM, the mapping goes away with the buffer
+			logger.debug("Unable to unmap commit log segment", e);
+		}
+	}
+
+	static byte[] encode(DataPointSet dps) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(PUT_RECORD);
+		out.writeUTF(dps.getName());
+
+		SortedMap<String, String> tags = dps.getTags();
+		out.writeShort(tags.size());
+		for (Map.Entry<String, String> tag : tags.entrySet())
+		{
+			out.writeUTF(tag.getKey());
+			out.writeUTF(tag.getValue());
+		}
+
+		List<DataPoint> dataPoints = dps.getDataPoints();
+		out.writeInt(dataPoints.size());
+		for (DataPoint dataPoint : dataPoints)
+		{
+			out.writeLong(dataPoint.getTimestamp());
+			if (dataPoint.isInteger())
+			{
+				out.writeByte(LONG_VALUE);
+				out.writeLong(dataPoint.getLongValue());
+			}
+			else
+			{
+				out.writeByte(DOUBLE_VALUE);
+				out.writeDouble(dataPoint.getDoubleValue());
+			}
+		}
+
+		out.flush();
+		return (bytes.toByteArray());
+	}
+
+	static DataPointSet decode(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		byte recordType = in.readByte();
+		if (recordType != PUT_RECORD)
+			throw new IOException("Not a put record " + recordType);
+
+		DataPointSet dps = new DataPointSet(in.readUTF());
+
+		int tagCount = in.readUnsignedShort();
+		for (int I = 0; I < tagCount; I++)
+			dps.addTag(in.readUTF(), in.readUTF());
+
+		int dataPointCount = in.readInt();
+		for (int I = 0; I < dataPointCount; I++)
+		{
+			long timestamp = in.readLong();
+			byte type = in.readByte();
+			if (type == LONG_VALUE)
+				dps.addDataPoint(new DataPoint(timestamp, in.readLong()));
+			else if (type == DOUBLE_VALUE)
+				dps.addDataPoint(new DataPoint(timestamp, in.readDouble()));
+			else
+				throw new IOException("Unknown data point type " + type);
+		}
+
+		return (dps);
+	}
+
+	static byte[] encodeDelete(DatastoreMetricQuery query) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(DELETE_RECORD);
+		out.writeUTF(query.getName());
+
+		Collection<Map.Entry<String, String>> tags = query.getTags().entries();
+		out.writeInt(tags.size());
+		for (Map.Entry<String, String> tag : tags)
+		{
+			out.writeUTF(tag.getKey());
+			out.writeUTF(tag.getValue());
+		}
+
+		out.writeLong(query.getStartTime());
+		out.writeLong(query.getEndTime());
+
+		out.flush();
+		return (bytes.toByteArray());
+	}
+
+	static DatastoreMetricQuery decodeDelete(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		byte recordType = in.readByte();
+		if (recordType != DELETE_RECORD)
+			throw new IOException("Not a delete record " + recordType);
+
+		String name = in.readUTF();
+
+		SetMultimap<String, String> tags = HashMultimap.create();
+		int tagCount = in.readInt();
+		for (int I = 0; I < tagCount; I++)
+			tags.put(in.readUTF(), in.readUTF());
+
+		long startTime = in.readLong();
+		long endTime = in.readLong();
+
+		return (new QueryMetric(startTime, endTime, 0, name).setTags(tags));
+	}
+
+	//===========================================================================
+	/**
+	 A segment file of the log.  The log holds one reference to the active
+	 segment and every pending write holds another, the file is deleted when
+	 the last reference is released and the segments before it are deleted.
+	 */
+	public static class Segment
+	{
+		private final CommitLog m_log;
+		private final File m_file;
+		private final RandomAccessFile m_randomAccessFile;
+		private final MappedByteBuffer m_buffer;
+		private final AtomicInteger m_references = new AtomicInteger(1);
+		private final Object m_syncLock = new Object();
+		private volatile int m_writePosition = 0;
+		private volatile int m_syncedPosition = 0;
+
+		private Segment(CommitLog log, File file, int size) throws IOException
+		{
+			m_log = log;
+			m_file = file;
+			m_randomAccessFile = new RandomAccessFile(file, "rw");
+			m_randomAccessFile.setLength(size);
+			m_buffer = m_randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		/**
+		 A segment left by a previous run, it is only read by replay.
+		 */
+		private Segment(CommitLog log, File file)
+		{
+			m_log = log;
+			m_file = file;
+			m_randomAccessFile = null;
+			m_buffer = null;
+		}
+
+		private boolean isReleased()
+		{
+			return (m_references.get() == 0);
+		}
+
+		private int remaining()
+		{
+			return (m_buffer.capacity() - m_writePosition);
+		}
+
+		/**
+		 Must be called while holding the log lock.
+		 @return the position after the record
+		 */
+		private int write(byte[] payload, int checksum)
+		{
+			m_buffer.position(m_writePosition);
+			m_buffer.putInt(payload.length);
+			m_buffer.putInt(checksum);
+			m_buffer.put(payload);
+			m_writePosition = m_buffer.position();
+
+			return (m_writePosition);
+		}
+
+		/**
+		 Makes sure everything up to position is on disk.  Threads that get
+		 here while another is syncing wait and are covered by the next sync.
+		 */
+		private void sync(int position)
+		{
+			if (m_syncedPosition >= position)
+				return;
+
+			synchronized (m_syncLock)
+			{
+				if (m_syncedPosition >= position)
+					return;
+
+				int writePosition = m_writePosition;
+				m_buffer.force();
+				m_syncedPosition = writePosition;
+			}
+		}
+
+		public void retain()
+		{
+			m_references.incrementAndGet();
+		}
+
+		public void release()
+		{
+			if (m_references.decrementAndGet() == 0)
+			{
+				if (m_randomAccessFile != null)
+				{
+					unmap(m_buffer);
+
+					try
+					{
+						m_randomAccessFile.close();
+					}
+					catch (IOException e)
+					{
+						logger.error("Unable to close commit log " + m_file.getName(), e);
+					}
+				}
+
+				m_log.deleteReleasedSegments();
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.inject.Inject;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KariosDBException;
+
+/**
+ Replays the commit log on startup.  Replay runs as a service rather than
+ from the datastore setters because Guice does not order method injection,
+ a failed replay stops the startup.
+ */
+public class CommitLogReplayService implements KairosDBService
+{
+	private final CassandraDatastore m_datastore;
+
+	@Inject
+	public CommitLogReplayService(CassandraDatastore datastore)
+	{
+		m_datastore = datastore;
+	}
+
+	@Override
+	public void start() throws KariosDBException
+	{
+		try
+		{
+			m_datastore.replayCommitLog();
+		}
+		catch (DatastoreException e)
+		{
+			throw new KariosDBException("Unable to replay the commit log", e);
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+	}
+}
@@ -16,56 +16,137 @@
 
 package org.kairosdb.datastore.cassandra;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  Used to keep a limited size cache in memory.  The data type must implement
  hashcode and equal methods.
+
+ New items go into a small window and items pushed out of the window only
+ make it into the main cache if they have been seen more often than the item
+ they would replace (W-TinyLFU).  This keeps a burst of one off keys from
+ flushing out the keys that are written all the time.  Hits do not take any
+ locks, only adding an item does.
  */
 public class DataCache<T>
 {
-	private Object m_lock = new Object();
+	private final ConcurrentMap<T, Node<T>> m_entries;
+	private final FrequencySketch m_sketch;
+	private final ReentrantLock m_evictionLock = new ReentrantLock();
+	private final NodeQueue<T> m_window = new NodeQueue<T>();
+	private final NodeQueue<T> m_main = new NodeQueue<T>();
+	private final int m_windowSize;
+	private final int m_mainSize;
+
+	public DataCache(int cacheSize)
+	{
+		checkArgument(cacheSize > 0, "Cache size must be greater than zero");
+
+		m_windowSize = Math.max(1, cacheSize / 100);
+		m_mainSize = Math.max(1, cacheSize - m_windowSize);
+		m_entries = new ConcurrentHashMap<T, Node<T>>(Math.min(cacheSize, 1 << 16));
+		m_sketch = new FrequencySketch(cacheSize);
+	}
 
-	private class InternalCache extends LinkedHashMap<T, String>
+	/**
+	 Returns true if the item is already in the cache.  If the item is not
+	 in the cache the item is added.
+	 @param cacheData Item to check if in cache and or to insert into cache
+	 @return  Returns true if in cache, false otherwise.
+	 */
+	public boolean isCached(T cacheData)
 	{
-		private int m_cacheSize;
+		int hash = spread(cacheData.hashCode());
+		m_sketch.increment(hash);
 
-		public InternalCache(int cacheSize)
+		if (m_entries.containsKey(cacheData))
+			return (true);
+
+		Node<T> node = new Node<T>(cacheData, hash);
+		if (m_entries.putIfAbsent(cacheData, node) != null)
+			return (true);
+
+		m_evictionLock.lock();
+		try
 		{
-			super(16, (float)0.75, true);
-			m_cacheSize = cacheSize;
+			m_window.addLast(node);
+			evict();
 		}
-
-		protected boolean removeEldestEntry(Map.Entry<T, String> entry)
+		finally
 		{
-			return (size() > m_cacheSize);
+			m_evictionLock.unlock();
 		}
+
+		return (false);
 	}
 
-	private InternalCache m_cache;
+	/**
+	 Moves items that overflow the window into the main cache when they are
+	 used more often than the oldest item there.  Must hold the eviction lock.
+	 */
+	private void evict()
+	{
+		while (m_window.size() > m_windowSize)
+		{
+			Node<T> candidate = m_window.pollFirst();
+			if (!isLive(candidate))
+				continue;
 
-	public DataCache(int cacheSize)
+			Node<T> victim = m_main.peekFirst();
+			while (victim != null && !isLive(victim))
+			{
+				m_main.pollFirst();
+				victim = m_main.peekFirst();
+			}
+
+			if (m_main.size() < m_mainSize)
+				m_main.addLast(candidate);
+			else if (m_sketch.frequency(candidate.m_hash) > m_sketch.frequency(victim.m_hash))
+			{
+				m_main.pollFirst();
+				m_entries.remove(victim.m_key, victim);
+				m_main.addLast(candidate);
+			}
+			else
+			{
+				//The victim gets another pass through the main cache
+				m_main.pollFirst();
+				m_main.addLast(victim);
+				m_entries.remove(candidate.m_key, candidate);
+			}
+		}
+	}
+
+	private boolean isLive(Node<T> node)
 	{
-		m_cache = new InternalCache(cacheSize);
+		return (m_entries.get(node.m_key) == node);
 	}
 
 	/**
-	 Returns true if the item is already in the cache.  If the item is not
-	 in the cache the item is added.
-	 @param cacheData Item to check if in cache and or to insert into cache
-	 @return  Returns true if in cache, false otherwise.
+	 Removes a single item from the cache.  The item is unlinked from its queue
+	 so it no longer takes up room in the window or main cache.
 	 */
-	public boolean isCached(T cacheData)
+	public void remove(T cacheData)
 	{
-		String ret;
+		m_evictionLock.lock();
+		try
+		{
+			Node<T> node = m_entries.remove(cacheData);
 
-		synchronized (m_lock)
+			//A node added by isCached but not queued yet is skipped by evict
+			if (node != null && node.m_queue != null)
+				node.m_queue.remove(node);
+		}
+		finally
 		{
-			ret = m_cache.put(cacheData, "");
+			m_evictionLock.unlock();
 		}
-
-		return (ret != null);
 	}
 
 	/**
@@ -73,6 +154,210 @@ public class DataCache<T>
 	 */
 	public void clear()
 	{
-		m_cache.clear();
+		m_evictionLock.lock();
+		try
+		{
+			m_entries.clear();
+			m_window.clear();
+			m_main.clear();
+		}
+		finally
+		{
+			m_evictionLock.unlock();
+		}
+	}
+
+	public int size()
+	{
+		return (m_entries.size());
+	}
+
+	private static int spread(int hash)
+	{
+		hash ^= (hash >>> 17);
+		hash *= 0xed5ad4bb;
+		hash ^= (hash >>> 11);
+		hash *= 0xac4c1b51;
+		hash ^= (hash >>> 15);
+		return (hash);
+	}
+
+	//===========================================================================
+	private static class Node<T>
+	{
+		private final T m_key;
+		private final int m_hash;
+
+		//Guarded by the eviction lock
+		private NodeQueue<T> m_queue;
+		private Node<T> m_prev;
+		private Node<T> m_next;
+
+		public Node(T key, int hash)
+		{
+			m_key = key;
+			m_hash = hash;
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Doubly linked queue of nodes so a node can be removed from the middle.
+	 Guarded by the eviction lock.
+	 */
+	private static class NodeQueue<T>
+	{
+		private Node<T> m_first;
+		private Node<T> m_last;
+		private int m_size;
+
+		public int size()
+		{
+			return (m_size);
+		}
+
+		public Node<T> peekFirst()
+		{
+			return (m_first);
+		}
+
+		public Node<T> pollFirst()
+		{
+			Node<T> node = m_first;
+			if (node != null)
+				remove(node);
+
+			return (node);
+		}
+
+		public void addLast(Node<T> node)
+		{
+			node.m_queue = this;
+			node.m_prev = m_last;
+			node.m_next = null;
+			if (m_last == null)
+				m_first = node;
+			else
+				m_last.m_next = node;
+			m_last = node;
+			m_size++;
+		}
+
+		public void remove(Node<T> node)
+		{
+			if (node.m_prev == null)
+				m_first = node.m_next;
+			else
+				node.m_prev.m_next = node.m_next;
+
+			if (node.m_next == null)
+				m_last = node.m_prev;
+			else
+				node.m_next.m_prev = node.m_prev;
+
+			node.m_queue = null;
+			node.m_prev = null;
+			node.m_next = null;
+			m_size--;
+		}
+
+		public void clear()
+		{
+			Node<T> node = m_first;
+			while (node != null)
+			{
+				Node<T> next = node.m_next;
+				node.m_queue = null;
+				node.m_prev = null;
+				node.m_next = null;
+				node = next;
+			}
+
+			m_first = null;
+			m_last = null;
+			m_size = 0;
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Count-min sketch of how often items have been seen.  Counters are four bits
+	 packed eight to an int, they saturate at 15 and are all halved once enough
+	 items have been counted so old popularity fades out.
+	 */
+	private static class FrequencySketch
+	{
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int COUNTERS_PER_ENTRY = 16;
+
+		private final AtomicIntegerArray m_counters;
+		private final int m_mask;
+		private final int m_sampleSize;
+		private final AtomicInteger m_additions = new AtomicInteger();
+
+		public FrequencySketch(int cacheSize)
+		{
+			int width = 16;
+			while (width < cacheSize && width < (1 << 22))
+				width <<= 1;
+
+			int counterCount = width * COUNTERS_PER_ENTRY;
+			m_counters = new AtomicIntegerArray(counterCount / 8);
+			m_mask = counterCount - 1;
+			m_sampleSize = 10 * width;
+		}
+
+		private int counter(int hash, int row)
+		{
+			int h = hash + row * (hash >>> 16 | 1) * 0x9e3779b9;
+			return (spread(h) & m_mask);
+		}
+
+		private static int count(int value, int counter)
+		{
+			return ((value >>> ((counter & 7) << 2)) & 0xf);
+		}
+
+		public void increment(int hash)
+		{
+			boolean added = false;
+			for (int I = 0; I < DEPTH; I++)
+			{
+				int counter = counter(hash, I);
+				int index = counter >>> 3;
+				int value = m_counters.get(index);
+				if (count(value, counter) < MAX_COUNT &&
+						m_counters.compareAndSet(index, value, value + (1 << ((counter & 7) << 2))))
+					added = true;
+			}
+
+			if (added && m_additions.incrementAndGet() == m_sampleSize)
+				reset();
+		}
+
+		public int frequency(int hash)
+		{
+			int frequency = MAX_COUNT;
+			for (int I = 0; I < DEPTH; I++)
+			{
+				int counter = counter(hash, I);
+				frequency = Math.min(frequency, count(m_counters.get(counter >>> 3), counter));
+			}
+
+			return (frequency);
+		}
+
+		/**
+		 Halves every counter.  Increments racing with this may be lost which
+		 is fine for an estimate.
+		 */
+		private void reset()
+		{
+			for (int I = 0; I < m_counters.length(); I++)
+				m_counters.set(I, (m_counters.get(I) >>> 1) & 0x77777777);
+
+			m_additions.set(0);
+		}
 	}
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import org.kairosdb.core.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ Compressed block of the data points of one series for a time window.
+
+ Timestamps are written as the delta of the delta to the previous point and
+ values as the xor with the previous value, the same scheme as Facebook's
+ Gorilla.  Regularly spaced points with slowly changing values take a couple
+ of bits each.  Each point also has a bit that says if it is a long or a
+ double, the value bits are the long or the bits of the double.
+ */
+public class DataPointBlock
+{
+	private static final byte FORMAT_VERSION = 0x1;
+
+	private DataPointBlock()
+	{
+	}
+
+	/**
+	 Encodes the points which must be sorted by timestamp.
+	 */
+	public static ByteBuffer encode(List<DataPoint> dataPoints)
+	{
+		BitWriter writer = new BitWriter(dataPoints.size() * 4 + 16);
+		writer.writeBits(FORMAT_VERSION, 8);
+		writer.writeBits(dataPoints.size(), 32);
+
+		long prevTimestamp = 0L;
+		long prevDelta = 0L;
+		long prevValue = 0L;
+		int prevLeading = -1;
+		int prevTrailing = 0;
+
+		for (int I = 0; I < dataPoints.size(); I++)
+		{
+			DataPoint dataPoint = dataPoints.get(I);
+			long value = dataPoint.isInteger() ? dataPoint.getLongValue() :
+					Double.doubleToRawLongBits(dataPoint.getDoubleValue());
+
+			writer.writeBit(!dataPoint.isInteger());
+
+			if (I == 0)
+			{
+				writer.writeBits(dataPoint.getTimestamp(), 64);
+				writer.writeBits(value, 64);
+			}
+			else
+			{
+				long delta = dataPoint.getTimestamp() - prevTimestamp;
+				writeDeltaOfDelta(writer, delta - prevDelta);
+				prevDelta = delta;
+
+				long xor = value ^ prevValue;
+				if (xor == 0L)
+					writer.writeBit(false);
+				else
+				{
+					writer.writeBit(true);
+					int leading = Long.numberOfLeadingZeros(xor);
+					int trailing = Long.numberOfTrailingZeros(xor);
+
+					if (prevLeading != -1 && leading >= prevLeading && trailing >= prevTrailing)
+					{
+						//Meaningful bits fit in the previous window
+						writer.writeBit(false);
+						writer.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+					}
+					else
+					{
+						int significant = 64 - leading - trailing;
+						writer.writeBit(true);
+						writer.writeBits(leading, 6);
+						writer.writeBits(significant - 1, 6);
+						writer.writeBits(xor >>> trailing, significant);
+						prevLeading = leading;
+						prevTrailing = trailing;
+					}
+				}
+			}
+
+			prevTimestamp = dataPoint.getTimestamp();
+			prevValue = value;
+		}
+
+		return (writer.toByteBuffer());
+	}
+
+	private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta)
+	{
+		if (deltaOfDelta == 0L)
+			writer.writeBit(false);
+		else if (deltaOfDelta >= -64 && deltaOfDelta <= 63)
+		{
+			writer.writeBits(0x2, 2);
+			writer.writeBits(deltaOfDelta, 7);
+		}
+		else if (deltaOfDelta >= -256 && deltaOfDelta <= 255)
+		{
+			writer.writeBits(0x6, 3);
+			writer.writeBits(deltaOfDelta, 9);
+		}
+		else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047)
+		{
+			writer.writeBits(0xE, 4);
+			writer.writeBits(deltaOfDelta, 12);
+		}
+		else
+		{
+			writer.writeBits(0xF, 4);
+			writer.writeBits(deltaOfDelta, 64);
+		}
+	}
+
+	public static List<DataPoint> decode(ByteBuffer buffer)
+	{
+		BitReader reader = new BitReader(buffer);
+		int version = (int) reader.readBits(8);
+		if (version != FORMAT_VERSION)
+			throw new IllegalArgumentException("Unknown data point block version " + version);
+
+		int count = (int) reader.readBits(32);
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>(count);
+
+		long timestamp = 0L;
+		long delta = 0L;
+		long value = 0L;
+		int leading = 0;
+		int trailing = 0;
+
+		for (int I = 0; I < count; I++)
+		{
+			boolean isDouble = reader.readBit();
+
+			if (I == 0)
+			{
+				timestamp = reader.readBits(64);
+				value = reader.readBits(64);
+			}
+			else
+			{
+				delta += readDeltaOfDelta(reader);
+				timestamp += delta;
+
+				if (reader.readBit())
+				{
+					if (reader.readBit())
+					{
+						leading = (int) reader.readBits(6);
+						int significant = (int) reader.readBits(6) + 1;
+						trailing = 64 - leading - significant;
+					}
+
+					value ^= reader.readBits(64 - leading - trailing) << trailing;
+				}
+			}
+
+			if (isDouble)
+				dataPoints.add(new DataPoint(timestamp, Double.longBitsToDouble(value)));
+			else
+				dataPoints.add(new DataPoint(timestamp, value));
+		}
+
+		return (dataPoints);
+	}
+
+	private static long readDeltaOfDelta(BitReader reader)
+	{
+		if (!reader.readBit())
+			return (0L);
+		else if (!reader.readBit())
+			return (reader.readSignedBits(7));
+		else if (!reader.readBit())
+			return (reader.readSignedBits(9));
+		else if (!reader.readBit())
+			return (reader.readSignedBits(12));
+		else
+			return (reader.readBits(64));
+	}
+
+	//===========================================================================
+	private static class BitWriter
+	{
+		private byte[] m_bytes;
+		private int m_bitPosition = 0;
+
+		public BitWriter(int initialSize)
+		{
+			m_bytes = new byte[initialSize];
+		}
+
+		public void writeBit(boolean bit)
+		{
+			writeBits(bit ? 1L : 0L, 1);
+		}
+
+		/**
+		 Writes the low count bits of value, most significant first.
+		 */
+		public void writeBits(long value, int count)
+		{
+			int needed = (m_bitPosition + count + 7) / 8;
+			if (needed > m_bytes.length)
+				m_bytes = Arrays.copyOf(m_bytes, Math.max(needed, m_bytes.length * 2));
+
+			//Fills the rest of the current byte on each pass
+			while (count > 0)
+			{
+				int space = 8 - (m_bitPosition & 0x7);
+				int bits = Math.min(space, count);
+				int chunk = (int) (value >>> (count - bits)) & ((1 << bits) - 1);
+
+				m_bytes[m_bitPosition >>> 3] |= (byte) (chunk << (space - bits));
+				m_bitPosition += bits;
+				count -= bits;
+			}
+		}
+
+		public ByteBuffer toByteBuffer()
+		{
+			return (ByteBuffer.wrap(m_bytes, 0, (m_bitPosition + 7) / 8).slice());
+		}
+	}
+
+	//===========================================================================
+	private static class BitReader
+	{
+		private final ByteBuffer m_buffer;
+		private final int m_start;
+		private int m_bitPosition = 0;
+
+		public BitReader(ByteBuffer buffer)
+		{
+			m_buffer = buffer;
+			m_start = buffer.position();
+		}
+
+		public boolean readBit()
+		{
+			int b = m_buffer.get(m_start + (m_bitPosition >>> 3));
+			boolean bit = (b & (0x80 >>> (m_bitPosition & 0x7))) != 0;
+			m_bitPosition++;
+			return (bit);
+		}
+
+		public long readBits(int count)
+		{
+			long value = 0L;
+			while (count > 0)
+			{
+				int available = 8 - (m_bitPosition & 0x7);
+				int bits = Math.min(available, count);
+				int b = m_buffer.get(m_start + (m_bitPosition >>> 3)) & 0xFF;
+
+				value = (value << bits) | ((b >>> (available - bits)) & ((1 << bits) - 1));
+				m_bitPosition += bits;
+				count -= bits;
+			}
+
+			return (value);
+		}
+
+		public long readSignedBits(int count)
+		{
+			long value = readBits(count);
+			//Values written as count bits of two's complement
+			return ((value << (64 - count)) >> (64 - count));
+		}
+	}
+}
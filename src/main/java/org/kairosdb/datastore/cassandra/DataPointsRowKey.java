@@ -15,14 +15,24 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import java.nio.ByteBuffer;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 public class DataPointsRowKey
 {
+	private static final DataPointsRowKeySerializer s_serializer = new DataPointsRowKeySerializer();
+
 	private String m_metricName;
 	private long m_timestamp;
+	private long m_rowWidth;
 	private SortedMap<String, String> m_tags;
+	private boolean m_lengthPrefixedTags = false;
+	/**
+	 Serialized form of the key.  Keys read from Cassandra keep the bytes
+	 they were read with so they are written back in the same format.
+	 */
+	private volatile ByteBuffer m_serializedKey;
 
 	public DataPointsRowKey(String metricName, long timestamp)
 	{
@@ -31,15 +41,52 @@ public class DataPointsRowKey
 
 	public DataPointsRowKey(String metricName, long timestamp,
 			SortedMap<String, String> tags)
+	{
+		this(metricName, timestamp, CassandraDatastore.ROW_WIDTH, tags);
+	}
+
+	/**
+	 @param rowWidth Width of the row in milliseconds, the row holds the
+	 points from timestamp up to but not including timestamp + rowWidth
+	 */
+	public DataPointsRowKey(String metricName, long timestamp, long rowWidth,
+			SortedMap<String, String> tags)
 	{
 		m_metricName = metricName;
 		m_timestamp = timestamp;
+		m_rowWidth = rowWidth;
 		m_tags = tags;
 	}
 
 	public void addTag(String name, String value)
 	{
 		m_tags.put(name, value);
+		m_serializedKey = null;
+	}
+
+	/**
+	 Serializes the tags of a new key length prefixed instead of as a
+	 "name=value:" string.  Has no effect on a key read from Cassandra.
+	 */
+	/*package*/ void setLengthPrefixedTags(boolean lengthPrefixedTags)
+	{
+		m_lengthPrefixedTags = lengthPrefixedTags;
+		m_serializedKey = null;
+	}
+
+	/*package*/ boolean isLengthPrefixedTags()
+	{
+		return (m_lengthPrefixedTags);
+	}
+
+	/*package*/ ByteBuffer getSerializedKey()
+	{
+		return (m_serializedKey);
+	}
+
+	/*package*/ void setSerializedKey(ByteBuffer serializedKey)
+	{
+		m_serializedKey = serializedKey;
 	}
 
 	public String getMetricName()
@@ -57,6 +104,20 @@ public class DataPointsRowKey
 		return m_timestamp;
 	}
 
+	public long getRowWidth()
+	{
+		return m_rowWidth;
+	}
+
+	/**
+	 Returns true if the row holds points between startTime and endTime
+	 inclusive.
+	 */
+	public boolean overlaps(long startTime, long endTime)
+	{
+		return (m_timestamp <= endTime && m_timestamp + m_rowWidth > startTime);
+	}
+
 	@SuppressWarnings("RedundantIfStatement")
 	@Override
 	public boolean equals(Object o)
@@ -67,9 +128,14 @@ public class DataPointsRowKey
 		DataPointsRowKey that = (DataPointsRowKey) o;
 
 		if (m_timestamp != that.m_timestamp) return false;
+		if (m_rowWidth != that.m_rowWidth) return false;
 		if (!m_metricName.equals(that.m_metricName)) return false;
 		if (!m_tags.equals(that.m_tags)) return false;
 
+		//A series written before and after the tag format changed has a row in
+		//each format, those are different rows
+		if (!s_serializer.toByteBuffer(this).equals(s_serializer.toByteBuffer(that))) return false;
+
 		return true;
 	}
 
@@ -78,6 +144,7 @@ public class DataPointsRowKey
 	{
 		int result = m_metricName.hashCode();
 		result = 31 * result + (int) (m_timestamp ^ (m_timestamp >>> 32));
+		result = 31 * result + (int) (m_rowWidth ^ (m_rowWidth >>> 32));
 		result = 31 * result + m_tags.hashCode();
 		return result;
 	}
@@ -88,6 +155,7 @@ public class DataPointsRowKey
 		return "DataPointsRowKey{" +
 				"m_metricName='" + m_metricName + '\'' +
 				", m_timestamp=" + m_timestamp +
+				", m_rowWidth=" + m_rowWidth +
 				", m_tags=" + m_tags +
 				'}';
 	}
@@ -15,48 +15,65 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import com.google.common.collect.SetMultimap;
 import me.prettyprint.cassandra.serializers.AbstractSerializer;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.SortedMap;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
 
+/**
+ Row keys are written as the metric name, a null, the row timestamp and then
+ the tags.  Tags are written as a "name=value:" string, or as a marker byte
+ followed by length prefixed tag names and values when the key is set to
+ length prefixed tags.  Older versions read the tags of length prefixed keys
+ as a string and so lose them.  A row that is not the default width has
+ another marker and the width between the timestamp and the tags.  Both
+ formats are read, and deletes and compaction keep the format a key was read
+ in.  A series can so have a row in each format for the same row time, the
+ two keys are not equal.
+ */
 public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRowKey>
 {
 	public static final Charset UTF8 = Charset.forName("UTF-8");
 
-	@Override
-	public ByteBuffer toByteBuffer(DataPointsRowKey dataPointsRowKey)
-	{
-		int size = 8; //size of timestamp
-		byte[] metricName = dataPointsRowKey.getMetricName().getBytes(UTF8);
-		size += metricName.length;
-		size++; //Add one for null at end of string
-		byte[] tagString = generateTagString(dataPointsRowKey.getTags()).getBytes(UTF8);
-		size += tagString.length;
-
-		ByteBuffer buffer = ByteBuffer.allocate(size);
-		buffer.put(metricName);
-		buffer.put((byte)0x0);
-		buffer.putLong(dataPointsRowKey.getTimestamp());
-		buffer.put(tagString);
-
-		buffer.flip();
-
-		return buffer;
-	}
+	/**
+	 Follows the timestamp when the tags are length prefixed.  A tag string
+	 never starts with a null so this tells the two formats apart.
+	 */
+	public static final byte LENGTH_PREFIXED_TAGS = 0x0;
+
+	/**
+	 Follows the timestamp when the row width is not the default.
+	 */
+	public static final byte CUSTOM_ROW_WIDTH = 0x1;
 
+	private static final int MAX_FIELD_LENGTH = 0xFFFF;
 
-	private String generateTagString(SortedMap<String, String> tags)
+	private static final ThreadLocal<Encoder> s_encoder = new ThreadLocal<Encoder>()
 	{
-		StringBuilder sb = new StringBuilder();
-		for (String key : tags.keySet())
+		@Override
+		protected Encoder initialValue()
 		{
-			sb.append(key).append("=");
-			sb.append(tags.get(key)).append(":");
+			return (new Encoder());
 		}
+	};
 
-		return (sb.toString());
+	@Override
+	public ByteBuffer toByteBuffer(DataPointsRowKey dataPointsRowKey)
+	{
+		ByteBuffer serializedKey = dataPointsRowKey.getSerializedKey();
+		if (serializedKey == null)
+		{
+			serializedKey = s_encoder.get().encode(dataPointsRowKey);
+			dataPointsRowKey.setSerializedKey(serializedKey);
+		}
+
+		return (serializedKey.duplicate());
 	}
 
 	private void extractTags(DataPointsRowKey rowKey, String tagString)
@@ -90,34 +107,303 @@ public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRow
 		}
 	}
 
+	/**
+	 Moves the buffer position past the metric name, timestamp and row width.
+	 */
+	private static void skipNameAndTimestamp(ByteBuffer buffer)
+	{
+		while (buffer.get() != 0x0);
+		buffer.position(buffer.position() + 8);
+
+		if (buffer.hasRemaining() && buffer.get(buffer.position()) == CUSTOM_ROW_WIDTH)
+			buffer.position(buffer.position() + 9);
+	}
 
+	private static String readString(ByteBuffer buffer, int length)
+	{
+		String ret = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+		buffer.position(buffer.position() + length);
+		return (ret);
+	}
+
+	/**
+	 Returns a buffer over the next length prefixed field and moves past it.
+	 */
+	private static ByteBuffer sliceField(ByteBuffer buffer)
+	{
+		int length = buffer.getShort() & MAX_FIELD_LENGTH;
+		ByteBuffer field = buffer.slice();
+		field.limit(length);
+		buffer.position(buffer.position() + length);
+		return (field);
+	}
+
+	/**
+	 Does not change the position of byteBuffer.
+	 */
 	@Override
 	public DataPointsRowKey fromByteBuffer(ByteBuffer byteBuffer)
 	{
-		int start = byteBuffer.position();
-		byteBuffer.mark();
-		//Find null
-		while (byteBuffer.get() != 0x0);
+		//Copied so the key can be written back in the format it was read
+		ByteBuffer serializedKey = ByteBuffer.allocate(byteBuffer.remaining());
+		serializedKey.put(byteBuffer.duplicate());
+		serializedKey.flip();
+
+		ByteBuffer buffer = serializedKey.duplicate();
 
-		int nameSize = (byteBuffer.position() - start) -1;
-		byteBuffer.reset();
+		int nameSize = 0;
+		while (buffer.get(nameSize) != 0x0)
+			nameSize++;
 
-		byte[] metricName = new byte[nameSize];
-		byteBuffer.get(metricName);
-		byteBuffer.get(); //Skip the null
+		String metricName = readString(buffer, nameSize);
+		buffer.get(); //Skip the null
 
-		long timestamp = byteBuffer.getLong();
+		long timestamp = buffer.getLong();
 
-		DataPointsRowKey rowKey = new DataPointsRowKey(new String(metricName, UTF8),
-				timestamp);
+		long rowWidth = CassandraDatastore.ROW_WIDTH;
+		if (buffer.hasRemaining() && buffer.get(buffer.position()) == CUSTOM_ROW_WIDTH)
+		{
+			buffer.get();
+			rowWidth = buffer.getLong();
+		}
 
-		byte[] tagString = new byte[byteBuffer.remaining()];
-		byteBuffer.get(tagString);
+		DataPointsRowKey rowKey = new DataPointsRowKey(metricName, timestamp, rowWidth,
+				new TreeMap<String, String>());
 
-		String tags = new String(tagString, UTF8);
+		if (buffer.hasRemaining())
+		{
+			if (buffer.get(buffer.position()) == LENGTH_PREFIXED_TAGS)
+			{
+				buffer.get();
+				while (buffer.hasRemaining())
+				{
+					String tag = readString(buffer, buffer.getShort() & MAX_FIELD_LENGTH);
+					String value = readString(buffer, buffer.getShort() & MAX_FIELD_LENGTH);
+					rowKey.addTag(tag, value);
+				}
+			}
+			else
+				extractTags(rowKey, readString(buffer, buffer.remaining()));
+		}
 
-		extractTags(rowKey, tags);
+		rowKey.setSerializedKey(serializedKey);
 
 		return rowKey;
 	}
+
+	/**
+	 Checks the tags of a serialized row key against the filter without
+	 creating the row key.  Does not change the position of serializedKey.
+	 */
+	public boolean matches(ByteBuffer serializedKey, TagFilter filter)
+	{
+		if (filter.isEmpty())
+			return (true);
+
+		ByteBuffer buffer = serializedKey.duplicate();
+		skipNameAndTimestamp(buffer);
+
+		int matched = 0;
+		if (buffer.hasRemaining() && buffer.get(buffer.position()) == LENGTH_PREFIXED_TAGS)
+		{
+			buffer.get();
+			while (buffer.hasRemaining())
+			{
+				ByteBuffer tag = sliceField(buffer);
+				ByteBuffer value = sliceField(buffer);
+
+				int match = filter.match(tag, value);
+				if (match < 0)
+					return (false);
+				matched += match;
+			}
+		}
+		else
+		{
+			ByteBuffer tag = null;
+			int mark = buffer.position();
+			for (int position = mark; position < buffer.limit(); position++)
+			{
+				byte b = buffer.get(position);
+				if (tag == null && b == '=')
+				{
+					tag = field(buffer, mark, position);
+					mark = position + 1;
+				}
+				else if (tag != null && b == ':')
+				{
+					int match = filter.match(tag, field(buffer, mark, position));
+					if (match < 0)
+						return (false);
+					matched += match;
+
+					tag = null;
+					mark = position + 1;
+				}
+			}
+		}
+
+		return (matched == filter.size());
+	}
+
+	private static ByteBuffer field(ByteBuffer buffer, int start, int end)
+	{
+		ByteBuffer field = buffer.duplicate();
+		field.limit(end);
+		field.position(start);
+		return (field);
+	}
+
+	//===========================================================================
+	/**
+	 Tag filter of a query encoded so it can be checked against serialized
+	 row keys.  A key matches when it has every tag in the filter with one of
+	 the values given for it.
+	 */
+	public static class TagFilter
+	{
+		private final Map<ByteBuffer, Set<ByteBuffer>> m_tags = new HashMap<ByteBuffer, Set<ByteBuffer>>();
+
+		public TagFilter(SetMultimap<String, String> tags)
+		{
+			for (String tag : tags.keySet())
+			{
+				Set<ByteBuffer> values = new HashSet<ByteBuffer>();
+				for (String value : tags.get(tag))
+					values.add(ByteBuffer.wrap(value.getBytes(UTF8)));
+
+				m_tags.put(ByteBuffer.wrap(tag.getBytes(UTF8)), values);
+			}
+		}
+
+		public boolean isEmpty()
+		{
+			return (m_tags.isEmpty());
+		}
+
+		public int size()
+		{
+			return (m_tags.size());
+		}
+
+		/**
+		 @return 1 if the tag is in the filter and the value matches, 0 if the
+		 tag is not in the filter and -1 if the value does not match
+		 */
+		private int match(ByteBuffer tag, ByteBuffer value)
+		{
+			Set<ByteBuffer> values = m_tags.get(tag);
+			if (values == null)
+				return (0);
+
+			return (values.contains(value) ? 1 : -1);
+		}
+	}
+
+	//===========================================================================
+	/**
+	 Encodes row keys into a scratch buffer that is kept per thread so the
+	 only allocation is the returned key.
+	 */
+	private static class Encoder
+	{
+		private final CharsetEncoder m_charsetEncoder = UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private ByteBuffer m_scratch = ByteBuffer.allocate(256);
+
+		public ByteBuffer encode(DataPointsRowKey rowKey)
+		{
+			m_scratch.clear();
+
+			putString(rowKey.getMetricName());
+			ensureCapacity(9);
+			m_scratch.put((byte) 0x0);
+			m_scratch.putLong(rowKey.getTimestamp());
+
+			//Default width keys are written without it so they keep their old form
+			if (rowKey.getRowWidth() != CassandraDatastore.ROW_WIDTH)
+			{
+				ensureCapacity(9);
+				m_scratch.put(CUSTOM_ROW_WIDTH);
+				m_scratch.putLong(rowKey.getRowWidth());
+			}
+
+			SortedMap<String, String> tags = rowKey.getTags();
+			if (!tags.isEmpty() && rowKey.isLengthPrefixedTags())
+			{
+				ensureCapacity(1);
+				m_scratch.put(LENGTH_PREFIXED_TAGS);
+
+				for (Map.Entry<String, String> tag : tags.entrySet())
+				{
+					putField(tag.getKey());
+					putField(tag.getValue());
+				}
+			}
+			else
+			{
+				for (Map.Entry<String, String> tag : tags.entrySet())
+				{
+					putString(tag.getKey());
+					putByte((byte) '=');
+					putString(tag.getValue());
+					putByte((byte) ':');
+				}
+			}
+
+			m_scratch.flip();
+			ByteBuffer ret = ByteBuffer.allocate(m_scratch.remaining());
+			ret.put(m_scratch);
+			ret.flip();
+
+			return (ret);
+		}
+
+		private void ensureCapacity(int size)
+		{
+			if (m_scratch.remaining() < size)
+			{
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(m_scratch.capacity() * 2,
+						m_scratch.position() + size));
+				m_scratch.flip();
+				larger.put(m_scratch);
+				m_scratch = larger;
+			}
+		}
+
+		private void putString(String value)
+		{
+			//UTF-8 never needs more than three bytes per char
+			ensureCapacity(value.length() * 3);
+
+			m_charsetEncoder.reset();
+			CharBuffer chars = CharBuffer.wrap(value);
+			CoderResult result = m_charsetEncoder.encode(chars, m_scratch, true);
+			if (!result.isUnderflow())
+				throw new IllegalStateException("Unable to encode " + value);
+			m_charsetEncoder.flush(m_scratch);
+		}
+
+		private void putByte(byte value)
+		{
+			ensureCapacity(1);
+			m_scratch.put(value);
+		}
+
+		private void putField(String value)
+		{
+			ensureCapacity(2);
+			int lengthPosition = m_scratch.position();
+			m_scratch.putShort((short) 0);
+
+			putString(value);
+
+			int length = m_scratch.position() - lengthPosition - 2;
+			if (length > MAX_FIELD_LENGTH)
+				throw new IllegalArgumentException("Tag is longer than " + MAX_FIELD_LENGTH + " bytes: " + value);
+
+			m_scratch.putShort(lengthPosition, (short) length);
+		}
+	}
 }
@@ -15,6 +15,7 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import com.google.common.collect.ListMultimap;
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.IntegerSerializer;
 import me.prettyprint.hector.api.Keyspace;
@@ -24,13 +25,14 @@ import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
+import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.datastore.CachedSearchResult;
+import org.kairosdb.core.datastore.QueryDeadline;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.kairosdb.datastore.cassandra.CassandraDatastore.*;
 
@@ -46,11 +48,32 @@ public class QueryRunner
 	private CachedSearchResult m_cachedResults;
 	private int m_singleRowReadSize;
 	private int m_multiRowReadSize;
+	private ExecutorService m_sliceExecutor;
+	private Semaphore m_sliceLimit;
+	private BlockStore m_blockStore;
+	private long m_queryStartTime;
+	private long m_queryEndTime;
+	/**
+	 Names of the columns read for each row when there are blocks, points
+	 written again after compaction are in both.
+	 */
+	private Map<DataPointsRowKey, ColumnNames> m_columnNames = new HashMap<DataPointsRowKey, ColumnNames>();
 
+	/**
+	 @param rowKeys Rows to read, they must all have the same row time and width.
+	 @param sliceExecutor Executor used to page the rows that did not fit in the
+	 multi get.  Tasks run on it only fetch from Cassandra and never wait on other
+	 tasks.
+	 @param sliceLimit Shared by all runners of a query to cap the number of
+	 slices the query has in flight.
+	 @param blockStore Blocks to read along with the columns, null if there are
+	 none.
+	 */
 	public QueryRunner(Keyspace keyspace, String columnFamily,
 			List<DataPointsRowKey> rowKeys, long startTime, long endTime,
 			CachedSearchResult csResult,
-			int singleRowReadSize, int multiRowReadSize)
+			int singleRowReadSize, int multiRowReadSize,
+			ExecutorService sliceExecutor, Semaphore sliceLimit, BlockStore blockStore)
 	{
 		m_keyspace = keyspace;
 		m_columnFamily = columnFamily;
@@ -61,20 +84,27 @@ public class QueryRunner
 		else
 			m_startTime = getColumnName(m_tierRowTime, startTime, true); //Pass true so we get 0x0 for last bit
 
-		if (endTime > (m_tierRowTime + ROW_WIDTH))
-			m_endTime = getColumnName(m_tierRowTime, m_tierRowTime + ROW_WIDTH, false);
+		long rowWidth = rowKeys.get(0).getRowWidth();
+		if (endTime > (m_tierRowTime + rowWidth))
+			m_endTime = getColumnName(m_tierRowTime, m_tierRowTime + rowWidth, false);
 		else
 			m_endTime = getColumnName(m_tierRowTime, endTime, false); //Pass false so we get 0x1 for last bit
 
 		m_cachedResults = csResult;
 		m_singleRowReadSize = singleRowReadSize;
 		m_multiRowReadSize = multiRowReadSize;
-
-
+		m_sliceExecutor = sliceExecutor;
+		m_sliceLimit = sliceLimit;
+		m_blockStore = blockStore;
+		m_queryStartTime = startTime;
+		m_queryEndTime = endTime;
 	}
 
-	public void runQuery() throws IOException
+	public void runQuery() throws IOException, InterruptedException
 	{
+		//Runners queued behind others may start after the query ran out of time
+		m_cachedResults.getDeadline().check();
+
 		MultigetSliceQuery<DataPointsRowKey, Integer, ByteBuffer> msliceQuery =
 				HFactory.createMultigetSliceQuery(m_keyspace,
 						ROW_KEY_SERIALIZER,
@@ -100,56 +130,284 @@ public class QueryRunner
 		}
 
 
-		//Iterate through the unfinished rows and get the rest of the data.
-		//todo: use multiple threads to retrieve this data
-		for (Row<DataPointsRowKey, Integer, ByteBuffer> unfinishedRow : unfinishedRows)
+		if (!unfinishedRows.isEmpty())
+			pageUnfinishedRows(unfinishedRows);
+
+		if (m_blockStore != null)
+			writeBlocks(m_blockStore.readBlocks(m_rowKeys, m_queryStartTime, m_queryEndTime));
+	}
+
+	/**
+	 Each block is written as its own data point set, the same way as the
+	 slices of a paged row.  Block points that were also read as a column are
+	 left out.
+	 */
+	private void writeBlocks(ListMultimap<DataPointsRowKey, List<DataPoint>> blocks) throws IOException
+	{
+		Map<DataPointsRowKey, int[]> columnNames = new HashMap<DataPointsRowKey, int[]>();
+		for (Map.Entry<DataPointsRowKey, ColumnNames> row : m_columnNames.entrySet())
+			columnNames.put(row.getKey(), row.getValue().toSortedArray());
+
+		synchronized (m_cachedResults)
 		{
-			DataPointsRowKey key = unfinishedRow.getKey();
+			for (Map.Entry<DataPointsRowKey, List<DataPoint>> block : blocks.entries())
+			{
+				DataPointsRowKey rowKey = block.getKey();
+				List<DataPoint> dataPoints = block.getValue();
+				int[] rowColumnNames = columnNames.get(rowKey);
+				if (rowColumnNames != null)
+				{
+					dataPoints = BlockStore.removeColumns(dataPoints, rowKey.getTimestamp(), rowColumnNames);
+					if (dataPoints.isEmpty())
+						continue;
+				}
 
-			SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
-					HFactory.createSliceQuery(m_keyspace, ROW_KEY_SERIALIZER,
-					IntegerSerializer.get(), ByteBufferSerializer.get());
+				m_cachedResults.startDataPointSet(rowKey.getTags());
 
-			sliceQuery.setColumnFamily(m_columnFamily);
-			sliceQuery.setKey(key);
+				for (DataPoint dataPoint : dataPoints)
+				{
+					if (dataPoint.isInteger())
+						m_cachedResults.addDataPoint(dataPoint.getTimestamp(), dataPoint.getLongValue());
+					else
+						m_cachedResults.addDataPoint(dataPoint.getTimestamp(), dataPoint.getDoubleValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 Pages the rest of the data for each unfinished row.  Rows are paged
+	 concurrently on the slice executor, one slice in flight per row so the
+	 points of a row are written in order.  The next slice of a row is requested
+	 before the current one is written to the cache file.  Slices still in
+	 flight are cancelled if the query runs out of time.
+	 */
+	private void pageUnfinishedRows(List<Row<DataPointsRowKey, Integer, ByteBuffer>> unfinishedRows)
+			throws IOException, InterruptedException
+	{
+		CompletionService<Slice> completionService = new ExecutorCompletionService<Slice>(m_sliceExecutor);
+		Deque<SliceFetch> waitingFetches = new ArrayDeque<SliceFetch>();
+		Set<Future<Slice>> inFlight = new HashSet<Future<Slice>>();
+		QueryDeadline deadline = m_cachedResults.getDeadline();
 
+		for (Row<DataPointsRowKey, Integer, ByteBuffer> unfinishedRow : unfinishedRows)
+		{
 			List<HColumn<Integer, ByteBuffer>> columns = unfinishedRow.getColumnSlice().getColumns();
+			Integer lastTime = columns.get(columns.size() - 1).getName();
+			waitingFetches.add(new SliceFetch(unfinishedRow.getKey(), lastTime + 1));
+		}
+
+		try
+		{
+			while (!waitingFetches.isEmpty() || !inFlight.isEmpty())
+			{
+				submitWaitingFetches(completionService, waitingFetches, inFlight, deadline);
+
+				Future<Slice> completed = completionService.poll(deadline.getRemaining(), TimeUnit.MILLISECONDS);
+				if (completed == null)
+				{
+					deadline.check();
+					continue;
+				}
+
+				inFlight.remove(completed);
+				m_sliceLimit.release();
 
-			do
+				Slice slice = getSlice(completed);
+				List<HColumn<Integer, ByteBuffer>> columns = slice.getColumns();
+
+				//Read ahead on this row while the current slice is written out
+				if (columns.size() == m_singleRowReadSize)
+				{
+					Integer lastTime = columns.get(columns.size() - 1).getName();
+					waitingFetches.addFirst(new SliceFetch(slice.getRowKey(), lastTime + 1));
+					submitWaitingFetches(completionService, waitingFetches, inFlight, deadline);
+				}
+
+				writeColumns(slice.getRowKey(), columns);
+			}
+		}
+		finally
+		{
+			for (Future<Slice> future : inFlight)
 			{
-				Integer lastTime = columns.get(columns.size() -1).getName();
+				future.cancel(true);
+				m_sliceLimit.release();
+			}
+		}
+	}
 
-				sliceQuery.setRange(lastTime+1, m_endTime, false, m_singleRowReadSize);
+	/**
+	 Submits as many waiting fetches as the query's slice limit allows.  If
+	 nothing is in flight for this runner it blocks until a permit frees up or
+	 the deadline passes, otherwise the caller would wait on a completion that
+	 never comes.  Permits are given back when the slice is taken off the
+	 completion service.
+	 */
+	private void submitWaitingFetches(CompletionService<Slice> completionService,
+			Deque<SliceFetch> waitingFetches, Set<Future<Slice>> inFlight, QueryDeadline deadline)
+			throws InterruptedException
+	{
+		while (!waitingFetches.isEmpty())
+		{
+			if (inFlight.isEmpty())
+			{
+				while (!m_sliceLimit.tryAcquire(deadline.getRemaining(), TimeUnit.MILLISECONDS))
+					deadline.check();
+			}
+			else if (!m_sliceLimit.tryAcquire())
+				break;
 
-				columns = sliceQuery.execute().get().getColumns();
-				writeColumns(key, columns);
-			} while (columns.size() == m_singleRowReadSize);
+			SliceFetch fetch = waitingFetches.removeFirst();
+			try
+			{
+				inFlight.add(completionService.submit(fetch));
+			}
+			catch (RejectedExecutionException e)
+			{
+				m_sliceLimit.release();
+				throw e;
+			}
 		}
 	}
 
+	private Slice getSlice(Future<Slice> future) throws IOException, InterruptedException
+	{
+		try
+		{
+			return (future.get());
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new IOException(cause);
+		}
+	}
 
+	/**
+	 Runners for the same query execute on separate threads and share the
+	 CachedSearchResult, so each slice is written as one unit while holding
+	 the result's monitor.
+	 */
 	private void writeColumns(DataPointsRowKey rowKey, List<HColumn<Integer, ByteBuffer>> columns)
 			throws IOException
 	{
 		Map<String, String> tags = rowKey.getTags();
-		m_cachedResults.startDataPointSet(tags);
 
-		for (HColumn<Integer, ByteBuffer> column : columns)
+		if (m_blockStore != null)
 		{
-			int columnTime = column.getName();
-
-			ByteBuffer value = column.getValue();
-			if (isLongValue(columnTime))
+			ColumnNames columnNames = m_columnNames.get(rowKey);
+			if (columnNames == null)
 			{
-				m_cachedResults.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
-						columnTime), ValueSerializer.getLongFromByteBuffer(value));
+				columnNames = new ColumnNames();
+				m_columnNames.put(rowKey, columnNames);
 			}
-			else
+
+			for (HColumn<Integer, ByteBuffer> column : columns)
+				columnNames.add(column.getName());
+		}
+
+		synchronized (m_cachedResults)
+		{
+			m_cachedResults.startDataPointSet(tags);
+
+			for (HColumn<Integer, ByteBuffer> column : columns)
 			{
-				m_cachedResults.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
-						columnTime), ValueSerializer.getDoubleFromByteBuffer(value));
+				int columnTime = column.getName();
+
+				ByteBuffer value = column.getValue();
+				if (isLongValue(columnTime))
+				{
+					m_cachedResults.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
+							columnTime), ValueSerializer.getLongFromByteBuffer(value));
+				}
+				else
+				{
+					m_cachedResults.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
+							columnTime), ValueSerializer.getDoubleFromByteBuffer(value));
+				}
 			}
 		}
 	}
 
+	//===========================================================================
+	/**
+	 Growable array of column names, kept as ints as a row can have millions
+	 of columns.
+	 */
+	private static class ColumnNames
+	{
+		private int[] m_names = new int[16];
+		private int m_size = 0;
+
+		public void add(int name)
+		{
+			if (m_size == m_names.length)
+				m_names = Arrays.copyOf(m_names, m_size * 2);
+
+			m_names[m_size++] = name;
+		}
+
+		public int[] toSortedArray()
+		{
+			int[] ret = Arrays.copyOf(m_names, m_size);
+			Arrays.sort(ret);
+			return (ret);
+		}
+	}
+
+	//===========================================================================
+	private class SliceFetch implements Callable<Slice>
+	{
+		private final DataPointsRowKey m_rowKey;
+		private final int m_startColumn;
+
+		public SliceFetch(DataPointsRowKey rowKey, int startColumn)
+		{
+			m_rowKey = rowKey;
+			m_startColumn = startColumn;
+		}
+
+		@Override
+		public Slice call()
+		{
+			SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+					HFactory.createSliceQuery(m_keyspace, ROW_KEY_SERIALIZER,
+							IntegerSerializer.get(), ByteBufferSerializer.get());
+
+			sliceQuery.setColumnFamily(m_columnFamily);
+			sliceQuery.setKey(m_rowKey);
+			sliceQuery.setRange(m_startColumn, m_endTime, false, m_singleRowReadSize);
+
+			return (new Slice(m_rowKey, sliceQuery.execute().get().getColumns()));
+		}
+	}
+
+	//===========================================================================
+	private static class Slice
+	{
+		private final DataPointsRowKey m_rowKey;
+		private final List<HColumn<Integer, ByteBuffer>> m_columns;
+
+		public Slice(DataPointsRowKey rowKey, List<HColumn<Integer, ByteBuffer>> columns)
+		{
+			m_rowKey = rowKey;
+			m_columns = columns;
+		}
+
+		public DataPointsRowKey getRowKey()
+		{
+			return (m_rowKey);
+		}
+
+		public List<HColumn<Integer, ByteBuffer>> getColumns()
+		{
+			return (m_columns);
+		}
+	}
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.ColumnSliceIterator;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.query.SliceQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.CF_ROW_KEY_INDEX;
+
+/**
+ Bloom filter of the row keys already in the row key index for the rows that
+ hold the time the filter was loaded.
+ It is loaded at startup so the row keys of active series are not all written
+ to the index again after a restart.
+
+ A key the filter thinks is indexed is not written from the calling thread.
+ Instead it is queued and a background thread reads the index in batches and
+ writes any key that turns out to be missing, so a false positive only delays
+ the index write.
+ */
+public class RowKeyFilter implements Runnable
+{
+	public static final Logger logger = LoggerFactory.getLogger(RowKeyFilter.class);
+
+	private static final int VERIFY_QUEUE_SIZE = 100000;
+	private static final int VERIFY_BATCH_SIZE = 1000;
+
+	private final Keyspace m_keyspace;
+	private final RowKeyWriter m_rowKeyWriter;
+	private final long m_loadTime;
+	private final BloomFilter<DataPointsRowKey> m_filter;
+	private final int m_keyCount;
+	private final BlockingQueue<DataPointsRowKey> m_unverifiedKeys;
+	private final AtomicLong m_verifiedCount = new AtomicLong();
+	private final AtomicLong m_falsePositiveCount = new AtomicLong();
+	private final Thread m_verifyThread;
+	private volatile boolean m_exit = false;
+
+	/**
+	 Writes a row key to the indexes.
+	 */
+	public interface RowKeyWriter
+	{
+		public void writeRowKey(DataPointsRowKey rowKey, long now);
+	}
+
+	/**
+	 @param queueSize Number of keys that can wait to be verified
+	 */
+	/*package*/ RowKeyFilter(Keyspace keyspace, RowKeyWriter rowKeyWriter,
+			long loadTime, List<DataPointsRowKey> rowKeys, double falsePositiveProbability, int queueSize)
+	{
+		m_keyspace = keyspace;
+		m_rowKeyWriter = rowKeyWriter;
+		m_loadTime = loadTime;
+		m_keyCount = rowKeys.size();
+		m_unverifiedKeys = new ArrayBlockingQueue<DataPointsRowKey>(queueSize);
+
+		m_filter = BloomFilter.create(RowKeyFunnel.INSTANCE, Math.max(1, rowKeys.size()),
+				falsePositiveProbability);
+		for (DataPointsRowKey rowKey : rowKeys)
+			m_filter.put(rowKey);
+
+		m_verifyThread = new Thread(this, "row-key-filter");
+		m_verifyThread.setDaemon(true);
+		m_verifyThread.start();
+	}
+
+	/**
+	 Reads the row keys of every metric for the row that holds loadTime from
+	 the row key index and builds a filter from them.
+	 */
+	public static RowKeyFilter load(Keyspace keyspace, RowKeyWriter rowKeyWriter,
+			Iterable<String> metricNames, RowWidthRules rowWidths, long loadTime,
+			double falsePositiveProbability, int readSize)
+	{
+		SliceQuery<String, DataPointsRowKey, String> sliceQuery =
+				HFactory.createSliceQuery(keyspace, StringSerializer.get(),
+						CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER, StringSerializer.get());
+		sliceQuery.setColumnFamily(CF_ROW_KEY_INDEX);
+
+		List<DataPointsRowKey> rowKeys = new ArrayList<DataPointsRowKey>();
+		for (String metricName : metricNames)
+		{
+			sliceQuery.setKey(metricName);
+			long rowTime = CassandraDatastore.calculateRowTime(loadTime, rowWidths.getRowWidth(metricName));
+
+			//Adding 1 to the row time picks up the keys with tags
+			ColumnSliceIterator<String, DataPointsRowKey, String> iterator =
+					new ColumnSliceIterator<String, DataPointsRowKey, String>(sliceQuery,
+							new DataPointsRowKey(metricName, rowTime),
+							new DataPointsRowKey(metricName, rowTime + 1), false, readSize);
+
+			while (iterator.hasNext())
+			{
+				DataPointsRowKey rowKey = iterator.next().getName();
+				if (rowKey.overlaps(loadTime, loadTime))
+					rowKeys.add(rowKey);
+			}
+		}
+
+		return (new RowKeyFilter(keyspace, rowKeyWriter, loadTime, rowKeys, falsePositiveProbability,
+				VERIFY_QUEUE_SIZE));
+	}
+
+	/**
+	 Returns true if the row key is already in the index or has been queued to
+	 be checked.  Returns false if the caller needs to write it.
+	 */
+	public boolean isIndexed(DataPointsRowKey rowKey)
+	{
+		if (m_exit || !rowKey.overlaps(m_loadTime, m_loadTime) || !m_filter.mightContain(rowKey))
+			return (false);
+
+		//If the queue is full the caller writes the key which is always safe
+		return (m_unverifiedKeys.offer(rowKey));
+	}
+
+	public int getKeyCount()
+	{
+		return (m_keyCount);
+	}
+
+	public double getExpectedFalsePositiveProbability()
+	{
+		return (m_filter.expectedFalsePositiveProbability());
+	}
+
+	public long getAndResetVerifiedCount()
+	{
+		return (m_verifiedCount.getAndSet(0));
+	}
+
+	public long getAndResetFalsePositiveCount()
+	{
+		return (m_falsePositiveCount.getAndSet(0));
+	}
+
+	/**
+	 Stops the verify thread after it has checked the keys already queued.
+	 */
+	public void close() throws InterruptedException
+	{
+		m_exit = true;
+		m_verifyThread.join();
+	}
+
+	@Override
+	public void run()
+	{
+		List<DataPointsRowKey> batch = new ArrayList<DataPointsRowKey>();
+
+		while (!m_exit || !m_unverifiedKeys.isEmpty())
+		{
+			try
+			{
+				DataPointsRowKey rowKey = m_unverifiedKeys.poll(100, TimeUnit.MILLISECONDS);
+				if (rowKey == null)
+					continue;
+
+				batch.add(rowKey);
+				m_unverifiedKeys.drainTo(batch, VERIFY_BATCH_SIZE - 1);
+
+				verify(batch);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (Exception e)
+			{
+				//Put the keys back in the index to be safe
+				logger.error("Unable to verify row keys, writing them to the index", e);
+				writeRowKeys(batch);
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+	}
+
+	private void verify(List<DataPointsRowKey> batch)
+	{
+		ListMultimap<String, DataPointsRowKey> keysByMetric = ArrayListMultimap.create();
+		for (DataPointsRowKey rowKey : batch)
+			keysByMetric.put(rowKey.getMetricName(), rowKey);
+
+		for (String metricName : keysByMetric.keySet())
+		{
+			List<DataPointsRowKey> rowKeys = keysByMetric.get(metricName);
+			Set<DataPointsRowKey> found = getIndexedKeys(metricName, rowKeys);
+
+			List<DataPointsRowKey> missing = new ArrayList<DataPointsRowKey>();
+			for (DataPointsRowKey rowKey : rowKeys)
+			{
+				if (!found.contains(rowKey))
+					missing.add(rowKey);
+			}
+
+			m_verifiedCount.addAndGet(rowKeys.size());
+			m_falsePositiveCount.addAndGet(missing.size());
+			writeRowKeys(missing);
+		}
+	}
+
+	/**
+	 Returns the keys of the metric that are in the row key index.
+	 */
+	/*package*/ Set<DataPointsRowKey> getIndexedKeys(String metricName, List<DataPointsRowKey> rowKeys)
+	{
+		SliceQuery<String, DataPointsRowKey, String> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(),
+						CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER, StringSerializer.get());
+		sliceQuery.setColumnFamily(CF_ROW_KEY_INDEX)
+				.setKey(metricName)
+				.setColumnNames(rowKeys.toArray(new DataPointsRowKey[rowKeys.size()]));
+
+		Set<DataPointsRowKey> found = new HashSet<DataPointsRowKey>();
+		for (HColumn<DataPointsRowKey, String> column : sliceQuery.execute().get().getColumns())
+			found.add(column.getName());
+
+		return (found);
+	}
+
+	private void writeRowKeys(List<DataPointsRowKey> rowKeys)
+	{
+		long now = System.currentTimeMillis();
+		for (DataPointsRowKey rowKey : rowKeys)
+			m_rowKeyWriter.writeRowKey(rowKey, now);
+	}
+
+	//===========================================================================
+	private enum RowKeyFunnel implements Funnel<DataPointsRowKey>
+	{
+		INSTANCE;
+
+		@Override
+		public void funnel(DataPointsRowKey rowKey, PrimitiveSink into)
+		{
+			into.putString(rowKey.getMetricName());
+			into.putLong(rowKey.getTimestamp());
+			into.putLong(rowKey.getRowWidth());
+			for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+			{
+				into.putString(tag.getKey());
+				into.putChar('=');
+				into.putString(tag.getValue());
+				into.putChar(':');
+			}
+		}
+	}
+}
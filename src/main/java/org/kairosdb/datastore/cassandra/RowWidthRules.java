@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Picks the row width of a metric from a list of rules.  Rules are written as
+ a comma separated list of regex=width where width is in milliseconds, the
+ first rule whose regex matches the whole metric name is used.  Metrics that
+ match no rule use CassandraDatastore.ROW_WIDTH.
+
+ Column names hold the offset from the row time shifted left one bit so a
+ row can be at most Integer.MAX_VALUE milliseconds wide, about 24 days.
+ */
+public class RowWidthRules
+{
+	public static final long MAX_ROW_WIDTH = Integer.MAX_VALUE;
+
+	private final List<Pattern> m_patterns = new ArrayList<Pattern>();
+	private final List<Long> m_widths = new ArrayList<Long>();
+	private final ConcurrentMap<String, Long> m_metricWidths = new ConcurrentHashMap<String, Long>();
+	private final long m_maxRowWidth;
+
+	public RowWidthRules(String rules)
+	{
+		long maxRowWidth = CassandraDatastore.ROW_WIDTH;
+
+		for (String rule : rules.split(","))
+		{
+			rule = rule.trim();
+			if (rule.length() == 0)
+				continue;
+
+			int equals = rule.lastIndexOf('=');
+			checkArgument(equals > 0, "Row width rule must be regex=width: " + rule);
+
+			long width = Long.parseLong(rule.substring(equals + 1).trim());
+			checkArgument(width > 0 && width <= MAX_ROW_WIDTH,
+					"Row width must be greater than zero and at most " + MAX_ROW_WIDTH + ": " + rule);
+
+			m_patterns.add(Pattern.compile(rule.substring(0, equals).trim()));
+			m_widths.add(width);
+			maxRowWidth = Math.max(maxRowWidth, width);
+		}
+
+		m_maxRowWidth = maxRowWidth;
+	}
+
+	public long getRowWidth(String metricName)
+	{
+		Long width = m_metricWidths.get(metricName);
+		if (width == null)
+		{
+			width = CassandraDatastore.ROW_WIDTH;
+			for (int I = 0; I < m_patterns.size(); I++)
+			{
+				if (m_patterns.get(I).matcher(metricName).matches())
+				{
+					width = m_widths.get(I);
+					break;
+				}
+			}
+
+			m_metricWidths.put(metricName, width);
+		}
+
+		return (width);
+	}
+
+	/**
+	 Widest row any metric can have.  Queries look this far back for rows
+	 that overlap their start time.
+	 */
+	public long getMaxRowWidth()
+	{
+		return (m_maxRowWidth);
+	}
+}
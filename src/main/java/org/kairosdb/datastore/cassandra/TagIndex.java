@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.SetMultimap;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.ColumnSliceIterator;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.query.CountQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.CF_ROW_KEY_INDEX;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.ROW_WIDTH;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.calculateRowTime;
+
+/**
+ Inverted index from metric, time bucket, tag name and tag value to the row
+ keys with that tag.  Buckets are ROW_WIDTH wide whatever the width of the
+ rows in them, a row is in the bucket that holds its row time.  It is written
+ alongside the row key index and lets a query that filters on a selective
+ tag read only the matching keys instead of every key of the metric.
+
+ The index only covers row times from its start time on, keys written before
+ the index was turned on are not in it.
+ */
+public class TagIndex
+{
+	public static final Logger logger = LoggerFactory.getLogger(TagIndex.class);
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final Keyspace m_keyspace;
+	private final String m_cfName;
+	private final WriteBuffer<ByteBuffer, DataPointsRowKey, String> m_writeBuffer;
+	private final long m_startTime;
+	private final int m_scanThreshold;
+	private final int m_readSize;
+
+	/**
+	 @param startTime First row time the index has every key for
+	 @param scanThreshold The index is only used when the filter matches fewer
+	 keys than this and the metric has at least this many
+	 */
+	public TagIndex(Keyspace keyspace, String cfName,
+			WriteBuffer<ByteBuffer, DataPointsRowKey, String> writeBuffer,
+			long startTime, int scanThreshold, int readSize)
+	{
+		m_keyspace = keyspace;
+		m_cfName = cfName;
+		m_writeBuffer = writeBuffer;
+		m_startTime = startTime;
+		m_scanThreshold = scanThreshold;
+		m_readSize = readSize;
+	}
+
+	public long getStartTime()
+	{
+		return (m_startTime);
+	}
+
+	/**
+	 Index row key made of the metric name, bucket time, tag name and tag value.
+	 */
+	public static ByteBuffer indexKey(String metricName, long bucketTime, String tag, String value)
+	{
+		byte[] name = metricName.getBytes(DataPointsRowKeySerializer.UTF8);
+		byte[] tagBytes = tag.getBytes(DataPointsRowKeySerializer.UTF8);
+		byte[] valueBytes = value.getBytes(DataPointsRowKeySerializer.UTF8);
+
+		ByteBuffer buffer = ByteBuffer.allocate(name.length + 11 + tagBytes.length + valueBytes.length);
+		buffer.put(name);
+		buffer.put((byte) 0x0);
+		buffer.putLong(bucketTime);
+		buffer.putShort((short) tagBytes.length);
+		buffer.put(tagBytes);
+		buffer.put(valueBytes);
+		buffer.flip();
+
+		return (buffer);
+	}
+
+	public void addRowKey(DataPointsRowKey rowKey, long now, CommitLog.Segment segment)
+	{
+		for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+		{
+			m_writeBuffer.addData(indexKey(rowKey.getMetricName(), calculateRowTime(rowKey.getTimestamp()),
+					tag.getKey(), tag.getValue()), rowKey, "", now, segment);
+		}
+	}
+
+	public void deleteRowKey(DataPointsRowKey rowKey, long now, CommitLog.Segment segment)
+	{
+		for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+		{
+			m_writeBuffer.deleteColumn(indexKey(rowKey.getMetricName(), calculateRowTime(rowKey.getTimestamp()),
+					tag.getKey(), tag.getValue()), rowKey, now, segment);
+		}
+	}
+
+	/**
+	 Returns the row keys of the metric between the two row times that match
+	 the filter, or null if scanning the row key index is expected to be
+	 cheaper.  Both row times must be covered by the index.
+
+	 The cost is estimated with counts that stop at the scan threshold.  The
+	 index is used if the metric has at least threshold keys in the range and
+	 the least common filter tag has fewer.
+	 */
+	public List<DataPointsRowKey> getKeys(String metricName, long startRowTime, long endRowTime,
+			SetMultimap<String, String> tags, DataPointsRowKeySerializer.TagFilter tagFilter)
+	{
+		if (countMetricKeys(metricName, startRowTime, endRowTime) < m_scanThreshold)
+			return (null);
+
+		String bestTag = null;
+		int bestCount = m_scanThreshold;
+		for (String tag : tags.keySet())
+		{
+			int count = countTagKeys(metricName, startRowTime, endRowTime, tag, tags.get(tag), bestCount);
+			if (count < bestCount)
+			{
+				bestTag = tag;
+				bestCount = count;
+			}
+		}
+
+		if (bestTag == null)
+			return (null);
+
+		if (logger.isDebugEnabled())
+			logger.debug("Using tag index on " + bestTag + " for " + metricName + ", about " + bestCount + " keys");
+
+		SliceQuery<ByteBuffer, ByteBuffer, String> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, ByteBufferSerializer.get(),
+						ByteBufferSerializer.get(), StringSerializer.get());
+		sliceQuery.setColumnFamily(m_cfName);
+
+		List<DataPointsRowKey> ret = new ArrayList<DataPointsRowKey>();
+		for (long bucketTime = calculateRowTime(startRowTime); bucketTime <= endRowTime; bucketTime += ROW_WIDTH)
+		{
+			for (String value : tags.get(bestTag))
+			{
+				sliceQuery.setKey(indexKey(metricName, bucketTime, bestTag, value));
+
+				ColumnSliceIterator<ByteBuffer, ByteBuffer, String> iterator =
+						new ColumnSliceIterator<ByteBuffer, ByteBuffer, String>(sliceQuery,
+								EMPTY, EMPTY, false, m_readSize);
+
+				while (iterator.hasNext())
+				{
+					ByteBuffer serializedKey = iterator.next().getName();
+					if (!DATA_POINTS_ROW_KEY_SERIALIZER.matches(serializedKey, tagFilter))
+						continue;
+
+					//The first bucket can hold rows from before the start
+					DataPointsRowKey rowKey = DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(serializedKey);
+					if (rowKey.getTimestamp() >= startRowTime)
+						ret.add(rowKey);
+				}
+			}
+		}
+
+		return (ret);
+	}
+
+	private int countMetricKeys(String metricName, long startRowTime, long endRowTime)
+	{
+		CountQuery<String, ByteBuffer> countQuery = HFactory.createCountQuery(m_keyspace,
+				StringSerializer.get(), ByteBufferSerializer.get());
+		countQuery.setColumnFamily(CF_ROW_KEY_INDEX)
+				.setKey(metricName)
+				.setRange(DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(new DataPointsRowKey(metricName, startRowTime)),
+						DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(new DataPointsRowKey(metricName, endRowTime + 1)),
+						m_scanThreshold);
+
+		return (countQuery.execute().get());
+	}
+
+	/**
+	 Counts the keys with any of the values for the tag, stops once limit is
+	 reached.
+	 */
+	private int countTagKeys(String metricName, long startRowTime, long endRowTime,
+			String tag, Iterable<String> values, int limit)
+	{
+		CountQuery<ByteBuffer, ByteBuffer> countQuery = HFactory.createCountQuery(m_keyspace,
+				ByteBufferSerializer.get(), ByteBufferSerializer.get());
+		countQuery.setColumnFamily(m_cfName);
+
+		int count = 0;
+		for (long bucketTime = calculateRowTime(startRowTime); bucketTime <= endRowTime; bucketTime += ROW_WIDTH)
+		{
+			for (String value : values)
+			{
+				countQuery.setKey(indexKey(metricName, bucketTime, tag, value))
+						.setRange(EMPTY, EMPTY, limit - count);
+
+				count += countQuery.execute().get();
+				if (count >= limit)
+					return (count);
+			}
+		}
+
+		return (count);
+	}
+}
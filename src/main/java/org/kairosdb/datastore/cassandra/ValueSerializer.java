@@ -22,6 +22,13 @@ public class ValueSerializer
 {
 	public static final byte FLOAT_VALUE = 0x1;
 	public static final byte DOUBLE_VALUE = 0x2;
+	public static final byte VARINT_DOUBLE_VALUE = 0x3;
+
+	/**
+	 Whole doubles at or below this magnitude convert to a long and back
+	 without loss.
+	 */
+	private static final double MAX_EXACT_LONG = 9007199254740992.0; //2^53
 
 	public static ByteBuffer toByteBuffer(long value)
 	{
@@ -61,6 +68,57 @@ public class ValueSerializer
 	}
 
 
+	/**
+	 Writes the double without losing precision, as a float when a float holds
+	 it exactly and as the full double otherwise.  Both forms are read by
+	 older versions.
+	 */
+	public static ByteBuffer toByteBuffer(double value)
+	{
+		return (toByteBuffer(value, false));
+	}
+
+	/**
+	 Same as toByteBuffer(double) but with varint set whole numbers are
+	 written as a zigzag varint.  Older versions cannot read that form.
+	 */
+	public static ByteBuffer toByteBuffer(double value, boolean varint)
+	{
+		ByteBuffer buffer;
+
+		if (varint && value == Math.rint(value) && Math.abs(value) <= MAX_EXACT_LONG &&
+				Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0))
+		{
+			long longValue = (long) value;
+			long zigzag = (longValue << 1) ^ (longValue >> 63);
+
+			buffer = ByteBuffer.allocate(10);
+			buffer.put(VARINT_DOUBLE_VALUE);
+			while ((zigzag & ~0x7FL) != 0L)
+			{
+				buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+			buffer.put((byte) zigzag);
+		}
+		else if ((double) (float) value == value)
+		{
+			buffer = ByteBuffer.allocate(5);
+			buffer.put(FLOAT_VALUE);
+			buffer.putFloat((float) value);
+		}
+		else
+		{
+			buffer = ByteBuffer.allocate(9);
+			buffer.put(DOUBLE_VALUE);
+			buffer.putDouble(value);
+		}
+
+		buffer.flip();
+
+		return (buffer);
+	}
+
 	public static ByteBuffer toByteBuffer(float value)
 	{
 		ByteBuffer buffer = ByteBuffer.allocate(5);
@@ -81,6 +139,20 @@ public class ValueSerializer
 
 		if (flag == FLOAT_VALUE)
 			ret = byteBuffer.getFloat();
+		else if (flag == VARINT_DOUBLE_VALUE)
+		{
+			long zigzag = 0L;
+			int shift = 0;
+			byte b;
+			do
+			{
+				b = byteBuffer.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			ret = (double) ((zigzag >>> 1) ^ -(zigzag & 0x1));
+		}
 		else
 			ret = byteBuffer.getDouble();
 
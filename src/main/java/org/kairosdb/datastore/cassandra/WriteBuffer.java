@@ -15,6 +15,7 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import me.prettyprint.cassandra.model.HColumnImpl;
 import me.prettyprint.cassandra.model.MutatorImpl;
 import me.prettyprint.hector.api.Keyspace;
@@ -23,209 +24,514 @@ import me.prettyprint.hector.api.mutation.Mutator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.locks.Condition;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ Buffers writes to a column family and sends them to Cassandra in the
+ background.  Producers are spread over a set of stripes, each with its own
+ lock, so threads adding data rarely contend with each other.
+
+ The write thread flushes the buffer every write delay, or sooner once the
+ flush size is reached.  Pending writes are grouped by row key, split into
+ batches and handed to a pool of flush threads so a slow batch does not hold
+ up the next flush.
+
+ The batch size and the max buffer size adapt to Cassandra.  Batches slower
+ than the target latency cut the batch size and errors cut both, each fast
+ batch grows them back a step.  Callers check isFull and shed data rather
+ than wait on a full buffer.
+ */
 public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runnable
 {
 	public static final Logger logger = LoggerFactory.getLogger(WriteBuffer.class);
 
+	public static final int BUFFER_SIZE_INCREASE = 1000;
+
 	private Keyspace m_keyspace;
 	private String m_cfName;
-	private Mutator<RowKeyType> m_mutator;
-	private volatile int m_bufferCount = 0;
-	private ReentrantLock m_mutatorLock;
-	private Condition m_lockCondition;
+	private final List<Stripe> m_stripes;
+	private final AtomicInteger m_bufferCount = new AtomicInteger();
+	private final AtomicInteger m_unacknowledgedCount = new AtomicInteger();
 
 	private Thread m_writeThread;
-	private boolean m_exit = false;
+	private final ExecutorService m_flushExecutor;
+	private final Semaphore m_flushPermits;
+	private volatile boolean m_flushRequested = false;
+	private volatile boolean m_exit = false;
 	private int m_writeDelay;
+	private int m_flushSize;
+	private final AimdLimit m_batchLimit;
+	private int m_targetLatency;
 	private Serializer<RowKeyType> m_rowKeySerializer;
 	private Serializer<ColumnKeyType> m_columnKeySerializer;
 	private Serializer<ValueType> m_valueSerializer;
 	private WriteBufferStats m_writeStats;
-	private int m_maxBufferSize;
-	private int m_initialMaxBufferSize;
+	private final AimdLimit m_bufferLimit;
 
+	/**
+	 @param flushThreads Number of threads sending batches to Cassandra
+	 @param flushSize Number of pending writes that triggers a flush before the
+	 write delay is up
+	 @param batchSize Maximum number of writes sent to Cassandra in one batch
+	 @param targetLatency Batches that take longer than this many milliseconds
+	 reduce the batch size
+	 */
 	public WriteBuffer(Keyspace keyspace, String cfName,
 			int writeDelay, int maxWriteSize, Serializer<RowKeyType> keySerializer,
 			Serializer<ColumnKeyType> columnKeySerializer,
 			Serializer<ValueType> valueSerializer,
 			WriteBufferStats stats,
-			ReentrantLock mutatorLock,
-			Condition lockCondition)
+			int flushThreads, int flushSize, int batchSize, int targetLatency)
 	{
 		m_keyspace = keyspace;
 		m_cfName = cfName;
 		m_writeDelay = writeDelay;
-		m_initialMaxBufferSize = m_maxBufferSize = maxWriteSize;
+		m_bufferLimit = new AimdLimit(Math.max(1, maxWriteSize / 10), maxWriteSize,
+				BUFFER_SIZE_INCREASE, 0.75);
+		m_flushSize = flushSize;
+		m_batchLimit = new AimdLimit(Math.max(1, batchSize / 50), batchSize,
+				Math.max(1, batchSize / 20), 0.5);
+		m_targetLatency = targetLatency;
 		m_rowKeySerializer = keySerializer;
 		m_columnKeySerializer = columnKeySerializer;
 		m_valueSerializer = valueSerializer;
 		m_writeStats = stats;
-		m_mutatorLock = mutatorLock;
-		m_lockCondition = lockCondition;
 
-		m_mutator = new MutatorImpl<RowKeyType>(keyspace, keySerializer);
+		int stripeCount = stripeCount(Runtime.getRuntime().availableProcessors());
+		m_stripes = new ArrayList<Stripe>(stripeCount);
+		for (int I = 0; I < stripeCount; I++)
+			m_stripes.add(new Stripe());
+
+		m_flushExecutor = Executors.newFixedThreadPool(flushThreads,
+				new ThreadFactoryBuilder().setNameFormat("write-buffer-" + cfName + "-%d").build());
+		//Allow each flush thread one batch queued behind the one it is sending
+		m_flushPermits = new Semaphore(flushThreads * 2);
+
 		m_writeThread = new Thread(this);
 		m_writeThread.start();
 	}
 
-	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
-			long timestamp)
+	/**
+	 Returns the smallest power of two that is at least the number of processors.
+	 */
+	private static int stripeCount(int processors)
 	{
-		m_mutatorLock.lock();
+		int count = 1;
+		while (count < processors)
+			count <<= 1;
+
+		return (count);
+	}
+
+	private Stripe getStripe()
+	{
+		return (m_stripes.get((int) (Thread.currentThread().getId() & (m_stripes.size() - 1))));
+	}
+
+	private void addPendingWrite(PendingWrite write)
+	{
+		if (write.m_segment != null)
+			write.m_segment.retain();
+
+		m_unacknowledgedCount.incrementAndGet();
+		int count = m_bufferCount.incrementAndGet();
+		Stripe stripe = getStripe();
+		stripe.m_lock.lock();
 		try
 		{
-			waitOnBufferFull();
-
-			m_bufferCount ++;
-			m_mutator.addInsertion(rowKey, m_cfName,
-					new HColumnImpl<ColumnKeyType, ValueType>(columnKey, value,
-							timestamp, m_columnKeySerializer, m_valueSerializer));
+			stripe.m_writes.add(write);
 		}
 		finally
 		{
-			m_mutatorLock.unlock();
+			stripe.m_lock.unlock();
+		}
+
+		if (count >= m_flushSize && !m_flushRequested)
+		{
+			m_flushRequested = true;
+			LockSupport.unpark(m_writeThread);
 		}
 	}
 
+	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
+			long timestamp)
+	{
+		addData(rowKey, columnKey, value, timestamp, null);
+	}
+
+	/**
+	 @param segment Commit log segment the data came from.  It is retained
+	 until the write has been acknowledged by Cassandra, may be null.
+	 */
+	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
+			long timestamp, CommitLog.Segment segment)
+	{
+		addPendingWrite(new Insertion(rowKey, segment, new HColumnImpl<ColumnKeyType, ValueType>(
+				columnKey, value, timestamp, m_columnKeySerializer, m_valueSerializer)));
+	}
+
 	public void deleteRow(RowKeyType rowKey, long timestamp)
 	{
-		m_mutatorLock.lock();
-		try
-		{
-			waitOnBufferFull();
+		deleteRow(rowKey, timestamp, null);
+	}
 
-			m_bufferCount ++;
-			m_mutator.addDeletion(rowKey, m_cfName, timestamp);
-		}
-		finally
-		{
-			m_mutatorLock.unlock();
-		}
+	/**
+	 @param segment Commit log segment the delete came from, may be null.
+	 */
+	public void deleteRow(RowKeyType rowKey, long timestamp, CommitLog.Segment segment)
+	{
+		addPendingWrite(new RowDeletion(rowKey, segment, timestamp));
 	}
 
 	public void deleteColumn(RowKeyType rowKey, ColumnKeyType columnKey, long timestamp)
 	{
-		m_mutatorLock.lock();
-		try
-		{
-			waitOnBufferFull();
+		deleteColumn(rowKey, columnKey, timestamp, null);
+	}
 
-			m_bufferCount ++;
-			m_mutator.addDeletion(rowKey, m_cfName, columnKey, m_columnKeySerializer, timestamp);
-//			m_mutator.delete(rowKey, m_cfName, columnKey, m_columnKeySerializer, timestamp);
-		}
-		finally
-		{
-			m_mutatorLock.unlock();
-		}
+	/**
+	 @param segment Commit log segment the delete came from, may be null.
+	 */
+	public void deleteColumn(RowKeyType rowKey, ColumnKeyType columnKey, long timestamp,
+			CommitLog.Segment segment)
+	{
+		addPendingWrite(new ColumnDeletion(rowKey, segment, columnKey, timestamp));
 	}
 
-	private void waitOnBufferFull()
+	/**
+	 Sends the buffered writes and waits until Cassandra has acknowledged
+	 them and any added while waiting.
+	 */
+	public void flush() throws InterruptedException
 	{
-		if ((m_bufferCount > m_maxBufferSize) && (m_mutatorLock.getHoldCount() == 1))
+		while (m_unacknowledgedCount.get() != 0)
 		{
-			try
-			{
-				m_lockCondition.await();
-			}
-			catch (InterruptedException ignored) {}
+			m_flushRequested = true;
+			LockSupport.unpark(m_writeThread);
+			Thread.sleep(10);
 		}
 	}
 
+	/**
+	 Returns true when the buffer holds more writes than its current max size.
+	 Callers are expected to reject new data rather than add to it.
+	 */
+	public boolean isFull()
+	{
+		return (m_bufferCount.get() >= m_bufferLimit.get());
+	}
+
+	public int getMaxBufferSize()
+	{
+		return (m_bufferLimit.get());
+	}
+
+	public int getBatchSize()
+	{
+		return (m_batchLimit.get());
+	}
+
 	public void close() throws InterruptedException
 	{
 		m_exit = true;
 		m_writeThread.interrupt();
 		m_writeThread.join();
+
+		m_flushExecutor.shutdown();
+		m_flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 This will slowly increase the max buffer size up to the initial size.
-	 The design is that this method is called periodically to correct 3/4
-	 throttling that occurs down below.
+	 Steps the max buffer size back towards its configured size.  Fast batches
+	 do this already, this is for when there is too little traffic to notice
+	 Cassandra has recovered.
 	 */
 	public void increaseMaxBufferSize()
 	{
-		if (m_maxBufferSize < m_initialMaxBufferSize)
+		if (m_bufferLimit.get() < m_bufferLimit.getMax())
 		{
-			m_maxBufferSize += 1000;
-			logger.info("Increasing write buffer " + m_cfName + " size to "+m_maxBufferSize);
+			int maxBufferSize = m_bufferLimit.increase();
+			logger.info("Increasing write buffer " + m_cfName + " size to "+maxBufferSize);
 		}
 	}
 
-
-	@Override
-	public void run()
+	/**
+	 Takes the pending writes out of every stripe.
+	 */
+	private List<PendingWrite> swapPendingWrites()
 	{
-		while (!m_exit)
+		List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+
+		for (Stripe stripe : m_stripes)
 		{
+			stripe.m_lock.lock();
 			try
 			{
-				Thread.sleep(m_writeDelay);
+				if (!stripe.m_writes.isEmpty())
+				{
+					pendingWrites.addAll(stripe.m_writes);
+					stripe.m_writes = new ArrayList<PendingWrite>();
+				}
+			}
+			finally
+			{
+				stripe.m_lock.unlock();
 			}
-			catch (InterruptedException ignored) {}
+		}
+
+		m_bufferCount.addAndGet(-pendingWrites.size());
 
-			Mutator<RowKeyType> pendingMutations = null;
+		return (pendingWrites);
+	}
 
-			if (m_bufferCount != 0)
+	/**
+	 Groups the writes by row key and splits them into batches of at most
+	 the batch size.  The writes for a row stay in one batch unless the row
+	 alone is larger than a batch.
+	 */
+	private List<List<PendingWrite>> createBatches(List<PendingWrite> pendingWrites)
+	{
+		int batchSize = m_batchLimit.get();
+
+		Map<RowKeyType, List<PendingWrite>> rows = new LinkedHashMap<RowKeyType, List<PendingWrite>>();
+		for (PendingWrite write : pendingWrites)
+		{
+			List<PendingWrite> rowWrites = rows.get(write.m_rowKey);
+			if (rowWrites == null)
 			{
-				m_mutatorLock.lock();
-				try
-				{
-					m_writeStats.saveWriteSize(m_bufferCount);
+				rowWrites = new ArrayList<PendingWrite>();
+				rows.put(write.m_rowKey, rowWrites);
+			}
 
-					pendingMutations = m_mutator;
-					m_mutator = new MutatorImpl<RowKeyType>(m_keyspace, m_rowKeySerializer);
-					m_bufferCount = 0;
-					m_lockCondition.signalAll();
-				}
-				finally
-				{
-					m_mutatorLock.unlock();
-				}
+			rowWrites.add(write);
+		}
+
+		List<List<PendingWrite>> batches = new ArrayList<List<PendingWrite>>();
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		for (List<PendingWrite> rowWrites : rows.values())
+		{
+			if (!batch.isEmpty() && batch.size() + rowWrites.size() > batchSize)
+			{
+				batches.add(batch);
+				batch = new ArrayList<PendingWrite>();
 			}
 
-			try
+			for (PendingWrite write : rowWrites)
 			{
-				if (pendingMutations != null)
-					pendingMutations.execute();
+				if (batch.size() == batchSize)
+				{
+					batches.add(batch);
+					batch = new ArrayList<PendingWrite>();
+				}
 
-				pendingMutations = null;
+				batch.add(write);
 			}
-			catch (Exception e)
-			{
-				logger.error("Error sending data to Cassandra", e);
+		}
+
+		if (!batch.isEmpty())
+			batches.add(batch);
+
+		return (batches);
+	}
+
+	private void waitForFlush()
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_writeDelay);
+		long remaining;
+		while (!m_exit && !m_flushRequested && (remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(this, remaining);
+
+		//Clear the interrupt set by close so it does not cut short the final flush
+		Thread.interrupted();
+		m_flushRequested = false;
+	}
 
-				m_maxBufferSize = m_maxBufferSize * 3 / 4;
 
-				logger.error("Reducing write buffer size to "+m_maxBufferSize+
-						".  You need to increase your cassandra capacity or change the kairosdb.datastore.cassandra.write_buffer_max_size property.");
+	@Override
+	public void run()
+	{
+		while (!m_exit)
+		{
+			waitForFlush();
+
+			if (m_bufferCount.get() == 0)
+				continue;
+
+			m_writeStats.saveWriteSize(m_bufferCount.get());
+
+			for (List<PendingWrite> batch : createBatches(swapPendingWrites()))
+			{
+				//Blocks when the flush threads are behind which in turn fills the buffer
+				m_flushPermits.acquireUninterruptibly();
+				m_flushExecutor.execute(new BatchFlush(batch));
 			}
+		}
+	}
+
+	//===========================================================================
+	private class BatchFlush implements Runnable
+	{
+		private final List<PendingWrite> m_batch;
 
+		public BatchFlush(List<PendingWrite> batch)
+		{
+			m_batch = batch;
+		}
 
-			//If the batch failed we will retry it without changing the buffer size.
-			while (pendingMutations != null)
+		@Override
+		public void run()
+		{
+			try
 			{
-				try
-				{
-					Thread.sleep(100);
-				}
-				catch (InterruptedException ignored){ }
+				Mutator<RowKeyType> pendingMutations = new MutatorImpl<RowKeyType>(m_keyspace, m_rowKeySerializer);
+				for (PendingWrite write : m_batch)
+					write.addTo(pendingMutations);
+
+				long startTime = System.currentTimeMillis();
 
 				try
 				{
 					pendingMutations.execute();
+
 					pendingMutations = null;
+
+					if (System.currentTimeMillis() - startTime > m_targetLatency)
+						m_batchLimit.decrease();
+					else
+					{
+						m_batchLimit.increase();
+						m_bufferLimit.increase();
+					}
 				}
 				catch (Exception e)
 				{
-					logger.error("Error resending data", e);
+					logger.error("Error sending data to Cassandra", e);
+
+					m_batchLimit.decrease();
+					int maxBufferSize = m_bufferLimit.decrease();
+
+					logger.error("Reducing write buffer size to "+maxBufferSize+
+							".  You need to increase your cassandra capacity or change the kairosdb.datastore.cassandra.write_buffer_max_size property.");
 				}
+
+
+				//If the batch failed we will retry it without changing the buffer size.
+				while (pendingMutations != null)
+				{
+					try
+					{
+						Thread.sleep(100);
+					}
+					catch (InterruptedException ignored){ }
+
+					try
+					{
+						pendingMutations.execute();
+						pendingMutations = null;
+					}
+					catch (Exception e)
+					{
+						logger.error("Error resending data", e);
+					}
+				}
+
+				for (PendingWrite write : m_batch)
+				{
+					if (write.m_segment != null)
+						write.m_segment.release();
+				}
+				m_unacknowledgedCount.addAndGet(-m_batch.size());
+
+				m_writeStats.saveBatchStats(m_batch.size(), System.currentTimeMillis() - startTime);
+			}
+			finally
+			{
+				m_flushPermits.release();
 			}
 		}
 	}
+
+	//===========================================================================
+	private class Stripe
+	{
+		private final ReentrantLock m_lock = new ReentrantLock();
+		private List<PendingWrite> m_writes = new ArrayList<PendingWrite>();
+	}
+
+	//===========================================================================
+	private abstract class PendingWrite
+	{
+		protected final RowKeyType m_rowKey;
+		protected final CommitLog.Segment m_segment;
+
+		protected PendingWrite(RowKeyType rowKey, CommitLog.Segment segment)
+		{
+			m_rowKey = rowKey;
+			m_segment = segment;
+		}
+
+		public abstract void addTo(Mutator<RowKeyType> mutator);
+	}
+
+	private class Insertion extends PendingWrite
+	{
+		private final HColumnImpl<ColumnKeyType, ValueType> m_column;
+
+		public Insertion(RowKeyType rowKey, CommitLog.Segment segment,
+				HColumnImpl<ColumnKeyType, ValueType> column)
+		{
+			super(rowKey, segment);
+			m_column = column;
+		}
+
+		@Override
+		public void addTo(Mutator<RowKeyType> mutator)
+		{
+			mutator.addInsertion(m_rowKey, m_cfName, m_column);
+		}
+	}
+
+	private class RowDeletion extends PendingWrite
+	{
+		private final long m_timestamp;
+
+		public RowDeletion(RowKeyType rowKey, CommitLog.Segment segment, long timestamp)
+		{
+			super(rowKey, segment);
+			m_timestamp = timestamp;
+		}
+
+		@Override
+		public void addTo(Mutator<RowKeyType> mutator)
+		{
+			mutator.addDeletion(m_rowKey, m_cfName, m_timestamp);
+		}
+	}
+
+	private class ColumnDeletion extends PendingWrite
+	{
+		private final ColumnKeyType m_columnKey;
+		private final long m_timestamp;
+
+		public ColumnDeletion(RowKeyType rowKey, CommitLog.Segment segment,
+				ColumnKeyType columnKey, long timestamp)
+		{
+			super(rowKey, segment);
+			m_columnKey = columnKey;
+			m_timestamp = timestamp;
+		}
+
+		@Override
+		public void addTo(Mutator<RowKeyType> mutator)
+		{
+			mutator.addDeletion(m_rowKey, m_cfName, m_columnKey, m_columnKeySerializer, m_timestamp);
+		}
+	}
 }
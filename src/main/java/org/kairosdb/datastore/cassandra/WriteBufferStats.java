@@ -18,10 +18,19 @@ package org.kairosdb.datastore.cassandra;
 public interface WriteBufferStats
 {
 	/**
-	 This is called right before a write to cassandra is performed.
-	 If this data is being written into cassandra it must be done on a separate
-	 thread from the calling thread, otherwise a deadlock could occur.
+	 This is called from the write thread right before a write to cassandra is
+	 performed.  No buffer locks are held at this point and the buffers never
+	 block, so the stats may be written back through the datastore as long as
+	 they skip the full buffer check.
 	 @param pendingWrites
 	 */
 	public void saveWriteSize(int pendingWrites);
+
+	/**
+	 This is called from a flush thread after a batch has been written to
+	 cassandra.  The same rules as saveWriteSize apply.
+	 @param batchSize number of writes in the batch
+	 @param latency time in milliseconds to write the batch including retries
+	 */
+	public void saveBatchStats(int batchSize, long latency);
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.kairosdb.core.DataPointSet;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ Runs the ingest handlers that write to the datastore off the I/O threads.
+ Events of a channel run in the order they were read.  Once a channel or all
+ channels together have more than their limit of bytes queued, reading
+ stops until the handlers catch up.
+ */
+public class IngestExecutor extends OrderedMemoryAwareThreadPoolExecutor
+{
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final AtomicInteger m_queued = new AtomicInteger();
+
+	public IngestExecutor(String threadNameFormat, int threads, long maxChannelQueuedBytes, long maxQueuedBytes)
+	{
+		super(threads, maxChannelQueuedBytes, maxQueuedBytes, KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS, new DataPointSetSizeEstimator(),
+				new ThreadFactoryBuilder().setNameFormat(threadNameFormat).setDaemon(true).build());
+	}
+
+	@Override
+	protected void increaseCounter(Runnable task)
+	{
+		if (shouldCount(task))
+			m_queued.incrementAndGet();
+		super.increaseCounter(task);
+	}
+
+	/**
+	 The memory limits are released before an event runs, the queue size is
+	 only counted down once it has run so awaitDrained waits for the last
+	 event to be written.
+	 */
+	@Override
+	protected void afterExecute(Runnable task, Throwable t)
+	{
+		if (shouldCount(task))
+			m_queued.decrementAndGet();
+		super.afterExecute(task, t);
+	}
+
+	/**
+	 Number of events read but not yet handled, including the ones running.
+	 */
+	public int getQueueSize()
+	{
+		return (m_queued.get());
+	}
+
+	/**
+	 Waits for the queued events to be handled.
+	 @return false if events were still queued when the timeout ran out
+	 */
+	public boolean awaitDrained(long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		while (m_queued.get() > 0)
+		{
+			if (System.currentTimeMillis() >= end)
+				return (false);
+
+			Thread.sleep(10);
+		}
+
+		return (true);
+	}
+
+	//===========================================================================
+	/**
+	 The default estimator only counts the fields of a message so a put with
+	 many tags or data points looks as small as an empty one.
+	 */
+	private static class DataPointSetSizeEstimator extends DefaultObjectSizeEstimator
+	{
+		private static final int OBJECT_SIZE = 16;
+		private static final int DATA_POINT_SIZE = 48;
+		private static final int TAG_SIZE = 96;
+
+		@Override
+		public int estimateSize(Object o)
+		{
+			if (!(o instanceof DataPointSet))
+				return (super.estimateSize(o));
+
+			DataPointSet dps = (DataPointSet) o;
+			int size = OBJECT_SIZE * 4 + dps.getName().length() * 2;
+
+			for (Map.Entry<String, String> tag : dps.getTags().entrySet())
+				size += TAG_SIZE + (tag.getKey().length() + tag.getValue().length()) * 2;
+
+			size += dps.getDataPoints().size() * DATA_POINT_SIZE;
+
+			return (size);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class BinaryEncoderTest
+{
+	@Test
+	public void test_roundTrip() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = new BinaryEncoder(out);
+
+		Map<String, String> tags = new HashMap<String, String>();
+		tags.put("host", "A");
+		tags.put("dc", "west");
+
+		encoder.addDataPoint("metric1", tags, 1000, 42L);
+		encoder.addDataPoint("metric2", Collections.singletonMap("host", "B"), 900, 1.5);
+		encoder.addDataPoint("metric1", tags, 999, -7L); //Timestamps can go back
+		encoder.addDataPoint("metric1", tags, 2000, Double.NaN);
+		encoder.addDataPoint("metric1", tags, Long.MAX_VALUE, Long.MIN_VALUE);
+		encoder.flush();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		BinaryDecoder decoder = new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE);
+		List<DataPointSet> frame = decoder.readFrame(in);
+		assertThat(decoder.readFrame(in), nullValue());
+
+		assertThat(frame.size(), equalTo(2));
+		DataPointSet metric1 = frame.get(0);
+		assertThat(metric1.getName(), equalTo("metric1"));
+		assertThat(metric1.getTags(), equalTo(tags));
+
+		List<DataPoint> points = metric1.getDataPoints();
+		assertThat(points.size(), equalTo(4));
+		assertThat(points.get(0).getTimestamp(), equalTo(1000L));
+		assertThat(points.get(0).getLongValue(), equalTo(42L));
+		assertThat(points.get(1).getTimestamp(), equalTo(999L));
+		assertThat(points.get(1).getLongValue(), equalTo(-7L));
+		assertThat(points.get(2).isInteger(), equalTo(false));
+		assertThat(Double.isNaN(points.get(2).getDoubleValue()), equalTo(true));
+		assertThat(points.get(3).getTimestamp(), equalTo(Long.MAX_VALUE));
+		assertThat(points.get(3).getLongValue(), equalTo(Long.MIN_VALUE));
+
+		DataPointSet metric2 = frame.get(1);
+		assertThat(metric2.getName(), equalTo("metric2"));
+		assertThat(metric2.getTags().get("host"), equalTo("B"));
+		assertThat(metric2.getDataPoints().get(0).getDoubleValue(), equalTo(1.5));
+	}
+
+	@Test
+	public void test_seriesDefinedOncePerStream() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = new BinaryEncoder(out, 100);
+
+		int series = encoder.getSeries("metric", Collections.singletonMap("host", "A"));
+		for (int I = 1; I <= 50; I++)
+			encoder.addDataPoint(series, I, (long) I);
+		encoder.flush();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		BinaryDecoder decoder = new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE);
+
+		int frames = 0;
+		long timestamp = 1;
+		List<DataPointSet> frame;
+		while ((frame = decoder.readFrame(in)) != null)
+		{
+			frames++;
+			for (DataPoint dataPoint : frame.get(0).getDataPoints())
+				assertThat(dataPoint.getTimestamp(), equalTo(timestamp++));
+		}
+
+		assertThat(frames > 1, equalTo(true));
+		assertThat(timestamp, equalTo(51L));
+	}
+
+	@Test(expected = BinaryFormatException.class)
+	public void test_undefinedSeries() throws Exception
+	{
+		ByteBuffer frame = ByteBuffer.wrap(new byte[]{BinaryProtocol.VERSION,
+				BinaryProtocol.LONG_POINTS, 0, 1, 2, 2});
+
+		new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE).decodeFrame(frame);
+	}
+
+	@Test(expected = BinaryFormatException.class)
+	public void test_truncatedFrame() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = new BinaryEncoder(out);
+		encoder.addDataPoint("metric", Collections.singletonMap("host", "A"), 1000, 42L);
+		encoder.flush();
+
+		byte[] data = out.toByteArray();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 1));
+
+		new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE).readFrame(in);
+	}
+}
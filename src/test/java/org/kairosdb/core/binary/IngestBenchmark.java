@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.binary;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.kairosdb.core.DataPointListener;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.Datastore;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryQueuingManager;
+import org.kairosdb.core.http.rest.json.JsonMetricParser;
+import org.kairosdb.core.telnet.PutDecoder;
+import org.kairosdb.core.telnet.StringDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ Compares the size and decode speed of the JSON, telnet and binary ingest
+ formats.  Not run with the unit tests, run it with the test classpath:
+
+ java -cp build/classes:build/test-classes:lib/* org.kairosdb.core.binary.IngestBenchmark
+
+ Prints bytes per point, raw and gzipped, and millions of points per second.
+ JSON is parsed into a datastore that drops the points, telnet lines are only
+ decoded by PutDecoder and binary is encoded and decoded.
+ */
+public class IngestBenchmark
+{
+	private static final int SERIES_COUNT = 100;
+	private static final int POINTS_PER_SERIES = 1000;
+	private static final int POINT_COUNT = SERIES_COUNT * POINTS_PER_SERIES;
+	private static final int ROUNDS = 20;
+
+	private static volatile long s_sink;
+	private static boolean s_print;
+
+	public static void main(String[] args) throws Exception
+	{
+		Random random = new Random(42);
+
+		String[] names = new String[SERIES_COUNT];
+		List<Map<String, String>> tags = new ArrayList<Map<String, String>>();
+		long[][] longValues = new long[SERIES_COUNT][POINTS_PER_SERIES];
+		double[][] doubleValues = new double[SERIES_COUNT][POINTS_PER_SERIES];
+		for (int series = 0; series < SERIES_COUNT; series++)
+		{
+			names[series] = "sys.cpu.metric" + (series % 10);
+			Map<String, String> seriesTags = new HashMap<String, String>();
+			seriesTags.put("host", "server" + (series / 10));
+			seriesTags.put("dc", "dc" + (series % 3));
+			tags.add(seriesTags);
+
+			double walk = 100.0;
+			for (int I = 0; I < POINTS_PER_SERIES; I++)
+			{
+				longValues[series][I] = 1000 + random.nextInt(50);
+				walk += random.nextGaussian();
+				doubleValues[series][I] = Math.round(walk * 100) / 100.0;
+			}
+		}
+
+		//Half the series have whole number values
+		StringBuilder json = new StringBuilder("[");
+		StringBuilder telnet = new StringBuilder();
+		for (int series = 0; series < SERIES_COUNT; series++)
+		{
+			json.append(series == 0 ? "" : ",").append("{\"name\":\"").append(names[series]).append("\",\"tags\":{");
+			StringBuilder tagString = new StringBuilder();
+			boolean first = true;
+			for (Map.Entry<String, String> tag : tags.get(series).entrySet())
+			{
+				json.append(first ? "" : ",").append('"').append(tag.getKey()).append("\":\"").append(tag.getValue()).append('"');
+				tagString.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+				first = false;
+			}
+			json.append("},\"datapoints\":[");
+
+			for (int I = 0; I < POINTS_PER_SERIES; I++)
+			{
+				String value = (series % 2 == 0) ? String.valueOf(longValues[series][I]) :
+						String.valueOf(doubleValues[series][I]);
+				long timestamp = timestamp(I);
+
+				json.append(I == 0 ? "" : ",").append('[').append(timestamp).append(',').append(value).append(']');
+				telnet.append("put ").append(names[series]).append(' ').append(timestamp).append(' ')
+						.append(value).append(tagString).append('\n');
+			}
+			json.append("]}");
+		}
+		json.append(']');
+
+		byte[] jsonBytes = json.toString().getBytes("UTF-8");
+		byte[] telnetBytes = telnet.toString().getBytes("UTF-8");
+		List<ChannelBuffer> lines = new ArrayList<ChannelBuffer>();
+		ChannelBuffer telnetBuffer = ChannelBuffers.wrappedBuffer(telnetBytes);
+		int lineStart = 0;
+		for (int I = 0; I < telnetBytes.length; I++)
+		{
+			if (telnetBytes[I] == '\n')
+			{
+				lines.add(telnetBuffer.slice(lineStart, I - lineStart));
+				lineStart = I + 1;
+			}
+		}
+
+		KairosDatastore datastore = new KairosDatastore(newNullDatastore(),
+				new QueryQueuingManager(1, "hostname"), Collections.<DataPointListener>emptyList(), "hostname");
+
+		//First pass warms up the JIT
+		for (int pass = 0; pass < 2; pass++)
+		{
+			s_print = (pass == 1);
+			if (s_print)
+				System.out.println("format     bytes/point  gzip bytes/point  encode M/s  decode M/s");
+
+			//JSON
+			System.gc();
+			long start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+				new JsonMetricParser(datastore, new ByteArrayInputStream(jsonBytes)).parse();
+			print("json", jsonBytes, 0, System.nanoTime() - start);
+
+			//Telnet
+			PutDecoder decoder = new PutDecoder(new StringDictionary(16 * 1024, 256));
+			System.gc();
+			start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				for (ChannelBuffer line : lines)
+					s_sink += decoder.decodePut(line).getName().length();
+			}
+			print("telnet", telnetBytes, 0, System.nanoTime() - start);
+
+			//Binary, one frame per series
+			byte[] binaryBytes = null;
+			System.gc();
+			start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				BinaryEncoder encoder = new BinaryEncoder(out);
+				for (int series = 0; series < SERIES_COUNT; series++)
+				{
+					int id = encoder.getSeries(names[series], tags.get(series));
+					for (int I = 0; I < POINTS_PER_SERIES; I++)
+					{
+						if (series % 2 == 0)
+							encoder.addDataPoint(id, timestamp(I), longValues[series][I]);
+						else
+							encoder.addDataPoint(id, timestamp(I), doubleValues[series][I]);
+					}
+				}
+				encoder.flush();
+				binaryBytes = out.toByteArray();
+			}
+			long encodeTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				BinaryDecoder binaryDecoder = new BinaryDecoder(BinaryProtocol.MAX_FRAME_SIZE);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(binaryBytes));
+				List<DataPointSet> frame;
+				while ((frame = binaryDecoder.readFrame(in)) != null)
+				{
+					for (DataPointSet dps : frame)
+						datastore.putDataPoints(dps);
+				}
+			}
+			print("binary", binaryBytes, encodeTime, System.nanoTime() - start);
+		}
+	}
+
+	private static long timestamp(int point)
+	{
+		return (1370000000000L + point * 10000L);
+	}
+
+	private static Datastore newNullDatastore()
+	{
+		return ((Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+				new Class<?>[]{Datastore.class}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				if (method.getName().equals("putDataPoints"))
+					s_sink += ((DataPointSet) args[0]).getDataPoints().size();
+				return (null);
+			}
+		}));
+	}
+
+	private static int gzipSize(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.close();
+
+		return (out.size());
+	}
+
+	private static void print(String format, byte[] data, long encodeNanos, long decodeNanos) throws IOException
+	{
+		if (!s_print)
+			return;
+
+		double points = (double) POINT_COUNT * ROUNDS;
+		System.out.println(String.format(Locale.US, "%-10s %11.2f %17.2f %11s %11.1f", format,
+				(double) data.length / POINT_COUNT, (double) gzipSize(data) / POINT_COUNT,
+				encodeNanos == 0 ? "-" : String.format(Locale.US, "%.1f", points / encodeNanos * 1000.0),
+				points / decodeNanos * 1000.0));
+	}
+}
@@ -18,7 +18,9 @@ package org.kairosdb.core.datastore;
 
 import org.junit.Test;
 import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.exception.QueryCancelledException;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -28,7 +30,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static junit.framework.TestCase.assertEquals;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 
 public class CachedSearchResultTest
 {
@@ -42,7 +46,7 @@ public class CachedSearchResultTest
 
 		long now = System.currentTimeMillis();
 
-		Map<String, String> tags = new HashMap();
+		Map<String, String> tags = new HashMap<String, String>();
 		tags.put("host", "A");
 		tags.put("client", "foo");
 		csResult.startDataPointSet(tags);
@@ -53,7 +57,7 @@ public class CachedSearchResultTest
 		csResult.addDataPoint(now+3, 43.1);
 
 
-		tags = new HashMap();
+		tags = new HashMap<String, String>();
 		tags.put("host", "B");
 		tags.put("client", "foo");
 		csResult.startDataPointSet(tags);
@@ -63,7 +67,7 @@ public class CachedSearchResultTest
 		csResult.addDataPoint(now+2, 2);
 		csResult.addDataPoint(now+3, 2.1);
 
-		tags = new HashMap();
+		tags = new HashMap<String, String>();
 		tags.put("host", "A");
 		tags.put("client", "bar");
 		csResult.startDataPointSet(tags);
@@ -150,6 +154,120 @@ public class CachedSearchResultTest
 
 	}
 
+	@Test
+	public void test_memoryMappedReopen() throws IOException
+	{
+		String tempFile = System.getProperty("java.io.tmpdir") + "/mappedFile";
+		CachedSearchResult csResult = CachedSearchResult.createCachedSearchResult("metric4", tempFile, true);
+
+		long now = System.currentTimeMillis();
+		Map<String, String> tags = new HashMap<String, String>();
+		tags.put("host", "A");
+		csResult.startDataPointSet(tags);
+		for (int i = 0; i < CachedSearchResult.WRITE_BUFFER_SIZE * 2; i++)
+			csResult.addDataPoint(now + i, 42);
+
+		tags = new HashMap<String, String>();
+		tags.put("host", "B");
+		csResult.startDataPointSet(tags);
+		csResult.addDataPoint(now, 1);
+		csResult.addDataPoint(now + 1, 1.1);
+
+		csResult.endDataPoints();
+
+		List<DataPointRow> rows = csResult.getRows();
+		assertEquals(2, rows.size());
+		assertValues(rows.get(1), 1L, 1.1);
+		for (DataPointRow row : rows)
+			row.close(); //Saves the index
+
+		CachedSearchResult reopened = CachedSearchResult.openCachedSearchResult("metric4", tempFile, 60, true);
+		rows = reopened.getRows();
+
+		assertEquals(2, rows.size());
+		assertThat(rows.get(0).getTagValue("host"), equalTo("A"));
+		int count = 0;
+		while (rows.get(0).hasNext())
+		{
+			assertThat(rows.get(0).next().getLongValue(), equalTo(42L));
+			count++;
+		}
+		assertThat(count, equalTo(CachedSearchResult.WRITE_BUFFER_SIZE * 2));
+
+		assertThat(rows.get(1).getTagValue("host"), equalTo("B"));
+		assertValues(rows.get(1), 1L, 1.1);
+	}
+
+	@Test
+	public void test_inMemorySpillsOverQueryLimit() throws IOException
+	{
+		String tempFile = System.getProperty("java.io.tmpdir") + "/memoryFile";
+		ResultMemoryBudget budget = new ResultMemoryBudget(1024 * 1024, CachedSearchResult.DATA_POINT_SIZE * 1000);
+
+		for (int numberOfDataPoints : new int[]{10, 5000})
+		{
+			CachedSearchResult csResult = CachedSearchResult.createInMemorySearchResult("metric5", tempFile, budget, false);
+
+			long now = System.currentTimeMillis();
+			csResult.startDataPointSet(Collections.singletonMap("host", "A"));
+			for (int i = 0; i < numberOfDataPoints; i++)
+				csResult.addDataPoint(now + i, i);
+
+			csResult.startDataPointSet(Collections.singletonMap("host", "B"));
+			csResult.addDataPoint(now, 1.5);
+			csResult.endDataPoints();
+
+			List<DataPointRow> rows = csResult.getRows();
+			int count = 0;
+			while (rows.get(0).hasNext())
+			{
+				assertThat(rows.get(0).next().getLongValue(), equalTo((long) count));
+				count++;
+			}
+			assertThat(count, equalTo(numberOfDataPoints));
+			assertValues(rows.get(1), 1.5);
+
+			for (DataPointRow row : rows)
+				row.close();
+
+			assertThat(budget.getUsed(), equalTo(0L));
+		}
+	}
+
+	@Test
+	public void test_expiredDeadlineAbortsWrites() throws Exception
+	{
+		String tempFile = System.getProperty("java.io.tmpdir") + "/deadlineFile";
+		CachedSearchResult csResult = CachedSearchResult.createCachedSearchResult("metric6", tempFile);
+		csResult.setDeadline(new QueryDeadline(200));
+		csResult.startDataPointSet(Collections.singletonMap("host", "A"));
+		csResult.addDataPoint(1, 1);
+		assertThat(new File(tempFile + ".data").exists(), equalTo(true));
+		Thread.sleep(300);
+
+		try
+		{
+			csResult.startDataPointSet(Collections.singletonMap("host", "B"));
+			fail("Expected the query to be cancelled");
+		}
+		catch (QueryCancelledException ignored)
+		{
+		}
+
+		csResult.abort();
+		assertThat(new File(tempFile + ".data").exists(), equalTo(false));
+		assertThat(CachedSearchResult.openCachedSearchResult("metric6", tempFile, 60), nullValue());
+
+		try
+		{
+			csResult.addDataPoint(1, 1);
+			fail("Expected writes to fail after abort");
+		}
+		catch (IOException ignored)
+		{
+		}
+	}
+
 	private void assertValues(DataPointRow dataPoints, Number... numbers)
 	{
 		int count = 0;
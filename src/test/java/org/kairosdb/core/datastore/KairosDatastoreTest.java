@@ -21,6 +21,7 @@ import org.kairosdb.core.DataPointListener;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.aggregator.AggregatorFactory;
 import org.kairosdb.core.aggregator.TestAggregatorFactory;
+import org.kairosdb.core.exception.DatastoreBusyException;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.exception.KariosDBException;
 import org.kairosdb.testing.TestingDataPointRowImpl;
@@ -30,6 +31,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
@@ -177,6 +183,219 @@ public class KairosDatastoreTest
 		assertFalse(file2.exists());
 	}
 
+	@Test
+	public void test_query_cacheFileHitIsNotEstimated() throws KariosDBException
+	{
+		EstimatingDatastore testds = new EstimatingDatastore();
+		KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(1, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+		datastore.setAdmissionController(new QueryAdmissionController("", 100, "hostname"));
+
+		QueryMetric metric = new QueryMetric(1L, 60, "cached_metric");
+		metric.setCacheString("cached_metric");
+		datastore.query(metric).close();
+		assertThat(testds.m_estimates, equalTo(1));
+
+		//The second query reads the cache file the first one left
+		metric = new QueryMetric(1L, 60, "cached_metric");
+		metric.setCacheString("cached_metric");
+		QueryResults queryResults = datastore.query(metric);
+		assertThat(testds.m_estimates, equalTo(1));
+		assertThat(queryResults.getDataPoints().get(0).next().getLongValue(), equalTo(42L));
+		queryResults.close();
+	}
+
+	@Test
+	public void test_query_resultCachedOnlyWithCacheTime() throws KariosDBException
+	{
+		//Writes its rows to the search result so they can be copied to the cache
+		EstimatingDatastore testds = new EstimatingDatastore();
+		KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(1, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+		QueryResultCache resultCache = new QueryResultCache(1000000, "hostname");
+		datastore.setResultCache(resultCache);
+
+		//Nothing can reuse the result of a query without a cache time
+		QueryMetric metric = new QueryMetric(1L, 0, "metric1");
+		metric.setCacheString("metric1");
+		datastore.query(metric).close();
+		assertThat(resultCache.getSize(), equalTo(0L));
+
+		metric = new QueryMetric(1L, 60, "metric2");
+		metric.setCacheString("metric2");
+		datastore.query(metric).close();
+		assertThat(resultCache.getSize() > 0, equalTo(true));
+	}
+
+	@Test(timeout = 3000)
+	public void test_query_busyDatastoreGivesBackQueryThread() throws KariosDBException
+	{
+		BusyDatastore testds = new BusyDatastore();
+		QueryQueuingManager queuingManager = new QueryQueuingManager(1, "hostname");
+		KairosDatastore datastore = new KairosDatastore(testds, queuingManager,
+				Collections.<DataPointListener>emptyList(), "hostname");
+
+		//There is one query thread so the second query hangs if the first kept it
+		for (int i = 0; i < 2; i++)
+		{
+			QueryResults queryResults = datastore.query(new QueryMetric(1L, 1, "metric1"));
+			assertThat(queryResults.getDataPoints().size(), equalTo(1));
+			queryResults.close();
+		}
+
+		assertThat(queuingManager.getQueryWaitingCount(), equalTo(0));
+		//query_time and queries_waiting for each query
+		assertThat(testds.m_internalDataPoints, equalTo(4));
+	}
+
+	@Test(timeout = 5000)
+	public void test_query_fullLaneDoesNotHoldQueryThreads() throws Exception
+	{
+		final LaneDatastore testds = new LaneDatastore();
+		final KairosDatastore datastore = new KairosDatastore(testds, new QueryQueuingManager(2, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+		QueryAdmissionController controller = new QueryAdmissionController("small:10:1,large:-1:1", -1, "hostname");
+		datastore.setAdmissionController(controller);
+		QueryAdmissionController.QueryLane large = controller.chooseLane(1000);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			List<Future<Integer>> heavyQueries = new ArrayList<Future<Integer>>();
+			for (final String name : new String[]{"heavy1", "heavy2"})
+			{
+				heavyQueries.add(executor.submit(new Callable<Integer>()
+				{
+					@Override
+					public Integer call() throws Exception
+					{
+						//Queries without a cache string started in the same ms share a hash
+						QueryMetric metric = new QueryMetric(1L, 0, name);
+						metric.setCacheString(name);
+						QueryResults queryResults = datastore.query(metric);
+						int size = queryResults.getDataPoints().size();
+						queryResults.close();
+						return (size);
+					}
+				}));
+			}
+
+			//One heavy query runs and the other waits for the large lane
+			while (large.getRunning() == 0 || large.getWaiting() == 0)
+				Thread.sleep(10);
+
+			//Both query threads were taken by heavy queries unless the waiting one gave its back
+			QueryResults queryResults = datastore.query(new QueryMetric(1L, 0, "cheap"));
+			assertThat(queryResults.getDataPoints().size(), equalTo(1));
+			queryResults.close();
+
+			testds.m_heavyLatch.countDown();
+			for (Future<Integer> heavyQuery : heavyQueries)
+				assertThat(heavyQuery.get(), equalTo(1));
+		}
+		finally
+		{
+			testds.m_heavyLatch.countDown();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 Heavy queries cost more than the small lane takes and block until
+	 released.
+	 */
+	private class LaneDatastore extends TestDatastore implements QueryCostEstimator
+	{
+		private final CountDownLatch m_heavyLatch = new CountDownLatch(1);
+
+		protected LaneDatastore() throws DatastoreException
+		{
+		}
+
+		@Override
+		public long estimateQueryCost(DatastoreMetricQuery query)
+		{
+			return (query.getName().startsWith("heavy") ? 1000L : 1L);
+		}
+
+		@Override
+		public List<DataPointRow> queryDatabase(DatastoreMetricQuery query, CachedSearchResult cachedSearchResult)
+		{
+			if (query.getName().startsWith("heavy"))
+			{
+				try
+				{
+					m_heavyLatch.await();
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+
+			return (super.queryDatabase(query, cachedSearchResult));
+		}
+	}
+
+	/**
+	 Sheds every write like a datastore with full write buffers.
+	 */
+	private class BusyDatastore extends TestDatastore implements SheddingDatastore
+	{
+		private int m_internalDataPoints;
+
+		protected BusyDatastore() throws DatastoreException
+		{
+		}
+
+		@Override
+		public void putDataPoints(DataPointSet dps) throws DatastoreException
+		{
+			throw new DatastoreBusyException("Write buffers are full", 1);
+		}
+
+		@Override
+		public void putInternalDataPoints(DataPointSet dps)
+		{
+			m_internalDataPoints += dps.getDataPoints().size();
+		}
+	}
+
+	/**
+	 Writes its rows to the cache file and counts the estimates.
+	 */
+	private class EstimatingDatastore extends TestDatastore implements QueryCostEstimator
+	{
+		private int m_estimates;
+
+		protected EstimatingDatastore() throws DatastoreException
+		{
+		}
+
+		@Override
+		public long estimateQueryCost(DatastoreMetricQuery query)
+		{
+			m_estimates++;
+			return (1L);
+		}
+
+		@Override
+		public List<DataPointRow> queryDatabase(DatastoreMetricQuery query, CachedSearchResult cachedSearchResult)
+		{
+			try
+			{
+				cachedSearchResult.startDataPointSet(Collections.<String, String>emptyMap());
+				cachedSearchResult.addDataPoint(1L, 42L);
+				cachedSearchResult.endDataPoints();
+				return (cachedSearchResult.getRows());
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	private class TestDatastore implements Datastore
 	{
 
@@ -190,7 +409,7 @@ public class KairosDatastoreTest
 		}
 
 		@Override
-		public void putDataPoints(DataPointSet dps)
+		public void putDataPoints(DataPointSet dps) throws DatastoreException
 		{
 		}
 
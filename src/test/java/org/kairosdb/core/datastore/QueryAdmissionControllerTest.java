@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.exception.QueryCancelledException;
+import org.kairosdb.core.exception.QueryRejectedException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+public class QueryAdmissionControllerTest
+{
+	@Test
+	public void test_noLanesDisabled() throws Exception
+	{
+		QueryAdmissionController controller = new QueryAdmissionController("", -1, "hostname");
+
+		assertThat(controller.isEnabled(), equalTo(false));
+		assertThat(controller.admit(1000000), nullValue());
+	}
+
+	@Test
+	public void test_laneChosenByCost() throws Exception
+	{
+		QueryAdmissionController controller = new QueryAdmissionController("small:10:2, large:-1:1", -1, "hostname");
+
+		QueryAdmissionController.QueryLane lane = controller.admit(10);
+		assertThat(lane.getName(), equalTo("small"));
+		lane.release();
+
+		lane = controller.admit(11);
+		assertThat(lane.getName(), equalTo("large"));
+		lane.release();
+	}
+
+	@Test(expected = QueryRejectedException.class)
+	public void test_overMaxCostRejected() throws Exception
+	{
+		QueryAdmissionController controller = new QueryAdmissionController("small:10:2", 100, "hostname");
+
+		controller.admit(101);
+	}
+
+	@Test(timeout = 3000)
+	public void test_laneConcurrencyLimited() throws Exception
+	{
+		final QueryAdmissionController controller = new QueryAdmissionController("small:10:1,large:-1:1", -1, "hostname");
+
+		QueryAdmissionController.QueryLane large = controller.admit(500);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			Future<String> waiting = executor.submit(new Callable<String>()
+			{
+				@Override
+				public String call() throws Exception
+				{
+					QueryAdmissionController.QueryLane lane = controller.admit(600);
+					lane.release();
+					return (lane.getName());
+				}
+			});
+
+			//A cheap query is not held up by the expensive ones
+			QueryAdmissionController.QueryLane small = controller.admit(1);
+			assertThat(small.getName(), equalTo("small"));
+			small.release();
+
+			while (large.getWaiting() == 0)
+				Thread.sleep(10);
+			assertThat(large.getRunning(), equalTo(1));
+
+			large.release();
+			assertThat(waiting.get(), equalTo("large"));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 3000)
+	public void test_laneWaitEndsAtDeadline() throws Exception
+	{
+		QueryAdmissionController controller = new QueryAdmissionController("small:-1:1", -1, "hostname");
+
+		QueryAdmissionController.QueryLane lane = controller.admit(1);
+		try
+		{
+			controller.admit(1, new QueryDeadline(100));
+			fail("Expected the wait to time out");
+		}
+		catch (QueryCancelledException expected)
+		{
+		}
+
+		assertThat(lane.getRunning(), equalTo(1));
+		lane.release();
+		controller.admit(1, new QueryDeadline(100)).release();
+	}
+
+	@Test(timeout = 3000)
+	public void test_tryAcquireDoesNotBargePastWaitingQueries() throws Exception
+	{
+		final QueryAdmissionController controller = new QueryAdmissionController("small:-1:1", -1, "hostname");
+
+		final QueryAdmissionController.QueryLane lane = controller.admit(1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<Integer> waiting = executor.submit(new Callable<Integer>()
+			{
+				@Override
+				public Integer call() throws Exception
+				{
+					controller.admit(1, new QueryDeadline(3000));
+					return (lane.getRunning());
+				}
+			});
+
+			while (lane.getWaiting() == 0)
+				Thread.sleep(10);
+
+			//The freed slot goes to the waiting query
+			lane.release();
+			assertThat(lane.tryAcquire(), equalTo(false));
+
+			assertThat(waiting.get(), equalTo(1));
+			lane.release();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
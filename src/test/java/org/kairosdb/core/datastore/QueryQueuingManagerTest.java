@@ -8,8 +8,11 @@ package org.kairosdb.core.datastore;
 import org.junit.Before;
 import org.junit.Test;
 import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.QueryCancelledException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +22,7 @@ import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class QueryQueuingManagerTest
 {
@@ -128,6 +132,52 @@ public class QueryQueuingManagerTest
 		assertThat(manager.getQueryWaitingCount(), equalTo(0));
 	}
 
+	@Test(timeout = 3000)
+	public void test_sameHashRunsInArrivalOrderWithoutHoldingPermits() throws InterruptedException
+	{
+		final QueryQueuingManager manager = new QueryQueuingManager(2, "hostname");
+		final List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+
+		manager.waitForTimeToRun("1");
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final String name : new String[]{"A", "B", "C"})
+		{
+			Thread thread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						manager.waitForTimeToRun("1");
+						runOrder.add(name);
+						manager.done("1");
+					}
+					catch (InterruptedException ignored)
+					{
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+
+			while (manager.getQueryWaitingCount() < threads.size())
+				Thread.sleep(5);
+		}
+
+		//Waiting duplicates do not hold a permit so another hash can run
+		manager.waitForTimeToRun("2");
+		manager.done("2");
+
+		manager.done("1");
+		for (Thread thread : threads)
+			thread.join();
+
+		assertThat(runOrder, equalTo(Arrays.asList("A", "B", "C")));
+		assertThat(manager.getQueryWaitingCount(), equalTo(0));
+	}
+
 	private class Query extends Thread
 	{
 		private QueryQueuingManager manager;
@@ -165,4 +215,40 @@ public class QueryQueuingManagerTest
 			manager.done(hash);
 		}
 	}
+
+	@Test(timeout = 3000)
+	public void test_waitsEndAtDeadline() throws InterruptedException
+	{
+		QueryQueuingManager manager = new QueryQueuingManager(1, "hostname");
+		manager.waitForTimeToRun("1");
+
+		//Waiting for the running hash
+		try
+		{
+			manager.waitForTimeToRun("1", new QueryDeadline(100));
+			fail("Expected the wait to time out");
+		}
+		catch (QueryCancelledException expected)
+		{
+		}
+
+		//Waiting for the only permit
+		try
+		{
+			manager.waitForTimeToRun("2", new QueryDeadline(100));
+			fail("Expected the wait to time out");
+		}
+		catch (QueryCancelledException expected)
+		{
+		}
+
+		assertThat(manager.getQueryWaitingCount(), equalTo(0));
+		manager.done("1");
+
+		//Queries that gave up left nothing behind
+		manager.waitForTimeToRun("1", new QueryDeadline(100));
+		manager.done("1");
+		manager.waitForTimeToRun("2", new QueryDeadline(100));
+		manager.done("2");
+	}
 }
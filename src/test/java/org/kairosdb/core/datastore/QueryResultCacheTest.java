@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.exception.QueryCancelledException;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+public class QueryResultCacheTest
+{
+	private QueryResultCache.Entry createEntry(int pointCount, long value)
+	{
+		ByteBuffer data = ByteBuffer.allocate(pointCount * CachedSearchResult.DATA_POINT_SIZE);
+		for (int I = 0; I < pointCount; I++)
+		{
+			data.putLong(I);
+			data.put(CachedSearchResult.LONG_FLAG);
+			data.putLong(value);
+		}
+		data.flip();
+
+		QueryResultCache.Entry entry = new QueryResultCache.Entry("metric", System.currentTimeMillis(), 0, pointCount - 1);
+		entry.addRow(Collections.singletonMap("host", "A"), data);
+		return (entry);
+	}
+
+	@Test
+	public void test_cacheTimeControlsReuse() throws InterruptedException
+	{
+		QueryResultCache cache = new QueryResultCache(10000, "hostname");
+
+		assertThat(cache.get("key", 60), nullValue());
+		cache.complete("key", createEntry(10, 42));
+
+		List<DataPointRow> rows = cache.get("key", 60);
+		assertThat(rows.size(), equalTo(1));
+		assertThat(rows.get(0).getTagValue("host"), equalTo("A"));
+		assertThat(rows.get(0).next().getLongValue(), equalTo(42L));
+
+		//No cache time means the query runs again
+		assertThat(cache.get("key", 0), nullValue());
+		cache.complete("key", null);
+	}
+
+	@Test
+	public void test_leastRecentlyUsedEvicted() throws InterruptedException
+	{
+		int entrySize = 10 * CachedSearchResult.DATA_POINT_SIZE;
+		QueryResultCache cache = new QueryResultCache(entrySize * 4, "hostname");
+
+		for (int I = 0; I < 4; I++)
+		{
+			cache.get("key" + I, 60);
+			cache.complete("key" + I, createEntry(10, I));
+		}
+
+		cache.get("key0", 60); //Make key1 the oldest
+		cache.get("key4", 60);
+		cache.complete("key4", createEntry(10, 4));
+
+		assertThat(cache.getSize(), equalTo((long) entrySize * 4));
+		assertThat(cache.get("key1", 60), nullValue());
+		cache.complete("key1", null);
+		assertThat(cache.get("key0", 60).get(0).next().getLongValue(), equalTo(0L));
+	}
+
+	@Test
+	public void test_extendWithTail()
+	{
+		QueryResultCache.Entry cached = createEntry(10, 42); //Timestamps 0 to 9
+
+		ByteBuffer data = ByteBuffer.allocate(5 * CachedSearchResult.DATA_POINT_SIZE);
+		for (int I = 8; I <= 12; I++)
+		{
+			data.putLong(I);
+			data.put(CachedSearchResult.DOUBLE_FLAG);
+			data.putDouble(99.5);
+		}
+		data.flip();
+		QueryResultCache.Entry tail = new QueryResultCache.Entry("metric", 0, 8, 12);
+		tail.addRow(Collections.singletonMap("host", "A"), data);
+
+		QueryResultCache.Entry extended = cached.extend(tail, 0, 2, 8, 12);
+		assertThat(extended.getStartTime(), equalTo(2L));
+		assertThat(extended.getEndTime(), equalTo(12L));
+
+		List<DataPointRow> rows = extended.getRows();
+		assertThat(rows.size(), equalTo(1));
+
+		DataPointRow row = rows.get(0);
+		for (long timestamp = 2; timestamp <= 12; timestamp++)
+		{
+			DataPoint dataPoint = row.next();
+			assertThat(dataPoint.getTimestamp(), equalTo(timestamp));
+			if (timestamp < 8)
+				assertThat(dataPoint.getLongValue(), equalTo(42L));
+			else
+				assertThat(dataPoint.getDoubleValue(), equalTo(99.5));
+		}
+		assertThat(row.hasNext(), equalTo(false));
+
+		//The cached entry is left as it was
+		assertThat(cached.getRows().get(0).next().getTimestamp(), equalTo(0L));
+	}
+
+	@Test
+	public void test_identicalQueriesShareResult() throws Exception
+	{
+		final QueryResultCache cache = new QueryResultCache(10000, "hostname");
+		assertThat(cache.get("key", 0), nullValue());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			Callable<List<DataPointRow>> waiter = new Callable<List<DataPointRow>>()
+			{
+				@Override
+				public List<DataPointRow> call() throws Exception
+				{
+					return (cache.get("key", 0));
+				}
+			};
+
+			Future<List<DataPointRow>> first = executor.submit(waiter);
+			Future<List<DataPointRow>> second = executor.submit(waiter);
+
+			Thread.sleep(100);
+			cache.complete("key", createEntry(5, 7));
+
+			assertThat(first.get().get(0).next().getLongValue(), equalTo(7L));
+			assertThat(second.get().get(0).next().getLongValue(), equalTo(7L));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 3000)
+	public void test_resultWantedByCacheTimeOrWaitingQuery() throws Exception
+	{
+		final QueryResultCache cache = new QueryResultCache(10000, "hostname");
+		assertThat(cache.get("key", 0), nullValue());
+
+		//Nothing can use the result of a query without a cache time
+		assertThat(cache.isWanted("key", 0), equalTo(false));
+		assertThat(cache.isWanted("key", 60), equalTo(true));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<List<DataPointRow>> waiting = executor.submit(new Callable<List<DataPointRow>>()
+			{
+				@Override
+				public List<DataPointRow> call() throws Exception
+				{
+					return (cache.get("key", 0));
+				}
+			});
+
+			while (!cache.isWanted("key", 0))
+				Thread.sleep(10);
+
+			cache.complete("key", createEntry(5, 7));
+			assertThat(waiting.get().get(0).next().getLongValue(), equalTo(7L));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		cache.setIncrementalOverlap(0);
+		assertThat(cache.isWanted("other", 0), equalTo(true));
+	}
+
+	@Test(timeout = 3000)
+	public void test_waitForRunningQueryEndsAtDeadline() throws InterruptedException
+	{
+		QueryResultCache cache = new QueryResultCache(10000, "hostname");
+		assertThat(cache.get("key", 0), nullValue());
+
+		try
+		{
+			cache.get("key", 0, new QueryDeadline(100));
+			fail("Expected the wait to time out");
+		}
+		catch (QueryCancelledException expected)
+		{
+		}
+
+		cache.complete("key", createEntry(10, 42));
+		assertThat(cache.get("key", 60, new QueryDeadline(100)).size(), equalTo(1));
+	}
+}
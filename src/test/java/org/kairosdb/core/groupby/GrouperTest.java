@@ -8,11 +8,14 @@ package org.kairosdb.core.groupby;
 import org.junit.Test;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.datastore.DataPointGroup;
+import org.kairosdb.core.datastore.QueryDeadline;
+import org.kairosdb.core.exception.QueryCancelledException;
 import org.kairosdb.core.formatter.FormatterException;
 import org.kairosdb.testing.ListDataPointGroup;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -113,4 +116,21 @@ public class GrouperTest
 		assertThat(dataPoint.getLongValue(), equalTo(expectedValue));
 	}
 
-}
\ No newline at end of file
+
+	@Test(expected = QueryCancelledException.class)
+	public void test_expiredDeadlineCancels() throws Exception
+	{
+		ListDataPointGroup dataPointGroup = new ListDataPointGroup("dataPointGroup");
+		dataPointGroup.addTag("host", "server1");
+		for (int i = 0; i < 5000; i++)
+			dataPointGroup.addDataPoint(new DataPoint(i, i));
+
+		List<GroupBy> groupBys = new ArrayList<GroupBy>();
+		groupBys.add(new ValueGroupBy(3));
+
+		QueryDeadline deadline = new QueryDeadline(1);
+		Thread.sleep(5);
+
+		new Grouper().group(groupBys, Collections.<DataPointGroup>singletonList(dataPointGroup), deadline);
+	}
+}
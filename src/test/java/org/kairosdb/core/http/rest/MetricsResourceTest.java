@@ -28,7 +28,10 @@ import org.kairosdb.core.DataPointListenerProvider;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.aggregator.AggregatorFactory;
 import org.kairosdb.core.aggregator.TestAggregatorFactory;
+import org.kairosdb.core.binary.BinaryEncoder;
+import org.kairosdb.core.binary.BinaryProtocol;
 import org.kairosdb.core.datastore.*;
+import org.kairosdb.core.exception.DatastoreBusyException;
 import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.groupby.GroupByFactory;
 import org.kairosdb.core.groupby.TestGroupByFactory;
@@ -40,9 +43,11 @@ import org.kairosdb.testing.JsonResponse;
 import org.kairosdb.testing.TestingDataPointRowImpl;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -121,6 +126,26 @@ public class MetricsResourceTest
 		assertResponse(response, 204);
 	}
 
+	@Test
+	public void testAddDatastoreBusy() throws Exception
+	{
+		String json = Resources.toString(Resources.getResource("single-metric-long.json"), Charsets.UTF_8);
+
+		TestDatastore.setBusy(true);
+		try
+		{
+			JsonResponse response = client.post(json, ADD_METRIC_URL);
+
+			assertThat(response.getStatusCode(), equalTo(503));
+			assertThat(response.getHeader("Retry-After"), equalTo("5"));
+			assertThat(response.getJson(), equalTo("{\"errors\":[\"Write buffers are full, retry in 5 seconds\"]}"));
+		}
+		finally
+		{
+			TestDatastore.setBusy(false);
+		}
+	}
+
 	@Test
 	public void testAddSingleMetricDoubleValueSuccess() throws Exception
 	{
@@ -161,6 +186,30 @@ public class MetricsResourceTest
 		assertResponse(response, 400, "{\"errors\":[\"metric[0].name may not be empty.\"]}");
 	}
 
+	@Test
+	public void testAddBinarySuccess() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder = new BinaryEncoder(out);
+		encoder.addDataPoint("metric1", Collections.singletonMap("host", "A"), 1349109376L, 123L);
+		encoder.addDataPoint("metric1", Collections.singletonMap("host", "A"), 1349109377L, 13.2);
+		encoder.close();
+
+		JsonResponse response = client.post(out.toByteArray(), BinaryProtocol.CONTENT_TYPE, ADD_METRIC_URL);
+
+		assertResponse(response, 204);
+	}
+
+	@Test
+	public void testAddBinaryUnknownVersion() throws Exception
+	{
+		byte[] data = new byte[]{0, 0, 0, 1, 9};
+
+		JsonResponse response = client.post(data, BinaryProtocol.CONTENT_TYPE, ADD_METRIC_URL);
+
+		assertResponse(response, 400, "{\"errors\":[\"Unsupported binary protocol version 9\"]}");
+	}
+
 	@Test
 	public void testAddInvalidTimestamp() throws Exception
 	{
@@ -246,20 +295,27 @@ public class MetricsResourceTest
 
 	public static class TestDatastore implements Datastore
 	{
+		private static volatile boolean s_busy = false;
 
 		protected TestDatastore() throws DatastoreException
 		{
 		}
 
+		public static void setBusy(boolean busy)
+		{
+			s_busy = busy;
+		}
+
 		@Override
 		public void close() throws InterruptedException
 		{
 		}
 
 		@Override
-		public void putDataPoints(DataPointSet dps)
+		public void putDataPoints(DataPointSet dps) throws DatastoreException
 		{
-
+			if (s_busy)
+				throw new DatastoreBusyException("Write buffers are full, retry in 5 seconds", 5);
 		}
 
 		@Override
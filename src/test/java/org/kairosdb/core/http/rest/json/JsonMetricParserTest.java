@@ -248,6 +248,55 @@ public class JsonMetricParserTest
 		assertThat(dataPointSetList.get(1).getDataPoints().get(0).getLongValue(), equalTo(321L));
 	}
 
+	@Test
+	public void test_dataPointsWrittenInChunks() throws DatastoreException, IOException, ValidationException
+	{
+		String json = "[{\"name\": \"metric1\", \"tags\":{\"foo\":\"bar\"}, \"datapoints\": [[1,1],[2,2],[3,3],[4,4],[5,5]], " +
+				"\"timestamp\": 6, \"value\": 6.5}]";
+
+		FakeDataStore fakeds = new FakeDataStore();
+		KairosDatastore datastore = new KairosDatastore(fakeds, new QueryQueuingManager(1, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+		JsonMetricParser parser = new JsonMetricParser(datastore, new ByteArrayInputStream(json.getBytes()), 2);
+
+		parser.parse();
+
+		List<DataPointSet> dataPointSetList = fakeds.getDataPointSetList();
+		assertThat(dataPointSetList.size(), equalTo(3));
+
+		long timestamp = 1;
+		for (DataPointSet dataPointSet : dataPointSetList)
+		{
+			assertThat(dataPointSet.getName(), equalTo("metric1"));
+			assertThat(dataPointSet.getTags().get("foo"), equalTo("bar"));
+			assertThat(dataPointSet.getDataPoints().size(), equalTo(2));
+			assertThat(dataPointSet.getDataPoints().get(0).getTimestamp(), equalTo(timestamp));
+			timestamp += 2;
+		}
+
+		assertThat(dataPointSetList.get(2).getDataPoints().get(1).getDoubleValue(), equalTo(6.5));
+	}
+
+	@Test
+	public void test_sameTagsShared() throws DatastoreException, IOException, ValidationException
+	{
+		String json = "[{\"name\": \"metric1\", \"datapoints\": [[1,2]], \"tags\":{\"foo\":\"bar\", \"host\":\"A\"}}, " +
+				"{\"name\": \"metric2\", \"datapoints\": [[1,2]], \"tags\":{\"host\":\"A\", \"foo\":\"bar\"}}, " +
+				"{\"name\": \"metric3\", \"datapoints\": [[1,2]], \"tags\":{\"host\":\"A\", \"host\":\"A\"}}]";
+
+		FakeDataStore fakeds = new FakeDataStore();
+		KairosDatastore datastore = new KairosDatastore(fakeds, new QueryQueuingManager(1, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+		JsonMetricParser parser = new JsonMetricParser(datastore, new ByteArrayInputStream(json.getBytes()));
+
+		parser.parse();
+
+		List<DataPointSet> dataPointSetList = fakeds.getDataPointSetList();
+		assertThat(dataPointSetList.size(), equalTo(3));
+		assertThat(dataPointSetList.get(1).getTags(), equalTo(dataPointSetList.get(0).getTags()));
+		assertThat(dataPointSetList.get(2).getTags().size(), equalTo(1));
+	}
+
 	private static class FakeDataStore implements Datastore
 	{
 		List<DataPointSet> dataPointSetList = new ArrayList<DataPointSet>();
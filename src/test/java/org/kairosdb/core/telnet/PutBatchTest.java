@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class PutBatchTest
+{
+	private DataPointSet createPut(String name, String host, long timestamp)
+	{
+		DataPointSet dps = new DataPointSet(name);
+		dps.addTag("host", host);
+		dps.addDataPoint(new DataPoint(timestamp, timestamp));
+		return (dps);
+	}
+
+	@Test
+	public void test_putsGroupedBySeries()
+	{
+		PutBatch batch = new PutBatch();
+		batch.add(createPut("cpu", "A", 1));
+		batch.add(createPut("cpu", "B", 2));
+		batch.add(createPut("cpu", "A", 3));
+		batch.add(createPut("mem", "A", 4));
+		batch.add(createPut("cpu", "B", 5));
+
+		assertThat(batch.size(), equalTo(5));
+
+		List<DataPointSet> series = batch.drain();
+		assertThat(series.size(), equalTo(3));
+		assertSeries(series.get(0), "cpu", "A", 1, 3);
+		assertSeries(series.get(1), "cpu", "B", 2, 5);
+		assertSeries(series.get(2), "mem", "A", 4);
+
+		assertThat(batch.isEmpty(), equalTo(true));
+		assertThat(batch.drain().size(), equalTo(0));
+	}
+
+	private void assertSeries(DataPointSet dps, String name, String host, long... timestamps)
+	{
+		assertThat(dps.getName(), equalTo(name));
+		assertThat(dps.getTags().get("host"), equalTo(host));
+		assertThat(dps.getDataPoints().size(), equalTo(timestamps.length));
+		for (int i = 0; i < timestamps.length; i++)
+			assertThat(dps.getDataPoints().get(i).getTimestamp(), equalTo(timestamps[i]));
+	}
+}
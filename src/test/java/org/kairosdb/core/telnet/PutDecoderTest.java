@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class PutDecoderTest
+{
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private final PutDecoder m_decoder = new PutDecoder(new StringDictionary(64, 256));
+
+	private DataPointSet decode(String line)
+	{
+		//Decode a slice in the middle of a larger buffer like the framer hands over
+		ChannelBuffer buffer = ChannelBuffers.copiedBuffer("xx" + line + "\n", CHARSET);
+		return (m_decoder.decodePut(buffer.slice(2, buffer.readableBytes() - 3)));
+	}
+
+	@Test
+	public void test_decodeLongPut()
+	{
+		DataPointSet dps = decode("put sys.cpu 1370000000000 -42 host=server1 customer=acme");
+
+		assertThat(dps.getName(), equalTo("sys.cpu"));
+		assertThat(dps.getTags().size(), equalTo(2));
+		assertThat(dps.getTags().get("host"), equalTo("server1"));
+		assertThat(dps.getTags().get("customer"), equalTo("acme"));
+
+		DataPoint dataPoint = dps.getDataPoints().get(0);
+		assertThat(dataPoint.getTimestamp(), equalTo(1370000000000L));
+		assertThat(dataPoint.isInteger(), equalTo(true));
+		assertThat(dataPoint.getLongValue(), equalTo(-42L));
+	}
+
+	@Test
+	public void test_secondsConvertedToMilliseconds()
+	{
+		DataPointSet dps = decode("put sys.cpu 1370000000 1.5 host=server1");
+
+		DataPoint dataPoint = dps.getDataPoints().get(0);
+		assertThat(dataPoint.getTimestamp(), equalTo(1370000000000L));
+		assertThat(dataPoint.getDoubleValue(), equalTo(1.5));
+	}
+
+	@Test
+	public void test_doublesMatchParseDouble()
+	{
+		Random random = new Random(42);
+		String[] values = new String[]{"0.1", "-0.0", "1.", ".5", "123456789.123456789", "1.5e3",
+				"0.30000000000000004", "-99999999999999.9"};
+
+		for (String value : values)
+			assertDouble(value);
+
+		for (int i = 0; i < 10000; i++)
+		{
+			double value = random.nextDouble() * Math.pow(10, random.nextInt(12));
+			assertDouble(Double.toString(value));
+			assertDouble(String.format(Locale.US, "%.3f", -value));
+		}
+	}
+
+	private void assertDouble(String value)
+	{
+		DataPointSet dps = decode("put metric 1370000000000 " + value + " host=A");
+		assertThat(value, dps.getDataPoints().get(0).getDoubleValue(), equalTo(Double.parseDouble(value)));
+	}
+
+	@Test
+	public void test_stringsReused()
+	{
+		DataPointSet first = decode("put sys.cpu 1370000000000 1 host=server1");
+		DataPointSet second = decode("put sys.cpu 1370000000001 2 host=server1");
+
+		assertThat(second.getName(), sameInstance(first.getName()));
+		assertThat(second.getTags().get("host"), sameInstance(first.getTags().get("host")));
+	}
+
+	@Test
+	public void test_unusualLinesLeftForWordSplitter()
+	{
+		assertThat(decode("version"), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000"), nullValue());
+		assertThat(decode("put sys.cpu  1370000000000 1 host=A"), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000 1 host=A "), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000 1 host"), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000 1 host="), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000 1 host=A=B"), nullValue());
+		assertThat(decode("put sys.cpu 1370000000000 1.2.3 host=A"), nullValue());
+		assertThat(decode("put sys.cpu 99999999999999999999 1 host=A"), nullValue());
+	}
+}
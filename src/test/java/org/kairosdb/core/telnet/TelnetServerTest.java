@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.telnet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.DatastoreException;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TelnetServerTest
+{
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private int m_port;
+	private RecordingPutCommand m_putCommand;
+	private TelnetServer m_server;
+
+	@Before
+	public void setup() throws Exception
+	{
+		ServerSocket socket = new ServerSocket(0);
+		m_port = socket.getLocalPort();
+		socket.close();
+
+		m_putCommand = new RecordingPutCommand();
+		m_server = new TelnetServer(m_port, new CommandProvider()
+		{
+			@Override
+			public TelnetCommand getCommand(String command)
+			{
+				return (null);
+			}
+		}, m_putCommand, "hostname");
+		m_server.setHandlerThreads(1);
+		m_server.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		m_putCommand.m_release.countDown();
+		m_server.stop();
+	}
+
+	/**
+	 The lines are slices of the receive buffer so they have to be decoded
+	 before they are handed to the handler threads.
+	 */
+	@Test
+	public void test_pipelineDecodesBeforeExecutor() throws Exception
+	{
+		ChannelPipeline pipeline = m_server.getPipeline();
+
+		assertThat(pipeline.getNames(), equalTo(Arrays.asList("connections", "framer", "putDecoder",
+				"decoder", "executor", "batcher", "encoder", "handler")));
+	}
+
+	@Test(timeout = 5000)
+	public void test_sliceDecodedBeforeHandOff() throws Exception
+	{
+		DecoderEmbedder<Object> embedder = createEmbedder();
+
+		//The handler thread blocks writing the first batch
+		embedder.offer(toBuffer("put first 1370000000000 1 host=A\n"));
+		m_putCommand.m_writing.await();
+
+		//The second read is queued behind it, then its buffer is reused
+		ChannelBuffer buffer = toBuffer("put second 1370000000000 2 host=B\n");
+		embedder.offer(buffer);
+		buffer.setZero(0, buffer.capacity());
+
+		m_putCommand.m_release.countDown();
+		m_putCommand.awaitBatches(2);
+
+		DataPointSet dps = m_putCommand.getBatch(1).get(0);
+		assertThat(dps.getName(), equalTo("second"));
+		assertThat(dps.getTags().get("host"), equalTo("B"));
+		assertThat(dps.getDataPoints().get(0).getLongValue(), equalTo(2L));
+	}
+
+	@Test(timeout = 5000)
+	public void test_batchWrittenAtEndOfRead() throws Exception
+	{
+		m_putCommand.m_release.countDown();
+		DecoderEmbedder<Object> embedder = createEmbedder();
+
+		embedder.offer(toBuffer("put cpu 1370000000000 1 host=A\nput cpu 1370000000001 2 host=A\n" +
+				"put cpu 1370000000002 3 host=B\n"));
+		m_putCommand.awaitBatches(1);
+
+		//All three puts of the read went out in one batch grouped by series
+		assertThat(m_putCommand.getBatch(0).size(), equalTo(2));
+		assertThat(m_putCommand.getBatch(0).get(0).getDataPoints().size(), equalTo(2));
+
+		embedder.offer(toBuffer("put cpu 1370000000003 4 host=A\n"));
+		m_putCommand.awaitBatches(2);
+		assertThat(m_putCommand.getBatch(1).size(), equalTo(1));
+	}
+
+	@Test(timeout = 5000)
+	public void test_stopWaitsForQueuedPuts() throws Exception
+	{
+		Socket socket = new Socket("localhost", m_port);
+		try
+		{
+			OutputStream out = socket.getOutputStream();
+			out.write("put first 1370000000000 1 host=A\n".getBytes(CHARSET));
+			out.flush();
+			m_putCommand.m_writing.await();
+
+			out.write("put second 1370000000000 2 host=A\n".getBytes(CHARSET));
+			out.flush();
+
+			//The running end of read plus the second put and its end of read
+			while (getQueueSize() < 3)
+				Thread.sleep(10);
+
+			Thread stopThread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					m_server.stop();
+				}
+			});
+			stopThread.start();
+
+			stopThread.join(200);
+			assertThat(stopThread.isAlive(), equalTo(true));
+
+			m_putCommand.m_release.countDown();
+			stopThread.join();
+
+			assertThat(m_putCommand.getBatchCount(), equalTo(2));
+			assertThat(m_putCommand.getBatch(1).get(0).getName(), equalTo("second"));
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	private long getQueueSize()
+	{
+		for (DataPointSet dps : m_server.getMetrics(System.currentTimeMillis()))
+		{
+			if (dps.getName().equals(TelnetServer.QUEUE_SIZE_METRIC_NAME))
+				return (dps.getDataPoints().get(0).getLongValue());
+		}
+
+		return (0);
+	}
+
+	/**
+	 Runs the server's handlers from the framer to the batcher, in the order
+	 of its pipeline, without a socket.
+	 */
+	private DecoderEmbedder<Object> createEmbedder() throws Exception
+	{
+		ChannelPipeline pipeline = m_server.getPipeline();
+		List<String> names = pipeline.getNames();
+
+		List<ChannelUpstreamHandler> handlers = new ArrayList<ChannelUpstreamHandler>();
+		for (String name : names.subList(names.indexOf("framer"), names.indexOf("batcher") + 1))
+			handlers.add((ChannelUpstreamHandler) pipeline.get(name));
+
+		return (new DecoderEmbedder<Object>(handlers.toArray(new ChannelUpstreamHandler[handlers.size()])));
+	}
+
+	private ChannelBuffer toBuffer(String lines)
+	{
+		return (ChannelBuffers.copiedBuffer(lines, CHARSET));
+	}
+
+	//===========================================================================
+	/**
+	 Records the batches instead of writing them.  The first batch waits for
+	 m_release.
+	 */
+	private static class RecordingPutCommand extends PutCommand
+	{
+		private final List<List<DataPointSet>> m_batches = Collections.synchronizedList(new ArrayList<List<DataPointSet>>());
+		private final CountDownLatch m_writing = new CountDownLatch(1);
+		private final CountDownLatch m_release = new CountDownLatch(1);
+
+		public RecordingPutCommand()
+		{
+			super(null, "hostname");
+		}
+
+		@Override
+		public void putBatch(Channel chan, List<DataPointSet> batch, int size) throws DatastoreException
+		{
+			m_writing.countDown();
+			try
+			{
+				m_release.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			m_batches.add(batch);
+		}
+
+		public int getBatchCount()
+		{
+			return (m_batches.size());
+		}
+
+		public List<DataPointSet> getBatch(int index)
+		{
+			return (m_batches.get(index));
+		}
+
+		public void awaitBatches(int count) throws InterruptedException
+		{
+			while (m_batches.size() < count)
+				Thread.sleep(10);
+		}
+	}
+}
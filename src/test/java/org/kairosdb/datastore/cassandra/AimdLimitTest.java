@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AimdLimitTest
+{
+	@Test
+	public void test_startsAtMax()
+	{
+		AimdLimit limit = new AimdLimit(10, 100, 5, 0.5);
+
+		assertThat(limit.get(), equalTo(100));
+		assertThat(limit.getMax(), equalTo(100));
+	}
+
+	@Test
+	public void test_decreaseByFactor()
+	{
+		AimdLimit limit = new AimdLimit(10, 100, 5, 0.5);
+
+		assertThat(limit.decrease(), equalTo(50));
+		assertThat(limit.decrease(), equalTo(25));
+		assertThat(limit.get(), equalTo(25));
+	}
+
+	@Test
+	public void test_decreaseClampedToMin()
+	{
+		AimdLimit limit = new AimdLimit(10, 100, 5, 0.5);
+
+		limit.decrease();
+		limit.decrease();
+		limit.decrease(); //12
+		assertThat(limit.decrease(), equalTo(10));
+		assertThat(limit.decrease(), equalTo(10));
+	}
+
+	@Test
+	public void test_increaseBySteps()
+	{
+		AimdLimit limit = new AimdLimit(10, 100, 5, 0.5);
+
+		limit.decrease();
+		assertThat(limit.increase(), equalTo(55));
+		assertThat(limit.increase(), equalTo(60));
+	}
+
+	@Test
+	public void test_increaseClampedToMax()
+	{
+		AimdLimit limit = new AimdLimit(10, 100, 30, 0.5);
+
+		assertThat(limit.increase(), equalTo(100));
+
+		limit.decrease();
+		limit.increase(); //80
+		assertThat(limit.increase(), equalTo(100));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_minOverMaxInvalid()
+	{
+		new AimdLimit(101, 100, 5, 0.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_decreaseFactorOfOneInvalid()
+	{
+		new AimdLimit(10, 100, 5, 1.0);
+	}
+}
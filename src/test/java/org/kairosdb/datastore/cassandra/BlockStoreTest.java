@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.kairosdb.datastore.cassandra.CassandraDatastore.getColumnName;
+
+public class BlockStoreTest
+{
+	private static final long ROW_TIME = 1814400000L;
+
+	private List<Long> timestamps(List<DataPoint> dataPoints)
+	{
+		Long[] ret = new Long[dataPoints.size()];
+		for (int I = 0; I < ret.length; I++)
+			ret[I] = dataPoints.get(I).getTimestamp();
+
+		return (Arrays.asList(ret));
+	}
+
+	@Test
+	public void test_mergeReplacesSameTypeAndTimestamp()
+	{
+		List<DataPoint> existing = Arrays.asList(new DataPoint(ROW_TIME + 1000, 1L),
+				new DataPoint(ROW_TIME + 2000, 2L));
+		List<DataPoint> added = Arrays.asList(new DataPoint(ROW_TIME + 1000, 10L),
+				new DataPoint(ROW_TIME + 2000, 2.5));
+
+		List<DataPoint> merged = BlockStore.merge(existing, added);
+
+		assertThat(timestamps(merged), equalTo(Arrays.asList(ROW_TIME + 1000, ROW_TIME + 2000, ROW_TIME + 2000)));
+		assertThat(merged.get(0).getLongValue(), equalTo(10L));
+	}
+
+	@Test
+	public void test_pointRewrittenAfterCompactionReadOnce()
+	{
+		List<DataPoint> block = Arrays.asList(new DataPoint(ROW_TIME + 1000, 1L),
+				new DataPoint(ROW_TIME + 2000, 2L), new DataPoint(ROW_TIME + 3000, 3.0));
+
+		//The point at 1000 was written again, so it is a column as well
+		int[] columnNames = new int[] { getColumnName(ROW_TIME, ROW_TIME + 1000, true),
+				getColumnName(ROW_TIME, ROW_TIME + 3000, true) };
+		Arrays.sort(columnNames);
+
+		List<DataPoint> remaining = BlockStore.removeColumns(block, ROW_TIME, columnNames);
+
+		//A long column at 3000 does not replace the double in the block
+		assertThat(timestamps(remaining), equalTo(Arrays.asList(ROW_TIME + 2000, ROW_TIME + 3000)));
+		assertThat(remaining.get(1).isInteger(), equalTo(false));
+	}
+
+	@Test
+	public void test_removeColumnsWithoutColumns()
+	{
+		List<DataPoint> block = Arrays.asList(new DataPoint(ROW_TIME + 1000, 1L));
+
+		assertThat(BlockStore.removeColumns(block, ROW_TIME, new int[0]), equalTo(block));
+	}
+}
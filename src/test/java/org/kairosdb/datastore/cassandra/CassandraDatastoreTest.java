@@ -18,6 +18,11 @@ package org.kairosdb.datastore.cassandra;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.IntegerSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.factory.HFactory;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -30,6 +35,7 @@ import org.kairosdb.datastore.DatastoreMetricQueryImpl;
 import org.kairosdb.datastore.DatastoreTestHelper;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static junit.framework.TestCase.assertEquals;
@@ -43,6 +49,9 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 {
 	public static final String ROW_KEY_TEST_METRIC = "row_key_test_metric";
 	public static final String ROW_KEY_BIG_METRIC = "row_key_big_metric";
+	public static final String LEGACY_ROW_METRIC = "legacy_row_metric";
+	public static final String BLOCK_METRIC = "block_metric";
+	public static final String TAG_INDEX_METRIC = "tag_index_metric";
 
 	private static final int MAX_ROW_READ_SIZE = 1024;
 	private static final int OVERFLOW_SIZE = MAX_ROW_READ_SIZE * 2 + 10;
@@ -160,11 +169,45 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 		s_datastore.putDataPoints(dpSet);
 	}
 
+	/**
+	 Writes a row and its index entry the way older versions did, with the
+	 tags as a "name=value:" string.
+	 */
+	private static void writeLegacyRow(String metricName, long timestamp, String tagString, long value)
+	{
+		byte[] name = metricName.getBytes(DataPointsRowKeySerializer.UTF8);
+		byte[] tags = tagString.getBytes(DataPointsRowKeySerializer.UTF8);
+		long rowTime = CassandraDatastore.calculateRowTime(timestamp);
+
+		ByteBuffer buffer = ByteBuffer.allocate(name.length + 9 + tags.length);
+		buffer.put(name);
+		buffer.put((byte) 0x0);
+		buffer.putLong(rowTime);
+		buffer.put(tags);
+		buffer.flip();
+
+		DataPointsRowKey rowKey = CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(buffer);
+
+		Keyspace keyspace = HFactory.createKeyspace(CassandraDatastore.KEYSPACE,
+				HFactory.getOrCreateCluster("kairosdb-cluster", "localhost:9160"));
+
+		HFactory.createMutator(keyspace, CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER)
+				.insert(rowKey, CassandraDatastore.CF_DATA_POINTS, HFactory.createColumn(
+						CassandraDatastore.getColumnName(rowTime, timestamp, true),
+						ValueSerializer.toByteBuffer(value),
+						IntegerSerializer.get(), ByteBufferSerializer.get()));
+
+		HFactory.createMutator(keyspace, StringSerializer.get())
+				.insert(metricName, CassandraDatastore.CF_ROW_KEY_INDEX, HFactory.createColumn(
+						rowKey, "", CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER,
+						StringSerializer.get()));
+	}
+
 	@BeforeClass
 	public static void setupDatastore() throws InterruptedException, DatastoreException
 	{
 		s_datastore = new CassandraDatastore("localhost:9160",
-				null, 1, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, 1000, 50000, "hostname");
+				null, 1, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, 1000, 50000, 2, 5000, 1000, 1000, "", "hostname");
 
 		DatastoreTestHelper.s_datastore = new KairosDatastore(s_datastore,
 				new QueryQueuingManager(1, "hostname"),
@@ -172,6 +215,16 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 
 		loadCassandraData();
 		loadData();
+
+		//A series that has a row in each tag format for the same row time
+		metricNames.add(LEGACY_ROW_METRIC);
+		writeLegacyRow(LEGACY_ROW_METRIC, s_dataPointTime, "host=A:", 1);
+		s_datastore.setLengthPrefixedRowKeys(true);
+		DataPointSet dpSet = new DataPointSet(LEGACY_ROW_METRIC);
+		dpSet.addTag("host", "A");
+		dpSet.addDataPoint(new DataPoint(s_dataPointTime + 1, 2));
+		s_datastore.putDataPoints(dpSet);
+		s_datastore.setLengthPrefixedRowKeys(false);
 		Thread.sleep(2000);
 
 	}
@@ -247,6 +300,152 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 		queryResults.close();
 	}
 
+	@Test
+	public void test_queryReadsRowsInBothTagFormats() throws DatastoreException
+	{
+		QueryMetric query = new QueryMetric(s_dataPointTime, 0, LEGACY_ROW_METRIC);
+		query.setEndTime(s_dataPointTime + 1);
+
+		QueryResults queryResults = DatastoreTestHelper.s_datastore.query(query);
+		List<DataPointGroup> results = queryResults.getDataPoints();
+		assertEquals(1, results.size());
+
+		DataPointGroup dataPointGroup = results.get(0);
+		List<Long> values = new ArrayList<Long>();
+		while (dataPointGroup.hasNext())
+			values.add(dataPointGroup.next().getLongValue());
+
+		dataPointGroup.close();
+		queryResults.close();
+
+		assertThat(values, equalTo(Arrays.asList(1L, 2L)));
+	}
+
+	/**
+	 Turns the tag index on and writes four series of TAG_INDEX_METRIC from
+	 the index start time.
+	 @return the index start time
+	 */
+	private long loadTagIndexData() throws DatastoreException, InterruptedException
+	{
+		s_datastore.setTagIndex(true, 3);
+
+		Keyspace keyspace = HFactory.createKeyspace(CassandraDatastore.KEYSPACE,
+				HFactory.getOrCreateCluster("kairosdb-cluster", "localhost:9160"));
+		long startTime = Long.parseLong(HFactory.createSliceQuery(keyspace, StringSerializer.get(),
+				StringSerializer.get(), StringSerializer.get())
+				.setColumnFamily(CassandraDatastore.CF_STRING_INDEX)
+				.setKey(CassandraDatastore.ROW_KEY_TAG_INDEX_START)
+				.setRange("", "", false, 1).execute().get().getColumns().get(0).getName());
+
+		metricNames.add(TAG_INDEX_METRIC);
+		String[][] series = new String[][] { {"A", "foo"}, {"B", "foo"}, {"C", "bar"}, {"D", "bar"} };
+		for (String[] tags : series)
+		{
+			DataPointSet dpSet = new DataPointSet(TAG_INDEX_METRIC);
+			dpSet.addTag("host", tags[0]);
+			dpSet.addTag("client", tags[1]);
+			dpSet.addDataPoint(new DataPoint(startTime + 1000, 42));
+			s_datastore.putDataPoints(dpSet);
+		}
+
+		Thread.sleep(2000);
+		return (startTime);
+	}
+
+	private TagIndex createTagIndex(long startTime, int scanThreshold)
+	{
+		Keyspace keyspace = HFactory.createKeyspace(CassandraDatastore.KEYSPACE,
+				HFactory.getOrCreateCluster("kairosdb-cluster", "localhost:9160"));
+		return (new TagIndex(keyspace, CassandraDatastore.CF_TAG_INDEX, null, startTime,
+				scanThreshold, MAX_ROW_READ_SIZE));
+	}
+
+	@Test
+	public void test_tagIndex() throws DatastoreException, InterruptedException
+	{
+		long startTime = loadTagIndexData();
+
+		SetMultimap<String, String> host = HashMultimap.create();
+		host.put("host", "A");
+		SetMultimap<String, String> client = HashMultimap.create();
+		client.put("client", "foo");
+
+		//Index narrows the keys to the tag
+		TagIndex tagIndex = createTagIndex(startTime, 3);
+		List<DataPointsRowKey> keys = tagIndex.getKeys(TAG_INDEX_METRIC, startTime, startTime,
+				host, new DataPointsRowKeySerializer.TagFilter(host));
+		assertEquals(1, keys.size());
+		assertThat(keys.get(0).getTags().get("host"), equalTo("A"));
+
+		keys = tagIndex.getKeys(TAG_INDEX_METRIC, startTime, startTime,
+				client, new DataPointsRowKeySerializer.TagFilter(client));
+		assertEquals(2, keys.size());
+
+		//Tag not selective enough, falls back to a scan
+		assertThat(createTagIndex(startTime, 2).getKeys(TAG_INDEX_METRIC, startTime, startTime,
+				client, new DataPointsRowKeySerializer.TagFilter(client)), equalTo(null));
+
+		//Metric has fewer keys than the threshold, falls back to a scan
+		assertThat(createTagIndex(startTime, 5).getKeys(TAG_INDEX_METRIC, startTime, startTime,
+				host, new DataPointsRowKeySerializer.TagFilter(host)), equalTo(null));
+
+		//Queries find the same keys with and without the index
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(TAG_INDEX_METRIC, host,
+				startTime, startTime + 1000);
+		assertEquals(1, s_datastore.getKeysForQuery(query).size());
+
+		query = new DatastoreMetricQueryImpl(TAG_INDEX_METRIC, HashMultimap.<String, String>create(),
+				startTime, startTime + 1000);
+		assertEquals(4, s_datastore.getKeysForQuery(query).size());
+	}
+
+	@Test
+	public void test_pointRewrittenAfterCompactionReadOnce() throws DatastoreException, InterruptedException
+	{
+		long rowTime = CassandraDatastore.calculateRowTime(s_dataPointTime);
+		metricNames.add(BLOCK_METRIC);
+
+		DataPointSet dpSet = new DataPointSet(BLOCK_METRIC);
+		dpSet.addTag("host", "A");
+		dpSet.addDataPoint(new DataPoint(rowTime + 1000, 1));
+		dpSet.addDataPoint(new DataPoint(rowTime + 2000, 2));
+		s_datastore.putDataPoints(dpSet);
+		Thread.sleep(2000);
+
+		//Compact only this metric with the block width the keyspace was set up with
+		s_datastore.setBlockStorage(true, 60000, 0);
+		Keyspace keyspace = HFactory.createKeyspace(CassandraDatastore.KEYSPACE,
+				HFactory.getOrCreateCluster("kairosdb-cluster", "localhost:9160"));
+		String width = HFactory.createStringColumnQuery(keyspace)
+				.setColumnFamily(CassandraDatastore.CF_STRING_INDEX)
+				.setKey(CassandraDatastore.ROW_KEY_BLOCK_STORAGE)
+				.setName(BlockStore.WIDTH_COLUMN).execute().get().getValue();
+		BlockStore blockStore = new BlockStore(keyspace, CassandraDatastore.CF_DATA_POINT_BLOCKS,
+				Long.parseLong(width), 0, rowTime, MAX_ROW_READ_SIZE, new RowWidthRules(""));
+		blockStore.compact(Collections.singleton(BLOCK_METRIC), System.currentTimeMillis());
+
+		dpSet = new DataPointSet(BLOCK_METRIC);
+		dpSet.addTag("host", "A");
+		dpSet.addDataPoint(new DataPoint(rowTime + 1000, 10));
+		s_datastore.putDataPoints(dpSet);
+		Thread.sleep(2000);
+
+		QueryMetric query = new QueryMetric(rowTime, 0, BLOCK_METRIC);
+		query.setEndTime(rowTime + 2000);
+
+		QueryResults queryResults = DatastoreTestHelper.s_datastore.query(query);
+		DataPointGroup dataPointGroup = queryResults.getDataPoints().get(0);
+		List<Long> values = new ArrayList<Long>();
+		while (dataPointGroup.hasNext())
+			values.add(dataPointGroup.next().getLongValue());
+
+		dataPointGroup.close();
+		queryResults.close();
+
+		assertThat(values, equalTo(Arrays.asList(10L, 2L)));
+	}
+
 	@Test (expected = NullPointerException.class)
 	public void test_deleteDataPoints_nullQuery_Invalid() throws IOException, DatastoreException
 	{
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.QueryMetric;
+import org.kairosdb.core.exception.DatastoreException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class CommitLogTest
+{
+	private File m_directory;
+
+	@Before
+	public void setup()
+	{
+		m_directory = new File("build/commit_log_test");
+		deleteDirectory();
+	}
+
+	@After
+	public void cleanup()
+	{
+		deleteDirectory();
+	}
+
+	private void deleteDirectory()
+	{
+		File[] files = m_directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+				file.delete();
+		}
+		m_directory.delete();
+	}
+
+	private DataPointSet createDataPointSet(String name)
+	{
+		DataPointSet dps = new DataPointSet(name);
+		dps.addTag("host", "server1");
+		dps.addTag("customer", "acme");
+		dps.addDataPoint(new DataPoint(1000L, 42L));
+		dps.addDataPoint(new DataPoint(2000L, 1.5));
+		return (dps);
+	}
+
+	private List<DataPointSet> replay(CommitLog commitLog)
+			throws IOException, DatastoreException, InterruptedException
+	{
+		final List<DataPointSet> replayed = new ArrayList<DataPointSet>();
+		commitLog.replay(new CommitLog.ReplayHandler()
+		{
+			@Override
+			public void replay(DataPointSet dps, CommitLog.Segment segment)
+			{
+				replayed.add(dps);
+			}
+
+			@Override
+			public void replayDelete(DatastoreMetricQuery query, CommitLog.Segment segment)
+			{
+			}
+		});
+
+		return (replayed);
+	}
+
+	private QueryMetric createDeleteQuery(String name)
+	{
+		QueryMetric query = new QueryMetric(500L, 1500L, 0, name);
+		query.addTag("host", "server1");
+		query.addTag("host", "server2");
+		return (query);
+	}
+
+	@Test
+	public void test_encodeDecode() throws IOException
+	{
+		DataPointSet dps = createDataPointSet("metric1");
+
+		DataPointSet decoded = CommitLog.decode(CommitLog.encode(dps));
+
+		assertThat(decoded.getName(), equalTo("metric1"));
+		assertThat(decoded.getTags(), equalTo(dps.getTags()));
+		assertThat(decoded.getDataPoints().size(), equalTo(2));
+		assertThat(decoded.getDataPoints().get(0).getLongValue(), equalTo(42L));
+		assertThat(decoded.getDataPoints().get(1).isInteger(), equalTo(false));
+		assertThat(decoded.getDataPoints().get(1).getDoubleValue(), equalTo(1.5));
+	}
+
+	@Test
+	public void test_encodeDecodeDelete() throws IOException
+	{
+		QueryMetric query = createDeleteQuery("metric1");
+
+		DatastoreMetricQuery decoded = CommitLog.decodeDelete(CommitLog.encodeDelete(query));
+
+		assertThat(decoded.getName(), equalTo("metric1"));
+		assertThat(decoded.getTags(), equalTo(query.getTags()));
+		assertThat(decoded.getStartTime(), equalTo(500L));
+		assertThat(decoded.getEndTime(), equalTo(1500L));
+	}
+
+	@Test
+	public void test_replayPutThenDelete() throws IOException, DatastoreException, InterruptedException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 1024);
+		commitLog.append(createDataPointSet("metric1")).release();
+		commitLog.appendDelete(createDeleteQuery("metric1"));
+		commitLog.append(createDataPointSet("metric2"));
+		commitLog.close();
+
+		//The delete is replayed after the put it removes and before the next put
+		final List<String> replayed = new ArrayList<String>();
+		CommitLog reopened = new CommitLog(m_directory, 1024);
+		reopened.replay(new CommitLog.ReplayHandler()
+		{
+			@Override
+			public void replay(DataPointSet dps, CommitLog.Segment segment)
+			{
+				replayed.add("put " + dps.getName());
+			}
+
+			@Override
+			public void replayDelete(DatastoreMetricQuery query, CommitLog.Segment segment)
+			{
+				replayed.add("delete " + query.getName() + " " + query.getStartTime() + "-" + query.getEndTime());
+			}
+		});
+		reopened.close();
+
+		assertThat(replayed.size(), equalTo(3));
+		assertThat(replayed.get(0), equalTo("put metric1"));
+		assertThat(replayed.get(1), equalTo("delete metric1 500-1500"));
+		assertThat(replayed.get(2), equalTo("put metric2"));
+	}
+
+	@Test
+	public void test_replayUnacknowledgedData() throws IOException, DatastoreException, InterruptedException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 1024);
+		commitLog.append(createDataPointSet("metric1"));
+		commitLog.append(createDataPointSet("metric2"));
+		commitLog.close();
+
+		//Segments were never released so they are replayed by the next log
+		CommitLog reopened = new CommitLog(m_directory, 1024);
+		List<DataPointSet> replayed = replay(reopened);
+
+		assertThat(replayed.size(), equalTo(2));
+		assertThat(replayed.get(0).getName(), equalTo("metric1"));
+		assertThat(replayed.get(1).getName(), equalTo("metric2"));
+
+		reopened.close();
+		assertThat(m_directory.listFiles().length, equalTo(0));
+	}
+
+	@Test
+	public void test_acknowledgedSegmentsAreDeleted() throws IOException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 128);
+
+		//Each set is too big to share a segment with another
+		List<CommitLog.Segment> segments = new ArrayList<CommitLog.Segment>();
+		for (int I = 0; I < 3; I++)
+			segments.add(commitLog.append(createDataPointSet("metric" + I)));
+
+		assertThat(m_directory.listFiles().length, equalTo(3));
+
+		segments.get(0).release();
+		segments.get(1).release();
+		assertThat(m_directory.listFiles().length, equalTo(1));
+
+		commitLog.close();
+		segments.get(2).release();
+		assertThat(m_directory.listFiles().length, equalTo(0));
+	}
+
+	@Test
+	public void test_segmentsAreDeletedInOrder() throws IOException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 128);
+
+		List<CommitLog.Segment> segments = new ArrayList<CommitLog.Segment>();
+		for (int I = 0; I < 3; I++)
+			segments.add(commitLog.append(createDataPointSet("metric" + I)));
+
+		//The second segment waits for the first so a replay never skips it
+		segments.get(1).release();
+		assertThat(m_directory.listFiles().length, equalTo(3));
+
+		segments.get(0).release();
+		assertThat(m_directory.listFiles().length, equalTo(1));
+
+		commitLog.close();
+		segments.get(2).release();
+	}
+
+	@Test
+	public void test_replayedSegmentKeptUntilReleased() throws IOException, DatastoreException, InterruptedException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 1024);
+		commitLog.append(createDataPointSet("metric1"));
+		commitLog.close();
+
+		final List<CommitLog.Segment> retained = new ArrayList<CommitLog.Segment>();
+		CommitLog reopened = new CommitLog(m_directory, 1024);
+		reopened.replay(new CommitLog.ReplayHandler()
+		{
+			@Override
+			public void replay(DataPointSet dps, CommitLog.Segment segment)
+			{
+				segment.retain();
+				retained.add(segment);
+			}
+
+			@Override
+			public void replayDelete(DatastoreMetricQuery query, CommitLog.Segment segment)
+			{
+			}
+		});
+		reopened.close();
+
+		//The replayed write has not been acknowledged yet and the closed
+		//segment of the new log is deleted after it
+		assertThat(m_directory.listFiles().length, equalTo(2));
+
+		retained.get(0).release();
+		assertThat(m_directory.listFiles().length, equalTo(0));
+	}
+
+	@Test
+	public void test_failedReplayKeepsSegments() throws IOException, DatastoreException, InterruptedException
+	{
+		CommitLog commitLog = new CommitLog(m_directory, 128);
+		commitLog.append(createDataPointSet("metric1"));
+		commitLog.append(createDataPointSet("metric2"));
+		commitLog.close();
+
+		CommitLog reopened = new CommitLog(m_directory, 128);
+		boolean failed = false;
+		try
+		{
+			reopened.replay(new CommitLog.ReplayHandler()
+			{
+				@Override
+				public void replay(DataPointSet dps, CommitLog.Segment segment) throws DatastoreException
+				{
+					throw new DatastoreException("Cassandra is down");
+				}
+
+				@Override
+				public void replayDelete(DatastoreMetricQuery query, CommitLog.Segment segment) throws DatastoreException
+				{
+					throw new DatastoreException("Cassandra is down");
+				}
+			});
+		}
+		catch (DatastoreException e)
+		{
+			failed = true;
+		}
+		reopened.close();
+		assertThat(failed, equalTo(true));
+
+		//Both sets are replayed by the next log
+		CommitLog next = new CommitLog(m_directory, 128);
+		List<DataPointSet> replayed = replay(next);
+		next.close();
+
+		assertThat(replayed.size(), equalTo(2));
+		assertThat(replayed.get(0).getName(), equalTo("metric1"));
+		assertThat(replayed.get(1).getName(), equalTo("metric2"));
+	}
+}
@@ -20,6 +20,9 @@ import org.junit.Test;
 
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
 public class DataCacheTest
 {
@@ -32,11 +35,75 @@ public class DataCacheTest
 		assertFalse(cache.isCached("two"));
 		assertFalse(cache.isCached("three"));
 
-		assertTrue(cache.isCached("one")); //This puts 'one' as the newest
-		assertFalse(cache.isCached("four")); //This should boot out 'two'
-		assertFalse(cache.isCached("two")); //Should have booted 'three'
+		assertTrue(cache.isCached("one")); //'one' is now used more than the others
+		assertFalse(cache.isCached("four")); //Pushes 'three' out of the window, it loses to 'one'
 		assertTrue(cache.isCached("one"));
-		assertFalse(cache.isCached("three")); //Should have booted 'four'
+		assertTrue(cache.isCached("two"));
+		assertTrue(cache.isCached("four"));
+		assertFalse(cache.isCached("three"));
+	}
+
+	@Test
+	public void test_frequentItemsSurviveScan()
+	{
+		DataCache<String> cache = new DataCache<String>(100);
+
+		for (int pass = 0; pass < 3; pass++)
+		{
+			for (int I = 0; I < 50; I++)
+				cache.isCached("hot" + I);
+		}
+
+		//A burst of keys that are only seen once
+		for (int I = 0; I < 1000; I++)
+			cache.isCached("cold" + I);
+
+		for (int I = 0; I < 50; I++)
+			assertTrue(cache.isCached("hot" + I));
+	}
+
+	@Test
+	public void test_sizeIsBounded()
+	{
+		DataCache<Integer> cache = new DataCache<Integer>(100);
+
+		for (int I = 0; I < 10000; I++)
+			cache.isCached(I);
+
+		assertThat(cache.size(), lessThanOrEqualTo(100));
+	}
+
+	@Test
+	public void test_remove()
+	{
+		DataCache<String> cache = new DataCache<String>(3);
+
+		assertFalse(cache.isCached("one"));
+		assertFalse(cache.isCached("two"));
+		cache.remove("one");
+
+		assertFalse(cache.isCached("one"));
+		assertTrue(cache.isCached("two"));
 		assertTrue(cache.isCached("one"));
 	}
+
+	@Test
+	public void test_removedItemsFreeTheirRoom()
+	{
+		DataCache<Integer> cache = new DataCache<Integer>(100);
+		for (int I = 0; I < 100; I++)
+			cache.isCached(I);
+
+		for (int I = 0; I < 100; I += 2)
+			cache.remove(I);
+		assertThat(cache.size(), equalTo(50));
+
+		//The new items take the place of the removed ones instead of competing with the rest
+		for (int I = 100; I < 150; I++)
+			cache.isCached(I);
+		assertThat(cache.size(), equalTo(100));
+
+		for (int I = 1; I < 150; I += 2)
+			assertTrue(cache.isCached(I));
+	}
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class DataPointBlockTest
+{
+	private void assertRoundTrip(List<DataPoint> dataPoints)
+	{
+		List<DataPoint> decoded = DataPointBlock.decode(DataPointBlock.encode(dataPoints));
+
+		assertThat(decoded.size(), equalTo(dataPoints.size()));
+		for (int I = 0; I < dataPoints.size(); I++)
+		{
+			DataPoint expected = dataPoints.get(I);
+			DataPoint actual = decoded.get(I);
+
+			assertThat(actual.getTimestamp(), equalTo(expected.getTimestamp()));
+			assertThat(actual.isInteger(), equalTo(expected.isInteger()));
+			if (expected.isInteger())
+				assertThat(actual.getLongValue(), equalTo(expected.getLongValue()));
+			else
+				assertThat(Double.doubleToRawLongBits(actual.getDoubleValue()),
+						equalTo(Double.doubleToRawLongBits(expected.getDoubleValue())));
+		}
+	}
+
+	@Test
+	public void test_emptyBlock()
+	{
+		assertRoundTrip(new ArrayList<DataPoint>());
+	}
+
+	@Test
+	public void test_regularLongs()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		for (int I = 0; I < 720; I++)
+			dataPoints.add(new DataPoint(1370000000000L + I * 10000L, 42L + (I % 3)));
+
+		assertRoundTrip(dataPoints);
+
+		//Fixed interval and small changes take under two bytes per point
+		assertThat(DataPointBlock.encode(dataPoints).remaining(), lessThan(720 * 2));
+	}
+
+	@Test
+	public void test_mixedTypesAndIrregularTimestamps()
+	{
+		Random random = new Random(1234);
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		long timestamp = 1370000000000L;
+		for (int I = 0; I < 1000; I++)
+		{
+			//Deltas that exercise every timestamp bucket
+			timestamp += random.nextInt(I % 4 == 0 ? 100000 : 20) + 1;
+			if (random.nextBoolean())
+				dataPoints.add(new DataPoint(timestamp, random.nextLong()));
+			else
+				dataPoints.add(new DataPoint(timestamp, random.nextDouble() * 1000));
+		}
+
+		dataPoints.add(new DataPoint(timestamp + 1, Long.MIN_VALUE));
+		dataPoints.add(new DataPoint(timestamp + 2, Long.MAX_VALUE));
+		dataPoints.add(new DataPoint(timestamp + 2, Double.NaN));
+		dataPoints.add(new DataPoint(timestamp + 3, -0.0));
+
+		assertRoundTrip(dataPoints);
+	}
+
+	@Test
+	public void test_decodeFromOffset()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		dataPoints.add(new DataPoint(1000L, 1.5));
+		dataPoints.add(new DataPoint(2000L, 2.5));
+
+		ByteBuffer encoded = DataPointBlock.encode(dataPoints);
+		ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + 3);
+		buffer.put(new byte[3]);
+		buffer.put(encoded);
+		buffer.flip();
+		buffer.position(3);
+
+		List<DataPoint> decoded = DataPointBlock.decode(buffer);
+		assertThat(decoded.get(1).getTimestamp(), equalTo(2000L));
+		assertThat(decoded.get(1).getDoubleValue(), equalTo(2.5));
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class DataPointsRowKeySerializerTest
+{
+	private static final DataPointsRowKeySerializer SERIALIZER = new DataPointsRowKeySerializer();
+
+	private DataPointsRowKey createRowKey()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", 1814400000L);
+		rowKey.addTag("host", "server1");
+		rowKey.addTag("dc", "caf\u00e9");
+		rowKey.setLengthPrefixedTags(true);
+		return (rowKey);
+	}
+
+	/**
+	 Builds a key the way older versions wrote them.
+	 */
+	private ByteBuffer createLegacyKey(String metricName, long timestamp, String tagString)
+	{
+		byte[] name = metricName.getBytes(DataPointsRowKeySerializer.UTF8);
+		byte[] tags = tagString.getBytes(DataPointsRowKeySerializer.UTF8);
+
+		ByteBuffer buffer = ByteBuffer.allocate(name.length + 9 + tags.length);
+		buffer.put(name);
+		buffer.put((byte) 0x0);
+		buffer.putLong(timestamp);
+		buffer.put(tags);
+		buffer.flip();
+
+		return (buffer);
+	}
+
+	@Test
+	public void test_roundTrip()
+	{
+		DataPointsRowKey rowKey = createRowKey();
+
+		ByteBuffer serialized = SERIALIZER.toByteBuffer(rowKey);
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(serialized);
+
+		assertThat(decoded, equalTo(rowKey));
+		assertThat(decoded.getTags().get("dc"), equalTo("caf\u00e9"));
+	}
+
+	@Test
+	public void test_roundTripNoTags()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", 1814400000L);
+
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(SERIALIZER.toByteBuffer(rowKey));
+
+		assertThat(decoded, equalTo(rowKey));
+		assertTrue(decoded.getTags().isEmpty());
+	}
+
+	@Test
+	public void test_fromByteBufferDoesNotMoveBuffer()
+	{
+		ByteBuffer serialized = SERIALIZER.toByteBuffer(createRowKey());
+		int position = serialized.position();
+
+		SERIALIZER.fromByteBuffer(serialized);
+
+		assertThat(serialized.position(), equalTo(position));
+	}
+
+	@Test
+	public void test_readLegacyKey()
+	{
+		ByteBuffer legacy = createLegacyKey("cpu.load", 1814400000L, "dc=caf\u00e9:host=server1:");
+
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(legacy);
+
+		DataPointsRowKey rowKey = createRowKey();
+		assertThat(decoded.getMetricName(), equalTo(rowKey.getMetricName()));
+		assertThat(decoded.getTimestamp(), equalTo(rowKey.getTimestamp()));
+		assertThat(decoded.getTags(), equalTo(rowKey.getTags()));
+	}
+
+	@Test
+	public void test_legacyKeyIsADifferentRow()
+	{
+		ByteBuffer legacy = createLegacyKey("cpu.load", 1814400000L, "dc=caf\u00e9:host=server1:");
+
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(legacy);
+		DataPointsRowKey rowKey = SERIALIZER.fromByteBuffer(SERIALIZER.toByteBuffer(createRowKey()));
+
+		assertFalse(decoded.equals(rowKey));
+		assertFalse(rowKey.equals(decoded));
+		assertFalse(createRowKey().equals(decoded));
+		assertTrue(createRowKey().equals(rowKey));
+
+		Map<DataPointsRowKey, String> rows = new HashMap<DataPointsRowKey, String>();
+		rows.put(decoded, "legacy");
+		rows.put(rowKey, "new");
+		assertThat(rows.size(), equalTo(2));
+	}
+
+	@Test
+	public void test_legacyKeyKeepsFormat()
+	{
+		ByteBuffer legacy = createLegacyKey("cpu.load", 1814400000L, "dc=caf\u00e9:host=server1:");
+
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(legacy);
+
+		assertThat(SERIALIZER.toByteBuffer(decoded), equalTo(legacy));
+		assertFalse(SERIALIZER.toByteBuffer(createRowKey()).equals(legacy));
+	}
+
+	@Test
+	public void test_defaultKeyWrittenInLegacyFormat()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", 1814400000L);
+		rowKey.addTag("host", "server1");
+		rowKey.addTag("dc", "caf\u00e9");
+
+		ByteBuffer legacy = createLegacyKey("cpu.load", 1814400000L, "dc=caf\u00e9:host=server1:");
+
+		assertThat(SERIALIZER.toByteBuffer(rowKey), equalTo(legacy));
+		assertThat(SERIALIZER.fromByteBuffer(SERIALIZER.toByteBuffer(rowKey)), equalTo(rowKey));
+	}
+
+	@Test
+	public void test_newKeySortsWithinRowTimeRange()
+	{
+		ByteBuffer start = SERIALIZER.toByteBuffer(new DataPointsRowKey("cpu.load", 1814400000L));
+		ByteBuffer end = SERIALIZER.toByteBuffer(new DataPointsRowKey("cpu.load", 1814400001L));
+		ByteBuffer key = SERIALIZER.toByteBuffer(createRowKey());
+
+		assertTrue(key.compareTo(start) > 0);
+		assertTrue(key.compareTo(end) < 0);
+	}
+
+	@Test
+	public void test_matches()
+	{
+		SetMultimap<String, String> tags = HashMultimap.create();
+		tags.put("host", "server1");
+		tags.put("host", "server2");
+		tags.put("dc", "caf\u00e9");
+		DataPointsRowKeySerializer.TagFilter filter = new DataPointsRowKeySerializer.TagFilter(tags);
+
+		ByteBuffer serialized = SERIALIZER.toByteBuffer(createRowKey());
+		ByteBuffer legacy = createLegacyKey("cpu.load", 1814400000L, "dc=caf\u00e9:host=server1:");
+
+		assertTrue(SERIALIZER.matches(serialized, filter));
+		assertTrue(SERIALIZER.matches(legacy, filter));
+
+		tags.removeAll("host");
+		tags.put("host", "server3");
+		filter = new DataPointsRowKeySerializer.TagFilter(tags);
+
+		assertFalse(SERIALIZER.matches(serialized, filter));
+		assertFalse(SERIALIZER.matches(legacy, filter));
+	}
+
+	@Test
+	public void test_matchesMissingTag()
+	{
+		SetMultimap<String, String> tags = HashMultimap.create();
+		tags.put("customer", "acme");
+		DataPointsRowKeySerializer.TagFilter filter = new DataPointsRowKeySerializer.TagFilter(tags);
+
+		assertFalse(SERIALIZER.matches(SERIALIZER.toByteBuffer(createRowKey()), filter));
+		assertTrue(SERIALIZER.matches(SERIALIZER.toByteBuffer(createRowKey()),
+				new DataPointsRowKeySerializer.TagFilter(HashMultimap.<String, String>create())));
+	}
+
+	@Test
+	public void test_roundTripRowWidth()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", 86400000L, 86400000L,
+				new TreeMap<String, String>());
+		rowKey.addTag("host", "server1");
+
+		ByteBuffer serialized = SERIALIZER.toByteBuffer(rowKey);
+		DataPointsRowKey decoded = SERIALIZER.fromByteBuffer(serialized);
+
+		assertThat(decoded, equalTo(rowKey));
+		assertThat(decoded.getRowWidth(), equalTo(86400000L));
+
+		SetMultimap<String, String> tags = HashMultimap.create();
+		tags.put("host", "server1");
+		assertTrue(SERIALIZER.matches(serialized, new DataPointsRowKeySerializer.TagFilter(tags)));
+	}
+
+	@Test
+	public void test_defaultRowWidthNotWritten()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", 1814400000L);
+
+		//Name, null and timestamp only so existing keys are unchanged
+		assertThat(SERIALIZER.toByteBuffer(rowKey).remaining(), equalTo(8 + 1 + 8));
+		assertThat(SERIALIZER.fromByteBuffer(SERIALIZER.toByteBuffer(rowKey)).getRowWidth(),
+				equalTo(CassandraDatastore.ROW_WIDTH));
+	}
+}
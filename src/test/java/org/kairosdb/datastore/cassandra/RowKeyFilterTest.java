@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class RowKeyFilterTest
+{
+	private static final long LOAD_TIME = 1814400000L + 1000L;
+
+	private final List<DataPointsRowKey> m_written =
+			Collections.synchronizedList(new ArrayList<DataPointsRowKey>());
+
+	private final RowKeyFilter.RowKeyWriter m_writer = new RowKeyFilter.RowKeyWriter()
+	{
+		@Override
+		public void writeRowKey(DataPointsRowKey rowKey, long now)
+		{
+			m_written.add(rowKey);
+		}
+	};
+
+	private DataPointsRowKey createRowKey(String host)
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("cpu.load", CassandraDatastore.calculateRowTime(LOAD_TIME));
+		rowKey.addTag("host", host);
+		return (rowKey);
+	}
+
+	@Test
+	public void test_indexedKeyNotWritten() throws InterruptedException
+	{
+		DataPointsRowKey indexed = createRowKey("A");
+
+		RowKeyFilter filter = new RowKeyFilter(null, m_writer, LOAD_TIME,
+				Collections.singletonList(indexed), 0.01, 10)
+		{
+			@Override
+			Set<DataPointsRowKey> getIndexedKeys(String metricName, List<DataPointsRowKey> rowKeys)
+			{
+				return (new HashSet<DataPointsRowKey>(rowKeys));
+			}
+		};
+
+		assertTrue(filter.isIndexed(indexed));
+		assertFalse(filter.isIndexed(createRowKey("B")));
+		filter.close();
+
+		assertThat(m_written.size(), equalTo(0));
+		assertThat(filter.getAndResetVerifiedCount(), equalTo(1L));
+		assertThat(filter.getAndResetFalsePositiveCount(), equalTo(0L));
+	}
+
+	@Test
+	public void test_falsePositiveWrittenAfterVerify() throws InterruptedException
+	{
+		DataPointsRowKey rowKey = createRowKey("A");
+
+		//The filter has the key but the index does not
+		RowKeyFilter filter = new RowKeyFilter(null, m_writer, LOAD_TIME,
+				Collections.singletonList(rowKey), 0.01, 10)
+		{
+			@Override
+			Set<DataPointsRowKey> getIndexedKeys(String metricName, List<DataPointsRowKey> rowKeys)
+			{
+				return (Collections.emptySet());
+			}
+		};
+
+		assertTrue(filter.isIndexed(rowKey));
+		filter.close();
+
+		assertThat(m_written, equalTo(Collections.singletonList(rowKey)));
+		assertThat(filter.getAndResetFalsePositiveCount(), equalTo(1L));
+	}
+
+	@Test
+	public void test_fullQueueWritesDirectly() throws InterruptedException
+	{
+		final CountDownLatch verifying = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		DataPointsRowKey first = createRowKey("A");
+		DataPointsRowKey second = createRowKey("B");
+		DataPointsRowKey third = createRowKey("C");
+
+		RowKeyFilter filter = new RowKeyFilter(null, m_writer, LOAD_TIME,
+				Arrays.asList(first, second, third), 0.01, 1)
+		{
+			@Override
+			Set<DataPointsRowKey> getIndexedKeys(String metricName, List<DataPointsRowKey> rowKeys)
+			{
+				verifying.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				return (new HashSet<DataPointsRowKey>(rowKeys));
+			}
+		};
+
+		//The verify thread holds the first key, the second fills the queue
+		assertTrue(filter.isIndexed(first));
+		verifying.await();
+		assertTrue(filter.isIndexed(second));
+		assertFalse(filter.isIndexed(third));
+
+		release.countDown();
+		filter.close();
+
+		assertThat(m_written.size(), equalTo(0));
+		assertThat(filter.getAndResetVerifiedCount(), equalTo(2L));
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class RowWidthRulesTest
+{
+	@Test
+	public void test_noRules()
+	{
+		RowWidthRules rules = new RowWidthRules("");
+
+		assertThat(rules.getRowWidth("cpu.load"), equalTo(CassandraDatastore.ROW_WIDTH));
+		assertThat(rules.getMaxRowWidth(), equalTo(CassandraDatastore.ROW_WIDTH));
+	}
+
+	@Test
+	public void test_firstMatchWins()
+	{
+		RowWidthRules rules = new RowWidthRules("cpu\\..*=86400000, cpu\\.load=3600000 ,hourly_.*=2147483647");
+
+		assertThat(rules.getRowWidth("cpu.load"), equalTo(86400000L));
+		assertThat(rules.getRowWidth("hourly_requests"), equalTo(2147483647L));
+		assertThat(rules.getRowWidth("memory.free"), equalTo(CassandraDatastore.ROW_WIDTH));
+		assertThat(rules.getMaxRowWidth(), equalTo(2147483647L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_widthTooLarge()
+	{
+		new RowWidthRules("cpu.*=2147483648");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_missingWidth()
+	{
+		new RowWidthRules("cpu.*");
+	}
+}
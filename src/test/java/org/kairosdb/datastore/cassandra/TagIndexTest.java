@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertFalse;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TagIndexTest
+{
+	private String getString(ByteBuffer buffer, int length)
+	{
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return (new String(bytes, DataPointsRowKeySerializer.UTF8));
+	}
+
+	@Test
+	public void test_indexKeyLayout()
+	{
+		ByteBuffer key = TagIndex.indexKey("cpu.load", 1814400000L, "dc", "caf\u00e9");
+
+		assertThat(getString(key, 8), equalTo("cpu.load"));
+		assertThat(key.get(), equalTo((byte) 0x0));
+		assertThat(key.getLong(), equalTo(1814400000L));
+		assertThat(key.getShort(), equalTo((short) 2));
+		assertThat(getString(key, 2), equalTo("dc"));
+		assertThat(getString(key, key.remaining()), equalTo("caf\u00e9"));
+	}
+
+	@Test
+	public void test_indexKeyDoesNotMixTagAndValue()
+	{
+		assertFalse(TagIndex.indexKey("cpu.load", 1814400000L, "ab", "c").equals(
+				TagIndex.indexKey("cpu.load", 1814400000L, "a", "bc")));
+		assertFalse(TagIndex.indexKey("cpu.load", 1814400000L, "host", "a=b").equals(
+				TagIndex.indexKey("cpu.load", 1814400000L, "host=a", "b")));
+	}
+
+	@Test
+	public void test_indexKeyPerBucket()
+	{
+		assertFalse(TagIndex.indexKey("cpu.load", 1814400000L, "host", "server1").equals(
+				TagIndex.indexKey("cpu.load", 2 * 1814400000L, "host", "server1")));
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.kairosdb.core.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ Compares the size and speed of the value encodings.  Not run with the unit
+ tests, run it with the test classpath:
+
+ java -cp build/classes:build/test-classes:lib/* org.kairosdb.datastore.cassandra.ValueSerializerBenchmark
+
+ Prints bytes per point and millions of points per second for the old float
+ column values, the lossless double column values and DataPointBlock.  Block
+ sizes include the timestamps, column sizes are the value only.
+ */
+public class ValueSerializerBenchmark
+{
+	private static final int POINT_COUNT = 100000;
+	private static final int ROUNDS = 20;
+	private static final int BLOCK_SIZE = 720;
+
+	private static volatile double s_sink;
+	private static boolean s_print;
+
+	public static void main(String[] args)
+	{
+		Random random = new Random(42);
+
+		double[] wholeValues = new double[POINT_COUNT];
+		double[] randomWalk = new double[POINT_COUNT];
+		double[] percentages = new double[POINT_COUNT];
+		double walk = 100.0;
+		for (int I = 0; I < POINT_COUNT; I++)
+		{
+			wholeValues[I] = 1000 + random.nextInt(50);
+			walk += random.nextGaussian();
+			randomWalk[I] = walk;
+			percentages[I] = Math.round(random.nextDouble() * 10000) / 100.0;
+		}
+
+		//First pass warms up the JIT
+		for (int pass = 0; pass < 2; pass++)
+		{
+			s_print = (pass == 1);
+			if (s_print)
+				System.out.println("data            encoding        bytes/point  encode M/s  decode M/s");
+
+			run("whole numbers", wholeValues);
+			run("random walk", randomWalk);
+			run("percentages", percentages);
+		}
+	}
+
+	private static void run(String name, double[] values)
+	{
+		//Float
+		ByteBuffer[] encoded = new ByteBuffer[values.length];
+		long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int I = 0; I < values.length; I++)
+				encoded[I] = ValueSerializer.toByteBuffer((float) values[I]);
+		}
+		long encodeTime = System.nanoTime() - start;
+		print(name, "float (lossy)", totalSize(encoded), encodeTime, decodeColumns(encoded));
+
+		//Double
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int I = 0; I < values.length; I++)
+				encoded[I] = ValueSerializer.toByteBuffer(values[I]);
+		}
+		encodeTime = System.nanoTime() - start;
+		print(name, "double", totalSize(encoded), encodeTime, decodeColumns(encoded));
+
+		//Double with varint whole numbers
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int I = 0; I < values.length; I++)
+				encoded[I] = ValueSerializer.toByteBuffer(values[I], true);
+		}
+		encodeTime = System.nanoTime() - start;
+		print(name, "double varint", totalSize(encoded), encodeTime, decodeColumns(encoded));
+
+		//Blocks of two hours of 10 second points
+		List<List<DataPoint>> blocks = new ArrayList<List<DataPoint>>();
+		for (int I = 0; I < values.length; I += BLOCK_SIZE)
+		{
+			List<DataPoint> block = new ArrayList<DataPoint>();
+			for (int J = I; J < Math.min(values.length, I + BLOCK_SIZE); J++)
+				block.add(new DataPoint(1370000000000L + J * 10000L, values[J]));
+			blocks.add(block);
+		}
+
+		ByteBuffer[] encodedBlocks = new ByteBuffer[blocks.size()];
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (int I = 0; I < blocks.size(); I++)
+				encodedBlocks[I] = DataPointBlock.encode(blocks.get(I));
+		}
+		encodeTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (ByteBuffer block : encodedBlocks)
+				s_sink += DataPointBlock.decode(block.duplicate()).size();
+		}
+		print(name, "block", totalSize(encodedBlocks), encodeTime, System.nanoTime() - start);
+	}
+
+	private static long decodeColumns(ByteBuffer[] encoded)
+	{
+		long start = System.nanoTime();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			for (ByteBuffer buffer : encoded)
+				s_sink += ValueSerializer.getDoubleFromByteBuffer(buffer.duplicate());
+		}
+
+		return (System.nanoTime() - start);
+	}
+
+	private static long totalSize(ByteBuffer[] encoded)
+	{
+		long size = 0;
+		for (ByteBuffer buffer : encoded)
+			size += buffer.remaining();
+
+		return (size);
+	}
+
+	private static void print(String name, String encoding, long bytes, long encodeNanos, long decodeNanos)
+	{
+		if (!s_print)
+			return;
+
+		double points = (double) POINT_COUNT * ROUNDS;
+		System.out.println(String.format("%-15s %-15s %11.2f %11.1f %11.1f", name, encoding,
+				(double) bytes / POINT_COUNT, points / encodeNanos * 1000.0, points / decodeNanos * 1000.0));
+	}
+}
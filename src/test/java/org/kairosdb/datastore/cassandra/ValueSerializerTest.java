@@ -98,4 +98,60 @@ public class ValueSerializerTest
 		assertThat(buf.remaining(), equalTo(8));
 		assertThat(ValueSerializer.getLongFromByteBuffer(buf), equalTo(-1L));
 	}
+
+	private void assertDouble(double value, boolean varint, int size)
+	{
+		ByteBuffer buf = ValueSerializer.toByteBuffer(value, varint);
+		assertThat(buf.remaining(), equalTo(size));
+		assertThat(Double.doubleToRawLongBits(ValueSerializer.getDoubleFromByteBuffer(buf)),
+				equalTo(Double.doubleToRawLongBits(value)));
+	}
+
+	@Test
+	public void testDoubles()
+	{
+		assertDouble(0.0, false, 5);
+		assertDouble(-1.0, false, 5);
+		assertDouble(64.0, false, 5);
+		assertDouble(-123456789.0, false, 9);
+		assertDouble(-0.0, false, 5);
+		assertDouble(0.5, false, 5);
+		assertDouble(Double.POSITIVE_INFINITY, false, 5);
+		assertDouble(0.1, false, 9);
+		assertDouble(Math.PI, false, 9);
+		assertDouble(1e300, false, 9);
+		assertDouble(Double.NaN, false, 9);
+	}
+
+	@Test
+	public void testDoublesNeverWrittenAsVarintByDefault()
+	{
+		assertThat(ValueSerializer.toByteBuffer(1.0).get(0), equalTo(ValueSerializer.FLOAT_VALUE));
+		assertThat(ValueSerializer.toByteBuffer(123456789.0).get(0), equalTo(ValueSerializer.DOUBLE_VALUE));
+	}
+
+	@Test
+	public void testVarintDoubles()
+	{
+		assertDouble(0.0, true, 2);
+		assertDouble(-1.0, true, 2);
+		assertDouble(63.0, true, 2);
+		assertDouble(64.0, true, 3);
+		assertDouble(-123456789.0, true, 5);
+		assertDouble(9007199254740992.0, true, 9);
+		assertDouble(-0.0, true, 5);
+		assertDouble(0.5, true, 5);
+		assertDouble(Double.POSITIVE_INFINITY, true, 5);
+		assertDouble(0.1, true, 9);
+		assertDouble(Math.PI, true, 9);
+		assertDouble(1e300, true, 9);
+		assertDouble(Double.NaN, true, 9);
+	}
+
+	@Test
+	public void testReadsFloatValues()
+	{
+		ByteBuffer buf = ValueSerializer.toByteBuffer(1.25f);
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(1.25));
+	}
 }
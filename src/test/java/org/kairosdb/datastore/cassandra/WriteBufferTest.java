@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import me.prettyprint.cassandra.connection.HConnectionManager;
+import me.prettyprint.cassandra.model.AllOneConsistencyLevelPolicy;
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.model.ExecutionResult;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class WriteBufferTest
+{
+	private static final int LONG_WRITE_DELAY = 60000;
+
+	//Only needed to build the keyspace, nothing is sent through it
+	private static HConnectionManager s_connectionManager;
+
+	@BeforeClass
+	public static void setupConnectionManager()
+	{
+		s_connectionManager = new HConnectionManager("test", new CassandraHostConfigurator("localhost:1"));
+	}
+
+	@AfterClass
+	public static void shutdownConnectionManager()
+	{
+		s_connectionManager.shutdown();
+	}
+
+	private WriteBuffer<String, String, String> createWriteBuffer(TestKeyspace keyspace,
+			int maxBufferSize, int flushSize)
+	{
+		return (new WriteBuffer<String, String, String>(keyspace, "test", LONG_WRITE_DELAY,
+				maxBufferSize, StringSerializer.get(), StringSerializer.get(), StringSerializer.get(),
+				new TestStats(), 1, flushSize, 1000, 1000));
+	}
+
+	private void addData(WriteBuffer<String, String, String> buffer, int count)
+	{
+		for (int I = 0; I < count; I++)
+			buffer.addData("row" + I, "column", "value", 1L);
+	}
+
+	@Test(timeout = 5000)
+	public void test_isFullAtMaxBufferSize() throws InterruptedException
+	{
+		WriteBuffer<String, String, String> buffer = createWriteBuffer(new TestKeyspace(0), 10, 1000);
+
+		addData(buffer, 9);
+		assertFalse(buffer.isFull());
+
+		addData(buffer, 1);
+		assertTrue(buffer.isFull());
+
+		buffer.close();
+	}
+
+	@Test(timeout = 5000)
+	public void test_isFullFollowsReducedBufferSize() throws InterruptedException
+	{
+		//The first batch fails which cuts the max buffer size to 75
+		WriteBuffer<String, String, String> buffer = createWriteBuffer(new TestKeyspace(1), 100, 100);
+
+		addData(buffer, 100);
+		while (buffer.getMaxBufferSize() == 100)
+			Thread.sleep(10);
+		assertThat(buffer.getMaxBufferSize(), equalTo(75));
+
+		addData(buffer, 74);
+		assertFalse(buffer.isFull());
+
+		addData(buffer, 1);
+		assertTrue(buffer.isFull());
+
+		buffer.close();
+	}
+
+	@Test(timeout = 5000)
+	public void test_increaseMaxBufferSize() throws InterruptedException
+	{
+		//One failed batch cuts the max buffer size to 7500
+		WriteBuffer<String, String, String> buffer = createWriteBuffer(new TestKeyspace(1), 10000, 100);
+
+		addData(buffer, 100);
+		while (buffer.getMaxBufferSize() == 10000)
+			Thread.sleep(10);
+		assertThat(buffer.getMaxBufferSize(), equalTo(7500));
+
+		buffer.increaseMaxBufferSize();
+		assertThat(buffer.getMaxBufferSize(), equalTo(8500));
+		buffer.increaseMaxBufferSize();
+		buffer.increaseMaxBufferSize();
+		assertThat(buffer.getMaxBufferSize(), equalTo(10000));
+
+		buffer.close();
+	}
+
+	@Test(timeout = 5000)
+	public void test_flushWaitsForAcknowledgement() throws InterruptedException
+	{
+		//The write delay is too long for the buffer to flush on its own
+		TestKeyspace keyspace = new TestKeyspace(0);
+		WriteBuffer<String, String, String> buffer = createWriteBuffer(keyspace, 1000, 1000);
+
+		addData(buffer, 5);
+		buffer.flush();
+		assertThat(keyspace.m_executed.get(), equalTo(1));
+
+		buffer.close();
+	}
+
+	/**
+	 Fails the first executions and accepts the rest without sending them
+	 anywhere.
+	 */
+	private static class TestKeyspace extends ExecutingKeyspace
+	{
+		private final AtomicInteger m_failures;
+		private final AtomicInteger m_executed = new AtomicInteger();
+
+		public TestKeyspace(int failures)
+		{
+			super("test", s_connectionManager, new AllOneConsistencyLevelPolicy(), null);
+			m_failures = new AtomicInteger(failures);
+		}
+
+		@Override
+		public <T> ExecutionResult<T> doExecuteOperation(Operation<T> operation) throws HectorException
+		{
+			if (m_failures.getAndDecrement() > 0)
+				throw new HectorException("Cassandra is unavailable");
+
+			m_executed.incrementAndGet();
+			return (new ExecutionResult<T>(null, 0L, null));
+		}
+	}
+
+	private static class TestStats implements WriteBufferStats
+	{
+		@Override
+		public void saveWriteSize(int pendingWrites)
+		{
+		}
+
+		@Override
+		public void saveBatchStats(int batchSize, long latency)
+		{
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 
@@ -76,6 +77,18 @@ public class Client
 		return new JsonResponse(response);
 	}
 
+	public JsonResponse post(byte[] data, String contentType, String url) throws IOException
+	{
+		setCredentials(url);
+
+		HttpPost post = new HttpPost(url);
+		post.setHeader(CONTENT_TYPE, contentType);
+		post.setEntity(new ByteArrayEntity(data));
+
+		HttpResponse response = client.execute(post);
+		return new JsonResponse(response);
+	}
+
 	public JsonResponse get(String url) throws IOException
 	{
 		setCredentials(url);